@@ -0,0 +1,104 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spim.process.fusion.deconvolution.MVDeconFFT;
+import spim.process.fusion.deconvolution.MVDeconFFT.PSFTYPE;
+import spim.process.fusion.deconvolution.MVDeconInput;
+import spim.process.fusion.deconvolution.MVDeconvolution;
+
+/**
+ * One iteration of the multi-view deconvolution (all views, CPU, no blocks).
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class DeconvolutionBenchmark
+{
+	@Param( { "2", "4" } )
+	public int numViews;
+
+	@Param( { "96" } )
+	public int size;
+
+	@Param( { "OPTIMIZATION_I", "EFFICIENT_BAYESIAN" } )
+	public String iterationType;
+
+	MVDeconvolution decon;
+
+	@Setup
+	public void setup() throws Exception
+	{
+		MVDeconvolution.debug = false;
+
+		final ArrayImgFactory< FloatType > factory = new ArrayImgFactory< FloatType >( new FloatType() );
+		final MVDeconInput input = new MVDeconInput( factory );
+		for ( int i = 0; i < numViews; ++i )
+		{
+			final Img< FloatType > img = SyntheticData.beadImage( new long[]{ size, size, size / 2 }, size * 5, 2.0, 23 + i );
+			final ArrayImg< FloatType, FloatArray > kernel = SyntheticData.gaussianKernel( 17, 2.0 );
+			final Img< FloatType > weight = ArrayImgs.floats( size, size, size / 2 );
+
+			for ( final FloatType t : weight )
+				t.set( 1.0f / numViews );
+
+			input.add( new MVDeconFFT( img, weight, kernel, factory, new int[]{ -1 }, false, null, false ) );
+		}
+
+		// zero iterations, we only want the initialized state
+		decon = new MVDeconvolution( input, PSFTYPE.valueOf( iterationType ), 0, 0.006, 1, 0, "benchmark" );
+	}
+
+	@Benchmark
+	public Img< FloatType > runIteration()
+	{
+		decon.runIteration();
+
+		return decon.getPsi();
+	}
+}
@@ -0,0 +1,111 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.imglib.image.Image;
+import mpicbg.imglib.type.numeric.integer.LongType;
+import mpicbg.imglib.type.numeric.real.FloatType;
+import mpicbg.imglib.wrapper.ImgLib2;
+import mpicbg.spim.segmentation.IntegralImage3d;
+import net.imglib2.img.Img;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.process.interestpointdetection.ProcessDOG;
+
+/**
+ * Difference-of-Gaussian detection (CPU) and the integral image used by Difference-of-Mean.
+ * 
+ * Note: ProcessDOG normalizes the input in place, after the first invocation this is an identity
+ * operation so the image can be shared between invocations.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class DetectionBenchmark
+{
+	@Param( { "128" } )
+	public int size;
+
+	@Param( { "1.8" } )
+	public float sigma;
+
+	Img< net.imglib2.type.numeric.real.FloatType > img;
+	Image< FloatType > imgLib1;
+
+	@Setup
+	public void setup()
+	{
+		img = SyntheticData.beadImage( new long[]{ size, size, size / 2 }, size * 10, sigma / 1.5, 7 );
+		imgLib1 = ImgLib2.wrapFloatToImgLib1( img );
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		imgLib1.close();
+	}
+
+	@Benchmark
+	public ArrayList< InterestPoint > differenceOfGaussian()
+	{
+		return ProcessDOG.compute(
+				null, null, false, 0,
+				imgLib1, img,
+				sigma, 0.008f,
+				1, // quadratic fit
+				0.5, 0.5, 0.5,
+				false, true,
+				Double.NaN, Double.NaN,
+				false );
+	}
+
+	@Benchmark
+	public long integralImage()
+	{
+		final Image< LongType > integral = IntegralImage3d.compute( imgLib1 );
+		final long numPixels = integral.getNumPixels();
+		integral.close();
+
+		return numPixels;
+	}
+}
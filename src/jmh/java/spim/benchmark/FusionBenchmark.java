@@ -0,0 +1,143 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spim.fiji.spimdata.boundingbox.BoundingBox;
+import spim.process.fusion.ImagePortion;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.weightedavg.ProcessParalellPortionWeights;
+import spim.process.fusion.weights.Blending;
+import spim.process.fusion.weights.BlendingRealRandomAccess;
+
+/**
+ * Weighted-average fusion of one portion (single thread) and the evaluation of the blending weights alone.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class FusionBenchmark
+{
+	@Param( { "2", "4" } )
+	public int numViews;
+
+	@Param( { "96" } )
+	public int size;
+
+	ArrayList< RandomAccessibleInterval< FloatType > > imgs;
+	ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights;
+	AffineTransform3D[] transforms;
+	InterpolatorFactory< FloatType, RandomAccessible< FloatType > > interpolatorFactory;
+	Img< FloatType > fused;
+	BoundingBoxGUI bb;
+
+	BlendingRealRandomAccess blending;
+
+	@Setup
+	public void setup()
+	{
+		final long[] dim = new long[]{ size, size, size / 2 };
+		final float[] border = new float[]{ 0, 0, 0 };
+		final float[] blendingRange = new float[]{ 40, 40, 40 };
+
+		imgs = new ArrayList< RandomAccessibleInterval< FloatType > >();
+		weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
+		transforms = new AffineTransform3D[ numViews ];
+
+		for ( int i = 0; i < numViews; ++i )
+		{
+			final Img< FloatType > img = SyntheticData.beadImage( dim, size * 5, 1.5, 17 + i );
+			imgs.add( img );
+
+			final ArrayList< RealRandomAccessible< FloatType > > w = new ArrayList< RealRandomAccessible< FloatType > >();
+			w.add( new Blending( img, border, blendingRange ) );
+			weights.add( w );
+
+			transforms[ i ] = i == 0 ? new AffineTransform3D() : SyntheticData.randomRigid( 42 + i );
+		}
+
+		interpolatorFactory = new NLinearInterpolatorFactory< FloatType >();
+		fused = ArrayImgs.floats( size, size, size / 2 );
+		bb = new BoundingBoxGUI( null, null, new BoundingBox( new int[]{ 0, 0, 0 }, new int[]{ size - 1, size - 1, size / 2 - 1 } ) );
+
+		blending = new BlendingRealRandomAccess( imgs.get( 0 ), border, blendingRange );
+	}
+
+	@Benchmark
+	public Img< FloatType > fusePortionWeights() throws Exception
+	{
+		new ProcessParalellPortionWeights< FloatType >(
+				new ImagePortion( 0, fused.size() ), imgs, weights, interpolatorFactory, transforms, fused, bb ).call();
+
+		return fused;
+	}
+
+	@Benchmark
+	public double blendingWeights()
+	{
+		final double[] p = new double[ 3 ];
+		final long d = size / 2;
+		double sum = 0;
+
+		for ( int z = 0; z < d; ++z )
+			for ( int y = 0; y < size; ++y )
+				for ( int x = 0; x < size; ++x )
+				{
+					p[ 0 ] = x + 0.5;
+					p[ 1 ] = y + 0.5;
+					p[ 2 ] = z + 0.5;
+					blending.setPosition( p );
+					sum += blending.get().get();
+				}
+
+		return sum;
+	}
+}
@@ -0,0 +1,156 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.PointMatchGeneric;
+import mpicbg.models.RigidModel3D;
+import mpicbg.models.Tile;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.realtransform.AffineTransform3D;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.GlobalOpt;
+import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationSubset;
+import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationType;
+
+/**
+ * Global optimization of a chain of views where every view is connected to its two successors,
+ * the inliers are simulated from known transformations plus localization noise.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 2 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class GlobalOptBenchmark
+{
+	@Param( { "6", "24" } )
+	public int numViews;
+
+	@Param( { "200" } )
+	public int inliersPerPair;
+
+	GlobalOptimizationType type;
+	GlobalOptimizationSubset subset;
+
+	@Setup
+	public void setup()
+	{
+		final Random rnd = new Random( 31 );
+		final ArrayList< ViewId > views = new ArrayList< ViewId >();
+		final AffineTransform3D[] transforms = new AffineTransform3D[ numViews ];
+
+		for ( int i = 0; i < numViews; ++i )
+		{
+			views.add( new ViewId( 0, i ) );
+			transforms[ i ] = SyntheticData.randomRigid( 100 + i );
+		}
+
+		final ArrayList< PairwiseMatch > pairs = new ArrayList< PairwiseMatch >();
+		final double[] world = new double[ 3 ];
+		int id = 0;
+
+		for ( int a = 0; a < numViews; ++a )
+			for ( int b = a + 1; b <= a + 2 && b < numViews; ++b )
+			{
+				final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
+
+				for ( int i = 0; i < inliersPerPair; ++i )
+				{
+					for ( int d = 0; d < 3; ++d )
+						world[ d ] = rnd.nextDouble() * 500;
+
+					final double[] la = new double[ 3 ];
+					final double[] lb = new double[ 3 ];
+
+					transforms[ a ].applyInverse( la, world );
+					transforms[ b ].applyInverse( lb, world );
+
+					for ( int d = 0; d < 3; ++d )
+					{
+						la[ d ] += rnd.nextGaussian() * 0.5;
+						lb[ d ] += rnd.nextGaussian() * 0.5;
+					}
+
+					inliers.add( new PointMatchGeneric< Detection >( new Detection( id, la ), new Detection( id, lb ) ) );
+					++id;
+				}
+
+				final PairwiseMatch pair = new PairwiseMatch( views.get( a ), views.get( b ), null, null );
+				pair.setInliers( inliers, 0 );
+				pairs.add( pair );
+			}
+
+		subset = new GlobalOptimizationSubset( pairs, "benchmark" );
+
+		type = new GlobalOptimizationType( null, views, null, false )
+		{
+			@Override
+			protected List< GlobalOptimizationSubset > assembleAllViewPairs()
+			{
+				final ArrayList< GlobalOptimizationSubset > subsets = new ArrayList< GlobalOptimizationSubset >();
+				subsets.add( subset );
+				return subsets;
+			}
+		};
+
+		final HashSet< ViewId > fixed = new HashSet< ViewId >();
+		fixed.add( views.get( 0 ) );
+		type.setFixedTiles( fixed );
+	}
+
+	@Benchmark
+	public HashMap< ViewId, Tile< RigidModel3D > > rigid()
+	{
+		return GlobalOpt.compute( new RigidModel3D(), type, subset, false );
+	}
+
+	@Benchmark
+	public HashMap< ViewId, Tile< AffineModel3D > > affine()
+	{
+		return GlobalOpt.compute( new AffineModel3D(), type, subset, false );
+	}
+}
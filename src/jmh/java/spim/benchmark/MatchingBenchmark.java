@@ -0,0 +1,82 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.benchmark;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.models.PointMatchGeneric;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.geometricdescriptor.RGLDMMatcher;
+import spim.process.interestpointregistration.geometrichashing.GeometricHasher;
+
+/**
+ * Correspondence candidate extraction of the geometric hashing and redundant geometric local descriptor
+ * matchers on two point clouds related by a rigid transformation, with noise and outliers.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class MatchingBenchmark
+{
+	@Param( { "1000", "5000" } )
+	public int numPoints;
+
+	ArrayList< Detection > listA, listB;
+
+	@Setup
+	public void setup()
+	{
+		listA = SyntheticData.detections( numPoints, 500, 3 );
+		listB = SyntheticData.transform( listA, SyntheticData.randomRigid( 5 ), 0.5, 0.2, 11 );
+	}
+
+	@Benchmark
+	public ArrayList< PointMatchGeneric< Detection > > geometricHashing()
+	{
+		return new GeometricHasher().extractCorrespondenceCandidates( listA, listB, 50, 10, false );
+	}
+
+	@Benchmark
+	public ArrayList< PointMatchGeneric< Detection > > rgldm()
+	{
+		return new RGLDMMatcher().extractCorrespondenceCandidates( listA, listB, 3, 1, 3, 50 );
+	}
+}
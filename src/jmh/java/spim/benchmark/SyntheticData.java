@@ -0,0 +1,188 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.benchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypes.FloatArray;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import spim.process.interestpointregistration.Detection;
+
+/**
+ * Seeded synthetic inputs for the benchmarks, so that every run (and every machine)
+ * works on exactly the same data.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class SyntheticData
+{
+	/**
+	 * Renders gaussian beads into an image with a small constant background.
+	 * 
+	 * @param dim - size of the image
+	 * @param numBeads - how many beads
+	 * @param sigma - sigma of the beads in pixels
+	 * @param seed - random seed
+	 * @return the image
+	 */
+	public static ArrayImg< FloatType, FloatArray > beadImage( final long[] dim, final int numBeads, final double sigma, final long seed )
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( dim );
+		final float[] data = img.update( null ).getCurrentStorageArray();
+
+		final int w = (int)dim[ 0 ];
+		final int h = (int)dim[ 1 ];
+		final int d = (int)dim[ 2 ];
+
+		for ( int i = 0; i < data.length; ++i )
+			data[ i ] = 0.01f;
+
+		final Random rnd = new Random( seed );
+		final int r = (int)Math.ceil( 3 * sigma );
+		final double twoSigmaSq = 2 * sigma * sigma;
+
+		for ( int b = 0; b < numBeads; ++b )
+		{
+			final double px = rnd.nextDouble() * ( w - 1 );
+			final double py = rnd.nextDouble() * ( h - 1 );
+			final double pz = rnd.nextDouble() * ( d - 1 );
+			final double intensity = 0.5 + rnd.nextDouble() * 0.5;
+
+			for ( int z = Math.max( 0, (int)pz - r ); z <= Math.min( d - 1, (int)pz + r ); ++z )
+				for ( int y = Math.max( 0, (int)py - r ); y <= Math.min( h - 1, (int)py + r ); ++y )
+					for ( int x = Math.max( 0, (int)px - r ); x <= Math.min( w - 1, (int)px + r ); ++x )
+					{
+						final double dx = x - px, dy = y - py, dz = z - pz;
+						data[ x + w * ( y + h * z ) ] += (float)( intensity * Math.exp( -( dx * dx + dy * dy + dz * dz ) / twoSigmaSq ) );
+					}
+		}
+
+		return img;
+	}
+
+	/**
+	 * @param size - the size of the kernel, should be odd
+	 * @param sigma - sigma in all dimensions
+	 * @return a normalized 3d gaussian kernel
+	 */
+	public static ArrayImg< FloatType, FloatArray > gaussianKernel( final int size, final double sigma )
+	{
+		final ArrayImg< FloatType, FloatArray > kernel = ArrayImgs.floats( size, size, size );
+		final Cursor< FloatType > c = kernel.localizingCursor();
+		final double center = ( size - 1 ) / 2.0;
+		double sum = 0;
+
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			final double dx = c.getDoublePosition( 0 ) - center;
+			final double dy = c.getDoublePosition( 1 ) - center;
+			final double dz = c.getDoublePosition( 2 ) - center;
+			final double v = Math.exp( -( dx * dx + dy * dy + dz * dz ) / ( 2 * sigma * sigma ) );
+			c.get().setReal( v );
+			sum += v;
+		}
+
+		for ( final FloatType t : kernel )
+			t.setReal( t.get() / sum );
+
+		return kernel;
+	}
+
+	/**
+	 * @param n - number of detections
+	 * @param size - the extent of the volume they are distributed in
+	 * @param seed - random seed
+	 * @return uniformly distributed detections with ids 0...n-1
+	 */
+	public static ArrayList< Detection > detections( final int n, final double size, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final ArrayList< Detection > list = new ArrayList< Detection >( n );
+
+		for ( int i = 0; i < n; ++i )
+			list.add( new Detection( i, new double[]{ rnd.nextDouble() * size, rnd.nextDouble() * size, rnd.nextDouble() * size } ) );
+
+		return list;
+	}
+
+	/**
+	 * Simulates a second view of the same sample: transforms all detections, adds gaussian localization
+	 * noise and replaces a fraction of them by random outliers.
+	 * 
+	 * @param detections - the first view
+	 * @param t - maps the first view into the second
+	 * @param noise - sigma of the localization error
+	 * @param outlierRatio - fraction of detections replaced by random points
+	 * @param seed - random seed
+	 * @return the second view
+	 */
+	public static ArrayList< Detection > transform( final ArrayList< Detection > detections, final AffineTransform3D t, final double noise, final double outlierRatio, final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final ArrayList< Detection > list = new ArrayList< Detection >( detections.size() );
+		final double[] l = new double[ 3 ];
+
+		double size = 0;
+
+		for ( final Detection d : detections )
+			for ( int k = 0; k < 3; ++k )
+				size = Math.max( size, d.getL()[ k ] );
+
+		for ( final Detection d : detections )
+		{
+			if ( rnd.nextDouble() < outlierRatio )
+			{
+				list.add( new Detection( d.getId(), new double[]{ rnd.nextDouble() * size, rnd.nextDouble() * size, rnd.nextDouble() * size } ) );
+			}
+			else
+			{
+				t.apply( d.getL(), l );
+				list.add( new Detection( d.getId(), new double[]{ l[ 0 ] + rnd.nextGaussian() * noise, l[ 1 ] + rnd.nextGaussian() * noise, l[ 2 ] + rnd.nextGaussian() * noise } ) );
+			}
+		}
+
+		return list;
+	}
+
+	/**
+	 * @param seed - random seed
+	 * @return a small random rotation (up to ~10 degrees around each axis) plus translation
+	 */
+	public static AffineTransform3D randomRigid( final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final AffineTransform3D t = new AffineTransform3D();
+
+		t.rotate( 0, ( rnd.nextDouble() - 0.5 ) * 0.35 );
+		t.rotate( 1, ( rnd.nextDouble() - 0.5 ) * 0.35 );
+		t.rotate( 2, ( rnd.nextDouble() - 0.5 ) * 0.35 );
+		t.translate( ( rnd.nextDouble() - 0.5 ) * 20, ( rnd.nextDouble() - 0.5 ) * 20, ( rnd.nextDouble() - 0.5 ) * 20 );
+
+		return t;
+	}
+}
@@ -0,0 +1,295 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mpicbg.spim.io.IOFunctions;
+
+/**
+ * Process-wide compute scheduler on top of a work-stealing {@link ForkJoinPool}. It is shared by all
+ * multithreaded steps (see {@link Threads#getExecutorService()}), so threads and their caches stay warm
+ * across calls. It cannot be shut down by the callers, {@link #shutdown()} does nothing.
+ * 
+ * Tasks submitted through {@link #invokeAll(Collection)} from within a worker help executing queued tasks
+ * while waiting, so nested parallelism does not starve the pool. Tasks that block otherwise (waiting for
+ * a result computed by another task, I/O) have to do so through {@link #get(Future)} or {@link #block(Callable)},
+ * the pool then activates a spare thread for as long as the worker is blocked.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ComputeScheduler extends AbstractExecutorService
+{
+	final ForkJoinPool pool;
+
+	// statistics
+	final AtomicLong numTasks = new AtomicLong();
+	final AtomicLong sumQueueNanos = new AtomicLong();
+	final AtomicLong maxQueueNanos = new AtomicLong();
+	final AtomicLong sumRunNanos = new AtomicLong();
+
+	// per-thread scratch buffers, they are never shrunk
+	private static final ThreadLocal< double[][] > doubleBuffers = ThreadLocal.withInitial( () -> new double[ 4 ][ 0 ] );
+	private static final ThreadLocal< float[][] > floatBuffers = ThreadLocal.withInitial( () -> new float[ 4 ][ 0 ] );
+
+	public ComputeScheduler( final int numThreads )
+	{
+		this.pool = new ForkJoinPool( numThreads );
+	}
+
+	public int getParallelism() { return pool.getParallelism(); }
+
+	/**
+	 * @return an estimate of the number of tasks that are submitted but not yet started (cancelled tasks are
+	 * counted until a worker removes them from the queue)
+	 */
+	public int getQueueDepth() { return (int)Math.min( Integer.MAX_VALUE, pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount() ); }
+
+	public long getNumTasks() { return numTasks.get(); }
+
+	/**
+	 * @return the average time in ms tasks waited in the queue before they started
+	 */
+	public double getAvgQueueLatency() { return numTasks.get() == 0 ? 0 : sumQueueNanos.get() / ( numTasks.get() * 1000000.0 ); }
+
+	/**
+	 * @return the maximal time in ms a task waited in the queue before it started
+	 */
+	public double getMaxQueueLatency() { return maxQueueNanos.get() / 1000000.0; }
+
+	/**
+	 * @return the average time in ms a task took to run
+	 */
+	public double getAvgRunTime() { return numTasks.get() == 0 ? 0 : sumRunNanos.get() / ( numTasks.get() * 1000000.0 ); }
+
+	public void resetStatistics()
+	{
+		numTasks.set( 0 );
+		sumQueueNanos.set( 0 );
+		maxQueueNanos.set( 0 );
+		sumRunNanos.set( 0 );
+	}
+
+	/**
+	 * Prints the statistics of all tasks since the last report and resets them, called at the end of a
+	 * processing step so that every report covers one step
+	 */
+	public void printStatistics()
+	{
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + this );
+		resetStatistics();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "ComputeScheduler (threads=" + getParallelism() + ", queued=" + getQueueDepth() + ", tasks=" + getNumTasks() +
+				", avg queue latency=" + String.format( "%.3f", getAvgQueueLatency() ) + " ms, max queue latency=" + String.format( "%.3f", getMaxQueueLatency() ) +
+				" ms, avg run time=" + String.format( "%.3f", getAvgRunTime() ) + " ms)";
+	}
+
+	/**
+	 * @param slot - which buffer of the current thread (0...3)
+	 * @param size - the minimal size
+	 * @return a scratch buffer owned by the current thread, the content is undefined
+	 */
+	public static double[] getDoubleBuffer( final int slot, final int size )
+	{
+		final double[][] buffers = doubleBuffers.get();
+
+		if ( buffers[ slot ].length < size )
+			buffers[ slot ] = new double[ size ];
+
+		return buffers[ slot ];
+	}
+
+	/**
+	 * @param slot - which buffer of the current thread (0...3)
+	 * @param size - the minimal size
+	 * @return a scratch buffer owned by the current thread, the content is undefined
+	 */
+	public static float[] getFloatBuffer( final int slot, final int size )
+	{
+		final float[][] buffers = floatBuffers.get();
+
+		if ( buffers[ slot ].length < size )
+			buffers[ slot ] = new float[ size ];
+
+		return buffers[ slot ];
+	}
+
+	protected < T > Callable< T > measure( final Callable< T > task )
+	{
+		final long submitted = System.nanoTime();
+
+		return new Callable< T >()
+		{
+			@Override
+			public T call() throws Exception
+			{
+				final long start = System.nanoTime();
+
+				try
+				{
+					return task.call();
+				}
+				finally
+				{
+					final long end = System.nanoTime();
+
+					numTasks.incrementAndGet();
+					sumQueueNanos.addAndGet( start - submitted );
+					sumRunNanos.addAndGet( end - start );
+					maxQueueNanos.accumulateAndGet( start - submitted, Math::max );
+				}
+			}
+		};
+	}
+
+	/**
+	 * Waits for the result of a future. If called from a worker of a {@link ForkJoinPool}, the pool compensates
+	 * the blocked worker with a spare thread, otherwise it is the same as {@link Future#get()}.
+	 */
+	public static < T > T get( final Future< T > future ) throws InterruptedException, ExecutionException
+	{
+		if ( !future.isDone() )
+		{
+			ForkJoinPool.managedBlock( new ForkJoinPool.ManagedBlocker()
+			{
+				@Override
+				public boolean block() throws InterruptedException
+				{
+					try
+					{
+						future.get();
+					}
+					catch ( final ExecutionException | CancellationException e ) {}
+
+					return true;
+				}
+
+				@Override
+				public boolean isReleasable() { return future.isDone(); }
+			} );
+		}
+
+		return future.get();
+	}
+
+	/**
+	 * Runs a blocking operation (e.g. I/O) such that a worker of a {@link ForkJoinPool} is compensated
+	 * with a spare thread while it blocks.
+	 */
+	public static < T > T block( final Callable< T > blocking ) throws Exception
+	{
+		final ArrayList< T > result = new ArrayList< T >( 1 );
+		final Exception[] exception = new Exception[ 1 ];
+
+		ForkJoinPool.managedBlock( new ForkJoinPool.ManagedBlocker()
+		{
+			@Override
+			public boolean block()
+			{
+				try
+				{
+					result.add( blocking.call() );
+				}
+				catch ( final Exception e )
+				{
+					exception[ 0 ] = e;
+				}
+
+				return true;
+			}
+
+			@Override
+			public boolean isReleasable() { return !result.isEmpty() || exception[ 0 ] != null; }
+		} );
+
+		if ( exception[ 0 ] != null )
+			throw exception[ 0 ];
+
+		return result.get( 0 );
+	}
+
+	@Override
+	public < T > List< Future< T > > invokeAll( final Collection< ? extends Callable< T > > tasks ) throws InterruptedException
+	{
+		final ArrayList< ForkJoinTask< T > > futures = new ArrayList< ForkJoinTask< T > >( tasks.size() );
+
+		for ( final Callable< T > task : tasks )
+			futures.add( pool.submit( measure( task ) ) );
+
+		// joining helps executing other tasks if called from a worker thread
+		for ( final ForkJoinTask< T > future : futures )
+			future.quietlyJoin();
+
+		if ( Thread.interrupted() )
+			throw new InterruptedException();
+
+		return new ArrayList< Future< T > >( futures );
+	}
+
+	@Override
+	public void execute( final Runnable command )
+	{
+		pool.execute( ForkJoinTask.adapt( measure( Executors.callable( command ) ) ) );
+	}
+
+	/**
+	 * The scheduler is shared, it cannot be shut down by a caller
+	 */
+	@Override
+	public void shutdown() {}
+
+	@Override
+	public List< Runnable > shutdownNow() { return Collections.emptyList(); }
+
+	@Override
+	public boolean isShutdown() { return false; }
+
+	@Override
+	public boolean isTerminated() { return false; }
+
+	@Override
+	public boolean awaitTermination( final long timeout, final TimeUnit unit ) throws InterruptedException { return false; }
+
+	/**
+	 * Releases the worker threads once all submitted tasks are done (when the number of threads changed,
+	 * or for a scheduler that is not the shared one)
+	 */
+	public void close() { pool.shutdown(); }
+}
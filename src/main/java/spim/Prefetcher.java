@@ -0,0 +1,167 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs a list of loading tasks ahead of their use, so that loading (I/O bound) and processing (CPU bound)
+ * overlap. The tasks are run in order by a single background thread. At most maxInMemory results exist at
+ * any time, a result counts from when its loading starts until {@link #release()} is called for it.
+ *
+ * Results are taken in the order of the list, results that are skipped are released automatically.
+ * {@link #close()} stops the loading, e.g. if the processing failed.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class Prefetcher< T >
+{
+	final Semaphore inMemory;
+	final ExecutorService loader;
+	final ArrayList< Future< T > > queued = new ArrayList< Future< T > >();
+
+	// the first result that was neither taken nor skipped, only accessed by the thread taking the results
+	int next = 0;
+
+	/**
+	 * @param name - name of the loading thread
+	 * @param loads - the loading tasks in the order their results are taken
+	 * @param maxInMemory - how many results can exist at the same time
+	 */
+	public Prefetcher( final String name, final List< ? extends Callable< T > > loads, final int maxInMemory )
+	{
+		this.inMemory = new Semaphore( Math.max( 1, maxInMemory ) );
+		this.loader = Threads.newDaemonExecutor( name );
+
+		for ( final Callable< T > load : loads )
+		{
+			queued.add( loader.submit( new Callable< T >()
+			{
+				@Override
+				public T call() throws Exception
+				{
+					boolean acquired = false;
+
+					try
+					{
+						// close() interrupts the loader, possibly while it is waiting for a permit
+						inMemory.acquire();
+						acquired = true;
+
+						return load.call();
+					}
+					catch ( final Throwable e )
+					{
+						// only give back a permit this result actually holds
+						if ( acquired )
+							inMemory.release();
+
+						throw e;
+					}
+				}
+			} ) );
+		}
+
+		// the queued tasks are still run, the thread terminates afterwards
+		loader.shutdown();
+	}
+
+	public int size() { return queued.size(); }
+
+	/**
+	 * @param i - index of the loading task
+	 * @return true if the result was neither taken nor skipped yet
+	 */
+	public boolean isPending( final int i ) { return i >= next && i < queued.size(); }
+
+	/**
+	 * @return true if all results were taken (or skipped)
+	 */
+	public boolean isDone() { return next >= queued.size(); }
+
+	/**
+	 * @param i - index of the loading task, results before it that were not taken are skipped
+	 * @return the result, waits if it is not loaded yet
+	 * @throws Exception - if loading failed
+	 */
+	public T take( final int i ) throws Exception
+	{
+		if ( !isPending( i ) )
+			throw new IllegalArgumentException( "Result " + i + " was already taken or skipped." );
+
+		// results before the requested one will not be asked for anymore,
+		// release them so the loader does not wait for their memory forever
+		for ( ; next < i; ++next )
+		{
+			final Future< T > skipped = queued.set( next, null );
+
+			try
+			{
+				skipped.get();
+				release();
+			}
+			catch ( final ExecutionException e ) {}
+		}
+
+		final Future< T > future = queued.set( i, null );
+		next = i + 1;
+
+		try
+		{
+			return future.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			if ( e.getCause() instanceof Exception )
+				throw (Exception)e.getCause();
+			else
+				throw e;
+		}
+	}
+
+	/**
+	 * Frees the slot of a result returned by {@link #take(int)}, the loader can then run the next task.
+	 */
+	public void release()
+	{
+		inMemory.release();
+	}
+
+	/**
+	 * Stops the loader, results that are queued or loaded but were not taken are dropped
+	 */
+	public void close()
+	{
+		for ( final Future< T > f : queued )
+			if ( f != null )
+				f.cancel( true );
+
+		next = queued.size();
+		loader.shutdownNow();
+	}
+}
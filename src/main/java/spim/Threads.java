@@ -23,7 +23,57 @@ package spim;
 
 import ij.Prefs;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
 public class Threads
 {
+	private static ComputeScheduler scheduler = null;
+
 	public static int numThreads() { return Math.max( 1, Prefs.getThreads() ); }
+
+	/**
+	 * @return the process-wide {@link ComputeScheduler} with {@link #numThreads()} threads, it is
+	 * re-created if the number of threads changed. Callers must not (and cannot) shut it down.
+	 */
+	public static synchronized ComputeScheduler getExecutorService()
+	{
+		if ( scheduler == null || scheduler.getParallelism() != numThreads() )
+		{
+			if ( scheduler != null )
+				scheduler.close();
+
+			scheduler = new ComputeScheduler( numThreads() );
+		}
+
+		return scheduler;
+	}
+
+	/**
+	 * @param name - name of the threads
+	 * @return a factory for threads that do not keep the JVM alive
+	 */
+	public static ThreadFactory daemonThreadFactory( final String name )
+	{
+		return new ThreadFactory()
+		{
+			@Override
+			public Thread newThread( final Runnable r )
+			{
+				final Thread thread = new Thread( r, name );
+				thread.setDaemon( true );
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * @param name - name of the thread
+	 * @return a single thread executor for background work (loading, writing) whose thread does not keep the JVM alive
+	 */
+	public static ExecutorService newDaemonExecutor( final String name )
+	{
+		return Executors.newSingleThreadExecutor( daemonThreadFactory( name ) );
+	}
 }
@@ -216,6 +216,11 @@ public class Interest_Point_Detection implements PlugIn
 					if ( !list.saveInterestPoints() )
 					{
 						IOFunctions.println( "Error saving interest point list: " + new File( list.getBaseDir(), list.getFile().toString() + list.getInterestPointsExt() ) );
+
+						// do not keep loading the views of the remaining timepoints
+						if ( ipd instanceof DifferenceOf )
+							((DifferenceOf)ipd).close();
+
 						return false;
 					}
 	
@@ -247,6 +252,9 @@ public class Interest_Point_Detection implements PlugIn
 				SpimData2.saveXML( data, xmlFileName, clusterExtension );
 		}
 
+		if ( ipd instanceof DifferenceOf )
+			((DifferenceOf)ipd).close();
+
 		return true;
 	}
 
@@ -42,6 +42,7 @@ import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
 import mpicbg.spim.io.IOFunctions;
+import spim.Threads;
 import spim.fiji.plugin.interestpointregistration.InterestPointRegistration;
 import spim.fiji.plugin.queryXML.LoadParseQueryXML;
 import spim.fiji.plugin.util.GUIHelper;
@@ -49,6 +50,7 @@ import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
 import spim.process.interestpointregistration.ChannelProcess;
+import spim.process.interestpointregistration.PairwiseMatchCache;
 import spim.process.interestpointregistration.centerofmass.CenterOfMass;
 import spim.process.interestpointregistration.geometricdescriptor.RGLDM;
 import spim.process.interestpointregistration.geometrichashing.GeometricHashing;
@@ -59,6 +61,7 @@ import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizati
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationType;
 import spim.process.interestpointregistration.optimizationtypes.IndividualTimepointRegistration;
 import spim.process.interestpointregistration.optimizationtypes.ReferenceTimepointRegistration;
+import spim.process.interestpointregistration.registrationstatistics.PairwiseMatchStatistics;
 import spim.process.interestpointregistration.registrationstatistics.RegistrationStatistics;
 import spim.process.interestpointregistration.registrationstatistics.TimeLapseDisplay;
 
@@ -105,6 +108,9 @@ public class Interest_Point_Registration implements PlugIn
 	public static boolean[] defaultFixedTiles = null;
 	public static int defaultReferenceTile = 0;
 	public static boolean defaultShowStatistics = true;
+	public static boolean defaultReuseMatches = false;
+	public static double defaultPairTimeout = 0;
+	public static boolean defaultShowPairStatistics = false;
 
 	public final static String warningLabel = " (WARNING: Only available for "; 
 	
@@ -328,6 +334,10 @@ public class Interest_Point_Registration implements PlugIn
 
 		ipr.addQuery( gd2, registrationType );
 
+		gd2.addCheckbox( "Reuse_pairwise_matches of unchanged views", defaultReuseMatches );
+		gd2.addNumericField( "Timeout_per_pair (seconds, 0 = no timeout)", defaultPairTimeout, 0 );
+		gd2.addCheckbox( "Show_pairwise_matching_statistics", defaultShowPairStatistics );
+
 		if ( timepointToProcess.size() > 1 )
 			gd2.addCheckbox( "Show_timeseries_statistics", defaultShowStatistics );
 
@@ -384,6 +394,16 @@ public class Interest_Point_Registration implements PlugIn
 		if ( !ipr.parseDialog( gd2, registrationType ) )
 			return false;
 
+		final boolean reuseMatches = defaultReuseMatches = gd2.getNextBoolean();
+
+		if ( reuseMatches )
+			ipr.setMatchCache( new PairwiseMatchCache( data ) );
+
+		ipr.setPairTimeout( Math.round( ( defaultPairTimeout = gd2.getNextNumber() ) * 1000 ) );
+		ipr.setCancelOnEscape( true );
+
+		final boolean showPairStatistics = defaultShowPairStatistics = gd2.getNextBoolean();
+
 		final boolean showStatistics;
 		if ( timepointToProcess.size() > 1 )
 			defaultShowStatistics = showStatistics = gd2.getNextBoolean();
@@ -408,7 +428,14 @@ public class Interest_Point_Registration implements PlugIn
 		if ( !setFixedTilesAndReference( fixTiles, mapBack, type ) )
 			return false;
 
-		if ( !ipr.register( type, saveXML, showStatistics ) )
+		final boolean registered = ipr.register( type, saveXML, showStatistics );
+
+		Threads.getExecutorService().printStatistics();
+
+		if ( showPairStatistics )
+			PairwiseMatchStatistics.show( ipr.getPairStatistics(), "Pairwise matching statistics" );
+
+		if ( !registered )
 			return false;
 
 		// save the XML including transforms and correspondences
@@ -419,7 +446,7 @@ public class Interest_Point_Registration implements PlugIn
 		{
 			final ArrayList< RegistrationStatistics > rsData = new ArrayList< RegistrationStatistics >();
 			for ( final TimePoint t : timepointToProcess )
-				rsData.add( new RegistrationStatistics( t.getId(), ipr.getStatistics() ) );
+				rsData.add( new RegistrationStatistics( t.getId(), ipr.getStatistics(), ipr.getPairStatistics() ) );
 			TimeLapseDisplay.plotData( data.getSequenceDescription().getTimePoints(), rsData, TimeLapseDisplay.getOptimalTimePoint( rsData ), true );
 		}
 
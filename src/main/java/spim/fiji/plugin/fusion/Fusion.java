@@ -108,6 +108,18 @@ public abstract class Fusion
 
 	public abstract long totalRAM( final long fusedSizeMB, final int bytePerPixel );
 
+	/**
+	 * @param fusedSizeMB - the size of the fused image
+	 * @param bytePerPixel
+	 * @param min - the bounding box in global coordinates
+	 * @param max - the bounding box in global coordinates
+	 * @return - the estimated total RAM in MB, by default it only depends on the size of the fused image
+	 */
+	public long totalRAM( final long fusedSizeMB, final int bytePerPixel, final long[] min, final long[] max )
+	{
+		return totalRAM( fusedSizeMB, bytePerPixel );
+	}
+
 	public int getMaxNumViewsPerTimepoint() { return maxNumViews; }
 
 	public int getInterpolation() { return interpolation; }
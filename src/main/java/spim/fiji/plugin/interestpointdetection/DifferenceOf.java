@@ -25,14 +25,17 @@ import static mpicbg.spim.data.generic.sequence.ImgLoaderHints.LOAD_COMPLETELY;
 import ij.gui.GenericDialog;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.ImgLoader;
 import mpicbg.spim.data.sequence.MultiResolutionImgLoader;
+import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.VoxelDimensions;
@@ -45,6 +48,7 @@ import net.imglib2.img.ImgFactory;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.view.Views;
+import spim.fiji.plugin.interestpointdetection.ViewPrefetcher.LoadedView;
 import spim.fiji.plugin.util.GUIHelper;
 import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
@@ -83,12 +87,18 @@ public abstract class DifferenceOf extends InterestPointDetection
 	public static int defaultMaxDetections = 3000;
 	public static int defaultMaxDetectionsTypeIndex = 0;
 
+	public static int defaultMaxViewsInMemory = 2;
+
 	protected boolean limitDetections = false;
 	protected double imageSigmaX, imageSigmaY, imageSigmaZ;
 	protected double additionalSigmaX, additionalSigmaY, additionalSigmaZ;
 	protected double minIntensity, maxIntensity;
 	protected int maxDetections, maxDetectionsTypeIndex;
 
+	// how many opened views can wait for or be in the detection (1 means no prefetching)
+	protected int maxViewsInMemory = defaultMaxViewsInMemory;
+	protected ViewPrefetcher prefetcher = null;
+
 	// downsampleXY == 0 : a bit less then z-resolution
 	// downsampleXY == -1 : a bit more then z-resolution
 	protected int localization, downsampleXY, downsampleZ;
@@ -173,6 +183,8 @@ public abstract class DifferenceOf extends InterestPointDetection
 			gd.addChoice( "Type_of_detections_to_use", limitDetectionChoice, limitDetectionChoice[ defaultMaxDetectionsTypeIndex ] );
 		}
 
+		gd.addNumericField( "Views_held_in_memory (load next views during detection)", defaultMaxViewsInMemory, 0 );
+
 		addAddtionalParameters( gd );
 
 		gd.showDialog();
@@ -281,12 +293,134 @@ public abstract class DifferenceOf extends InterestPointDetection
 			maxDetectionsTypeIndex = defaultMaxDetectionsTypeIndex = gd.getNextChoiceIndex();
 		}
 
+		maxViewsInMemory = defaultMaxViewsInMemory = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+
 		if ( !queryAdditionalParameters( gd ) )
 			return false;
 		else
 			return true;
 	}
 	
+	/**
+	 * Run the detection on one opened (and downsampled) view
+	 *
+	 * @param vd - the view
+	 * @param input - the opened image, it can be modified and is not used anymore afterwards
+	 * @return the detections in the coordinates of input
+	 */
+	protected abstract List< InterestPoint > findInterestPoints( final ViewDescription vd, final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input );
+
+	/**
+	 * The views are opened by a {@link ViewPrefetcher} that runs ahead (also into the next
+	 * timepoints) while the detection is computed on the current view. It is created for this
+	 * and all following timepoints when a timepoint is asked for that it does not hold, and
+	 * closed once all its views are taken or by {@link #close()}.
+	 */
+	@Override
+	public HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint t )
+	{
+		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
+
+		if ( prefetcher == null || !prefetcher.isPending( t ) )
+		{
+			close();
+			prefetcher = new ViewPrefetcher( this, spimData, viewIdsToProcess, fromTimePoint( t ), maxViewsInMemory );
+		}
+
+		try
+		{
+			findInterestPoints( t, prefetcher, interestPoints );
+		}
+		finally
+		{
+			if ( prefetcher.isDone() )
+				close();
+		}
+
+		return interestPoints;
+	}
+
+	/**
+	 * Stops opening views ahead, call it if no more timepoints are processed (e.g. after an error)
+	 */
+	public void close()
+	{
+		if ( prefetcher != null )
+		{
+			prefetcher.close();
+			prefetcher = null;
+		}
+	}
+
+	/**
+	 * @param t - the timepoint
+	 * @return t and all timepoints that are processed after it
+	 */
+	protected List< TimePoint > fromTimePoint( final TimePoint t )
+	{
+		final List< TimePoint > timepoints = SpimData2.getAllTimePointsSorted( spimData, viewIdsToProcess );
+
+		for ( int i = 0; i < timepoints.size(); ++i )
+			if ( timepoints.get( i ).getId() == t.getId() )
+				return timepoints.subList( i, timepoints.size() );
+
+		return Arrays.asList( t );
+	}
+
+	protected void findInterestPoints( final TimePoint t, final ViewPrefetcher prefetcher, final HashMap< ViewId, List< InterestPoint > > interestPoints )
+	{
+		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
+		{
+			if ( !vd.isPresent() )
+				continue;
+
+			// make sure not everything crashes if one file is missing
+			try
+			{
+				//
+				// open the corresponding image (if present at this timepoint)
+				//
+				final long time1 = System.currentTimeMillis();
+
+				final LoadedView view = prefetcher.take( vd );
+
+				final long time2 = System.currentTimeMillis();
+
+				// time spent loading, not only waiting for the prefetcher
+				benchmark.openFiles += Math.max( time2 - time1, view.getLoadingTime() );
+
+				try
+				{
+					preSmooth( view.getImage() );
+
+					List< InterestPoint > ips = findInterestPoints( vd, view.getImage() );
+
+					correctForDownsampling( ips, view.getCorrectCoordinates() );
+
+					if ( limitDetections )
+						ips = limitList( maxDetections, maxDetectionsTypeIndex, ips );
+
+					interestPoints.put( vd, ips );
+				}
+				finally
+				{
+					prefetcher.release( view );
+				}
+
+				benchmark.computation += System.currentTimeMillis() - time2;
+			}
+			catch ( Exception  e )
+			{
+				IOFunctions.println( "An error occured (" + getDescription() + "): " + e );
+				IOFunctions.println( "Failed to segment angleId: " +
+						vd.getViewSetup().getAngle().getId() + " channelId: " +
+						vd.getViewSetup().getChannel().getId() + " illumId: " +
+						vd.getViewSetup().getIllumination().getId() + ". Continuing with next one." );
+				e.printStackTrace();
+			}
+		}
+	}
+
 	protected < T extends RealType< T > > void preSmooth( final RandomAccessibleInterval< T > img )
 	{
 		if ( additionalSigmaX > 0.0 || additionalSigmaY > 0.0 || additionalSigmaZ > 0.0 )
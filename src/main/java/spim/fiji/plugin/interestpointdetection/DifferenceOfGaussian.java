@@ -25,14 +25,12 @@ import ij.ImagePlus;
 import ij.gui.GenericDialog;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import mpicbg.imglib.image.Image;
 import mpicbg.imglib.type.numeric.real.FloatType;
 import mpicbg.imglib.wrapper.ImgLib2;
 import mpicbg.spim.data.sequence.Channel;
-import mpicbg.spim.data.sequence.TimePoint;
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
@@ -46,6 +44,8 @@ import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.process.cuda.CUDADevice;
 import spim.process.cuda.CUDASeparableConvolution;
+import spim.process.cuda.JavaSeparableConvolution;
+import spim.process.cuda.JavaStandardFunctions;
 import spim.process.cuda.CUDATools;
 import spim.process.cuda.NativeLibraryTools;
 import spim.process.interestpointdetection.ProcessDOG;
@@ -62,7 +62,7 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 	public static boolean defaultFindMin[];
 	public static boolean defaultFindMax[];
 
-	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU approximate (Nvidia CUDA via JNA)", "GPU accurate (Nvidia CUDA via JNA)" };
+	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU approximate (Nvidia CUDA via JNA)", "GPU accurate (Nvidia CUDA via JNA)", "CPU (Java, block-wise like the GPU)" };
 	public static int defaultComputationChoiceIndex = 0;
 
 	double[] sigma;
@@ -95,82 +95,38 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 
 
 	@Override
-	public HashMap< ViewId, List< InterestPoint > > findInterestPoints( final TimePoint t )
+	protected List< InterestPoint > findInterestPoints( final ViewDescription vd, final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input )
 	{
-		final HashMap< ViewId, List< InterestPoint > > interestPoints = new HashMap< ViewId, List< InterestPoint > >();
-		
-		for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
-		{
-			// make sure not everything crashes if one file is missing
-			try
-			{
-				//
-				// open the corresponding image (if present at this timepoint)
-				//
-				long time1 = System.currentTimeMillis();
-
-				if ( !vd.isPresent() )
-					continue;
-
-				final Channel c = vd.getViewSetup().getChannel();
-
-				final AffineTransform3D correctCoordinates = new AffineTransform3D();
-				final RandomAccessibleInterval< net.imglib2.type.numeric.real.FloatType > input = openAndDownsample( spimData, vd, correctCoordinates );
-
-				long time2 = System.currentTimeMillis();
-
-				benchmark.openFiles += time2 - time1;
-
-				preSmooth( input );
-
-				final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( (Img<net.imglib2.type.numeric.real.FloatType>)input );
-
-				//
-				// compute Difference-of-Gaussian
-				//
-				List< InterestPoint > ips = 
-					ProcessDOG.compute(
-						cuda,
-						deviceList,
-						accurateCUDA,
-						percentGPUMem,
-						img,
-						(Img<net.imglib2.type.numeric.real.FloatType>)input,
-						(float)sigma[ c.getId() ],
-						(float)threshold[ c.getId() ],
-						localization,
-						Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
-						Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
-						Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
-						findMin[ c.getId() ],
-						findMax[ c.getId() ],
-						minIntensity,
-						maxIntensity,
-						limitDetections );
-
-				img.close();
-
-				correctForDownsampling( ips, correctCoordinates );
-
-				if ( limitDetections )
-					ips = limitList( maxDetections, maxDetectionsTypeIndex, ips );
-
-				interestPoints.put( vd, ips );
-
-				benchmark.computation += System.currentTimeMillis() - time2;
-			}
-			catch ( Exception  e )
-			{
-				IOFunctions.println( "An error occured (DOG): " + e ); 
-				IOFunctions.println( "Failed to segment angleId: " + 
-						vd.getViewSetup().getAngle().getId() + " channelId: " +
-						vd.getViewSetup().getChannel().getId() + " illumId: " +
-						vd.getViewSetup().getIllumination().getId() + ". Continuing with next one." );
-				e.printStackTrace();
-			}
-		}
-
-		return interestPoints;
+		final Channel c = vd.getViewSetup().getChannel();
+
+		final Image< FloatType > img = ImgLib2.wrapFloatToImgLib1( (Img<net.imglib2.type.numeric.real.FloatType>)input );
+
+		//
+		// compute Difference-of-Gaussian
+		//
+		final List< InterestPoint > ips = 
+			ProcessDOG.compute(
+				cuda,
+				deviceList,
+				accurateCUDA,
+				percentGPUMem,
+				img,
+				(Img<net.imglib2.type.numeric.real.FloatType>)input,
+				(float)sigma[ c.getId() ],
+				(float)threshold[ c.getId() ],
+				localization,
+				Math.min( imageSigmaX, (float)sigma[ c.getId() ] ),
+				Math.min( imageSigmaY, (float)sigma[ c.getId() ] ),
+				Math.min( imageSigmaZ, (float)sigma[ c.getId() ] ),
+				findMin[ c.getId() ],
+				findMax[ c.getId() ],
+				minIntensity,
+				maxIntensity,
+				limitDetections );
+
+		img.close();
+
+		return ips;
 	}
 
 	@Override
@@ -361,7 +317,17 @@ public class DifferenceOfGaussian extends DifferenceOf implements GenericDialogA
 		else
 			accurateCUDA = true;
 
-		if ( computationTypeIndex >= 1 )
+		if ( computationTypeIndex == 3 )
+		{
+			// the pure-Java implementation of the native interface, one device (the JVM)
+			cuda = new JavaSeparableConvolution();
+			deviceList = new ArrayList< CUDADevice >();
+			deviceList.add( new CUDADevice( 0, JavaStandardFunctions.deviceName, cuda.getMemDeviceCUDA( 0 ), cuda.getFreeMemDeviceCUDA( 0 ), 0, 0 ) );
+
+			// the blocks are copies within the same heap as the image
+			percentGPUMem = Math.min( defaultUseGPUMem, 50 );
+		}
+		else if ( computationTypeIndex >= 1 )
 		{
 			final ArrayList< String > potentialNames = new ArrayList< String >();
 			potentialNames.add( "separable" );
@@ -0,0 +1,180 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.fiji.plugin.interestpointdetection;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.real.FloatType;
+import spim.Prefetcher;
+import spim.fiji.spimdata.SpimData2;
+
+/**
+ * Opens and downsamples the views of the given timepoints ahead of the interest point detection,
+ * so that loading (I/O bound) and detection (CPU bound) overlap, also across the boundaries of
+ * timepoints. Views are loaded in the order the detection asks for them, timepoint by timepoint.
+ * At most maxViewsInMemory decoded views exist at any time, a view counts from when its loading
+ * starts until the detection calls {@link #release(LoadedView)} (see {@link Prefetcher}).
+ * {@link #close()} stops the loading if the detection ends early.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ViewPrefetcher
+{
+	public static class LoadedView
+	{
+		final ViewDescription vd;
+		final RandomAccessibleInterval< FloatType > input;
+		final AffineTransform3D correctCoordinates;
+		final long loadingTime;
+		final boolean prefetched;
+
+		public LoadedView(
+				final ViewDescription vd,
+				final RandomAccessibleInterval< FloatType > input,
+				final AffineTransform3D correctCoordinates,
+				final long loadingTime,
+				final boolean prefetched )
+		{
+			this.vd = vd;
+			this.input = input;
+			this.correctCoordinates = correctCoordinates;
+			this.loadingTime = loadingTime;
+			this.prefetched = prefetched;
+		}
+
+		public ViewDescription getViewDescription() { return vd; }
+		public RandomAccessibleInterval< FloatType > getImage() { return input; }
+		public AffineTransform3D getCorrectCoordinates() { return correctCoordinates; }
+		public long getLoadingTime() { return loadingTime; }
+	}
+
+	final DifferenceOf detection;
+	final SpimData2 spimData;
+	final Prefetcher< LoadedView > prefetcher;
+
+	// position of each view and of the first view of each timepoint in the order they are loaded
+	final HashMap< ViewId, Integer > index = new HashMap< ViewId, Integer >();
+	final HashMap< Integer, Integer > firstIndex = new HashMap< Integer, Integer >();
+
+	public ViewPrefetcher( final DifferenceOf detection, final SpimData2 spimData, final List< ViewId > viewIdsToProcess, final List< TimePoint > timepoints, final int maxViewsInMemory )
+	{
+		this.detection = detection;
+		this.spimData = spimData;
+
+		final ArrayList< Callable< LoadedView > > loads = new ArrayList< Callable< LoadedView > >();
+
+		for ( final TimePoint t : timepoints )
+			for ( final ViewDescription vd : SpimData2.getAllViewIdsForTimePointSorted( spimData, viewIdsToProcess, t ) )
+				if ( vd.isPresent() )
+				{
+					if ( !firstIndex.containsKey( t.getId() ) )
+						firstIndex.put( t.getId(), loads.size() );
+
+					index.put( vd, loads.size() );
+					loads.add( new Callable< LoadedView >()
+					{
+						@Override
+						public LoadedView call() throws Exception
+						{
+							return load( vd, true );
+						}
+					} );
+				}
+
+		this.prefetcher = new Prefetcher< LoadedView >( "ViewPrefetcher", loads, maxViewsInMemory );
+	}
+
+	/**
+	 * @param t - the timepoint
+	 * @return true if the views of this timepoint are still to be taken from this prefetcher
+	 */
+	public boolean isPending( final TimePoint t )
+	{
+		final Integer i = firstIndex.get( t.getId() );
+
+		return i != null && prefetcher.isPending( i );
+	}
+
+	/**
+	 * @return true if all views were taken
+	 */
+	public boolean isDone() { return prefetcher.isDone(); }
+
+	/**
+	 * @param vd - the view to return next, views queued before it are skipped
+	 * @return the opened and downsampled view, waits if it is not loaded yet
+	 * @throws Exception - if loading the view failed
+	 */
+	public LoadedView take( final ViewDescription vd ) throws Exception
+	{
+		final Integer i = index.get( vd );
+
+		if ( i == null || !prefetcher.isPending( i ) )
+			return load( vd, false );
+		else
+			return prefetcher.take( i );
+	}
+
+	/**
+	 * Frees the slot of a view returned by {@link #take(ViewDescription)}, the loader can then open the next one.
+	 *
+	 * @param view - the view that is not needed anymore
+	 */
+	public void release( final LoadedView view )
+	{
+		if ( view.prefetched )
+			prefetcher.release();
+	}
+
+	/**
+	 * Stops the loader, views that are queued or loaded but were not taken are dropped
+	 */
+	public void close()
+	{
+		prefetcher.close();
+	}
+
+	protected LoadedView load( final ViewDescription vd, final boolean prefetched )
+	{
+		final long time = System.currentTimeMillis();
+
+		final AffineTransform3D correctCoordinates = new AffineTransform3D();
+		final RandomAccessibleInterval< FloatType > input = detection.openAndDownsample( spimData, vd, correctCoordinates );
+
+		if ( prefetched )
+			IOFunctions.println(
+					"(" + new Date(System.currentTimeMillis()) + "): "
+					+ "Prefetched view (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+
+		return new LoadedView( vd, input, correctCoordinates, System.currentTimeMillis() - time, prefetched );
+	}
+}
@@ -21,26 +21,35 @@
  */
 package spim.fiji.plugin.interestpointregistration;
 
+import ij.IJ;
 import ij.gui.GenericDialog;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.function.BooleanSupplier;
 
 import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.realtransform.AffineTransform3D;
 import spim.Threads;
 import spim.fiji.plugin.Interest_Point_Registration.RegistrationType;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.interestpointregistration.ChannelProcess;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.PairwiseMatchCache;
+import spim.process.interestpointregistration.PairwiseMatchCache.Invariance;
+import spim.process.interestpointregistration.PairwiseMatchScheduler;
 import spim.process.interestpointregistration.TransformationModel;
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationSubset;
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationType;
+import spim.process.interestpointregistration.registrationstatistics.PairwiseMatchStatistics;
 
 /**
  * 
@@ -55,6 +64,20 @@ public abstract class InterestPointRegistration
 
 	List< List< PairwiseMatch > > statistics;
 
+	// one record per pair of the last registration (matched or reused)
+	List< PairwiseMatchStatistics > pairStatistics = new ArrayList< PairwiseMatchStatistics >();
+
+	// if set, only pairs that changed are matched again
+	PairwiseMatchCache matchCache = null;
+
+	// maximal time in ms for matching one pair, <= 0 means no limit
+	long pairTimeout = 0;
+	volatile PairwiseMatchScheduler scheduler = null;
+	volatile boolean cancelled = false;
+
+	// pressing Escape in ImageJ cancels the pairwise matching
+	boolean cancelOnEscape = false;
+
 	/**
 	 * Instantiate the interest point registration. It is performed for a spimdata object on a
 	 * subset of angles, channels, illuminations and timepoints. Each channel is linked to a
@@ -105,6 +128,18 @@ public abstract class InterestPointRegistration
 	 */
 	protected abstract Callable< PairwiseMatch > pairwiseMatchingInstance( final PairwiseMatch pair, final String description );
 
+	/**
+	 * @return - all parameters that influence the result of the pairwise matching (used to identify results in the
+	 * {@link PairwiseMatchCache}), or null if results of this registration cannot be reused
+	 */
+	protected String getMatchingParameters() { return null; }
+
+	/**
+	 * @return - which changes of the transformations of the views the pairwise matching is invariant to, i.e. whether a
+	 * result can be reused for the transformations after the global optimization (default: none, match again)
+	 */
+	protected Invariance getMatchingInvariance() { return Invariance.NONE; }
+
 	/**
 	 * @return - the transformation model to be used for the global optimization, and in most cases also for RANSAC
 	 */
@@ -134,6 +169,24 @@ public abstract class InterestPointRegistration
 	public List< ViewId > getViewIdsToProcess() { return viewIdsToProcess; }
 	public List< ChannelProcess > getChannelsToProcess() { return channelsToProcess; }
 	public List< List< PairwiseMatch > > getStatistics() { return statistics; }
+	public List< PairwiseMatchStatistics > getPairStatistics() { return pairStatistics; }
+	public PairwiseMatchCache getMatchCache() { return matchCache; }
+
+	/**
+	 * @param matchCache - where to look up and store the results of pairwise matching, null to always match all pairs
+	 */
+	public void setMatchCache( final PairwiseMatchCache matchCache ) { this.matchCache = matchCache; }
+
+	/**
+	 * @param pairTimeout - maximal time in ms for matching one pair, &lt;= 0 means no limit
+	 */
+	public void setPairTimeout( final long pairTimeout ) { this.pairTimeout = pairTimeout; }
+	public long getPairTimeout() { return pairTimeout; }
+
+	/**
+	 * @param cancelOnEscape - if pressing Escape in ImageJ should cancel the pairwise matching (see {@link #cancel()})
+	 */
+	public void setCancelOnEscape( final boolean cancelOnEscape ) { this.cancelOnEscape = cancelOnEscape; }
 
 	/**
 	 * Registers all timepoints. No matter which matching is done it is always the same principle.
@@ -159,17 +212,64 @@ public abstract class InterestPointRegistration
 
 		int successfulRuns = 0;
 
+		final String matchingParameters = getMatchingParameters();
+		final PairwiseMatchCache cache = matchingParameters == null ? null : getMatchCache();
+
+		if ( getMatchCache() != null && cache == null )
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Results of '" + getDescription() + "' cannot be reused, matching all pairs." );
+
+		if ( cache != null )
+		{
+			cache.clearChecksums();
+
+			final int evicted = cache.evict( PairwiseMatchCache.defaultMaxFiles );
+
+			if ( evicted > 0 )
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Deleted " + evicted + " old pairwise matches from '" + cache.getDirectory() + "'" );
+		}
+
+		cancelled = false;
+		pairStatistics = new ArrayList< PairwiseMatchStatistics >();
+
+		if ( cancelOnEscape )
+		{
+			IJ.resetEscape();
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Press Escape to cancel the pairwise matching." );
+		}
+
 		for ( final GlobalOptimizationSubset subset : list )
 		{
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Finding correspondences for subset: " + subset.getDescription() );
 
 			final List< PairwiseMatch > pairs = subset.getViewPairs();
 
-			final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+			final ExecutorService taskExecutor = Threads.getExecutorService();
 			final ArrayList< Callable< PairwiseMatch > > tasks = new ArrayList< Callable< PairwiseMatch > >(); // your tasks
+			final ArrayList< PairwiseMatch > matchedPairs = new ArrayList< PairwiseMatch >();
+			final ArrayList< PairwiseMatch > reusedPairs = new ArrayList< PairwiseMatch >();
+			final HashMap< PairwiseMatch, String > keys = new HashMap< PairwiseMatch, String >();
 
 			for ( final PairwiseMatch pair : pairs )
 			{
+				if ( cache != null )
+				{
+					final String key = cache.key( spimData, pair, matchingParameters );
+
+					// detections, transformations and parameters are unchanged
+					if ( cache.load( pair, key ) )
+					{
+						reusedPairs.add( pair );
+						continue;
+					}
+
+					keys.put( pair, key );
+				}
+
+				matchedPairs.add( pair );
+
+				// views are part of many pairs, their detections, trees & descriptors are computed once
+				pair.setViewCache( subset.getViewCache() );
+
 				// just for logging the names and results of pairwise comparison
 				final ViewDescription viewA = spimData.getSequenceDescription().getViewDescription( pair.getViewIdA() );
 				final ViewDescription viewB = spimData.getSequenceDescription().getViewDescription( pair.getViewIdB() );
@@ -180,20 +280,73 @@ public abstract class InterestPointRegistration
 						" angle=" + viewB.getViewSetup().getAngle().getName() + ", ch=" + viewB.getViewSetup().getChannel().getName() +
 						", illum=" + viewB.getViewSetup().getIllumination().getName() + "]";
 				
-				tasks.add( pairwiseMatchingInstance( pair, description ) );
+				// match into a private result, it is only published to the pair if it finishes in time
+				tasks.add( pairwiseMatchingInstance( pair.createResult(), description ) );
 			}
-			try
+
+			if ( cache != null )
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Reusing " + reusedPairs.size() + " of " + pairs.size() + " pairwise matches from '" + cache.getDirectory() + "'" );
+
+			//
+			// set and store correspondences, the matched pairs are added as they finish
+			//
+
+			// first remove existing correspondences
+			registrationType.clearExistingCorrespondences( subset );
+
+			// now add all reused corresponding interest points
+			registrationType.addCorrespondences( reusedPairs );
+
+			this.scheduler = new PairwiseMatchScheduler( taskExecutor, pairTimeout );
+
+			if ( cancelled )
+				scheduler.cancel();
+
+			if ( cancelOnEscape )
+				scheduler.setCancelCondition( new BooleanSupplier()
+				{
+					@Override
+					public boolean getAsBoolean()
+					{
+						if ( !IJ.escapePressed() )
+							return false;
+
+						cancel();
+						return true;
+					}
+				} );
+
+			final int numFailed = scheduler.run( matchedPairs, tasks, new PairwiseMatchScheduler.Listener()
 			{
-				// invokeAll() returns when all tasks are complete
-				taskExecutor.invokeAll( tasks );
-			}
-			catch ( final InterruptedException e )
+				@Override
+				public void finished( final PairwiseMatch pair )
+				{
+					final ArrayList< PairwiseMatch > finished = new ArrayList< PairwiseMatch >();
+					finished.add( pair );
+					registrationType.addCorrespondences( finished );
+
+					if ( cache != null && !pair.isCancelled() )
+						cache.save( pair, keys.get( pair ) );
+				}
+			} );
+
+			if ( subset.getViewCache().getMisses() > 0 )
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Computed per-view data " + subset.getViewCache().getMisses() + " times, reused " + subset.getViewCache().getHits() + " times." );
+
+			subset.releaseViewCache();
+
+			for ( final PairwiseMatch pair : matchedPairs )
+				pair.setViewCache( null );
+
+			if ( scheduler.isCancelled() )
 			{
-				IOFunctions.println( "Failed to compute registrations for " + subset.getDescription() );
-				e.printStackTrace();
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Registration cancelled." );
+				return false;
 			}
-			
-			
+
+			if ( numFailed > 0 )
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + numFailed + " pairs timed out, they have no correspondences." );
+
 			// some statistics
 			int sumCandidates = 0;
 			int sumInliers = 0;
@@ -206,25 +359,41 @@ public abstract class InterestPointRegistration
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Number of Candidates: " + sumCandidates );
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Number of Inliers: " + sumInliers );
 
-			if ( collectStatistics )
-				statistics.add( pairs );
+			logSlowestPairs( matchedPairs, 3 );
 
-			//
-			// set and store correspondences
-			//
-			
-			// first remove existing correspondences
-			registrationType.clearExistingCorrespondences( subset );
+			for ( final PairwiseMatch pair : reusedPairs )
+				pairStatistics.add( new PairwiseMatchStatistics( pair, true ) );
 
-			// now add all corresponding interest points
-			registrationType.addCorrespondences( pairs );
+			for ( final PairwiseMatch pair : matchedPairs )
+				pairStatistics.add( new PairwiseMatchStatistics( pair, false ) );
+
+			if ( collectStatistics )
+				statistics.add( pairs );
 
 			// save the files
 			if ( save )
 				registrationType.saveCorrespondences( subset );
 
+			final Invariance invariance = getMatchingInvariance();
+			final HashMap< ViewId, AffineTransform3D > before =
+					cache == null || invariance == Invariance.NONE ? null : PairwiseMatchCache.getTransforms( spimData.getViewRegistrations(), subset.getViews() );
+
 			if ( runGlobalOpt( subset, registrationType ) )
+			{
 				++successfulRuns;
+
+				// the correspondences stay valid if the views only moved in a way the matching is invariant to (pairs that did not finish were not matched)
+				if ( before != null )
+				{
+					int updated = 0;
+
+					for ( final PairwiseMatch pair : pairs )
+						if ( pair.getInliers() != null && !pair.isCancelled() && cache.update( spimData, pair, matchingParameters, invariance, before ) )
+							++updated;
+
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Kept " + updated + " of " + pairs.size() + " pairwise matches for the new transformations." );
+				}
+			}
 		}
 		
 		if ( successfulRuns > 0 )
@@ -232,4 +401,40 @@ public abstract class InterestPointRegistration
 		else
 			return false;
 	}
+
+	/**
+	 * Cancels the pairwise matching that is currently running, {@link #register(GlobalOptimizationType, boolean, boolean)} will return false
+	 */
+	public void cancel()
+	{
+		cancelled = true;
+
+		final PairwiseMatchScheduler scheduler = this.scheduler;
+
+		if ( scheduler != null )
+			scheduler.cancel();
+	}
+
+	protected static void logSlowestPairs( final List< PairwiseMatch > pairs, final int n )
+	{
+		final ArrayList< PairwiseMatch > sorted = new ArrayList< PairwiseMatch >( pairs );
+
+		Collections.sort( sorted, new Comparator< PairwiseMatch >()
+		{
+			@Override
+			public int compare( final PairwiseMatch o1, final PairwiseMatch o2 )
+			{
+				return o1.getComputeTime() < o2.getComputeTime() ? 1 : o1.getComputeTime() == o2.getComputeTime() ? 0 : -1;
+			}
+		} );
+
+		for ( int i = 0; i < Math.min( n, sorted.size() ); ++i )
+		{
+			final PairwiseMatch pair = sorted.get( i );
+
+			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Slowest pairs: [TP=" + pair.getViewIdA().getTimePointId() + ", setup=" + pair.getViewIdA().getViewSetupId() +
+					" >>> TP=" + pair.getViewIdB().getTimePointId() + ", setup=" + pair.getViewIdB().getViewSetupId() + "] " + pair.getComputeTime() + " ms, |A|*|B|=" + pair.getCost() +
+					", candidates=" + pair.getNumCandidates() + ", inliers=" + pair.getNumInliers() );
+		}
+	}
 }
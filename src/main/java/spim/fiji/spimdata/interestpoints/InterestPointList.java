@@ -26,6 +26,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
 import mpicbg.spim.data.sequence.ViewId;
@@ -33,15 +34,31 @@ import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.io.TextFileAccess;
 
 /**
- * A list of interest points for a certain label, can save and load from textfile as specified in the XML
+ * A list of interest points for a certain label, can save and load from textfile as specified in the XML.
+ * A binary copy ({@link InterestPointListBinary}) is kept next to the textfiles, it is preferred for loading
+ * if it is not older than the textfile and created on the first load otherwise.
  * 
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
  */
 public class InterestPointList
 {
+	/**
+	 * whether to write the binary files when saving and converting textfiles on load
+	 */
+	public static boolean useBinaryFiles = true;
+
+	// textfiles that were already converted (or tried to) in this session
+	final static HashSet< File > convertedFiles = new HashSet< File >();
+
+	/**
+	 * whether to write the textfiles when saving (binary files are always written if useBinaryFiles == true)
+	 */
+	public static boolean writeTextFiles = true;
+
 	File baseDir, file;
 	List< InterestPoint > interestPoints;
+	InterestPointStore store; // set if interestPoints is a view of it
 	List< CorrespondingInterestPoints > correspondingInterestPoints;
 	String parameters;
 	
@@ -57,6 +74,7 @@ public class InterestPointList
 		this.baseDir = baseDir;
 		this.file = file;
 		this.interestPoints = null;
+		this.store = null;
 		this.correspondingInterestPoints = null;
 		this.parameters = "";
 	}
@@ -66,6 +84,20 @@ public class InterestPointList
 	 */
 	public List< InterestPoint > getInterestPoints() { return this.interestPoints; }
 
+	/**
+	 * @return - the interest points as primitive arrays, null if not loaded; if they were set as a {@link List}
+	 * a new {@link InterestPointStore} is created on each call
+	 */
+	public InterestPointStore getInterestPointStore()
+	{
+		if ( store != null )
+			return store;
+		else if ( interestPoints != null )
+			return InterestPointStore.fromList( interestPoints );
+		else
+			return null;
+	}
+
 	/**
 	 * @return - the list of corresponding interest points, tries to load it from disk if not available
 	 */
@@ -75,7 +107,8 @@ public class InterestPointList
 	public File getFile() { return file; }
 	public String getParameters() { return parameters; }
 	public void setParameters( final String parameters ) { this.parameters = parameters; }
-	public void setInterestPoints( final List< InterestPoint > list ) { this.interestPoints = list; }
+	public void setInterestPoints( final List< InterestPoint > list ) { this.interestPoints = list; this.store = null; }
+	public void setInterestPoints( final InterestPointStore store ) { this.interestPoints = store.asList(); this.store = store; }
 	public void setCorrespondingInterestPoints( final List< CorrespondingInterestPoints > list ) { this.correspondingInterestPoints = list; }
 	
 	public void setFile( final File file ) { this.file = file; }
@@ -83,7 +116,9 @@ public class InterestPointList
 	
 	public String getInterestPointsExt() { return ".ip.txt"; }
 	public String getCorrespondencesExt() { return ".corr.txt"; }
-	
+	public String getInterestPointsBinaryExt() { return ".ip.bin"; }
+	public String getCorrespondencesBinaryExt() { return ".corr.bin"; }
+
 	public boolean saveInterestPoints()
 	{
 		final List< InterestPoint > list = getInterestPoints();
@@ -100,18 +135,14 @@ public class InterestPointList
 				IOFunctions.println( "Creating directory: " + dir );
 				dir.mkdirs();
 			}
-			
-			PrintWriter out = TextFileAccess.openFileWriteEx( new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
-			
-			// header
-			out.println( "id" + "\t" + "x" + "\t" + "y" + "\t" + "z" );
-			
-			// id && coordinates in the local image stack for each interestpoint
-			for ( final InterestPoint p : list )
-				out.println( p.getId() + "\t" + p.getL()[0] + "\t" + p.getL()[1] + "\t" + p.getL()[2] );
-						
-			out.close();
-			
+
+			if ( writeTextFiles || !useBinaryFiles )
+				saveInterestPointsText( list );
+
+			// after the text, so that the binary file is not older
+			if ( useBinaryFiles )
+				InterestPointListBinary.writeInterestPoints( new File( getBaseDir(), getFile().toString() + getInterestPointsBinaryExt() ), getInterestPointStore() );
+
 			return true;
 		}
 		catch ( final IOException e )
@@ -122,6 +153,20 @@ public class InterestPointList
 		}				
 	}
 
+	protected void saveInterestPointsText( final List< InterestPoint > list ) throws IOException
+	{
+		PrintWriter out = TextFileAccess.openFileWriteEx( new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
+		
+		// header
+		out.println( "id" + "\t" + "x" + "\t" + "y" + "\t" + "z" );
+		
+		// id && coordinates in the local image stack for each interestpoint
+		for ( final InterestPoint p : list )
+			out.println( p.getId() + "\t" + p.getL()[0] + "\t" + p.getL()[1] + "\t" + p.getL()[2] );
+					
+		out.close();
+	}
+
 	public boolean saveCorrespondingInterestPoints()
 	{
 		final List< CorrespondingInterestPoints > list = getCorrespondingInterestPoints();
@@ -138,18 +183,14 @@ public class InterestPointList
 				IOFunctions.println( "Creating directory: " + dir );
 				dir.mkdirs();
 			}
-			
-			PrintWriter out = TextFileAccess.openFileWriteEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );
-			
-			// header
-			out.println( "id" + "\t" + "corresponding_timepoint_id" + "\t" + "corresponding_viewsetup_id" + "\t" + "corresponding_label" + "\t" + "corresponding_id" );
-			
-			// id of the interestpoint from this List && for the corresponding interestpoint viewid(timepointId, viewsetupId), label, and id
-			for ( final CorrespondingInterestPoints p : list )
-				out.println( p.getDetectionId() + "\t" + p.getCorrespondingViewId().getTimePointId() + "\t" + p.getCorrespondingViewId().getViewSetupId() + "\t" + p.getCorrespodingLabel() + "\t" + p.getCorrespondingDetectionId() );
-						
-			out.close();
-			
+
+			if ( writeTextFiles || !useBinaryFiles )
+				saveCorrespondingInterestPointsText( list );
+
+			// after the text, so that the binary file is not older
+			if ( useBinaryFiles )
+				InterestPointListBinary.writeCorrespondingInterestPoints( new File( getBaseDir(), getFile().toString() + getCorrespondencesBinaryExt() ), list );
+
 			return true;
 		}
 		catch ( final IOException e )
@@ -160,13 +201,60 @@ public class InterestPointList
 		}				
 	}
 
+	protected void saveCorrespondingInterestPointsText( final List< CorrespondingInterestPoints > list ) throws IOException
+	{
+		PrintWriter out = TextFileAccess.openFileWriteEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );
+		
+		// header
+		out.println( "id" + "\t" + "corresponding_timepoint_id" + "\t" + "corresponding_viewsetup_id" + "\t" + "corresponding_label" + "\t" + "corresponding_id" );
+		
+		// id of the interestpoint from this List && for the corresponding interestpoint viewid(timepointId, viewsetupId), label, and id
+		for ( final CorrespondingInterestPoints p : list )
+			out.println( p.getDetectionId() + "\t" + p.getCorrespondingViewId().getTimePointId() + "\t" + p.getCorrespondingViewId().getViewSetupId() + "\t" + p.getCorrespodingLabel() + "\t" + p.getCorrespondingDetectionId() );
+					
+		out.close();
+	}
+
 	public boolean loadCorrespondingInterestPoints()
+	{
+		final File text = new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() );
+		final File binary = new File( getBaseDir(), getFile().toString() + getCorrespondencesBinaryExt() );
+
+		if ( preferBinary( text, binary ) )
+		{
+			try
+			{
+				this.correspondingInterestPoints = InterestPointListBinary.readCorrespondingInterestPoints( binary );
+				return true;
+			}
+			catch ( final IOException e )
+			{
+				IOFunctions.println( "InterestPointList.loadCorrespondingInterestPoints(): " + e + ", trying textfile." );
+			}
+		}
+
+		if ( !loadCorrespondingInterestPointsText( text ) )
+			return false;
+
+		if ( convertToBinary( binary ) )
+		{
+			try
+			{
+				InterestPointListBinary.writeCorrespondingInterestPoints( binary, this.correspondingInterestPoints );
+			}
+			catch ( final IOException e ) {} // the textfile is still used
+		}
+
+		return true;
+	}
+
+	protected boolean loadCorrespondingInterestPointsText( final File file )
 	{
 		try 
 		{
 			this.correspondingInterestPoints = new ArrayList< CorrespondingInterestPoints >();
 
-			final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getCorrespondencesExt() ) );			
+			final BufferedReader in = TextFileAccess.openFileReadEx( file );			
 
 			// the header
 			do {} while ( !in.readLine().startsWith( "id" ) );
@@ -199,12 +287,49 @@ public class InterestPointList
 	}
 
 	public boolean loadInterestPoints()
+	{
+		final File text = new File( getBaseDir(), getFile().toString() + getInterestPointsExt() );
+		final File binary = new File( getBaseDir(), getFile().toString() + getInterestPointsBinaryExt() );
+
+		if ( preferBinary( text, binary ) )
+		{
+			try
+			{
+				setInterestPoints( InterestPointListBinary.readInterestPoints( binary ) );
+				return true;
+			}
+			catch ( final IOException e )
+			{
+				IOFunctions.println( "InterestPointList.loadInterestPoints(): " + e + ", trying textfile." );
+			}
+		}
+
+		if ( !loadInterestPointsText( text ) )
+			return false;
+
+		// keep only the primitive arrays
+		setInterestPoints( InterestPointStore.fromList( this.interestPoints ) );
+
+		if ( convertToBinary( binary ) )
+		{
+			try
+			{
+				InterestPointListBinary.writeInterestPoints( binary, getInterestPointStore() );
+			}
+			catch ( final IOException e ) {} // the textfile is still used
+		}
+
+		return true;
+	}
+
+	protected boolean loadInterestPointsText( final File file )
 	{
 		try
 		{
 			this.interestPoints = new ArrayList< InterestPoint >();
+			this.store = null;
 
-			final BufferedReader in = TextFileAccess.openFileReadEx( new File( getBaseDir(), getFile().toString() + getInterestPointsExt() ) );
+			final BufferedReader in = TextFileAccess.openFileReadEx( file );
 
 			// the header
 			do {} while ( !in.readLine().startsWith( "id" ) );
@@ -234,4 +359,35 @@ public class InterestPointList
 			return false;
 		}
 	}
+
+	/**
+	 * A textfile is converted at most once per session, and only if the binary file can be written. If the
+	 * directory is read-only (e.g. a shared dataset) the textfiles are simply used.
+	 *
+	 * @param binary - the binary file that would be written
+	 * @return true if the conversion should be attempted
+	 */
+	protected static boolean convertToBinary( final File binary )
+	{
+		if ( !useBinaryFiles )
+			return false;
+
+		synchronized ( convertedFiles )
+		{
+			if ( !convertedFiles.add( binary.getAbsoluteFile() ) )
+				return false;
+		}
+
+		final File dir = binary.getAbsoluteFile().getParentFile();
+
+		return dir != null && dir.canWrite() && ( !binary.exists() || binary.canWrite() );
+	}
+
+	/**
+	 * @return true if the binary file exists and is at least as new as the textfile
+	 */
+	protected static boolean preferBinary( final File text, final File binary )
+	{
+		return binary.exists() && ( !text.exists() || binary.lastModified() >= text.lastModified() );
+	}
 }
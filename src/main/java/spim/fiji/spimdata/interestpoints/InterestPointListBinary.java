@@ -0,0 +1,286 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.fiji.spimdata.interestpoints;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+
+/**
+ * Binary representation of the interest points and correspondences of an {@link InterestPointList},
+ * read and written through memory-mapped files. All values are stored as blocks of primitives
+ * (struct of arrays) so they can be copied in bulk instead of being parsed line by line. The
+ * {@link InterestPointStore} of a loaded file is a view of the mapping, nothing is copied.
+ *
+ * Files are written to a temporary file that replaces the old one, so that stores still mapping the
+ * old file stay valid.
+ *
+ * Interest points (.ip.bin): header [magic, version, n, numDimensions], n ids (int), padding to 8 bytes,
+ * n * numDimensions local coordinates (double, interleaved).
+ *
+ * Correspondences (.corr.bin): header [magic, version, n, numLabels], for each label its length
+ * and UTF-8 bytes (padded to 4 bytes), then n records of [detectionId, corresponding timepointId,
+ * corresponding viewSetupId, corresponding label index, corresponding detectionId] (int).
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class InterestPointListBinary
+{
+	public static final int MAGIC_INTERESTPOINTS = 0x53504950; // "SPIP"
+	public static final int MAGIC_CORRESPONDENCES = 0x53504943; // "SPIC"
+	public static final int VERSION = 1;
+
+	public static final int HEADER_SIZE = 16;
+	public static final int CORRESPONDENCE_FIELDS = 5;
+
+	final static Charset utf8 = Charset.forName( "UTF-8" );
+
+	public static InterestPointStore readInterestPoints( final File file ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+		try
+		{
+			final MappedByteBuffer buffer = map( raf, FileChannel.MapMode.READ_ONLY, raf.length() );
+
+			final int n = readHeader( buffer, MAGIC_INTERESTPOINTS, file );
+			final int numDimensions = buffer.getInt();
+
+			if ( buffer.capacity() < coordinateOffset( n ) + (long)n * numDimensions * 8 )
+				throw new IOException( "'" + file + "' is truncated." );
+
+			// views of the mapping, it stays valid after the file is closed
+			final IntBuffer ids = (IntBuffer)buffer.asIntBuffer().limit( n );
+			buffer.position( coordinateOffset( n ) );
+			final DoubleBuffer l = (DoubleBuffer)buffer.asDoubleBuffer().limit( n * numDimensions );
+
+			return new InterestPointStore( ids, l, numDimensions );
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	public static void writeInterestPoints( final File file, final InterestPointStore points ) throws IOException
+	{
+		final int n = points.size();
+		final long size = coordinateOffset( n ) + (long)n * points.numDimensions() * 8;
+
+		final File tmp = tmpFile( file );
+		final RandomAccessFile raf = open( tmp );
+
+		try
+		{
+			final MappedByteBuffer buffer = map( raf, FileChannel.MapMode.READ_WRITE, size );
+
+			buffer.putInt( MAGIC_INTERESTPOINTS ).putInt( VERSION ).putInt( n ).putInt( points.numDimensions() );
+			buffer.asIntBuffer().put( points.getIdBuffer() );
+			buffer.position( coordinateOffset( n ) );
+			buffer.asDoubleBuffer().put( points.getLBuffer() );
+			buffer.force();
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		replace( tmp, file );
+	}
+
+	public static ArrayList< CorrespondingInterestPoints > readCorrespondingInterestPoints( final File file ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+		try
+		{
+			final MappedByteBuffer buffer = map( raf, FileChannel.MapMode.READ_ONLY, raf.length() );
+
+			final int n = readHeader( buffer, MAGIC_CORRESPONDENCES, file );
+			final String[] labels = new String[ buffer.getInt() ];
+
+			for ( int i = 0; i < labels.length; ++i )
+			{
+				final byte[] bytes = new byte[ buffer.getInt() ];
+				buffer.get( bytes );
+				buffer.position( pad( buffer.position(), 4 ) );
+				labels[ i ] = new String( bytes, utf8 );
+			}
+
+			final int[] records = new int[ n * CORRESPONDENCE_FIELDS ];
+			buffer.asIntBuffer().get( records );
+
+			// ViewId's are shared between all correspondences to the same view
+			final HashMap< ViewId, ViewId > viewIds = new HashMap< ViewId, ViewId >();
+			final ArrayList< CorrespondingInterestPoints > list = new ArrayList< CorrespondingInterestPoints >( n );
+
+			for ( int i = 0, j = 0; i < n; ++i, j += CORRESPONDENCE_FIELDS )
+			{
+				ViewId viewId = new ViewId( records[ j + 1 ], records[ j + 2 ] );
+				final ViewId existing = viewIds.get( viewId );
+
+				if ( existing == null )
+					viewIds.put( viewId, viewId );
+				else
+					viewId = existing;
+
+				list.add( new CorrespondingInterestPoints( records[ j ], viewId, labels[ records[ j + 3 ] ], records[ j + 4 ] ) );
+			}
+
+			return list;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	public static void writeCorrespondingInterestPoints( final File file, final List< CorrespondingInterestPoints > list ) throws IOException
+	{
+		final int n = list.size();
+
+		final HashMap< String, Integer > labelIndex = new HashMap< String, Integer >();
+		final ArrayList< byte[] > labels = new ArrayList< byte[] >();
+		final int[] records = new int[ n * CORRESPONDENCE_FIELDS ];
+
+		int j = 0;
+
+		for ( final CorrespondingInterestPoints p : list )
+		{
+			Integer index = labelIndex.get( p.getCorrespodingLabel() );
+
+			if ( index == null )
+			{
+				index = labels.size();
+				labelIndex.put( p.getCorrespodingLabel(), index );
+				labels.add( p.getCorrespodingLabel().getBytes( utf8 ) );
+			}
+
+			records[ j++ ] = p.getDetectionId();
+			records[ j++ ] = p.getCorrespondingViewId().getTimePointId();
+			records[ j++ ] = p.getCorrespondingViewId().getViewSetupId();
+			records[ j++ ] = index;
+			records[ j++ ] = p.getCorrespondingDetectionId();
+		}
+
+		long size = HEADER_SIZE + 4;
+
+		for ( final byte[] label : labels )
+			size += 4 + pad( label.length, 4 );
+
+		size += (long)records.length * 4;
+
+		final File tmp = tmpFile( file );
+		final RandomAccessFile raf = open( tmp );
+
+		try
+		{
+			final MappedByteBuffer buffer = map( raf, FileChannel.MapMode.READ_WRITE, size );
+
+			buffer.putInt( MAGIC_CORRESPONDENCES ).putInt( VERSION ).putInt( n ).putInt( labels.size() );
+
+			for ( final byte[] label : labels )
+			{
+				buffer.putInt( label.length );
+				buffer.put( label );
+				buffer.position( pad( buffer.position(), 4 ) );
+			}
+
+			buffer.asIntBuffer().put( records );
+			buffer.force();
+		}
+		finally
+		{
+			raf.close();
+		}
+
+		replace( tmp, file );
+	}
+
+	protected static int readHeader( final MappedByteBuffer buffer, final int magic, final File file ) throws IOException
+	{
+		if ( buffer.capacity() < HEADER_SIZE || buffer.getInt() != magic )
+			throw new IOException( "'" + file + "' is not a binary interest point file." );
+
+		final int version = buffer.getInt();
+
+		if ( version != VERSION )
+			throw new IOException( "'" + file + "' has unsupported version " + version + "." );
+
+		return buffer.getInt();
+	}
+
+	protected static RandomAccessFile open( final File file ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+
+		// the file might be larger from a previous save
+		raf.setLength( 0 );
+
+		return raf;
+	}
+
+	protected static File tmpFile( final File file ) { return new File( file.getParentFile(), file.getName() + ".tmp" ); }
+
+	/**
+	 * Replaces the file by the temporary one, an existing mapping of the old file keeps its content
+	 */
+	protected static void replace( final File tmp, final File file ) throws IOException
+	{
+		try
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final IOException e )
+		{
+			tmp.delete();
+			throw e;
+		}
+	}
+
+	protected static MappedByteBuffer map( final RandomAccessFile raf, final FileChannel.MapMode mode, final long size ) throws IOException
+	{
+		if ( size > Integer.MAX_VALUE )
+			throw new IOException( "Binary interest point files are limited to 2GB, size=" + size );
+
+		final MappedByteBuffer buffer = raf.getChannel().map( mode, 0, size );
+		buffer.order( ByteOrder.BIG_ENDIAN );
+
+		return buffer;
+	}
+
+	protected static int coordinateOffset( final int n ) { return pad( HEADER_SIZE + n * 4, 8 ); }
+	protected static int pad( final int position, final int alignment ) { return ( ( position + alignment - 1 ) / alignment ) * alignment; }
+}
@@ -0,0 +1,215 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.fiji.spimdata.interestpoints;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.util.AbstractList;
+import java.util.List;
+
+import net.imglib2.realtransform.AffineTransform3D;
+
+/**
+ * Interest points stored as flat primitive buffers (struct of arrays): ids, local coordinates,
+ * optionally world coordinates and intensities. Coordinates are interleaved, i.e. point i
+ * occupies [ i * numDimensions, (i+1) * numDimensions ). The buffers either wrap arrays or
+ * are views of a memory-mapped binary file ({@link InterestPointListBinary}), which is not copied.
+ *
+ * {@link #asList()} provides a read-only {@link List} of {@link InterestPoint}s for code that
+ * needs objects; the points are instantiated on access and not retained.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class InterestPointStore
+{
+	final int n, numDimensions;
+	final IntBuffer ids;
+	final DoubleBuffer l;
+	final DoubleBuffer w; // null if equal to l
+	final float[] intensities; // null if not available
+
+	/**
+	 * @param ids - n ids, starting at index 0 of the buffer
+	 * @param l - n * numDimensions local coordinates, starting at index 0 of the buffer
+	 * @param w - n * numDimensions world coordinates or null if equal to l
+	 * @param intensities - n intensities or null
+	 * @param numDimensions - dimensionality of the points
+	 */
+	public InterestPointStore( final IntBuffer ids, final DoubleBuffer l, final DoubleBuffer w, final float[] intensities, final int numDimensions )
+	{
+		this.n = ids.limit();
+		this.numDimensions = numDimensions;
+		this.ids = ids;
+		this.l = l;
+		this.w = w;
+		this.intensities = intensities;
+	}
+
+	public InterestPointStore( final int[] ids, final double[] l, final double[] w, final float[] intensities, final int numDimensions )
+	{
+		this( IntBuffer.wrap( ids ), DoubleBuffer.wrap( l ), w == null ? null : DoubleBuffer.wrap( w ), intensities, numDimensions );
+	}
+
+	public InterestPointStore( final int[] ids, final double[] l, final int numDimensions )
+	{
+		this( ids, l, null, null, numDimensions );
+	}
+
+	public InterestPointStore( final IntBuffer ids, final DoubleBuffer l, final int numDimensions )
+	{
+		this( ids, l, null, null, numDimensions );
+	}
+
+	public int size() { return n; }
+	public int numDimensions() { return numDimensions; }
+	public boolean hasIntensities() { return intensities != null; }
+
+	public int getId( final int i ) { return ids.get( i ); }
+	public double getL( final int i, final int d ) { return l.get( i * numDimensions + d ); }
+	public double getW( final int i, final int d ) { return w == null ? getL( i, d ) : w.get( i * numDimensions + d ); }
+	public float getIntensity( final int i ) { return intensities[ i ]; }
+
+	public void localizeL( final int i, final double[] position ) { localize( l, i, position ); }
+	public void localizeW( final int i, final double[] position ) { localize( w == null ? l : w, i, position ); }
+
+	protected void localize( final DoubleBuffer coordinates, final int i, final double[] position )
+	{
+		for ( int d = 0, j = i * numDimensions; d < numDimensions; ++d, ++j )
+			position[ d ] = coordinates.get( j );
+	}
+
+	/**
+	 * @return a new array with the local coordinates of point i
+	 */
+	public double[] getL( final int i )
+	{
+		final double[] position = new double[ numDimensions ];
+		localizeL( i, position );
+		return position;
+	}
+
+	/**
+	 * The underlying buffers (positioned at 0), they are not copied
+	 */
+	public IntBuffer getIdBuffer() { return ids.duplicate(); }
+	public DoubleBuffer getLBuffer() { return l.duplicate(); }
+	public DoubleBuffer getWBuffer() { return w == null ? null : w.duplicate(); }
+	public float[] getIntensities() { return intensities; }
+
+	/**
+	 * @param t - the transformation to apply to the local coordinates (3d only)
+	 * @return a new store with the transformed local coordinates as local coordinates, sharing the ids and intensities
+	 */
+	public InterestPointStore transformL( final AffineTransform3D t )
+	{
+		final double[] tl = new double[ n * numDimensions ];
+
+		final double m00 = t.get( 0, 0 ), m01 = t.get( 0, 1 ), m02 = t.get( 0, 2 ), m03 = t.get( 0, 3 );
+		final double m10 = t.get( 1, 0 ), m11 = t.get( 1, 1 ), m12 = t.get( 1, 2 ), m13 = t.get( 1, 3 );
+		final double m20 = t.get( 2, 0 ), m21 = t.get( 2, 1 ), m22 = t.get( 2, 2 ), m23 = t.get( 2, 3 );
+
+		for ( int i = 0; i < tl.length; i += 3 )
+		{
+			final double x = l.get( i ), y = l.get( i + 1 ), z = l.get( i + 2 );
+
+			tl[ i ] = m00 * x + m01 * y + m02 * z + m03;
+			tl[ i + 1 ] = m10 * x + m11 * y + m12 * z + m13;
+			tl[ i + 2 ] = m20 * x + m21 * y + m22 * z + m23;
+		}
+
+		return new InterestPointStore( ids, DoubleBuffer.wrap( tl ), null, intensities, numDimensions );
+	}
+
+	/**
+	 * @param i - index of the point
+	 * @return a new {@link InterestPoint} (or {@link InterestPointValue} if intensities are available) for point i
+	 */
+	public InterestPoint createInterestPoint( final int i )
+	{
+		final InterestPoint p;
+
+		if ( intensities == null )
+			p = new InterestPoint( getId( i ), getL( i ) );
+		else
+			p = new InterestPointValue( getId( i ), getL( i ), intensities[ i ] );
+
+		if ( w != null )
+			localizeW( i, p.getW() );
+
+		return p;
+	}
+
+	/**
+	 * @return a read-only view as a list of {@link InterestPoint}s, changing the points does not change the store
+	 */
+	public List< InterestPoint > asList()
+	{
+		return new AbstractList< InterestPoint >()
+		{
+			@Override
+			public InterestPoint get( final int index ) { return createInterestPoint( index ); }
+
+			@Override
+			public int size() { return n; }
+		};
+	}
+
+	/**
+	 * @param list - the interest points, all with the same dimensionality
+	 * @return a new store with a copy of the ids, coordinates and intensities (if all points are {@link InterestPointValue}s)
+	 */
+	public static InterestPointStore fromList( final List< ? extends InterestPoint > list )
+	{
+		final int n = list.size();
+		final int numDimensions = n == 0 ? 3 : list.get( 0 ).getL().length;
+
+		final int[] ids = new int[ n ];
+		final double[] l = new double[ n * numDimensions ];
+		final double[] w = new double[ n * numDimensions ];
+		float[] intensities = new float[ n ];
+
+		boolean wEqualsL = true;
+		int i = 0;
+
+		for ( final InterestPoint p : list )
+		{
+			ids[ i ] = p.getId();
+			System.arraycopy( p.getL(), 0, l, i * numDimensions, numDimensions );
+			System.arraycopy( p.getW(), 0, w, i * numDimensions, numDimensions );
+
+			for ( int d = 0; d < numDimensions && wEqualsL; ++d )
+				wEqualsL = p.getL()[ d ] == p.getW()[ d ];
+
+			if ( intensities != null )
+			{
+				if ( p instanceof InterestPointValue )
+					intensities[ i ] = (float)( (InterestPointValue)p ).getIntensity();
+				else
+					intensities = null;
+			}
+
+			++i;
+		}
+
+		return new InterestPointStore( ids, l, wEqualsL ? null : w, intensities, numDimensions );
+	}
+}
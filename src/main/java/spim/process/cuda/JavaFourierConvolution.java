@@ -0,0 +1,117 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.cuda;
+
+import java.util.ArrayList;
+
+import net.imglib2.algorithm.fft2.FFTConvolution;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import spim.Threads;
+import spim.process.fusion.deconvolution.KernelFFTCache;
+
+/**
+ * Pure-Java implementation of {@link CUDAFourierConvolution}, so the block-based pipeline of the deconvolution also
+ * runs on machines without a CUDA device. Every block is convolved in place with the multi-threaded imglib2 FFT. If the
+ * {@link KernelFFTCache} is enabled, the FFT of each kernel is computed once per block size and kept there, otherwise
+ * it is computed for every block like in the native library. Like the native library it expects the dimensions in
+ * reverse order (z, y, x). Only the border of the block (kernel size / 2) differs from the native cyclic convolution,
+ * and the block generator discards it anyway.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class JavaFourierConvolution extends JavaStandardFunctions implements CUDAFourierConvolution
+{
+	// marks the entries of the block convolutions in the KernelFFTCache, the deconvolution itself uses 1 and 2
+	final static int kernelIndex = 0;
+
+	@Override
+	public float[] convolution3DfftCUDA( final float[] im, final int[] imDim, final float[] kernel, final int[] kernelDim, final int devCUDA )
+	{
+		final float[] result = im.clone();
+		convolution3DfftCUDAInPlace( result, imDim, kernel, kernelDim, devCUDA );
+		return result;
+	}
+
+	@Override
+	public void convolution3DfftCUDAInPlace( final float[] im, final int[] imDim, final float[] kernel, final int[] kernelDim, final int devCUDA )
+	{
+		final ArrayImg< FloatType, FloatArray > img = ArrayImgs.floats( im, reverse( imDim ) );
+		final FFTConvolution< FloatType > fftConvolution = getConvolution( img, kernel, kernelDim );
+
+		// a cached convolution might be requested by several block workers at the same time
+		synchronized ( fftConvolution )
+		{
+			fftConvolution.setImg( img );
+			fftConvolution.setOutput( img );
+			fftConvolution.convolve();
+		}
+	}
+
+	/**
+	 * @param img - the block that is convolved
+	 * @return - the cached convolution for this kernel and block size, or a new one
+	 */
+	protected FFTConvolution< FloatType > getConvolution( final ArrayImg< FloatType, FloatArray > img, final float[] kernel, final int[] kernelDim )
+	{
+		final ArrayImg< FloatType, FloatArray > k = ArrayImgs.floats( kernel.clone(), reverse( kernelDim ) );
+
+		if ( !KernelFFTCache.isEnabled() )
+			return createConvolution( img, k );
+
+		final long[] imgSize = new long[ img.numDimensions() ];
+		img.dimensions( imgSize );
+
+		final KernelFFTCache.Key key = new KernelFFTCache.Key( KernelFFTCache.contentHash( k ), k, imgSize, null, kernelIndex );
+		ArrayList< FFTConvolution< FloatType > > convolutions = KernelFFTCache.get( key, 1 );
+
+		if ( convolutions == null )
+		{
+			convolutions = new ArrayList< FFTConvolution< FloatType > >();
+			convolutions.add( createConvolution( img, k ) );
+			KernelFFTCache.put( key, convolutions );
+		}
+
+		return convolutions.get( 0 );
+	}
+
+	protected static FFTConvolution< FloatType > createConvolution( final ArrayImg< FloatType, FloatArray > img, final ArrayImg< FloatType, FloatArray > kernel )
+	{
+		final FFTConvolution< FloatType > fftConvolution = new FFTConvolution< FloatType >( img, kernel );
+		fftConvolution.setExecutorService( Threads.getExecutorService() );
+		fftConvolution.setKeepImgFFT( false );
+
+		return fftConvolution;
+	}
+
+	protected static long[] reverse( final int[] dim )
+	{
+		final long[] r = new long[ dim.length ];
+
+		for ( int d = 0; d < dim.length; ++d )
+			r[ dim.length - d - 1 ] = dim[ d ];
+
+		return r;
+	}
+}
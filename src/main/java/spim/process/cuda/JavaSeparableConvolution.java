@@ -0,0 +1,229 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.cuda;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import mpicbg.spim.io.IOFunctions;
+import spim.ComputeScheduler;
+import spim.Threads;
+
+/**
+ * Pure-Java implementation of {@link CUDASeparableConvolution}, so the block-based Difference-of-Gaussian also
+ * runs on machines without a CUDA device. Each dimension is convolved line by line: a line is copied into a
+ * buffer that is padded according to the out of bounds strategy, convolved with the loop over the line innermost
+ * (so the JIT can vectorize it) and written back. The lines are distributed over all threads.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class JavaSeparableConvolution extends JavaStandardFunctions implements CUDASeparableConvolution
+{
+	@Override
+	public boolean convolve_127( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int imageW, final int imageH, final int imageD, final boolean convolveX, final boolean convolveY, final boolean convolveZ, final int outofbounds, final float outofboundsvalue, final int devCUDA )
+	{
+		return convolve( image, kernelX, kernelY, kernelZ, 63, imageW, imageH, imageD, convolveX, convolveY, convolveZ, outofbounds, outofboundsvalue );
+	}
+
+	@Override
+	public boolean convolve_63( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int imageW, final int imageH, final int imageD, final boolean convolveX, final boolean convolveY, final boolean convolveZ, final int outofbounds, final float outofboundsvalue, final int devCUDA )
+	{
+		return convolve( image, kernelX, kernelY, kernelZ, 31, imageW, imageH, imageD, convolveX, convolveY, convolveZ, outofbounds, outofboundsvalue );
+	}
+
+	@Override
+	public boolean convolve_31( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int imageW, final int imageH, final int imageD, final boolean convolveX, final boolean convolveY, final boolean convolveZ, final int outofbounds, final float outofboundsvalue, final int devCUDA )
+	{
+		return convolve( image, kernelX, kernelY, kernelZ, 15, imageW, imageH, imageD, convolveX, convolveY, convolveZ, outofbounds, outofboundsvalue );
+	}
+
+	@Override
+	public boolean convolve_15( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int imageW, final int imageH, final int imageD, final boolean convolveX, final boolean convolveY, final boolean convolveZ, final int outofbounds, final float outofboundsvalue, final int devCUDA )
+	{
+		return convolve( image, kernelX, kernelY, kernelZ, 7, imageW, imageH, imageD, convolveX, convolveY, convolveZ, outofbounds, outofboundsvalue );
+	}
+
+	@Override
+	public boolean convolve_7( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int imageW, final int imageH, final int imageD, final boolean convolveX, final boolean convolveY, final boolean convolveZ, final int outofbounds, final float outofboundsvalue, final int devCUDA )
+	{
+		return convolve( image, kernelX, kernelY, kernelZ, 3, imageW, imageH, imageD, convolveX, convolveY, convolveZ, outofbounds, outofboundsvalue );
+	}
+
+	@Override
+	public void convolutionCPU( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int kernelRX, final int kernelRY, final int kernelRZ, final int imageW, final int imageH, final int imageD, final int outofbounds, final float outofboundsvalue )
+	{
+		final int[] dim = new int[]{ imageW, imageH, imageD };
+
+		if ( kernelX != null )
+			convolveDim( image, dim, 0, kernelX, kernelRX, outofbounds, outofboundsvalue );
+		if ( kernelY != null && imageH > 1 )
+			convolveDim( image, dim, 1, kernelY, kernelRY, outofbounds, outofboundsvalue );
+		if ( kernelZ != null && imageD > 1 )
+			convolveDim( image, dim, 2, kernelZ, kernelRZ, outofbounds, outofboundsvalue );
+	}
+
+	protected boolean convolve( final float[] image, final float[] kernelX, final float[] kernelY, final float[] kernelZ, final int kernelR, final int imageW, final int imageH, final int imageD, final boolean convolveX, final boolean convolveY, final boolean convolveZ, final int outofbounds, final float outofboundsvalue )
+	{
+		final int[] dim = new int[]{ imageW, imageH, imageD };
+
+		try
+		{
+			if ( convolveX )
+				convolveDim( image, dim, 0, kernelX, kernelR, outofbounds, outofboundsvalue );
+			if ( convolveY && imageH > 1 )
+				convolveDim( image, dim, 1, kernelY, kernelR, outofbounds, outofboundsvalue );
+			if ( convolveZ && imageD > 1 )
+				convolveDim( image, dim, 2, kernelZ, kernelR, outofbounds, outofboundsvalue );
+		}
+		catch ( final RuntimeException e )
+		{
+			IOFunctions.println( "Separable convolution failed: " + e );
+			e.printStackTrace();
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Convolves all lines of one dimension in-place
+	 * 
+	 * @param image - the image (x fastest)
+	 * @param dim - the dimensions (w, h, d)
+	 * @param d - the dimension to convolve
+	 * @param kernel - the kernel of size 2*r+1
+	 * @param r - the radius of the kernel
+	 * @param outofbounds - 0 == zero, 1 == value, 2 == extendlastpixel
+	 * @param outofboundsvalue - the value if outofbounds == 1
+	 */
+	protected static void convolveDim( final float[] image, final int[] dim, final int d, final float[] kernel, final int r, final int outofbounds, final float outofboundsvalue )
+	{
+		final int length = dim[ d ];
+		final int step = d == 0 ? 1 : ( d == 1 ? dim[ 0 ] : dim[ 0 ] * dim[ 1 ] );
+
+		// the lines are enumerated by the index in the plane perpendicular to d
+		final int numLines = ( dim[ 0 ] * dim[ 1 ] * dim[ 2 ] ) / length;
+		final int numTasks = Math.min( numLines, Threads.numThreads() * 4 );
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			final int first = (int)( (long)numLines * t / numTasks );
+			final int last = (int)( (long)numLines * ( t + 1 ) / numTasks );
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					final float[] in = ComputeScheduler.getFloatBuffer( 0, length + 2 * r );
+					final float[] out = ComputeScheduler.getFloatBuffer( 1, length );
+
+					for ( int line = first; line < last; ++line )
+					{
+						final int start = lineStart( line, d, dim );
+
+						// copy the line and pad it
+						for ( int i = 0, j = start; i < length; ++i, j += step )
+							in[ r + i ] = image[ j ];
+
+						final float lowValue, highValue;
+
+						if ( outofbounds == 0 )
+							lowValue = highValue = 0;
+						else if ( outofbounds == 1 )
+							lowValue = highValue = outofboundsvalue;
+						else
+						{
+							lowValue = in[ r ];
+							highValue = in[ r + length - 1 ];
+						}
+
+						for ( int i = 0; i < r; ++i )
+						{
+							in[ i ] = lowValue;
+							in[ r + length + i ] = highValue;
+						}
+
+						convolveLine( in, out, length, kernel, r );
+
+						for ( int i = 0, j = start; i < length; ++i, j += step )
+							image[ j ] = out[ i ];
+					}
+
+					return null;
+				}
+			});
+		}
+
+		try
+		{
+			for ( final Future< Void > f : Threads.getExecutorService().invokeAll( tasks ) )
+				f.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
+	/**
+	 * @param in - the padded line (length + 2*r)
+	 * @param out - the result (length)
+	 * @param length - the length of the line
+	 * @param kernel - the kernel of size 2*r+1
+	 * @param r - the radius of the kernel
+	 */
+	protected static void convolveLine( final float[] in, final float[] out, final int length, final float[] kernel, final int r )
+	{
+		for ( int i = 0; i < length; ++i )
+			out[ i ] = 0;
+
+		// kernel outside, line inside, so that the inner loop can be vectorized
+		for ( int k = 0; k <= 2 * r; ++k )
+		{
+			final float v = kernel[ 2 * r - k ];
+
+			if ( v == 0 )
+				continue;
+
+			for ( int i = 0; i < length; ++i )
+				out[ i ] += v * in[ i + k ];
+		}
+	}
+
+	protected static int lineStart( final int line, final int d, final int[] dim )
+	{
+		if ( d == 0 )
+			return line * dim[ 0 ];
+		else if ( d == 1 )
+			return ( line / dim[ 0 ] ) * dim[ 0 ] * dim[ 1 ] + ( line % dim[ 0 ] );
+		else
+			return line;
+	}
+}
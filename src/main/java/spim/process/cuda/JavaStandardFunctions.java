@@ -0,0 +1,60 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.cuda;
+
+/**
+ * Device queries for the pure-Java implementations of the native interfaces, they report the JVM as one device
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public abstract class JavaStandardFunctions implements CUDAStandardFunctions
+{
+	public static final String deviceName = "CPU (Java)";
+
+	@Override
+	public int getCUDAcomputeCapabilityMinorVersion( final int devCUDA ) { return 0; }
+
+	@Override
+	public int getCUDAcomputeCapabilityMajorVersion( final int devCUDA ) { return 0; }
+
+	@Override
+	public int getNumDevicesCUDA() { return 1; }
+
+	@Override
+	public void getNameDeviceCUDA( final int devCUDA, final byte[] name )
+	{
+		final byte[] n = deviceName.getBytes();
+
+		for ( int i = 0; i < name.length; ++i )
+			name[ i ] = i < n.length ? n[ i ] : 0;
+	}
+
+	@Override
+	public long getMemDeviceCUDA( final int devCUDA ) { return Runtime.getRuntime().maxMemory(); }
+
+	@Override
+	public long getFreeMemDeviceCUDA( final int devCUDA )
+	{
+		final Runtime r = Runtime.getRuntime();
+		return r.maxMemory() - ( r.totalMemory() - r.freeMemory() );
+	}
+}
@@ -37,6 +37,7 @@ import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
 import net.imglib2.IterableInterval;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.type.numeric.RealType;
@@ -279,4 +280,46 @@ public class FusionHelper
 		return portions;
 	}
 
+	/**
+	 * Divides an image of the given dimensions into 3d blocks (the last block in each dimension may be smaller)
+	 * 
+	 * @param dimensions - the size of the image
+	 * @param blockSize - the size of each block
+	 * @return - the list of blocks, x varies fastest
+	 */
+	public static final ArrayList< FinalInterval > divideIntoBlocks( final long[] dimensions, final int[] blockSize )
+	{
+		final int n = dimensions.length;
+		final ArrayList< FinalInterval > blocks = new ArrayList< FinalInterval >();
+
+		final long[] numBlocks = new long[ n ];
+		long total = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			numBlocks[ d ] = ( dimensions[ d ] + blockSize[ d ] - 1 ) / blockSize[ d ];
+			total *= numBlocks[ d ];
+		}
+
+		final long[] min = new long[ n ];
+		final long[] max = new long[ n ];
+
+		for ( long i = 0; i < total; ++i )
+		{
+			long index = i;
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long b = index % numBlocks[ d ];
+				index /= numBlocks[ d ];
+
+				min[ d ] = b * blockSize[ d ];
+				max[ d ] = Math.min( min[ d ] + blockSize[ d ], dimensions[ d ] ) - 1;
+			}
+
+			blocks.add( new FinalInterval( min, max ) );
+		}
+
+		return blocks;
+	}
 }
@@ -572,7 +572,7 @@ public class BoundingBoxGUI extends BoundingBox
 				if ( fusion == null )
 					label1.setText( "Fused image: " + megabytes + " MB" );
 				else
-					label1.setText( "Fused image: " + megabytes + " MB, required total memory ~" + fusion.totalRAM( megabytes, bytePerPixel ) +  " MB" );
+					label1.setText( "Fused image: " + megabytes + " MB, required total memory ~" + fusion.totalRAM( megabytes, bytePerPixel, min, max ) +  " MB" );
 				label1.setForeground( GUIHelper.good );
 			}
 				
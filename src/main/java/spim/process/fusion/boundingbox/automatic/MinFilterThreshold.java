@@ -29,7 +29,6 @@ import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import mpicbg.spim.data.sequence.Channel;
@@ -164,7 +163,7 @@ public class MinFilterThreshold
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( img.size(), Threads.numThreads() * 2 );
 
 		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService taskExecutor = Threads.getExecutorService();
 		
 		final ArrayList< Callable< int[][] > > tasks = new ArrayList< Callable< int[][] > >();
 		
@@ -250,7 +249,7 @@ public class MinFilterThreshold
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( tmp1.size(), Threads.numThreads() * 2 );
 
 		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService taskExecutor = Threads.getExecutorService();
 
 		for ( int dim = 0; dim < n; ++dim )
 		{
@@ -319,8 +318,6 @@ public class MinFilterThreshold
 				return null;
 			}
 		}
-		
-		taskExecutor.shutdown();
 
 		if ( n % 2 == 0 )
 			return tmp1;
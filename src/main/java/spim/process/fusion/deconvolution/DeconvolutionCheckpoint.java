@@ -0,0 +1,549 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.deconvolution;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import spim.Threads;
+
+/**
+ * Checkpoint of a running multi-view deconvolution: the current estimate psi, the iteration and the parameters
+ * that have to match when resuming.
+ * 
+ * Layout (big endian): [magic, version, iteration, numViews, iterationType, numDimensions], dimensions (long),
+ * lambda, osemFactor, lastRelativeChange (double), fingerprint (20 bytes), then psi (float) in flat iteration order.
+ * The fingerprint identifies the input (views, registrations, PSFs, bounding box, see {@link Fingerprint}).
+ * 
+ * psi is copied into a snapshot in memory on the calling thread (one additional copy of psi while checkpointing
+ * is enabled), writing it into a temporary file, flushing it to disk and atomically replacing the previous
+ * checkpoint happens in the background, so the iterations do not wait for the disk and a crash during writing
+ * never destroys the last complete checkpoint. The files are not memory-mapped, mapped files cannot be renamed
+ * or deleted on Windows as long as the mapping is alive.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class DeconvolutionCheckpoint
+{
+	public static final int MAGIC = 0x53504443; // "SPDC"
+	public static final int VERSION = 2;
+	public static final int FINGERPRINT_BYTES = 20;
+
+	// size of the buffer used for reading and writing psi, a multiple of 4 bytes
+	final static int bufferBytes = 16 * 1024 * 1024;
+
+	// psi is copied into chunks of this many floats, each one is written with one buffer
+	final static int snapshotChunkSize = bufferBytes / 4;
+
+	final File file, tmpFile;
+	final ExecutorService writer;
+	Future< ? > pending = null;
+
+	// copy of psi that is written in the background, kept for the next checkpoint
+	float[][] snapshot = null;
+	long snapshotSize = -1;
+
+	public DeconvolutionCheckpoint( final File file )
+	{
+		this.file = file;
+		this.tmpFile = new File( file.getAbsolutePath() + ".tmp" );
+		this.writer = Threads.newDaemonExecutor( "deconvolution checkpoint writer" );
+	}
+
+	public File getFile() { return file; }
+
+	/**
+	 * SHA-1 of everything that defines the input of a deconvolution
+	 */
+	public static class Fingerprint
+	{
+		final MessageDigest md;
+		final ByteBuffer bytes = ByteBuffer.allocate( 8 );
+
+		public Fingerprint()
+		{
+			try
+			{
+				md = MessageDigest.getInstance( "SHA-1" );
+			}
+			catch ( final NoSuchAlgorithmException e )
+			{
+				throw new RuntimeException( e );
+			}
+		}
+
+		public Fingerprint add( final long value )
+		{
+			bytes.clear();
+			md.update( bytes.putLong( value ).array() );
+			return this;
+		}
+
+		public Fingerprint add( final double value ) { return add( Double.doubleToLongBits( value ) ); }
+
+		public Fingerprint add( final double[] values )
+		{
+			add( values.length );
+
+			for ( final double v : values )
+				add( v );
+
+			return this;
+		}
+
+		public Fingerprint add( final int[] values )
+		{
+			add( values.length );
+
+			for ( final int v : values )
+				add( v );
+
+			return this;
+		}
+
+		public Fingerprint add( final RandomAccessibleInterval< FloatType > img )
+		{
+			add( img.numDimensions() );
+
+			for ( int d = 0; d < img.numDimensions(); ++d )
+				add( img.dimension( d ) );
+
+			for ( final FloatType t : Views.flatIterable( img ) )
+				add( Float.floatToIntBits( t.get() ) );
+
+			return this;
+		}
+
+		public byte[] digest() { return md.digest(); }
+
+		/**
+		 * @return - a short hex string of the fingerprint, e.g. for file names
+		 */
+		public static String toString( final byte[] fingerprint, final int numBytes )
+		{
+			final StringBuilder s = new StringBuilder();
+
+			for ( int i = 0; i < Math.min( numBytes, fingerprint.length ); ++i )
+				s.append( String.format( "%02x", fingerprint[ i ] & 0xff ) );
+
+			return s.toString();
+		}
+	}
+
+	/**
+	 * Parameters stored with a checkpoint
+	 */
+	public static class State
+	{
+		final int iteration, numViews, iterationType;
+		final long[] dimensions;
+		final double lambda, osemFactor, lastRelativeChange;
+		final byte[] fingerprint;
+
+		public State( final int iteration, final int numViews, final int iterationType, final long[] dimensions, final double lambda, final double osemFactor, final double lastRelativeChange, final byte[] fingerprint )
+		{
+			this.iteration = iteration;
+			this.numViews = numViews;
+			this.iterationType = iterationType;
+			this.dimensions = dimensions;
+			this.lambda = lambda;
+			this.osemFactor = osemFactor;
+			this.lastRelativeChange = lastRelativeChange;
+			this.fingerprint = normalize( fingerprint );
+		}
+
+		public int getIteration() { return iteration; }
+		public int getNumViews() { return numViews; }
+		public int getIterationType() { return iterationType; }
+		public long[] getDimensions() { return dimensions; }
+		public double getLambda() { return lambda; }
+		public double getOSEMFactor() { return osemFactor; }
+		public double getLastRelativeChange() { return lastRelativeChange; }
+		public byte[] getFingerprint() { return fingerprint; }
+
+		/**
+		 * @param fingerprint - of the input of the deconvolution, null if unknown
+		 * @return - true if a deconvolution with these parameters can continue from the checkpoint
+		 */
+		public boolean isCompatible( final int numViews, final int iterationType, final Dimensions dim, final double lambda, final byte[] fingerprint )
+		{
+			if ( this.numViews != numViews || this.iterationType != iterationType || this.lambda != lambda || dimensions.length != dim.numDimensions() )
+				return false;
+
+			if ( !Arrays.equals( this.fingerprint, normalize( fingerprint ) ) )
+				return false;
+
+			for ( int d = 0; d < dimensions.length; ++d )
+				if ( dimensions[ d ] != dim.dimension( d ) )
+					return false;
+
+			return true;
+		}
+
+		protected static byte[] normalize( final byte[] fingerprint )
+		{
+			return fingerprint == null ? new byte[ FINGERPRINT_BYTES ] : Arrays.copyOf( fingerprint, FINGERPRINT_BYTES );
+		}
+	}
+
+	/**
+	 * Copies psi into a snapshot in memory and writes, flushes and renames it in the background, so the
+	 * iterations only wait for the copy. Waits for a previous checkpoint that is still being written first.
+	 * 
+	 * @param psi - the current estimate
+	 * @param state - iteration and parameters
+	 * @throws IOException
+	 */
+	public void write( final Img< FloatType > psi, final State state ) throws IOException
+	{
+		waitForPendingWrite();
+
+		final long numPixels = psi.size();
+		final float[][] snapshot = snapshot( numPixels );
+
+		final FloatChunks chunks = FloatChunks.wrap( psi );
+		final Cursor< FloatType > cursor = chunks == null ? Views.flatIterable( psi ).cursor() : null;
+
+		for ( int c = 0; c < snapshot.length; ++c )
+		{
+			final float[] target = snapshot[ c ];
+			final long start = (long)c * snapshotChunkSize;
+
+			if ( chunks != null )
+			{
+				for ( long i = start; i < start + target.length; )
+				{
+					final int l = FloatChunks.segmentLength( i, start + target.length, chunks );
+					System.arraycopy( chunks.chunk( i ), chunks.offset( i ), target, (int)( i - start ), l );
+					i += l;
+				}
+			}
+			else
+			{
+				for ( int j = 0; j < target.length; ++j )
+					target[ j ] = cursor.next().get();
+			}
+		}
+
+		pending = writer.submit( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					writeSnapshot( snapshot, numPixels, state );
+
+					try
+					{
+						Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+					}
+					catch ( final AtomicMoveNotSupportedException e )
+					{
+						Files.move( tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+					}
+
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Saved checkpoint of iteration " + state.iteration + " to '" + file + "'" );
+				}
+				catch ( final IOException e )
+				{
+					IOFunctions.println( "Failed to write deconvolution checkpoint '" + file + "': " + e );
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the snapshot of psi, reused between checkpoints (only called when no write is pending)
+	 */
+	protected float[][] snapshot( final long numPixels )
+	{
+		final int numChunks = (int)( ( numPixels + snapshotChunkSize - 1 ) / snapshotChunkSize );
+
+		if ( snapshot == null || snapshotSize != numPixels )
+		{
+			snapshot = new float[ numChunks ][];
+
+			for ( int c = 0; c < numChunks; ++c )
+				snapshot[ c ] = new float[ (int)Math.min( snapshotChunkSize, numPixels - (long)c * snapshotChunkSize ) ];
+
+			snapshotSize = numPixels;
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Writes the header and the snapshot into the temporary file and forces it to disk, runs on the writer thread
+	 */
+	protected void writeSnapshot( final float[][] snapshot, final long numPixels, final State state ) throws IOException
+	{
+		final int headerSize = headerSize( state.dimensions.length );
+		final RandomAccessFile raf = new RandomAccessFile( tmpFile, "rw" );
+
+		try
+		{
+			raf.setLength( headerSize + numPixels * 4 );
+			final FileChannel channel = raf.getChannel();
+
+			final ByteBuffer header = ByteBuffer.allocate( headerSize );
+			header.putInt( MAGIC ).putInt( VERSION ).putInt( state.iteration ).putInt( state.numViews ).putInt( state.iterationType ).putInt( state.dimensions.length );
+
+			for ( final long d : state.dimensions )
+				header.putLong( d );
+
+			header.putDouble( state.lambda ).putDouble( state.osemFactor ).putDouble( state.lastRelativeChange );
+			header.put( state.fingerprint );
+			header.flip();
+			writeFully( channel, header, 0 );
+
+			final ByteBuffer buffer = ByteBuffer.allocateDirect( bufferBytes );
+			long position = headerSize;
+
+			for ( final float[] chunk : snapshot )
+			{
+				buffer.clear();
+				buffer.asFloatBuffer().put( chunk );
+				buffer.limit( chunk.length * 4 );
+				writeFully( channel, buffer, position );
+				position += chunk.length * 4l;
+			}
+
+			channel.force( true );
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Waits until the last checkpoint is completely on disk
+	 */
+	public void waitForPendingWrite()
+	{
+		if ( pending == null )
+			return;
+
+		try
+		{
+			pending.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		catch ( final ExecutionException e )
+		{
+			IOFunctions.println( "Failed to write deconvolution checkpoint '" + file + "': " + e );
+		}
+
+		pending = null;
+	}
+
+	/**
+	 * Waits for the last checkpoint and stops the writer thread
+	 */
+	public void close()
+	{
+		waitForPendingWrite();
+		writer.shutdown();
+		snapshot = null;
+	}
+
+	/**
+	 * Waits for the last checkpoint and removes it (and a temporary file), called once the deconvolution finished
+	 */
+	public void delete()
+	{
+		close();
+
+		if ( tmpFile.exists() && !tmpFile.delete() )
+			IOFunctions.println( "Cannot delete '" + tmpFile + "'." );
+
+		if ( file.exists() )
+		{
+			if ( file.delete() )
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Deconvolution finished, removed checkpoint '" + file + "'" );
+			else
+				IOFunctions.println( "Cannot delete checkpoint '" + file + "'." );
+		}
+	}
+
+	/**
+	 * @param file - the checkpoint
+	 * @return the iteration and parameters stored in the checkpoint
+	 * @throws IOException
+	 */
+	public static State readState( final File file ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+		try
+		{
+			return readState( raf.getChannel(), file );
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * @param file - the checkpoint
+	 * @param psi - the image to fill, must have the dimensions stored in the checkpoint
+	 * @throws IOException
+	 */
+	public static void readPsi( final File file, final Img< FloatType > psi ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final State state = readState( channel, file );
+			final long headerSize = headerSize( state.dimensions.length );
+
+			if ( raf.length() != headerSize + psi.size() * 4 )
+				throw new IOException( "Checkpoint '" + file + "' does not match the size of the image." );
+
+			final FloatChunks chunks = FloatChunks.wrap( psi );
+			final Cursor< FloatType > cursor = chunks == null ? Views.flatIterable( psi ).cursor() : null;
+			final ByteBuffer buffer = ByteBuffer.allocateDirect( bufferBytes );
+
+			for ( long index = 0; index < psi.size(); )
+			{
+				final int length = (int)Math.min( psi.size() - index, bufferBytes / 4 );
+
+				buffer.clear();
+				buffer.limit( length * 4 );
+				readFully( channel, buffer, headerSize + index * 4, file );
+				buffer.flip();
+
+				final FloatBuffer fb = buffer.asFloatBuffer();
+
+				if ( chunks != null )
+				{
+					for ( long i = index; i < index + length; )
+					{
+						final int l = FloatChunks.segmentLength( i, index + length, chunks );
+						fb.get( chunks.chunk( i ), chunks.offset( i ), l );
+						i += l;
+					}
+				}
+				else
+				{
+					for ( int j = 0; j < length; ++j )
+						cursor.next().set( fb.get() );
+				}
+
+				index += length;
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	protected static void writeFully( final FileChannel channel, final ByteBuffer buffer, long position ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+			position += channel.write( buffer, position );
+	}
+
+	protected static void readFully( final FileChannel channel, final ByteBuffer buffer, long position, final File file ) throws IOException
+	{
+		while ( buffer.hasRemaining() )
+		{
+			final int n = channel.read( buffer, position );
+
+			if ( n < 0 )
+				throw new IOException( "Checkpoint '" + file + "' is truncated." );
+
+			position += n;
+		}
+	}
+
+	protected static State readState( final FileChannel channel, final File file ) throws IOException
+	{
+		final ByteBuffer header = ByteBuffer.allocate( (int)Math.min( channel.size(), 1024 ) );
+		readFully( channel, header, 0, file );
+		header.flip();
+
+		try
+		{
+			if ( header.getInt() != MAGIC )
+				throw new IOException( "'" + file + "' is not a deconvolution checkpoint." );
+
+			final int version = header.getInt();
+
+			if ( version != VERSION )
+				throw new IOException( "Unsupported checkpoint version " + version + " in '" + file + "'." );
+
+			final int iteration = header.getInt();
+			final int numViews = header.getInt();
+			final int iterationType = header.getInt();
+			final long[] dimensions = new long[ header.getInt() ];
+
+			for ( int d = 0; d < dimensions.length; ++d )
+				dimensions[ d ] = header.getLong();
+
+			final double lambda = header.getDouble();
+			final double osemFactor = header.getDouble();
+			final double lastRelativeChange = header.getDouble();
+			final byte[] fingerprint = new byte[ FINGERPRINT_BYTES ];
+			header.get( fingerprint );
+
+			return new State( iteration, numViews, iterationType, dimensions, lambda, osemFactor, lastRelativeChange, fingerprint );
+		}
+		catch ( final RuntimeException e )
+		{
+			// BufferUnderflowException, NegativeArraySizeException
+			throw new IOException( "Checkpoint '" + file + "' is truncated or corrupt: " + e );
+		}
+	}
+
+	protected static int headerSize( final int numDimensions ) { return 6 * 4 + numDimensions * 8 + 3 * 8 + FINGERPRINT_BYTES; }
+}
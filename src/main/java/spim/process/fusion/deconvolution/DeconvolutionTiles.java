@@ -0,0 +1,446 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.deconvolution;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import net.imglib2.Cursor;
+import net.imglib2.Dimensions;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.ImgFactory;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.ViewSetupUtils;
+
+/**
+ * Splits the bounding box of a deconvolution into tiles that are deconvolved independently (only from the views
+ * that overlap them) and blends the results back together. Each tile is computed on its core, extended by the
+ * blending overlap and a halo (at least the PSF size) that is discarded afterwards. The tile results are blended
+ * linearly within the overlap.
+ * 
+ * Tiles can also be computed as individual cluster jobs, each one saved into its own file (memory-mapped raw
+ * float, [magic, version, tile index, numDimensions], min and max of the blended region (long), then the pixels)
+ * and merged later.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class DeconvolutionTiles
+{
+	public static final int MAGIC = 0x53504454; // "SPDT"
+	public static final int VERSION = 1;
+
+	// the pixels of a tile file are mapped in chunks of at most this size
+	final static long maxMappedBytes = 1l << 30;
+
+	public static class Tile
+	{
+		final int index;
+
+		// the region of the tile that is blended into the result (core + overlap) and the region that is deconvolved (+ halo)
+		final long[] blendMin, blendMax, min, max;
+
+		// the blending ramp width per side, 0 where the tile touches the border of the bounding box
+		final long[] rampMin, rampMax;
+
+		public Tile( final int index, final long[] blendMin, final long[] blendMax, final long[] min, final long[] max, final long[] rampMin, final long[] rampMax )
+		{
+			this.index = index;
+			this.blendMin = blendMin;
+			this.blendMax = blendMax;
+			this.min = min;
+			this.max = max;
+			this.rampMin = rampMin;
+			this.rampMax = rampMax;
+		}
+
+		public int getIndex() { return index; }
+		public Interval getInterval() { return new FinalInterval( min, max ); }
+		public Interval getBlendInterval() { return new FinalInterval( blendMin, blendMax ); }
+
+		/**
+		 * @param position - global position inside the blend interval
+		 * @return - the linear blending weight
+		 */
+		public float weight( final long[] position )
+		{
+			float w = 1;
+
+			for ( int d = 0; d < position.length; ++d )
+			{
+				if ( rampMin[ d ] > 0 )
+					w *= Math.min( 1.0f, ( position[ d ] - blendMin[ d ] + 1 ) / (float)( rampMin[ d ] + 1 ) );
+
+				if ( rampMax[ d ] > 0 )
+					w *= Math.min( 1.0f, ( blendMax[ d ] - position[ d ] + 1 ) / (float)( rampMax[ d ] + 1 ) );
+			}
+
+			return w;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "tile " + index + " " + Util.printInterval( getBlendInterval() ) + ", computed on " + Util.printInterval( getInterval() );
+		}
+	}
+
+	/**
+	 * @param bb - the bounding box
+	 * @param tileSize - size of the core of each tile
+	 * @param overlap - the blending overlap between neighboring tiles
+	 * @param halo - additional border that is deconvolved but discarded (at least the PSF size)
+	 * @return - all tiles, in x-fastest order
+	 */
+	public static ArrayList< Tile > divideIntoTiles( final Interval bb, final int[] tileSize, final int[] overlap, final int[] halo )
+	{
+		final int n = bb.numDimensions();
+		final int[] numTiles = new int[ n ];
+		long total = 1;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			numTiles[ d ] = (int)Math.max( 1, ( bb.dimension( d ) + tileSize[ d ] - 1 ) / tileSize[ d ] );
+			total *= numTiles[ d ];
+		}
+
+		final ArrayList< Tile > tiles = new ArrayList< Tile >();
+		final int[] t = new int[ n ];
+
+		for ( int i = 0; i < total; ++i )
+		{
+			final long[] blendMin = new long[ n ];
+			final long[] blendMax = new long[ n ];
+			final long[] min = new long[ n ];
+			final long[] max = new long[ n ];
+			final long[] rampMin = new long[ n ];
+			final long[] rampMax = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+			{
+				final long coreMin = bb.min( d ) + (long)t[ d ] * tileSize[ d ];
+				final long coreMax = Math.min( bb.max( d ), coreMin + tileSize[ d ] - 1 );
+
+				blendMin[ d ] = Math.max( bb.min( d ), coreMin - overlap[ d ] );
+				blendMax[ d ] = Math.min( bb.max( d ), coreMax + overlap[ d ] );
+				rampMin[ d ] = coreMin - blendMin[ d ];
+				rampMax[ d ] = blendMax[ d ] - coreMax;
+
+				// overlap on both sides, the ramp covers the entire overlap
+				if ( rampMin[ d ] > 0 )
+					rampMin[ d ] *= 2;
+				if ( rampMax[ d ] > 0 )
+					rampMax[ d ] *= 2;
+
+				min[ d ] = Math.max( bb.min( d ), blendMin[ d ] - halo[ d ] );
+				max[ d ] = Math.min( bb.max( d ), blendMax[ d ] + halo[ d ] );
+			}
+
+			tiles.add( new Tile( i, blendMin, blendMax, min, max, rampMin, rampMax ) );
+
+			// next tile, x fastest
+			for ( int d = 0; d < n; ++d )
+			{
+				if ( ++t[ d ] < numTiles[ d ] )
+					break;
+
+				t[ d ] = 0;
+			}
+		}
+
+		return tiles;
+	}
+
+	/**
+	 * @param spimData
+	 * @param viewIds - the candidates
+	 * @param interval - the region in global coordinates
+	 * @return - all present views whose transformed bounding box overlaps the interval
+	 */
+	public static ArrayList< ViewId > overlappingViews( final SpimData2 spimData, final List< ViewId > viewIds, final Interval interval )
+	{
+		final ArrayList< ViewId > overlapping = new ArrayList< ViewId >();
+
+		for ( final ViewId viewId : viewIds )
+		{
+			final ViewDescription vd = spimData.getSequenceDescription().getViewDescription( viewId );
+
+			if ( !vd.isPresent() )
+				continue;
+
+			final Dimensions size = ViewSetupUtils.getSizeOrLoad( vd.getViewSetup(), vd.getTimePoint(), spimData.getSequenceDescription().getImgLoader() );
+			final double[] min = new double[ size.numDimensions() ];
+			final double[] max = new double[ size.numDimensions() ];
+
+			for ( int d = 0; d < min.length; ++d )
+				max[ d ] = size.dimension( d ) - 1;
+
+			final ViewRegistration r = spimData.getViewRegistrations().getViewRegistration( viewId );
+			r.updateModel();
+			final FinalRealInterval bounds = r.getModel().estimateBounds( new FinalRealInterval( min, max ) );
+
+			boolean overlaps = true;
+
+			for ( int d = 0; d < interval.numDimensions() && overlaps; ++d )
+				if ( bounds.realMax( d ) < interval.min( d ) || bounds.realMin( d ) > interval.max( d ) )
+					overlaps = false;
+
+			if ( overlaps )
+				overlapping.add( viewId );
+		}
+
+		return overlapping;
+	}
+
+	/**
+	 * Adds the blend region of a deconvolved tile (weighted) to the sum and weight images of the entire bounding box
+	 * 
+	 * @param tile - the tile
+	 * @param psi - the deconvolved tile (covering tile.getInterval())
+	 * @param bb - the bounding box of sum and weightSum
+	 * @param sum - weighted sum of all tiles
+	 * @param weightSum - sum of the weights of all tiles
+	 */
+	public static void addTile(
+			final Tile tile,
+			final RandomAccessibleInterval< FloatType > psi,
+			final Interval bb,
+			final RandomAccessibleInterval< FloatType > sum,
+			final RandomAccessibleInterval< FloatType > weightSum )
+	{
+		final int n = bb.numDimensions();
+		final long[] offsetPsi = new long[ n ];
+		final long[] offsetBB = new long[ n ];
+
+		for ( int d = 0; d < n; ++d )
+		{
+			offsetPsi[ d ] = tile.min[ d ];
+			offsetBB[ d ] = bb.min( d );
+		}
+
+		// psi in global coordinates
+		final RandomAccessibleInterval< FloatType > psiGlobal = Views.translate( psi, offsetPsi );
+
+		addBlendRegion( tile, Views.interval( psiGlobal, tile.getBlendInterval() ), Views.translate( sum, offsetBB ), Views.translate( weightSum, offsetBB ) );
+	}
+
+	protected static void addBlendRegion(
+			final Tile tile,
+			final RandomAccessibleInterval< FloatType > region,
+			final RandomAccessibleInterval< FloatType > sum,
+			final RandomAccessibleInterval< FloatType > weightSum )
+	{
+		final Cursor< FloatType > c = Views.iterable( region ).localizingCursor();
+		final RandomAccess< FloatType > rs = sum.randomAccess();
+		final RandomAccess< FloatType > rw = weightSum.randomAccess();
+		final long[] position = new long[ region.numDimensions() ];
+
+		while ( c.hasNext() )
+		{
+			final float v = c.next().get();
+			c.localize( position );
+
+			final float w = tile.weight( position );
+
+			rs.setPosition( position );
+			rw.setPosition( position );
+
+			rs.get().set( rs.get().get() + v * w );
+			rw.get().set( rw.get().get() + w );
+		}
+	}
+
+	/**
+	 * sum /= weightSum
+	 */
+	public static void normalize( final RandomAccessibleInterval< FloatType > sum, final RandomAccessibleInterval< FloatType > weightSum )
+	{
+		final Cursor< FloatType > cs = Views.flatIterable( sum ).cursor();
+		final Cursor< FloatType > cw = Views.flatIterable( weightSum ).cursor();
+
+		while ( cs.hasNext() )
+		{
+			final FloatType s = cs.next();
+			final float w = cw.next().get();
+
+			s.set( w > 0 ? s.get() / w : 0 );
+		}
+	}
+
+	public static File tileFile( final File dir, final String name, final int tileIndex )
+	{
+		return new File( dir, "deconvolved_" + name + "_tile" + tileIndex + ".tile" );
+	}
+
+	/**
+	 * Saves the blend region of a deconvolved tile so it can be merged later
+	 * 
+	 * @param file - the file
+	 * @param tile - the tile
+	 * @param psi - the deconvolved tile (covering tile.getInterval())
+	 * @throws IOException
+	 */
+	public static void saveTile( final File file, final Tile tile, final RandomAccessibleInterval< FloatType > psi ) throws IOException
+	{
+		final int n = psi.numDimensions();
+		final RandomAccessibleInterval< FloatType > region = Views.interval( Views.translate( psi, tile.min ), tile.getBlendInterval() );
+		final long numPixels = Intervals.numElements( region );
+		final long headerSize = headerSize( n );
+
+		final RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+
+		try
+		{
+			raf.setLength( headerSize + numPixels * 4 );
+			final FileChannel channel = raf.getChannel();
+
+			final MappedByteBuffer header = channel.map( FileChannel.MapMode.READ_WRITE, 0, headerSize );
+			header.putInt( MAGIC ).putInt( VERSION ).putInt( tile.index ).putInt( n );
+
+			for ( int d = 0; d < n; ++d )
+				header.putLong( tile.blendMin[ d ] );
+			for ( int d = 0; d < n; ++d )
+				header.putLong( tile.blendMax[ d ] );
+
+			header.force();
+
+			final Cursor< FloatType > c = Views.flatIterable( region ).cursor();
+
+			for ( long index = 0; index < numPixels; )
+			{
+				final int length = (int)Math.min( numPixels - index, maxMappedBytes / 4 );
+				final MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_WRITE, headerSize + index * 4, (long)length * 4 );
+				final FloatBuffer fb = buffer.asFloatBuffer();
+
+				for ( int j = 0; j < length; ++j )
+					fb.put( c.next().get() );
+
+				buffer.force();
+				index += length;
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	/**
+	 * Loads a tile saved by {@link #saveTile(File, Tile, RandomAccessibleInterval)} and adds it to the sum and weight
+	 * images. The tile is re-created from the current tiling, so the tiling parameters must be the same as for the job
+	 * that saved it.
+	 * 
+	 * @param file - the file
+	 * @param tiles - the current tiling
+	 * @param bb - the bounding box of sum and weightSum
+	 * @param sum - weighted sum of all tiles
+	 * @param weightSum - sum of the weights of all tiles
+	 * @param factory - to create the temporary image
+	 * @throws IOException
+	 */
+	public static void loadAndAddTile(
+			final File file,
+			final List< Tile > tiles,
+			final Interval bb,
+			final RandomAccessibleInterval< FloatType > sum,
+			final RandomAccessibleInterval< FloatType > weightSum,
+			final ImgFactory< FloatType > factory ) throws IOException
+	{
+		final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+
+		try
+		{
+			final FileChannel channel = raf.getChannel();
+			final MappedByteBuffer header = channel.map( FileChannel.MapMode.READ_ONLY, 0, Math.min( raf.length(), 1024 ) );
+
+			if ( header.getInt() != MAGIC || header.getInt() != VERSION )
+				throw new IOException( "'" + file + "' is not a deconvolved tile of this version." );
+
+			final int index = header.getInt();
+			final int n = header.getInt();
+
+			if ( index < 0 || index >= tiles.size() )
+				throw new IOException( "Tile index " + index + " of '" + file + "' does not exist in the current tiling." );
+
+			final Tile tile = tiles.get( index );
+			final long[] blendMin = new long[ n ];
+			final long[] blendMax = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				blendMin[ d ] = header.getLong();
+			for ( int d = 0; d < n; ++d )
+				blendMax[ d ] = header.getLong();
+
+			for ( int d = 0; d < n; ++d )
+				if ( blendMin[ d ] != tile.blendMin[ d ] || blendMax[ d ] != tile.blendMax[ d ] )
+					throw new IOException( "'" + file + "' was computed with a different tiling." );
+
+			final Interval blendInterval = tile.getBlendInterval();
+			final Img< FloatType > region = factory.create( blendInterval, new FloatType() );
+			final long numPixels = region.size();
+			final long headerSize = headerSize( n );
+
+			final Cursor< FloatType > c = Views.flatIterable( region ).cursor();
+
+			for ( long i = 0; i < numPixels; )
+			{
+				final int length = (int)Math.min( numPixels - i, maxMappedBytes / 4 );
+				final FloatBuffer fb = channel.map( FileChannel.MapMode.READ_ONLY, headerSize + i * 4, (long)length * 4 ).asFloatBuffer();
+
+				for ( int j = 0; j < length; ++j )
+					c.next().set( fb.get() );
+
+				i += length;
+			}
+
+			final long[] offsetBB = new long[ n ];
+
+			for ( int d = 0; d < n; ++d )
+				offsetBB[ d ] = bb.min( d );
+
+			addBlendRegion( tile, Views.translate( region, blendMin ), Views.translate( sum, offsetBB ), Views.translate( weightSum, offsetBB ) );
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+
+	protected static long headerSize( final int numDimensions ) { return 4 * 4 + numDimensions * 8 * 2; }
+}
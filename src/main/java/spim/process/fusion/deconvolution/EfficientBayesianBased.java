@@ -23,12 +23,19 @@ package spim.process.fusion.deconvolution;
 
 import fiji.util.gui.GenericDialogPlus;
 import ij.IJ;
+import ij.ImagePlus;
 import ij.gui.GenericDialog;
+import ij.io.Opener;
 
 import java.awt.Checkbox;
 import java.awt.Choice;
+import java.awt.TextField;
 import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
+import java.awt.event.TextEvent;
+import java.awt.event.TextListener;
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
@@ -36,6 +43,7 @@ import java.util.List;
 import java.util.Map;
 
 import mpicbg.imglib.util.Util;
+import mpicbg.spim.data.registration.ViewRegistration;
 import mpicbg.spim.data.sequence.Angle;
 import mpicbg.spim.data.sequence.Channel;
 import mpicbg.spim.data.sequence.Illumination;
@@ -44,6 +52,8 @@ import mpicbg.spim.data.sequence.ViewDescription;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
 import mpicbg.spim.io.IOFunctions;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
 import net.imglib2.exception.IncompatibleTypeException;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
@@ -51,19 +61,26 @@ import net.imglib2.img.array.ArrayImgFactory;
 import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.img.imageplus.ImagePlusImgFactory;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
+import spim.Threads;
+import spim.fiji.plugin.Toggle_Cluster_Options;
 import spim.fiji.plugin.fusion.Fusion;
 import spim.fiji.plugin.util.GUIHelper;
 import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.boundingbox.BoundingBox;
 import spim.fiji.spimdata.interestpoints.InterestPointList;
 import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
 import spim.process.cuda.CUDADevice;
 import spim.process.cuda.CUDAFourierConvolution;
 import spim.process.cuda.CUDATools;
+import spim.process.cuda.JavaFourierConvolution;
+import spim.process.cuda.JavaStandardFunctions;
 import spim.process.cuda.NativeLibraryTools;
 import spim.process.fusion.FusionHelper;
+import spim.process.fusion.deconvolution.DeconvolutionTiles.Tile;
 import spim.process.fusion.deconvolution.MVDeconFFT.PSFTYPE;
 import spim.process.fusion.deconvolution.ProcessForDeconvolution.WeightType;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
@@ -76,10 +93,17 @@ import spim.process.fusion.weightedavg.WeightedAverageFusion;
 
 public class EfficientBayesianBased extends Fusion
 {
-	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU (Nvidia CUDA via JNA)" };
+	public static String[] computationOnChoice = new String[]{ "CPU (Java)", "GPU (Nvidia CUDA via JNA)", "CPU (Java, block-wise like the GPU)" };
 	public static String[] osemspeedupChoice = new String[]{ "1 (balanced)", "minimal number of overlapping views", "average number of overlapping views", "specify manually" };
 	public static String[] extractPSFChoice = new String[]{ "Extract from beads", "Provide file with PSF" };
 	public static String[] blocksChoice = new String[]{ "Entire image at once", "in 64x64x64 blocks", "in 128x128x128 blocks", "in 256x256x256 blocks", "in 512x512x512 blocks", "specify maximal blocksize manually" };
+	public static String[] precisionChoice = new String[]{
+		"32-bit float (most precise)",
+		"16-bit images & 16-bit weights (less memory)",
+		"16-bit images & 8-bit weights (least memory)" };
+
+	public static String[] tilingChoice = new String[]{ "Entire bounding box at once", "in overlapping tiles (blend the results)" };
+	public static String[] tilingClusterChoice = new String[]{ "Entire bounding box at once", "in overlapping tiles (blend the results)", "single tile (cluster job, save the result)", "merge saved tiles (after all cluster jobs)" };
 	public static String[] displayPSFChoice = new String[]{ "Do not show PSFs", "Show MIP of combined PSF's", "Show combined PSF's", "Show individual PSF's", "Show combined PSF's (original scale)", "Show individual PSF's (original scale)" };
 	public static String[] iterationTypeString = new String[]{
 		"Efficient Bayesian - Optimization II (very fast, imprecise)", 
@@ -90,6 +114,7 @@ public class EfficientBayesianBased extends Fusion
 	public static String[] weightsString = new String[]{
 		"Precompute weights for all views (more memory, faster)",
 		"Virtual weights (less memory, slower)",
+		"Virtual weights, cached in blocks (less memory, fast)",
 		"No weights (produces artifacts on partially overlapping data)",
 		"Illustrate overlap of views per pixel (do not deconvolve)" };
 
@@ -103,12 +128,29 @@ public class EfficientBayesianBased extends Fusion
 	public static int defaultFFTImgType = 0;
 	public static int defaultIterationType = 1;
 	public static int defaultWeightType = 1;
+	public static int defaultCachedWeightsMB = 1024;
+	public static int defaultCachedWeightsBlockSize = 64;
+	public static int defaultPrecision = 0;
 	public static boolean defaultSaveMemory = false;
+	public static int defaultKernelFFTCacheMB = 0;
+	public static int defaultPrefetchMB = 2048;
 	public static int defaultOSEMspeedupIndex = 0;
 	public static int defaultNumIterations = 10;
+	public static double defaultStopTolerance = 0;
+	public static boolean defaultAdaptiveOSEM = false;
+	public static boolean defaultCheckpoint = false;
+	public static String defaultCheckpointDirectory = null;
+	public static int defaultCheckpointInterval = 5;
+	public static boolean defaultResumeFromCheckpoint = false;
 	public static boolean defaultUseTikhonovRegularization = true;
 	public static double defaultLambda = 0.006;
 	public static int defaultBlockSizeIndex = 0, defaultBlockSizeX = 256, defaultBlockSizeY = 256, defaultBlockSizeZ = 256;
+	public static int defaultTiling = 0;
+	public static int defaultTileSizeX = 512, defaultTileSizeY = 512, defaultTileSizeZ = 512;
+	public static int defaultTileOverlap = 16;
+	public static int defaultTileHalo = 40;
+	public static int defaultTileIndex = 0;
+	public static String defaultTileDirectory = null;
 	public static int defaultComputationTypeIndex = 0;
 	public static int defaultExtractPSF = 0;
 	public static int defaultDisplayPSF = 1;
@@ -129,12 +171,22 @@ public class EfficientBayesianBased extends Fusion
 
 	PSFTYPE iterationType;
 	WeightType weightType;
+	int precision;
 	boolean saveMemory;
+	int kernelFFTCacheMB;
+	int prefetchMB;
 	int osemspeedupIndex;
 	int numIterations;
+	double stopTolerance;
+	boolean adaptiveOSEM;
+	boolean checkpoint;
+	String checkpointDirectory;
+	int checkpointInterval;
+	boolean resumeFromCheckpoint;
 	boolean useTikhonovRegularization;
 	double lambda;
 	int blockSizeIndex;
+	int tiling;
 	int computationTypeIndex;
 	int extractPSFIndex;
 	int displayPSF;
@@ -151,6 +203,9 @@ public class EfficientBayesianBased extends Fusion
 
 	boolean useBlocks;
 	int[] blockSize;
+	int tileSizeX, tileSizeY, tileSizeZ, tileOverlap, tileHalo, tileIndex;
+	String tileDirectory;
+	boolean parametersDisplayed;
 	boolean useCUDA;
 	int debugInterval;
 	double osemSpeedUp;
@@ -169,8 +224,9 @@ public class EfficientBayesianBased extends Fusion
 	 */
 	ArrayList< CUDADevice > deviceList = null;
 
-	Choice gpu, block, it, weight;
+	Choice gpu, block, it, weight, prec, tile;
 	Checkbox saveMem;
+	TextField cacheMB;
 
 	public EfficientBayesianBased( final SpimData2 spimData, final List< ViewId > viewIdsToProcess )
 	{
@@ -199,100 +255,161 @@ public class EfficientBayesianBased extends Fusion
 			IOFunctions.println( "BlendingBorder: " + blendingBorderX + ", " + blendingBorderY + ", " + blendingBorderZ );
 			IOFunctions.println( "BlendingBorder: " + blendingRangeX + ", " + blendingRangeY + ", " + blendingRangeZ );
 
-			final ProcessForDeconvolution pfd = new ProcessForDeconvolution(
-					spimData,
-					viewIdsToProcess,
-					bb,
-					new int[]{ blendingBorderX, blendingBorderY, blendingBorderZ },
-					new int[]{ blendingRangeX, blendingRangeY, blendingRangeZ } );
-			
 			// set debug mode
 			MVDeconvolution.debug = debugMode;
 			MVDeconvolution.debugInterval = debugInterval;
-	
-			int stack = 0;
-	
+			MVDeconvolution.stopTolerance = stopTolerance;
+			MVDeconvolution.adaptiveOSEM = adaptiveOSEM;
+
+			// kernel FFTs are kept over timepoints, channels & tiles
+			KernelFFTCache.maxBytes = (long)kernelFFTCacheMB * 1024 * 1024;
+
+			if ( !KernelFFTCache.isEnabled() )
+				KernelFFTCache.clear();
+
+			// reduced precision of the transformed images and weights
+			ProcessForDeconvolution.inputBits = precision == 0 ? 32 : 16;
+			ProcessForDeconvolution.weightBits = precision == 0 ? 32 : ( precision == 1 ? 16 : 8 );
+
+			// raw views loaded ahead while the previous ones are transformed
+			ProcessForDeconvolution.prefetchMaxBytes = (long)prefetchMB * 1024 * 1024;
+
+			// tiling is ignored if we only illustrate the weights
+			final boolean tiled = tiling != 0 && weightType != WeightType.WEIGHTS_ONLY;
+			final ArrayList< Tile > tiles;
+
+			if ( tiled )
+			{
+				// the halo has to cover the support of the PSF, otherwise the border of the tiles is not deconvolved properly
+				final int[] psfSize = getMaxPSFSize();
+				final int[] halo = new int[ 3 ];
+
+				for ( int d = 0; d < halo.length; ++d )
+					halo[ d ] = Math.max( tileHalo, psfSize[ d ] );
+
+				if ( halo[ 0 ] != tileHalo || halo[ 1 ] != tileHalo || halo[ 2 ] != tileHalo )
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Tile halo " + tileHalo + " is smaller than the PSF, using " + Util.printCoordinates( halo ) );
+
+				tiles = DeconvolutionTiles.divideIntoTiles(
+						bb,
+						new int[]{ tileSizeX, tileSizeY, tileSizeZ },
+						new int[]{ tileOverlap, tileOverlap, tileOverlap },
+						halo );
+
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Deconvolving in " + tiles.size() + " tiles." );
+			}
+			else
+			{
+				tiles = null;
+			}
+
 			for ( final TimePoint t : timepointsToProcess )
 				for ( final Channel c : channelsToProcess )
 				{
+					// the parameters and PSFs are shown once per timepoint & channel, not for every tile
+					parametersDisplayed = false;
+
 					final List< Angle > anglesToProcess = SpimData2.getAllAnglesForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
 					final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
-	
-					// fuse the images, create weights, extract PSFs we need for the deconvolution
-					if ( !pfd.fuseStacksAndGetPSFs(
-							t, c,
-							factory,
-							osemspeedupIndex,
-							osemSpeedUp,
-							weightType,
-							extractPSFLabels,
-							new long[]{ psfSizeX, psfSizeY, psfSizeZ },
-							psfFiles,
-							transformPSFs ) )
+					final String name = "TP" + t.getName() + "_Ch" + c.getName();
+
+					final Img< FloatType > deconvolved;
+
+					if ( !tiled )
 					{
-						IOFunctions.println(
-								"FAILED to deconvolve timepoint=" + t.getName() + " (id=" + t.getId() + ")" +
-								", channel=" + c.getName() + " (id=" + c.getId() + ")" );
-	
-						continue;
+						final ProcessForDeconvolution pfd = new ProcessForDeconvolution(
+								spimData,
+								viewIdsToProcess,
+								bb,
+								new int[]{ blendingBorderX, blendingBorderY, blendingBorderZ },
+								new int[]{ blendingRangeX, blendingRangeY, blendingRangeZ } );
+
+						// fuse the images, create weights, extract PSFs we need for the deconvolution
+						if ( !prepare( pfd, bb, t, c ) )
+							continue;
+
+						if ( weightType == WeightType.WEIGHTS_ONLY )
+							return true;
+
+						deconvolved = runDeconvolution( pfd, "deconvolution_" + name + ".checkpoint" );
+
+						if ( deconvolved == null )
+							return false;
 					}
-					
-					// on the first run update the osemspeedup if necessary
-					if ( stack++ == 0 )
+					else if ( tiling == 2 )
 					{
-						if ( osemspeedupIndex == 1 )
-							osemSpeedUp = pfd.getMinOverlappingViews();
-						else if ( osemspeedupIndex == 2 )
-							osemSpeedUp = pfd.getAvgOverlappingViews();
-					}
-	
-					// setup & run the deconvolution
-					displayParametersAndPSFs( bb, c, extractPSFLabels );
-	
-					if ( weightType == WeightType.WEIGHTS_ONLY )
-						return true;
-	
-					final MVDeconInput deconvolutionData = new MVDeconInput( factory );
-	
-					IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Block & FFT image factory: " + computeFactory.getClass().getSimpleName() );
+						// a single tile as cluster job, the result is saved and merged later
+						if ( tileIndex < 0 || tileIndex >= tiles.size() )
+						{
+							IOFunctions.println( "Tile index " + tileIndex + " does not exist, there are " + tiles.size() + " tiles (0..." + ( tiles.size() - 1 ) + ")." );
+							return false;
+						}
 
-					for ( final ViewDescription vd : pfd.getViewDescriptions() )
-					{
-						// device list for CPU or CUDA processing
-						final int[] devList = new int[ deviceList.size() ];
-						for ( int i = 0; i < devList.length; ++i )
+						final Tile tile = tiles.get( tileIndex );
+						final Img< FloatType > psi = deconvolveTile( tile, t, c, name );
+
+						if ( psi == null )
+							continue;
+
+						final File file = DeconvolutionTiles.tileFile( new File( tileDirectory ), name, tile.getIndex() );
+
+						try
 						{
-							devList[ i ] = deviceList.get( i ).getDeviceId();
-							
-							if ( devList[ i ] >= 0 && !ArrayImgFactory.class.isInstance( this.computeFactory ) )
-								throw new RuntimeException( "CUDA computing is only possible when selecting ArrayImg for 'ImgLib2 container FFTs'" );
+							DeconvolutionTiles.saveTile( file, tile, psi );
+							IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Saved " + tile + " to '" + file + "'." );
 						}
-	
-						deconvolutionData.add( new MVDeconFFT(
-								pfd.getTransformedImgs().get( vd ),
-								pfd.getTransformedWeights().get( vd ),
-								pfd.getExtractPSF().getTransformedPSF( vd ),
-								computeFactory, devList, useBlocks, blockSize, saveMemory ) );
+						catch ( IOException e )
+						{
+							IOFunctions.println( "Failed to save " + tile + " to '" + file + "': " + e );
+							e.printStackTrace();
+							return false;
+						}
+
+						continue;
 					}
-	
-					if ( !useTikhonovRegularization )
-						lambda = 0;
-	
-					final Img< FloatType > deconvolved;
-	
-					try
+					else
 					{
-						deconvolved = new MVDeconvolution( deconvolutionData, iterationType, numIterations, lambda, osemSpeedUp, osemspeedupIndex, "deconvolved" ).getPsi();
-					} 
-					catch (IncompatibleTypeException e)
-					{
-						IOFunctions.println( "Failed to initialize deconvolution: " + e );
-						e.printStackTrace();
-						return false;
+						// blend all tiles, either computed here or loaded from the cluster jobs
+						final Img< FloatType > weightSum = factory.create( bb.getDimensions(), new FloatType() );
+						deconvolved = factory.create( bb.getDimensions(), new FloatType() );
+
+						for ( final Tile tile : tiles )
+						{
+							if ( tiling == 1 )
+							{
+								final Img< FloatType > psi = deconvolveTile( tile, t, c, name );
+
+								if ( psi != null )
+									DeconvolutionTiles.addTile( tile, psi, bb, deconvolved, weightSum );
+							}
+							else
+							{
+								final File file = DeconvolutionTiles.tileFile( new File( tileDirectory ), name, tile.getIndex() );
+
+								if ( !file.exists() )
+								{
+									IOFunctions.println( "WARNING: '" + file + "' does not exist, " + tile + " will be empty." );
+									continue;
+								}
+
+								try
+								{
+									DeconvolutionTiles.loadAndAddTile( file, tiles, bb, deconvolved, weightSum, computeFactory );
+								}
+								catch ( IOException e )
+								{
+									IOFunctions.println( "Failed to load '" + file + "': " + e );
+									e.printStackTrace();
+									return false;
+								}
+							}
+						}
+
+						DeconvolutionTiles.normalize( deconvolved, weightSum );
 					}
-	
+
 					// export the final image
-					titler.setTitle( "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess ) );
+					titler.setTitle( name + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess ) );
 					exporter.exportImage(
 							deconvolved,
 							bb,
@@ -307,9 +424,185 @@ public class EfficientBayesianBased extends Fusion
 			IJ.error("Multi-View Registration", "Out of memory.  Check \"Edit > Options > Memory & Threads\"");
 			return false;
 		}
-		
+
 		return true;
 	}
+
+	/**
+	 * Fuses the images, creates the weights and extracts the PSFs needed for the deconvolution of one timepoint & channel
+	 */
+	protected boolean prepare( final ProcessForDeconvolution pfd, final BoundingBoxGUI bb, final TimePoint t, final Channel c )
+	{
+		if ( !pfd.fuseStacksAndGetPSFs(
+				t, c,
+				factory,
+				osemspeedupIndex,
+				osemSpeedUp,
+				weightType,
+				extractPSFLabels,
+				new long[]{ psfSizeX, psfSizeY, psfSizeZ },
+				psfFiles,
+				transformPSFs ) )
+		{
+			IOFunctions.println(
+					"FAILED to deconvolve timepoint=" + t.getName() + " (id=" + t.getId() + ")" +
+					", channel=" + c.getName() + " (id=" + c.getId() + ")" );
+
+			return false;
+		}
+
+		// update the osemspeedup if necessary, the weights of this stack (or tile) were adjusted with its own overlap
+		if ( osemspeedupIndex == 1 )
+			osemSpeedUp = pfd.getMinOverlappingViews();
+		else if ( osemspeedupIndex == 2 )
+			osemSpeedUp = pfd.getAvgOverlappingViews();
+
+		if ( !parametersDisplayed )
+		{
+			displayParametersAndPSFs( bb, c, extractPSFLabels );
+			parametersDisplayed = true;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sets up and runs the deconvolution on the data prepared by {@link #prepare(ProcessForDeconvolution, BoundingBoxGUI, TimePoint, Channel)}
+	 * 
+	 * @param pfd - the prepared data
+	 * @param checkpointName - the file name of the checkpoint (if checkpointing is enabled)
+	 * @return - the deconvolved image or null if the deconvolution could not be initialized
+	 */
+	protected Img< FloatType > runDeconvolution( final ProcessForDeconvolution pfd, final String checkpointName )
+	{
+		final MVDeconInput deconvolutionData = new MVDeconInput( factory );
+
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Block & FFT image factory: " + computeFactory.getClass().getSimpleName() );
+
+		for ( final ViewDescription vd : pfd.getViewDescriptions() )
+		{
+			// device list for CPU or CUDA processing
+			final int[] devList = new int[ deviceList.size() ];
+			for ( int i = 0; i < devList.length; ++i )
+			{
+				devList[ i ] = deviceList.get( i ).getDeviceId();
+				
+				if ( devList[ i ] >= 0 && !ArrayImgFactory.class.isInstance( this.computeFactory ) )
+					throw new RuntimeException( "CUDA computing is only possible when selecting ArrayImg for 'ImgLib2 container FFTs'" );
+			}
+
+			deconvolutionData.add( new MVDeconFFT(
+					pfd.getTransformedImgs().get( vd ),
+					pfd.getTransformedWeights().get( vd ),
+					pfd.getExtractPSF().getTransformedPSF( vd ),
+					computeFactory, devList, useBlocks, blockSize, saveMemory ) );
+		}
+
+		if ( !useTikhonovRegularization )
+			lambda = 0;
+
+		if ( checkpoint )
+		{
+			// a checkpoint of a different input (re-registered, other PSFs, views or bounding box) gets a different name and is never resumed
+			final byte[] fingerprint = checkpointFingerprint( pfd );
+			final String fileName = checkpointName.replace( ".checkpoint", "_" + DeconvolutionCheckpoint.Fingerprint.toString( fingerprint, 6 ) + ".checkpoint" );
+
+			MVDeconvolution.checkpointFile = new File( checkpointDirectory, fileName ).getAbsolutePath();
+			MVDeconvolution.checkpointFingerprint = fingerprint;
+			MVDeconvolution.checkpointInterval = checkpointInterval;
+			MVDeconvolution.resumeFromCheckpoint = resumeFromCheckpoint;
+		}
+		else
+		{
+			MVDeconvolution.checkpointFile = null;
+			MVDeconvolution.checkpointFingerprint = null;
+			MVDeconvolution.resumeFromCheckpoint = false;
+		}
+
+		try
+		{
+			final Img< FloatType > deconvolved = new MVDeconvolution( deconvolutionData, iterationType, numIterations, lambda, osemSpeedUp, osemspeedupIndex, "deconvolved" ).getPsi();
+
+			if ( KernelFFTCache.isEnabled() )
+				KernelFFTCache.printStatistics();
+
+			Threads.getExecutorService().printStatistics();
+
+			return deconvolved;
+		} 
+		catch (IncompatibleTypeException e)
+		{
+			IOFunctions.println( "Failed to initialize deconvolution: " + e );
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * @return - the fingerprint of everything that defines the input of the deconvolution: the views and their
+	 * registrations, the PSFs, the bounding box (incl. downsampling), blending and weights
+	 */
+	protected byte[] checkpointFingerprint( final ProcessForDeconvolution pfd )
+	{
+		final DeconvolutionCheckpoint.Fingerprint fingerprint = new DeconvolutionCheckpoint.Fingerprint();
+
+		for ( final ViewDescription vd : pfd.getViewDescriptions() )
+		{
+			final ViewRegistration vr = spimData.getViewRegistrations().getViewRegistration( vd );
+			vr.updateModel();
+
+			fingerprint.add( vd.getTimePointId() ).add( vd.getViewSetupId() );
+			fingerprint.add( vr.getModel().getRowPackedCopy() );
+			fingerprint.add( pfd.getExtractPSF().getTransformedPSF( vd ) );
+		}
+
+		final BoundingBoxGUI bb = pfd.getBoundingBox();
+
+		fingerprint.add( bb.getMin() ).add( bb.getMax() ).add( bb.getDownSampling() );
+		fingerprint.add( pfd.getBlendingBorder() ).add( pfd.getBlendingRange() );
+		fingerprint.add( weightType.ordinal() );
+
+		return fingerprint.digest();
+	}
+
+	/**
+	 * Deconvolves one tile using only the views that overlap it
+	 * 
+	 * @return - the deconvolved tile (covering tile.getInterval()) or null if no view overlaps or it failed
+	 */
+	protected Img< FloatType > deconvolveTile( final Tile tile, final TimePoint t, final Channel c, final String name )
+	{
+		final Interval interval = tile.getInterval();
+		final int[] min = new int[ interval.numDimensions() ];
+		final int[] max = new int[ interval.numDimensions() ];
+
+		for ( int d = 0; d < min.length; ++d )
+		{
+			min[ d ] = (int)interval.min( d );
+			max[ d ] = (int)interval.max( d );
+		}
+
+		final ArrayList< ViewId > views = DeconvolutionTiles.overlappingViews( spimData, viewIdsToProcess, interval );
+
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Deconvolving " + tile + " from " + views.size() + " overlapping views." );
+
+		if ( views.size() == 0 )
+			return null;
+
+		final BoundingBoxGUI tileBB = new BoundingBoxGUI( spimData, views, new BoundingBox( min, max ) );
+
+		final ProcessForDeconvolution pfd = new ProcessForDeconvolution(
+				spimData,
+				views,
+				tileBB,
+				new int[]{ blendingBorderX, blendingBorderY, blendingBorderZ },
+				new int[]{ blendingRangeX, blendingRangeY, blendingRangeZ } );
+
+		if ( !prepare( pfd, tileBB, t, c ) )
+			return null;
+
+		return runDeconvolution( pfd, "deconvolution_" + name + "_tile" + tile.getIndex() + ".checkpoint" );
+	}
 	
 	@Override
 	public boolean queryParameters()
@@ -341,6 +634,18 @@ public class EfficientBayesianBased extends Fusion
 		if ( !getBlending( ) )
 			return false;
 		
+		// get the tile size
+		if ( !getTiling() )
+			return false;
+
+		// get the size of the weight cache
+		if ( !getCachedWeights() )
+			return false;
+
+		// get where to save checkpoints
+		if ( !getCheckpoint() )
+			return false;
+
 		// check debug interval
 		if ( !getDebug() )
 			return false;
@@ -359,8 +664,14 @@ public class EfficientBayesianBased extends Fusion
 		public void itemStateChanged(ItemEvent e) { m.update(); } });
 		weight.addItemListener( new ItemListener() { @Override
 		public void itemStateChanged(ItemEvent e) { m.update(); } });
+		prec.addItemListener( new ItemListener() { @Override
+		public void itemStateChanged(ItemEvent e) { m.update(); } });
 		saveMem.addItemListener( new ItemListener() { @Override
 		public void itemStateChanged(ItemEvent e) { m.update(); } });
+		cacheMB.addTextListener( new TextListener() { @Override
+		public void textValueChanged(TextEvent e) { m.update(); } });
+		tile.addItemListener( new ItemListener() { @Override
+		public void itemStateChanged(ItemEvent e) { m.update(); } });
 	}
 
 	@Override
@@ -369,18 +680,32 @@ public class EfficientBayesianBased extends Fusion
 		gd.addChoice( "ImgLib2_container_FFTs", BoundingBoxGUI.imgTypes, BoundingBoxGUI.imgTypes[ defaultFFTImgType ] );
 		gd.addCheckbox( "Save_memory (not keep FFT's on CPU, 2x time & 0.5x memory)", defaultSaveMemory );
 		saveMem = (Checkbox)gd.getCheckboxes().lastElement();
+		gd.addNumericField( "Cache_kernel_FFTs (MB, 0 = off, blocks or Java convolution only)", defaultKernelFFTCacheMB, 0 );
 		gd.addChoice( "Type_of_iteration", iterationTypeString, iterationTypeString[ defaultIterationType ] );
 		it = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "Image_weights", weightsString, weightsString[ defaultWeightType ] );
 		weight = (Choice)gd.getChoices().lastElement();
+		gd.addNumericField( "Memory_for_cached_weights (MB, all views, if cached in blocks)", defaultCachedWeightsMB, 0 );
+		cacheMB = (TextField)gd.getNumericFields().lastElement();
+		gd.addChoice( "Store_images_and_weights", precisionChoice, precisionChoice[ defaultPrecision ] );
+		prec = (Choice)gd.getChoices().lastElement();
+		gd.addNumericField( "Prefetch_input_views (MB, loaded while transforming)", defaultPrefetchMB, 0 );
 		gd.addChoice( "OSEM_acceleration", osemspeedupChoice, osemspeedupChoice[ defaultOSEMspeedupIndex ] );
 		gd.addNumericField( "Number_of_iterations", defaultNumIterations, 0 );
+		gd.addNumericField( "Stop_at_relative_change (0 = run all iterations)", defaultStopTolerance, 6 );
+		gd.addCheckbox( "Adaptive_OSEM_acceleration (adjust between iterations)", defaultAdaptiveOSEM );
+		gd.addCheckbox( "Checkpoint_deconvolution (allows to resume)", defaultCheckpoint );
 		gd.addCheckbox( "Debug_mode", defaultDebugMode );
 		gd.addCheckbox( "Adjust_blending_parameters (if stripes are visible)", defaultAdjustBlending );
 		gd.addCheckbox( "Use_Tikhonov_regularization", defaultUseTikhonovRegularization );
 		gd.addNumericField( "Tikhonov_parameter", defaultLambda, 4 );
 		gd.addChoice( "Compute", blocksChoice, blocksChoice[ defaultBlockSizeIndex ] );
 		block = (Choice)gd.getChoices().lastElement();
+		final String[] tilingChoices = Toggle_Cluster_Options.displayClusterProcessing ? tilingClusterChoice : tilingChoice;
+		if ( defaultTiling >= tilingChoices.length )
+			defaultTiling = 0;
+		gd.addChoice( "Process", tilingChoices, tilingChoices[ defaultTiling ] );
+		tile = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "Compute_on", computationOnChoice, computationOnChoice[ defaultComputationTypeIndex ] );
 		gpu = (Choice)gd.getChoices().lastElement();
 		gd.addChoice( "PSF_estimation", extractPSFChoice, extractPSFChoice[ defaultExtractPSF ] );
@@ -400,6 +725,7 @@ public class EfficientBayesianBased extends Fusion
 			computeFactory = new CellImgFactory< FloatType >( 256 );
 
 		saveMemory = defaultSaveMemory = gd.getNextBoolean();
+		kernelFFTCacheMB = defaultKernelFFTCacheMB = Math.max( 0, (int)Math.round( gd.getNextNumber() ) );
 		defaultIterationType = gd.getNextChoiceIndex();
 
 		if ( defaultIterationType == 0 )
@@ -418,17 +744,28 @@ public class EfficientBayesianBased extends Fusion
 		else if ( defaultWeightType == 1 )
 			weightType = WeightType.VIRTUAL_WEIGHTS;
 		else if ( defaultWeightType == 2 )
+			weightType = WeightType.CACHED_WEIGHTS;
+		else if ( defaultWeightType == 3 )
 			weightType = WeightType.NO_WEIGHTS;
 		else
 			weightType = WeightType.WEIGHTS_ONLY;
 
+		defaultCachedWeightsMB = Math.max( 1, (int)Math.round( gd.getNextNumber() ) );
+		ProcessForDeconvolution.cachedWeightsMaxBytes = (long)defaultCachedWeightsMB * 1024 * 1024;
+
+		precision = defaultPrecision = gd.getNextChoiceIndex();
+		prefetchMB = defaultPrefetchMB = Math.max( 0, (int)Math.round( gd.getNextNumber() ) );
 		osemspeedupIndex = defaultOSEMspeedupIndex = gd.getNextChoiceIndex();
 		numIterations = defaultNumIterations = (int)Math.round( gd.getNextNumber() );
+		stopTolerance = defaultStopTolerance = Math.max( 0, gd.getNextNumber() );
+		adaptiveOSEM = defaultAdaptiveOSEM = gd.getNextBoolean();
+		checkpoint = defaultCheckpoint = gd.getNextBoolean();
 		debugMode = defaultDebugMode = gd.getNextBoolean();
 		adjustBlending = defaultAdjustBlending = gd.getNextBoolean();
 		useTikhonovRegularization = defaultUseTikhonovRegularization = gd.getNextBoolean();
 		lambda = defaultLambda = gd.getNextNumber();
 		blockSizeIndex = defaultBlockSizeIndex = gd.getNextChoiceIndex();
+		tiling = defaultTiling = gd.getNextChoiceIndex();
 		computationTypeIndex = defaultComputationTypeIndex = gd.getNextChoiceIndex();
 		extractPSFIndex = defaultExtractPSF = gd.getNextChoiceIndex();
 		displayPSF = defaultDisplayPSF = gd.getNextChoiceIndex();
@@ -459,7 +796,72 @@ public class EfficientBayesianBased extends Fusion
 	{
 		if ( weight.getSelectedIndex() == weightsString.length - 1 ) // only illustrate weights
 			return fusedSizeMB * getMaxNumViewsPerTimepoint() + (avgPixels/ ( 1024*1024 )) * bytePerPixel;
-		
+
+		// the output + 2xtmp
+		return deconvolutionRAM( fusedSizeMB, getMaxNumViewsPerTimepoint(), bytePerPixel ) + fusedSizeMB * 3;
+	}
+
+	@Override
+	public long totalRAM( final long fusedSizeMB, final int bytePerPixel, final long[] min, final long[] max )
+	{
+		// tiling is ignored if we only illustrate the weights
+		if ( tile.getSelectedIndex() == 0 || weight.getSelectedIndex() == weightsString.length - 1 )
+			return totalRAM( fusedSizeMB, bytePerPixel );
+
+		for ( int d = 0; d < min.length; ++d )
+			if ( max[ d ] < min[ d ] )
+				return totalRAM( fusedSizeMB, bytePerPixel );
+
+		// the tile dialog comes later, so estimate with the last tiling parameters
+		final ArrayList< Tile > tiles = DeconvolutionTiles.divideIntoTiles(
+				new FinalInterval( min, max ),
+				new int[]{ defaultTileSizeX, defaultTileSizeY, defaultTileSizeZ },
+				new int[]{ defaultTileOverlap, defaultTileOverlap, defaultTileOverlap },
+				new int[]{ defaultTileHalo, defaultTileHalo, defaultTileHalo } );
+
+		// the largest tile including its halo, and the most views of one timepoint & channel overlapping any tile
+		long maxTilePixels = 0;
+		int maxViews = 0;
+
+		for ( final Tile t : tiles )
+		{
+			maxTilePixels = Math.max( maxTilePixels, Intervals.numElements( t.getInterval() ) );
+
+			final HashMap< String, Integer > viewsPerTimepointChannel = new HashMap< String, Integer >();
+
+			for ( final ViewId viewId : DeconvolutionTiles.overlappingViews( spimData, viewIdsToProcess, t.getInterval() ) )
+			{
+				final ViewDescription vd = spimData.getSequenceDescription().getViewDescription( viewId );
+				final String key = vd.getTimePointId() + "_" + vd.getViewSetup().getChannel().getId();
+				final Integer views = viewsPerTimepointChannel.get( key );
+				final int numViews = views == null ? 1 : views + 1;
+
+				viewsPerTimepointChannel.put( key, numViews );
+				maxViews = Math.max( maxViews, numViews );
+			}
+		}
+
+		final long tileSizeMB = ( maxTilePixels * bytePerPixel ) / ( 1024*1024 );
+
+		if ( tile.getSelectedIndex() == 3 ) // merge saved tiles, output + weight sum + one loaded tile
+			return fusedSizeMB * 2 + tileSizeMB;
+
+		final long totalRam = deconvolutionRAM( tileSizeMB, maxViews, bytePerPixel ) + tileSizeMB * 3;
+
+		if ( tile.getSelectedIndex() == 2 ) // single tile, saved by the cluster job
+			return totalRam;
+		else // blended into the entire bounding box, output + weight sum
+			return totalRam + fusedSizeMB * 2;
+	}
+
+	/**
+	 * @param sizeMB - size of the deconvolved image (entire bounding box or a tile)
+	 * @param numViews - the number of views deconvolved together
+	 * @param bytePerPixel
+	 * @return - the memory in MB for the input images, weights, PSFs and FFT convolutions
+	 */
+	protected long deconvolutionRAM( final long sizeMB, final int numViews, final int bytePerPixel )
+	{
 		final int blockChoice = block.getSelectedIndex();
 		
 		final long blockSize;
@@ -473,17 +875,21 @@ public class EfficientBayesianBased extends Fusion
 		else if ( blockChoice == 4 )
 			blockSize = (512 * 512 * 512 * bytePerPixel)/(1024*1024);
 		else
-			blockSize = fusedSizeMB;
+			blockSize = sizeMB;
 		
-		// transformed weight images + input data
+		// transformed weight images + input data (at reduced precision 16-bit images and 16 or 8-bit weights)
+		final double imgFactor = prec.getSelectedIndex() == 0 ? 1.0 : 0.5;
+		final double weightFactor = prec.getSelectedIndex() == 0 ? 1.0 : ( prec.getSelectedIndex() == 1 ? 0.5 : 0.25 );
 		long totalRam;
 
 		if ( weight.getSelectedIndex() == 0 ) // Precompute weights for all views (more memory, faster)
-			totalRam = fusedSizeMB * ( getMaxNumViewsPerTimepoint() * 2 );
+			totalRam = Math.round( sizeMB * numViews * ( imgFactor + weightFactor ) );
 		else if ( weight.getSelectedIndex() == 1 ) // Virtual weights (less memory, slower)
-			totalRam = fusedSizeMB * ( getMaxNumViewsPerTimepoint() + 1 );
+			totalRam = Math.round( sizeMB * ( numViews * imgFactor + 1 ) );
+		else if ( weight.getSelectedIndex() == 2 ) // Virtual weights, cached in blocks (less memory, fast)
+			totalRam = Math.round( sizeMB * ( numViews * imgFactor + 1 ) ) + getCachedWeightsMB();
 		else // No weights (produces artifacts on partially overlapping data)
-			totalRam = fusedSizeMB * ( getMaxNumViewsPerTimepoint() );
+			totalRam = Math.round( sizeMB * numViews * imgFactor );
 
 		// fft of psf's
 		if ( gpu.getSelectedIndex() == 0 )
@@ -491,29 +897,68 @@ public class EfficientBayesianBased extends Fusion
 			if ( saveMem.getState() == true )
 				totalRam += blockSize * 1.5; // cpu, do not keep PSF FFTs
 			else
-				totalRam += blockSize * getMaxNumViewsPerTimepoint() * 1.5; // cpu, keep PSF FFTs
+				totalRam += blockSize * numViews * 1.5; // cpu, keep PSF FFTs
 		}
 		else
 		{
-			totalRam += (40 * 40 * 100 * bytePerPixel)/(1024*1024) * getMaxNumViewsPerTimepoint(); // gpu (40x40x100 approx PSF size)
+			totalRam += (40 * 40 * 100 * bytePerPixel)/(1024*1024) * numViews; // gpu (40x40x100 approx PSF size)
 		}
 
 		// memory estimate for computing fft convolutions for images in RAM
 		if ( gpu.getSelectedIndex() == 0 )
 			totalRam += blockSize * 6 * 1.5;
+		else if ( gpu.getSelectedIndex() == 2 )
+			totalRam += blockSize * 2 + blockSize * 3 * 1.5; // block, result & the FFTs of block and kernel in the JVM
 		else
 			totalRam += blockSize * 2;
 
-		// the output + 2xtmp
-		totalRam += fusedSizeMB * 3;
-
 		return totalRam;
 	}
 
+	/**
+	 * @return - the size of the largest PSF in x, y and z, either the size of the extracted PSFs or of the PSF files
+	 * (if they are transformed, their diagonal)
+	 */
+	protected int[] getMaxPSFSize()
+	{
+		if ( extractPSF )
+			return new int[]{ psfSizeX, psfSizeY, psfSizeZ };
+
+		final int[] size = new int[ 3 ];
+
+		for ( final ArrayList< Pair< Pair< Angle, Illumination >, String > > files : psfFiles.values() )
+			for ( final Pair< Pair< Angle, Illumination >, String > file : files )
+			{
+				final ImagePlus imp = new Opener().openImage( new File( file.getB() ).getAbsolutePath() );
+
+				if ( imp == null )
+					continue;
+
+				final int[] psfSize = new int[]{ imp.getWidth(), imp.getHeight(), imp.getNSlices() };
+
+				if ( transformPSFs )
+				{
+					final int diagonal = (int)Math.ceil( Math.sqrt( psfSize[ 0 ] * psfSize[ 0 ] + psfSize[ 1 ] * psfSize[ 1 ] + psfSize[ 2 ] * psfSize[ 2 ] ) );
+
+					for ( int d = 0; d < psfSize.length; ++d )
+						psfSize[ d ] = diagonal;
+				}
+
+				for ( int d = 0; d < size.length; ++d )
+					size[ d ] = Math.max( size[ d ], psfSize[ d ] );
+			}
+
+		return size;
+	}
+
 	protected void displayParametersAndPSFs( final BoundingBoxGUI bb, final Channel channel, final HashMap< Channel, ChannelPSF > extractPSFLabels  )
 	{
 		IOFunctions.println( "Type of iteration: " + iterationType );
 		IOFunctions.println( "Number iterations: " + numIterations );
+		if ( stopTolerance > 0 )
+			IOFunctions.println( "Stop at relative change: " + stopTolerance );
+		IOFunctions.println( "Adaptive OSEM: " + adaptiveOSEM );
+		IOFunctions.println( "Images & weights stored as: " + precisionChoice[ precision ] );
 		IOFunctions.println( "OSEM speedup: " + osemSpeedUp );
 		IOFunctions.println( "Using blocks: " + useBlocks );
 		if ( useBlocks )
@@ -1041,6 +1486,129 @@ public class EfficientBayesianBased extends Fusion
 		return true;
 	}
 	
+	protected boolean getTiling()
+	{
+		if ( weightType == WeightType.WEIGHTS_ONLY || tiling == 0 )
+			return true;
+
+		if ( defaultTileDirectory == null )
+			defaultTileDirectory = new File( spimData.getBasePath(), "tiles" ).getAbsolutePath();
+
+		final GenericDialogPlus gdTiling = new GenericDialogPlus( "Tiling options" );
+		gdTiling.addNumericField( "Tile_size_X", defaultTileSizeX, 0 );
+		gdTiling.addNumericField( "Tile_size_Y", defaultTileSizeY, 0 );
+		gdTiling.addNumericField( "Tile_size_Z", defaultTileSizeZ, 0 );
+		gdTiling.addNumericField( "Tile_overlap (blending)", defaultTileOverlap, 0 );
+		gdTiling.addNumericField( "Tile_halo (at least the PSF size)", defaultTileHalo, 0 );
+
+		if ( tiling >= 2 )
+		{
+			gdTiling.addMessage( "" );
+			if ( tiling == 2 )
+				gdTiling.addNumericField( "Tile_index (cluster job)", defaultTileIndex, 0 );
+			gdTiling.addDirectoryField( "Tile_directory", defaultTileDirectory, 50 );
+			gdTiling.addMessage( "Note: all cluster jobs and the merge need identical bounding box & tiling parameters.", GUIHelper.mediumstatusfont );
+		}
+
+		gdTiling.showDialog();
+
+		if ( gdTiling.wasCanceled() )
+			return false;
+
+		tileSizeX = defaultTileSizeX = Math.max( 1, (int)Math.round( gdTiling.getNextNumber() ) );
+		tileSizeY = defaultTileSizeY = Math.max( 1, (int)Math.round( gdTiling.getNextNumber() ) );
+		tileSizeZ = defaultTileSizeZ = Math.max( 1, (int)Math.round( gdTiling.getNextNumber() ) );
+		tileOverlap = defaultTileOverlap = Math.max( 0, (int)Math.round( gdTiling.getNextNumber() ) );
+		tileHalo = defaultTileHalo = Math.max( 0, (int)Math.round( gdTiling.getNextNumber() ) );
+
+		if ( tiling >= 2 )
+		{
+			if ( tiling == 2 )
+				tileIndex = defaultTileIndex = (int)Math.round( gdTiling.getNextNumber() );
+
+			tileDirectory = defaultTileDirectory = gdTiling.getNextString();
+
+			final File dir = new File( tileDirectory );
+
+			if ( tiling == 2 && !dir.exists() && !dir.mkdirs() )
+			{
+				IOFunctions.println( "Cannot create tile directory '" + dir + "'." );
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	protected boolean getCheckpoint()
+	{
+		if ( weightType == WeightType.WEIGHTS_ONLY || !checkpoint )
+			return true;
+
+		if ( defaultCheckpointDirectory == null )
+			defaultCheckpointDirectory = new File( spimData.getBasePath(), "checkpoints" ).getAbsolutePath();
+
+		final GenericDialogPlus gdCheckpoint = new GenericDialogPlus( "Checkpoint options" );
+		gdCheckpoint.addDirectoryField( "Checkpoint_directory", defaultCheckpointDirectory, 50 );
+		gdCheckpoint.addNumericField( "Save_checkpoint_every n'th iteration, n = ", defaultCheckpointInterval, 0 );
+		gdCheckpoint.addCheckbox( "Resume_from_existing_checkpoints", defaultResumeFromCheckpoint );
+		gdCheckpoint.showDialog();
+
+		if ( gdCheckpoint.wasCanceled() )
+			return false;
+
+		checkpointDirectory = defaultCheckpointDirectory = gdCheckpoint.getNextString();
+		checkpointInterval = defaultCheckpointInterval = Math.max( 1, (int)Math.round( gdCheckpoint.getNextNumber() ) );
+		resumeFromCheckpoint = defaultResumeFromCheckpoint = gdCheckpoint.getNextBoolean();
+
+		final File dir = new File( checkpointDirectory );
+
+		if ( !dir.exists() && !dir.mkdirs() )
+		{
+			IOFunctions.println( "Cannot create checkpoint directory '" + dir + "'." );
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * @return the memory for the cached weights as currently entered in the dialog
+	 */
+	protected long getCachedWeightsMB()
+	{
+		if ( cacheMB == null )
+			return defaultCachedWeightsMB;
+
+		try
+		{
+			return Math.max( 1, Math.round( Double.parseDouble( cacheMB.getText().trim() ) ) );
+		}
+		catch ( final NumberFormatException e )
+		{
+			return defaultCachedWeightsMB;
+		}
+	}
+
+	protected boolean getCachedWeights()
+	{
+		if ( weightType != WeightType.CACHED_WEIGHTS )
+			return true;
+
+		final GenericDialog gdCache = new GenericDialog( "Cached weights" );
+		gdCache.addNumericField( "Block_size", defaultCachedWeightsBlockSize, 0, 6, "px" );
+		gdCache.showDialog();
+
+		if ( gdCache.wasCanceled() )
+			return false;
+
+		defaultCachedWeightsBlockSize = Math.max( 8, (int)Math.round( gdCache.getNextNumber() ) );
+
+		ProcessForDeconvolution.cachedWeightsBlockSize = defaultCachedWeightsBlockSize;
+
+		return true;
+	}
+
 	protected boolean getDebug()
 	{
 		if ( weightType == WeightType.WEIGHTS_ONLY )
@@ -1122,6 +1690,13 @@ public class EfficientBayesianBased extends Fusion
 			deviceList.add( new CUDADevice( -1, "CPU", Runtime.getRuntime().maxMemory(), Runtime.getRuntime().freeMemory(), 0, 0 ) );
 			useCUDA = false;
 		}
+		else if ( computationTypeIndex == 2 )
+		{
+			// the pure-Java implementation of the native interface, one device (the JVM)
+			MVDeconFFT.cuda = new JavaFourierConvolution();
+			deviceList.add( new CUDADevice( 0, JavaStandardFunctions.deviceName, MVDeconFFT.cuda.getMemDeviceCUDA( 0 ), MVDeconFFT.cuda.getFreeMemDeviceCUDA( 0 ), 0, 0 ) );
+			useCUDA = true;
+		}
 		else
 		{
 			final ArrayList< String > potentialNames = new ArrayList< String >();
@@ -0,0 +1,120 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.deconvolution;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Direct access to the fixed-point storage of an {@link ArrayImg} (one chunk) or a {@link PlanarImg} (one chunk
+ * per plane) of {@link FixedPointFloatArray}, the counterpart of {@link FloatChunks} so the deconvolution kernels
+ * can decode the values inside their loops.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class FixedPointChunks
+{
+	// one of them is null
+	final short[][] chunks16;
+	final byte[][] chunks8;
+	final float scale;
+	final int chunkSize;
+
+	protected FixedPointChunks( final short[][] chunks16, final byte[][] chunks8, final float scale, final int chunkSize )
+	{
+		this.chunks16 = chunks16;
+		this.chunks8 = chunks8;
+		this.scale = scale;
+		this.chunkSize = chunkSize;
+	}
+
+	public boolean is16Bit() { return chunks16 != null; }
+	public short[] chunk16( final long index ) { return chunks16[ (int)( index / chunkSize ) ]; }
+	public byte[] chunk8( final long index ) { return chunks8[ (int)( index / chunkSize ) ]; }
+	public float scale() { return scale; }
+	public int offset( final long index ) { return (int)( index % chunkSize ); }
+	public int chunkSize() { return chunkSize; }
+
+	/**
+	 * @param img - the image
+	 * @return the fixed-point storage of the image or null if it is not an {@link ArrayImg} or {@link PlanarImg} of {@link FixedPointFloatArray}
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static FixedPointChunks wrap( final RandomAccessibleInterval< FloatType > img )
+	{
+		final FixedPointFloatArray[] arrays;
+		final int chunkSize;
+
+		if ( img instanceof ArrayImg )
+		{
+			final Object access = ( (ArrayImg< FloatType, ? >)img ).update( null );
+
+			if ( !FixedPointFloatArray.class.isInstance( access ) )
+				return null;
+
+			arrays = new FixedPointFloatArray[]{ (FixedPointFloatArray)access };
+			chunkSize = Math.max( 1, arrays[ 0 ].getArrayLength() );
+		}
+		else if ( img instanceof PlanarImg )
+		{
+			final PlanarImg< FloatType, ? > planar = (PlanarImg< FloatType, ? >)img;
+			arrays = new FixedPointFloatArray[ planar.numSlices() ];
+
+			for ( int z = 0; z < arrays.length; ++z )
+			{
+				final Object access = planar.getPlane( z );
+
+				if ( !FixedPointFloatArray.class.isInstance( access ) )
+					return null;
+
+				arrays[ z ] = (FixedPointFloatArray)access;
+			}
+
+			chunkSize = Math.max( 1, (int)( planar.dimension( 0 ) * ( planar.numDimensions() > 1 ? planar.dimension( 1 ) : 1 ) ) );
+		}
+		else
+		{
+			return null;
+		}
+
+		if ( arrays[ 0 ].getBits() == 16 )
+		{
+			final short[][] chunks = new short[ arrays.length ][];
+
+			for ( int i = 0; i < arrays.length; ++i )
+				chunks[ i ] = arrays[ i ].getData16();
+
+			return new FixedPointChunks( chunks, null, arrays[ 0 ].getScale(), chunkSize );
+		}
+		else
+		{
+			final byte[][] chunks = new byte[ arrays.length ][];
+
+			for ( int i = 0; i < arrays.length; ++i )
+				chunks[ i ] = arrays[ i ].getData8();
+
+			return new FixedPointChunks( null, chunks, arrays[ 0 ].getScale(), chunkSize );
+		}
+	}
+}
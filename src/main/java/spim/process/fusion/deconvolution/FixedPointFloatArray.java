@@ -0,0 +1,158 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.deconvolution;
+
+import java.util.ArrayList;
+
+import net.imglib2.Dimensions;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+
+/**
+ * A {@link FloatAccess} that stores the values as unsigned 16-bit or 8-bit fixed-point numbers, i.e. value = step * scale
+ * with step in [0, 2^bits-1]. Values outside of [0, (2^bits-1) * scale] are clamped. It is used to keep the transformed
+ * input images and the weights of the deconvolution in memory at reduced precision, the values are decoded whenever
+ * they are read (all code working on {@link FloatType} works unchanged).
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class FixedPointFloatArray implements FloatAccess, ArrayDataAccess< FixedPointFloatArray >
+{
+	// one of them is null
+	final short[] data16;
+	final byte[] data8;
+
+	final int bits, maxStep;
+	final float scale, invScale;
+
+	public FixedPointFloatArray( final int numEntities, final int bits, final float scale )
+	{
+		if ( bits != 8 && bits != 16 )
+			throw new IllegalArgumentException( "Only 8 or 16 bit fixed-point values are supported, not " + bits + " bit." );
+
+		this.bits = bits;
+		this.maxStep = ( 1 << bits ) - 1;
+		this.scale = scale;
+		this.invScale = 1.0f / scale;
+
+		if ( bits == 16 )
+		{
+			this.data16 = new short[ numEntities ];
+			this.data8 = null;
+		}
+		else
+		{
+			this.data16 = null;
+			this.data8 = new byte[ numEntities ];
+		}
+	}
+
+	public int getBits() { return bits; }
+	public float getScale() { return scale; }
+
+	/**
+	 * @return - the storage if it is 16 bit, otherwise null
+	 */
+	public short[] getData16() { return data16; }
+
+	/**
+	 * @return - the storage if it is 8 bit, otherwise null
+	 */
+	public byte[] getData8() { return data8; }
+
+	@Override
+	public float getValue( final int index )
+	{
+		if ( data16 != null )
+			return ( data16[ index ] & 0xffff ) * scale;
+		else
+			return ( data8[ index ] & 0xff ) * scale;
+	}
+
+	@Override
+	public void setValue( final int index, final float value )
+	{
+		final int step = Math.max( 0, Math.min( maxStep, Math.round( value * invScale ) ) );
+
+		if ( data16 != null )
+			data16[ index ] = (short)step;
+		else
+			data8[ index ] = (byte)step;
+	}
+
+	@Override
+	public FixedPointFloatArray createArray( final int numEntities ) { return new FixedPointFloatArray( numEntities, bits, scale ); }
+
+	@Override
+	public Object getCurrentStorageArray() { return data16 != null ? data16 : data8; }
+
+	public int getArrayLength() { return data16 != null ? data16.length : data8.length; }
+
+	/**
+	 * Creates an image that stores its values as fixed-point numbers. It is an {@link ArrayImg} if it fits into one array,
+	 * otherwise a {@link PlanarImg}.
+	 * 
+	 * @param dim - the dimensions
+	 * @param bits - 8 or 16
+	 * @param maxValue - the maximal value that can be represented
+	 * @return - the image
+	 */
+	public static Img< FloatType > createImg( final Dimensions dim, final int bits, final float maxValue )
+	{
+		final long[] size = new long[ dim.numDimensions() ];
+		dim.dimensions( size );
+
+		final float scale = ( maxValue > 0 ? maxValue : 1 ) / ( ( 1 << bits ) - 1 );
+
+		long numElements = 1;
+		for ( final long s : size )
+			numElements *= s;
+
+		if ( numElements <= Integer.MAX_VALUE )
+		{
+			final ArrayImg< FloatType, FixedPointFloatArray > img =
+					new ArrayImg< FloatType, FixedPointFloatArray >( new FixedPointFloatArray( (int)numElements, bits, scale ), size, new Fraction() );
+			img.setLinkedType( new FloatType( img ) );
+
+			return img;
+		}
+		else
+		{
+			final int planeSize = (int)( size[ 0 ] * ( size.length > 1 ? size[ 1 ] : 1 ) );
+			final long numPlanes = numElements / planeSize;
+			final ArrayList< FixedPointFloatArray > planes = new ArrayList< FixedPointFloatArray >();
+
+			for ( long z = 0; z < numPlanes; ++z )
+				planes.add( new FixedPointFloatArray( planeSize, bits, scale ) );
+
+			final PlanarImg< FloatType, FixedPointFloatArray > img = new PlanarImg< FloatType, FixedPointFloatArray >( planes, size, new Fraction() );
+			img.setLinkedType( new FloatType( img ) );
+
+			return img;
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.deconvolution;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * Direct access to the float[] storage of an {@link ArrayImg} (one chunk) or a {@link PlanarImg} (one chunk
+ * per plane). Both iterate in flat order, so a linear index maps to chunk = index / chunkSize and
+ * offset = index % chunkSize, which allows tight loops over primitive arrays instead of cursors.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class FloatChunks
+{
+	final float[][] chunks;
+	final int chunkSize;
+
+	protected FloatChunks( final float[][] chunks, final int chunkSize )
+	{
+		this.chunks = chunks;
+		this.chunkSize = chunkSize;
+	}
+
+	public float[] chunk( final long index ) { return chunks[ (int)( index / chunkSize ) ]; }
+	public int offset( final long index ) { return (int)( index % chunkSize ); }
+	public int chunkSize() { return chunkSize; }
+
+	/**
+	 * @param img - the image
+	 * @return the float[] storage of the image or null if it is not an {@link ArrayImg} or {@link PlanarImg} of {@link FloatArray}
+	 */
+	@SuppressWarnings( "unchecked" )
+	public static FloatChunks wrap( final RandomAccessibleInterval< FloatType > img )
+	{
+		if ( img instanceof ArrayImg )
+		{
+			final Object access = ( (ArrayImg< FloatType, ? >)img ).update( null );
+
+			if ( !FloatArray.class.isInstance( access ) )
+				return null;
+
+			final float[] data = ( (FloatArray)access ).getCurrentStorageArray();
+
+			return new FloatChunks( new float[][]{ data }, Math.max( 1, data.length ) );
+		}
+		else if ( img instanceof PlanarImg )
+		{
+			final PlanarImg< FloatType, ? > planar = (PlanarImg< FloatType, ? >)img;
+			final float[][] planes = new float[ planar.numSlices() ][];
+
+			for ( int z = 0; z < planes.length; ++z )
+			{
+				final Object access = planar.getPlane( z );
+
+				if ( !FloatArray.class.isInstance( access ) )
+					return null;
+
+				planes[ z ] = ( (FloatArray)access ).getCurrentStorageArray();
+			}
+
+			return new FloatChunks( planes, Math.max( 1, (int)( planar.dimension( 0 ) * ( planar.numDimensions() > 1 ? planar.dimension( 1 ) : 1 ) ) ) );
+		}
+		else
+		{
+			return null;
+		}
+	}
+
+	/**
+	 * @param index - current linear index
+	 * @param end - end of the range (exclusive)
+	 * @param chunks - all images that are processed together
+	 * @return how many pixels starting at index are contiguous in every image
+	 */
+	public static int segmentLength( final long index, final long end, final FloatChunks... chunks )
+	{
+		long length = end - index;
+
+		for ( final FloatChunks c : chunks )
+			length = Math.min( length, c.chunkSize - c.offset( index ) );
+
+		return (int)length;
+	}
+}
@@ -0,0 +1,106 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.deconvolution;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Dimensions;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import spim.Prefetcher;
+import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.ViewSetupUtils;
+import spim.process.fusion.weightedavg.ProcessFusion;
+
+/**
+ * Loads the input views of one timepoint and channel ahead of their transformation for the
+ * deconvolution, so that loading/decoding (I/O bound) and transforming (CPU bound) overlap.
+ * Views are taken by their index in the list, in the order they are transformed. At most
+ * maxViewsInMemory raw views exist at any time (see {@link Prefetcher}).
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class InputPrefetcher extends Prefetcher< RandomAccessibleInterval< FloatType > >
+{
+	public InputPrefetcher( final SpimData2 spimData, final List< ViewDescription > viewDescriptions, final int maxViewsInMemory )
+	{
+		super( "InputPrefetcher", loads( spimData, viewDescriptions ), maxViewsInMemory );
+	}
+
+	protected static List< Callable< RandomAccessibleInterval< FloatType > > > loads( final SpimData2 spimData, final List< ViewDescription > viewDescriptions )
+	{
+		final ArrayList< Callable< RandomAccessibleInterval< FloatType > > > loads = new ArrayList< Callable< RandomAccessibleInterval< FloatType > > >();
+
+		for ( int i = 0; i < viewDescriptions.size(); ++i )
+		{
+			final ViewDescription vd = viewDescriptions.get( i );
+			final boolean prefetched = i > 0;
+
+			loads.add( new Callable< RandomAccessibleInterval< FloatType > >()
+			{
+				@Override
+				public RandomAccessibleInterval< FloatType > call() throws Exception
+				{
+					final RandomAccessibleInterval< FloatType > img = ProcessFusion.getImage( new FloatType(), spimData, vd, true );
+
+					if ( prefetched )
+						IOFunctions.println(
+								"(" + new Date(System.currentTimeMillis()) + "): "
+								+ "Prefetched view (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+
+					return img;
+				}
+			} );
+		}
+
+		return loads;
+	}
+
+	/**
+	 * @param spimData
+	 * @param viewDescriptions
+	 * @param maxBytes - memory budget for the raw (not transformed) views as 32-bit float
+	 * @return how many raw views fit into the budget, at least one
+	 */
+	public static int maxViewsInMemory( final SpimData2 spimData, final List< ViewDescription > viewDescriptions, final long maxBytes )
+	{
+		long maxViewBytes = 1;
+
+		for ( final ViewDescription vd : viewDescriptions )
+		{
+			final Dimensions dim = ViewSetupUtils.getSizeOrLoad( vd.getViewSetup(), vd.getTimePoint(), spimData.getSequenceDescription().getImgLoader() );
+
+			long bytes = 4;
+			for ( int d = 0; d < dim.numDimensions(); ++d )
+				bytes *= dim.dimension( d );
+
+			maxViewBytes = Math.max( maxViewBytes, bytes );
+		}
+
+		return (int)Math.max( 1, Math.min( viewDescriptions.size(), maxBytes / maxViewBytes ) );
+	}
+}
@@ -0,0 +1,195 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.deconvolution;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.Dimensions;
+import net.imglib2.algorithm.fft2.FFTConvolution;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.type.numeric.real.FloatType;
+import spim.process.fusion.deconvolution.MVDeconFFT.PSFTYPE;
+
+/**
+ * A bounded, least-recently-used cache of {@link FFTConvolution}s, which keep the FFT of their kernel once it was computed.
+ * The key is the content of the kernel, the size of the image (or block) it is convolved with and the type of iteration,
+ * so identical PSFs (e.g. the same PSF for all timepoints, angles or channels) are only transformed once. An entry holds
+ * one convolution per CPU block worker, or a single one for the pure-Java replacement of the CUDA convolution
+ * ({@link spim.process.cuda.JavaFourierConvolution}), so both share the same memory budget.
+ * 
+ * The convolutions of an entry can be shared by several views, which is fine as long as they are not convolved at the
+ * same time (the deconvolution processes one view after the other).
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class KernelFFTCache
+{
+	// the approximate maximal size of all cached kernel FFTs, 0 means no caching
+	public static long maxBytes = 0;
+
+	public static class Key
+	{
+		final long kernelHash;
+		final long[] kernelSize, imgSize;
+		final PSFTYPE iterationType;
+		final int kernelIndex;
+
+		public Key( final long kernelHash, final Dimensions kernel, final long[] imgSize, final PSFTYPE iterationType, final int kernelIndex )
+		{
+			this.kernelHash = kernelHash;
+			this.kernelSize = new long[ kernel.numDimensions() ];
+			kernel.dimensions( this.kernelSize );
+			this.imgSize = imgSize.clone();
+			this.iterationType = iterationType;
+			this.kernelIndex = kernelIndex;
+		}
+
+		/**
+		 * @return - approximate size of the FFT of the kernel padded to the size of the image (complex, half the size in x)
+		 */
+		public long bytes()
+		{
+			long size = 8;
+
+			for ( int d = 0; d < imgSize.length; ++d )
+				size *= ( d == 0 ? ( imgSize[ d ] + kernelSize[ d ] ) / 2 + 1 : imgSize[ d ] + kernelSize[ d ] - 1 );
+
+			return size;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return (int)( kernelHash ^ ( kernelHash >>> 32 ) ) * 31 * 31 + Arrays.hashCode( imgSize ) * 31 + kernelIndex;
+		}
+
+		@Override
+		public boolean equals( final Object o )
+		{
+			if ( !( o instanceof Key ) )
+				return false;
+
+			final Key k = (Key)o;
+
+			return
+					kernelHash == k.kernelHash && kernelIndex == k.kernelIndex && iterationType == k.iterationType &&
+					Arrays.equals( kernelSize, k.kernelSize ) && Arrays.equals( imgSize, k.imgSize );
+		}
+	}
+
+	// access order, the first entry is the least recently used one
+	final static LinkedHashMap< Key, ArrayList< FFTConvolution< FloatType > > > cache = new LinkedHashMap< Key, ArrayList< FFTConvolution< FloatType > > >( 16, 0.75f, true );
+	static long cachedBytes = 0;
+	static long hits = 0, misses = 0;
+
+	public static boolean isEnabled() { return maxBytes > 0; }
+
+	/**
+	 * @param key - the key
+	 * @param numConvolutions - how many convolutions are needed
+	 * @return - the cached convolutions or null if there are not enough
+	 */
+	public static synchronized ArrayList< FFTConvolution< FloatType > > get( final Key key, final int numConvolutions )
+	{
+		final ArrayList< FFTConvolution< FloatType > > convolutions = cache.get( key );
+
+		if ( convolutions != null && convolutions.size() >= numConvolutions )
+		{
+			++hits;
+			return convolutions;
+		}
+
+		++misses;
+		return null;
+	}
+
+	/**
+	 * Adds (or replaces) an entry and evicts the least recently used ones if the cache is full
+	 * 
+	 * @param key - the key
+	 * @param convolutions - the convolutions for this kernel
+	 */
+	public static synchronized void put( final Key key, final ArrayList< FFTConvolution< FloatType > > convolutions )
+	{
+		final long bytes = key.bytes() * convolutions.size();
+
+		if ( bytes > maxBytes )
+			return;
+
+		final ArrayList< FFTConvolution< FloatType > > old = cache.put( key, convolutions );
+
+		if ( old != null )
+			cachedBytes -= key.bytes() * old.size();
+
+		cachedBytes += bytes;
+
+		final Iterator< Map.Entry< Key, ArrayList< FFTConvolution< FloatType > > > > it = cache.entrySet().iterator();
+
+		while ( cachedBytes > maxBytes && it.hasNext() )
+		{
+			final Map.Entry< Key, ArrayList< FFTConvolution< FloatType > > > entry = it.next();
+
+			if ( entry.getKey().equals( key ) )
+				continue;
+
+			cachedBytes -= entry.getKey().bytes() * entry.getValue().size();
+			it.remove();
+		}
+	}
+
+	public static synchronized void clear()
+	{
+		cache.clear();
+		cachedBytes = 0;
+	}
+
+	public static synchronized void printStatistics()
+	{
+		IOFunctions.println(
+				"(" + new Date( System.currentTimeMillis() ) + "): Kernel FFT cache: " + hits + " hits, " + misses + " misses, " +
+				cache.size() + " entries, " + ( cachedBytes / ( 1024 * 1024 ) ) + " of " + ( maxBytes / ( 1024 * 1024 ) ) + " MB used." );
+	}
+
+	/**
+	 * @param kernel - the kernel
+	 * @return - a 64 bit hash of the content of the kernel
+	 */
+	public static long contentHash( final ArrayImg< FloatType, ? > kernel )
+	{
+		// FNV-1a
+		long hash = 0xcbf29ce484222325l;
+
+		for ( final FloatType t : kernel )
+		{
+			hash ^= Float.floatToIntBits( t.get() );
+			hash *= 0x100000001b3l;
+		}
+
+		return hash;
+	}
+}
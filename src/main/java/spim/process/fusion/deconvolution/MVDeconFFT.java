@@ -22,7 +22,10 @@
 package spim.process.fusion.deconvolution;
 
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.spim.io.IOFunctions;
@@ -49,10 +52,24 @@ public class MVDeconFFT
 	public static enum PSFTYPE { OPTIMIZATION_II, OPTIMIZATION_I, EFFICIENT_BAYESIAN, INDEPENDENT };
 	
 	public static CUDAFourierConvolution cuda = null;
-	
+
+	// how many blocks are convolved at the same time on the CPU, 0 means estimate it from the available memory
+	public static int maxConcurrentCPUBlocks = 0;
+
+	// approximate bytes per block pixel that one CPU block worker holds: the float block, the temporary
+	// FFT of the block and the FFTs of both kernels (padded to the size of the block)
+	final static int bytesPerBlockPixel = 4 + 8 + 8 + 8;
+
 	private RandomAccessibleInterval< FloatType > image, weight;
 	private ArrayImg< FloatType, ? > kernel1, kernel2;
 	private FFTConvolution< FloatType > fftConvolution1, fftConvolution2;
+
+	// content hashes of the kernels for the KernelFFTCache, computed when needed
+	private Long kernel1Hash = null, kernel2Hash = null;
+
+	// one block and one convolution per kernel for each CPU block worker, kept over the iterations
+	private ArrayList< Img< FloatType > > cpuBlocks;
+	private ArrayList< FFTConvolution< FloatType > > cpuBlockConvolutions1, cpuBlockConvolutions2;
 	protected int numViews = 0;
 
 	final protected ExecutorService service;
@@ -66,6 +83,7 @@ public class MVDeconFFT
 	final int device0, numDevices;
 	final Block[] blocks;
 	final boolean saveMemory;
+	final int numCPUBlockThreads;
 
 	// the imgfactory used to instantiate the blocks and compute the FFTs, must be ArrayImg for CUDA
 	private ImgFactory< FloatType > blockFactory;
@@ -169,6 +187,43 @@ public class MVDeconFFT
 			this.blockSize = null;
 			this.useBlocks = false;
 		}
+
+		if ( this.useCPU && this.useBlocks )
+		{
+			this.numCPUBlockThreads = numConcurrentCPUBlocks( this.blockSize, this.blocks.length );
+			IOFunctions.println( "Convolving " + this.numCPUBlockThreads + " block(s) concurrently on the CPU." );
+		}
+		else
+		{
+			this.numCPUBlockThreads = 1;
+		}
+	}
+
+	/**
+	 * Estimates how many blocks can be convolved at the same time on the CPU, limited by the number of threads,
+	 * the number of blocks and the memory that is currently available to the JVM.
+	 * 
+	 * @param blockSize - the size of one block
+	 * @param numBlocks - the number of blocks
+	 * @return - the number of concurrent block workers, at least 1
+	 */
+	public static int numConcurrentCPUBlocks( final int[] blockSize, final int numBlocks )
+	{
+		if ( maxConcurrentCPUBlocks > 0 )
+			return Math.max( 1, Math.min( maxConcurrentCPUBlocks, numBlocks ) );
+
+		double numPixels = 1;
+
+		for ( int d = 0; d < blockSize.length; ++d )
+			numPixels *= blockSize[ d ];
+
+		final Runtime runtime = Runtime.getRuntime();
+		final long available = runtime.maxMemory() - ( runtime.totalMemory() - runtime.freeMemory() );
+
+		// leave some room for everything else that happens during the deconvolution
+		final int byMemory = (int)Math.min( Integer.MAX_VALUE, Math.floor( ( available * 0.75 ) / ( numPixels * bytesPerBlockPixel ) ) );
+
+		return Math.max( 1, Math.min( Math.min( byMemory, Threads.numThreads() ), numBlocks ) );
 	}
 
 	/**
@@ -184,6 +239,7 @@ public class MVDeconFFT
 	{		
 		// normalize kernel so that sum of all pixels == 1
 		AdjustInput.normImg( kernel1 );
+		this.kernel1Hash = this.kernel2Hash = null;
 
 		this.iterationType = iterationType;
 		this.views = views;
@@ -364,6 +420,7 @@ public class MVDeconFFT
 	public void setKernel( final ArrayImg< FloatType, ? > kernel ) throws IncompatibleTypeException 
 	{
 		this.kernel1 = kernel;
+		this.kernel1Hash = this.kernel2Hash = null;
 		init( iterationType, views );
 		setCurrentIteration( -1 );
 	}
@@ -376,6 +433,105 @@ public class MVDeconFFT
 	public void setCurrentIteration( final int i ) { this.i = i; }
 	public int getCurrentIteration() { return i; }
 
+	/**
+	 * @param kernelIndex - 1 or 2
+	 * @param imgSize - the size of the image or block that is convolved
+	 * @return - the key of the kernel FFT in the {@link KernelFFTCache}
+	 */
+	protected KernelFFTCache.Key kernelFFTKey( final int kernelIndex, final long[] imgSize )
+	{
+		if ( kernelIndex == 1 )
+		{
+			if ( kernel1Hash == null )
+				kernel1Hash = KernelFFTCache.contentHash( kernel1 );
+
+			return new KernelFFTCache.Key( kernel1Hash, kernel1, imgSize, iterationType, 1 );
+		}
+		else
+		{
+			if ( kernel2Hash == null )
+				kernel2Hash = KernelFFTCache.contentHash( kernel2 );
+
+			return new KernelFFTCache.Key( kernel2Hash, kernel2, imgSize, iterationType, 2 );
+		}
+	}
+
+	/**
+	 * Each CPU block worker owns its block and the convolution (with its FFT buffers), the kernel is only read.
+	 * If the {@link KernelFFTCache} is enabled, the convolutions (and the kernel FFTs they hold) are taken from it.
+	 * 
+	 * @param kernelIndex - which kernel to convolve with (1 or 2)
+	 * @return - one convolution per CPU block worker
+	 */
+	protected ArrayList< FFTConvolution< FloatType > > getCPUBlockConvolutions( final int kernelIndex )
+	{
+		if ( this.cpuBlocks == null )
+		{
+			this.cpuBlocks = new ArrayList< Img< FloatType > >();
+
+			for ( int i = 0; i < numCPUBlockThreads; ++i )
+				this.cpuBlocks.add( blockFactory.create( blockSize, new FloatType() ) );
+		}
+
+		if ( !KernelFFTCache.isEnabled() )
+			return createCPUBlockConvolutions( kernelIndex == 1 ? kernel1 : kernel2 );
+
+		final long[] imgSize = new long[ blockSize.length ];
+		for ( int d = 0; d < imgSize.length; ++d )
+			imgSize[ d ] = blockSize[ d ];
+
+		final KernelFFTCache.Key key = kernelFFTKey( kernelIndex, imgSize );
+		ArrayList< FFTConvolution< FloatType > > convolutions = KernelFFTCache.get( key, numCPUBlockThreads );
+
+		if ( convolutions == null )
+		{
+			convolutions = createCPUBlockConvolutions( kernelIndex == 1 ? kernel1 : kernel2 );
+			KernelFFTCache.put( key, convolutions );
+		}
+
+		return convolutions;
+	}
+
+	/**
+	 * @param kernel - the kernel to convolve with
+	 * @return - one new convolution per CPU block worker
+	 */
+	protected ArrayList< FFTConvolution< FloatType > > createCPUBlockConvolutions( final ArrayImg< FloatType, ? > kernel )
+	{
+		final ArrayList< FFTConvolution< FloatType > > convolutions = new ArrayList< FFTConvolution< FloatType > >();
+
+		for ( int i = 0; i < numCPUBlockThreads; ++i )
+		{
+			final FFTConvolution< FloatType > fftConvolution = new FFTConvolution< FloatType >( cpuBlocks.get( i ), kernel );
+			fftConvolution.setComputeComplexConjugate( false );
+			fftConvolution.setExecutorService( service );
+			fftConvolution.setKeepImgFFT( false );
+			convolutions.add( fftConvolution );
+		}
+
+		return convolutions;
+	}
+
+	/**
+	 * Runs the block workers on the shared scheduler, each one owns a block and a convolution
+	 */
+	protected static void runTasks( final ArrayList< Callable< Void > > tasks )
+	{
+		try
+		{
+			for ( final Future< Void > f : Threads.getExecutorService().invokeAll( tasks ) )
+				f.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( e.getCause() );
+		}
+	}
+
 	/**
 	 * convolves the image with kernel1
 	 * 
@@ -387,22 +543,21 @@ public class MVDeconFFT
 		{
 			if ( useBlocks )
 			{
-				final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
+				if ( this.cpuBlockConvolutions1 == null )
+					this.cpuBlockConvolutions1 = getCPUBlockConvolutions( 1 );
 
-				if ( this.fftConvolution1 == null )
-				{
-					this.fftConvolution1 = new FFTConvolution< FloatType >( block, this.kernel1 );
-					this.fftConvolution1.setComputeComplexConjugate( false );
-					this.fftConvolution1.setExecutorService( service );
-					this.fftConvolution1.setKeepImgFFT( false );
-				}
+				final AtomicInteger ai = new AtomicInteger();
+				final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+
+				for ( int i = 0; i < numCPUBlockThreads; ++i )
+					tasks.add( MVDeconFFTThreads.getCPUTask1( ai, blocks, image, result, cpuBlocks.get( i ), cpuBlockConvolutions1.get( i ) ) );
 
-				for ( int i = 0; i < blocks.length; ++i )
-					MVDeconFFTThreads.convolve1BlockCPU( blocks[ i ], image, result, block, fftConvolution1, i );
+				runTasks( tasks );
 
 				if ( saveMemory )
 				{
-					this.fftConvolution1 = null;
+					this.cpuBlockConvolutions1 = null;
+					this.cpuBlocks = null;
 					System.gc();
 				}
 
@@ -480,22 +635,21 @@ public class MVDeconFFT
 		{
 			if ( useBlocks )
 			{
-				final Img< FloatType > block = blockFactory.create( blockSize, new FloatType() );
+				if ( this.cpuBlockConvolutions2 == null )
+					this.cpuBlockConvolutions2 = getCPUBlockConvolutions( 2 );
 
-				if ( this.fftConvolution2 == null )
-				{
-					this.fftConvolution2 = new FFTConvolution< FloatType >( block, this.kernel2 );
-					this.fftConvolution2.setComputeComplexConjugate( false );
-					this.fftConvolution2.setExecutorService( service );
-					this.fftConvolution2.setKeepImgFFT( false );
-				}
+				final AtomicInteger ai = new AtomicInteger();
+				final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
 
-				for ( int i = 0; i < blocks.length; ++i )
-					MVDeconFFTThreads.convolve2BlockCPU( blocks[ i ], image, result, block, fftConvolution2 );
+				for ( int i = 0; i < numCPUBlockThreads; ++i )
+					tasks.add( MVDeconFFTThreads.getCPUTask2( ai, blocks, image, result, cpuBlocks.get( i ), cpuBlockConvolutions2.get( i ) ) );
+
+				runTasks( tasks );
 
 				if ( saveMemory )
 				{
-					this.fftConvolution2 = null;
+					this.cpuBlockConvolutions2 = null;
+					this.cpuBlocks = null;
 					System.gc();
 				}
 
@@ -21,6 +21,7 @@
  */
 package spim.process.fusion.deconvolution;
 
+import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.imglib2.algorithm.fft2.FFTConvolution;
@@ -114,6 +115,44 @@ public class MVDeconFFTThreads
 		blockStruct.pasteBlock( result, block );
 	}
 
+	final protected static Callable< Void > getCPUTask1(
+			final AtomicInteger ai, final Block[] blocks, final Img< FloatType > image, final Img< FloatType > result,
+			final Img< FloatType > block, final FFTConvolution< FloatType > fftConvolution1 )
+	{
+		return new Callable< Void >()
+		{
+			@Override
+			public Void call()
+			{
+				int i;
+
+				while ( ( i = ai.getAndIncrement() ) < blocks.length )
+					convolve1BlockCPU( blocks[ i ], image, result, block, fftConvolution1, i );
+
+				return null;
+			}
+		};
+	}
+
+	final protected static Callable< Void > getCPUTask2(
+			final AtomicInteger ai, final Block[] blocks, final Img< FloatType > image, final Img< FloatType > result,
+			final Img< FloatType > block, final FFTConvolution< FloatType > fftConvolution2 )
+	{
+		return new Callable< Void >()
+		{
+			@Override
+			public Void call()
+			{
+				int i;
+
+				while ( ( i = ai.getAndIncrement() ) < blocks.length )
+					convolve2BlockCPU( blocks[ i ], image, result, block, fftConvolution2 );
+
+				return null;
+			}
+		};
+	}
+
 	final protected static Thread getCUDAThread1(
 			final AtomicInteger ai, final ImgFactory< FloatType > blockFactory, final Block[] blocks, final int[] blockSize,
 			final Img< FloatType > image, final Img< FloatType > result, final int deviceId, final Img< FloatType > kernel1 )
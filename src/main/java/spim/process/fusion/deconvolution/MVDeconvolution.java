@@ -22,13 +22,13 @@
 package spim.process.fusion.deconvolution;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import ij.CompositeImage;
@@ -46,6 +46,7 @@ import net.imglib2.img.ImgFactory;
 import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.RealSum;
+import net.imglib2.util.IntervalIndexer;
 import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import spim.Threads;
@@ -64,8 +65,26 @@ public class MVDeconvolution
 	// check in advance if values are reasonable
 	public static boolean checkNumbers = true;
 
+	// if not null, psi and the iteration are saved every checkpointInterval iterations to this file
+	public static String checkpointFile = null;
+	public static int checkpointInterval = 5;
+
+	// continue from checkpointFile if it exists and matches the current deconvolution
+	public static boolean resumeFromCheckpoint = false;
+
+	// identifies the input (views, registrations, PSFs, bounding box), a checkpoint of a different input is never resumed
+	public static byte[] checkpointFingerprint = null;
+
 	public static boolean debug = true;
 	public static int debugInterval = 1;
+
+	// stop once the relative change of psi per iteration (sum of absolute changes / sum of psi) is below, 0 means run all iterations
+	public static double stopTolerance = 0;
+
+	// adjust the OSEM acceleration between iterations depending on how the change evolves
+	public static boolean adaptiveOSEM = false;
+	public static double minOSEMFactor = 0.25;
+	public static double maxOSEMFactor = 4;
 	public static boolean setBackgroundToAvg = true;//false;
 	final static float minValue = 0.0001f;
 
@@ -80,6 +99,16 @@ public class MVDeconvolution
 	// current iteration
 	int i = 0;
 
+	// additional OSEM acceleration on top of the one already applied to the weights
+	double osemFactor = 1;
+
+	// per iteration: iteration, relative change, max change per pixel, osem factor
+	final ArrayList< double[] > changeHistory = new ArrayList< double[] >();
+	double lastRelativeChange = Double.NaN;
+
+	final PSFTYPE iterationType;
+	DeconvolutionCheckpoint checkpoint = null;
+
 	// the multi-view deconvolved image
 	Img< FloatType > psi;
 
@@ -107,13 +136,21 @@ public class MVDeconvolution
 		this.numViews = data.size();
 		this.numDimensions = data.get( 0 ).getImage().numDimensions();
 		this.lambda = lambda;
+		this.iterationType = iterationType;
 
 		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Deconvolved & temporary image factory: " + views.imgFactory().getClass().getSimpleName() );
 
 		// init all views
 		views.init( iterationType );
 
-		if ( initialImage != null )
+		if ( checkpointFile != null )
+			this.checkpoint = new DeconvolutionCheckpoint( new File( checkpointFile ) );
+
+		if ( resumeFromCheckpoint && checkpoint != null && resume() )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Resuming from checkpoint '" + checkpointFile + "' after iteration " + i );
+		}
+		else if ( initialImage != null )
 		{
 			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Loading intial image '" + initialImage + "'" );
 			this.psi = loadInitialImage(
@@ -196,8 +233,23 @@ public class MVDeconvolution
 			}
 
 			runIteration();
+
+			if ( stopTolerance > 0 && lastRelativeChange < stopTolerance )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Relative change " + lastRelativeChange + " < " + stopTolerance + ", stopping after iteration " + i + " of " + numIterations + "." );
+				break;
+			}
+
+			if ( checkpoint != null && i % Math.max( 1, checkpointInterval ) == 0 && i < numIterations )
+				writeCheckpoint();
 		}
 
+		// the result is complete, a checkpoint would only be resumed by mistake
+		if ( checkpoint != null )
+			checkpoint.delete();
+
+		logChangeHistory();
+
 		IOFunctions.println( "Masking never updated pixels." );
 		fuseFirstIteration( tmp1, views.getViews() );
 
@@ -210,6 +262,64 @@ public class MVDeconvolution
 		IOFunctions.println( "DONE (" + new Date(System.currentTimeMillis()) + ")." );
 	}
 
+	/**
+	 * Loads psi, the iteration and the OSEM state from the checkpoint if it exists and matches this deconvolution
+	 * 
+	 * @return - true if the deconvolution continues from the checkpoint
+	 */
+	protected boolean resume()
+	{
+		final File file = checkpoint.getFile();
+
+		if ( !file.exists() )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): No checkpoint '" + file + "' found, starting from the beginning." );
+			return false;
+		}
+
+		try
+		{
+			final DeconvolutionCheckpoint.State state = DeconvolutionCheckpoint.readState( file );
+
+			if ( !state.isCompatible( numViews, iterationType.ordinal(), data.get( 0 ).getImage(), lambda, checkpointFingerprint ) )
+			{
+				IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Checkpoint '" + file + "' was computed with different parameters, starting from the beginning." );
+				return false;
+			}
+
+			this.psi = views.imgFactory().create( data.get( 0 ).getImage(), new FloatType() );
+			DeconvolutionCheckpoint.readPsi( file, psi );
+
+			this.i = state.getIteration();
+			this.osemFactor = state.getOSEMFactor();
+			this.lastRelativeChange = state.getLastRelativeChange();
+
+			return true;
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Cannot read checkpoint '" + file + "', starting from the beginning: " + e );
+			this.psi = null;
+			return false;
+		}
+	}
+
+	protected void writeCheckpoint()
+	{
+		final long[] dim = new long[ psi.numDimensions() ];
+		psi.dimensions( dim );
+
+		try
+		{
+			checkpoint.write( psi, new DeconvolutionCheckpoint.State( i, numViews, iterationType.ordinal(), dim, lambda, osemFactor, lastRelativeChange, checkpointFingerprint ) );
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "Failed to write deconvolution checkpoint '" + checkpoint.getFile() + "': " + e );
+			e.printStackTrace();
+		}
+	}
+
 	protected static final double fuseFirstIteration( final Img< FloatType > psi, final ArrayList< MVDeconFFT > views )
 	{
 		final int nThreads = Threads.numThreads();
@@ -219,7 +329,7 @@ public class MVDeconvolution
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( psi.size(), nPortions );
 		final ArrayList< Callable< Pair< RealSum, Long > > > tasks = new ArrayList< Callable< Pair< RealSum, Long > > >();
 
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( nThreads );
+		final ExecutorService taskExecutor = Threads.getExecutorService();
 
 		final ArrayList< RandomAccessibleInterval< FloatType > > imgs = new ArrayList< RandomAccessibleInterval< FloatType > >();
 
@@ -250,8 +360,6 @@ public class MVDeconvolution
 			return -1;
 		}
 
-		taskExecutor.shutdown();
-
 		return s.getSum() / (double)count;
 	}
 
@@ -346,12 +454,58 @@ public class MVDeconvolution
 	public Img< FloatType > getPsi() { return psi; }	
 	public int getCurrentIteration() { return i; }
 
+	/**
+	 * @return - per iteration: iteration, relative change, max change per pixel, additional OSEM factor
+	 */
+	public ArrayList< double[] > getChangeHistory() { return changeHistory; }
+
 	public void runIteration()
 	{
-		runIteration( psi, tmp1, tmp2, data, lambda, minValue, collectStatistics, i++ );
+		final double[] change = runIteration( psi, tmp1, tmp2, data, lambda, minValue, collectStatistics, (float)osemFactor, i++ );
+		final double relativeChange = change[ 0 ];
+
+		changeHistory.add( new double[]{ i, relativeChange, change[ 1 ], osemFactor } );
+		IOFunctions.println( "iteration: " + i + " --- relative change: " + relativeChange + " --- max change per pixel: " + change[ 1 ] + " --- OSEM factor: " + osemFactor );
+
+		if ( adaptiveOSEM )
+			osemFactor = adaptOSEM( osemFactor, lastRelativeChange, relativeChange );
+
+		lastRelativeChange = relativeChange;
+	}
+
+	/**
+	 * Damps the OSEM acceleration if the change of psi grows (the updates overshoot) and increases it again
+	 * while the change is decreasing.
+	 * 
+	 * @param osemFactor - the current additional acceleration
+	 * @param lastRelativeChange - relative change of the previous iteration (NaN for the first)
+	 * @param relativeChange - relative change of this iteration
+	 * @return the additional acceleration for the next iteration
+	 */
+	protected static double adaptOSEM( final double osemFactor, final double lastRelativeChange, final double relativeChange )
+	{
+		if ( Double.isNaN( lastRelativeChange ) || Double.isNaN( relativeChange ) )
+			return osemFactor;
+
+		if ( relativeChange > lastRelativeChange )
+			return Math.max( minOSEMFactor, osemFactor * 0.5 );
+		else
+			return Math.min( maxOSEMFactor, osemFactor * 1.25 );
+	}
+
+	protected void logChangeHistory()
+	{
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Change per iteration (iteration, relative change, max change per pixel, OSEM factor):" );
+
+		for ( final double[] c : changeHistory )
+			IOFunctions.println( (int)c[ 0 ] + "\t" + c[ 1 ] + "\t" + c[ 2 ] + "\t" + c[ 3 ] );
 	}
 
-	final private static void runIteration(
+	/**
+	 * @return - the relative change (average over all views of the sum of absolute changes / sum of psi of that view)
+	 * and the max change per pixel
+	 */
+	final private static double[] runIteration(
 			final Img< FloatType > psi,
 			final Img< FloatType > tmp1, // a temporary image using the same ImgFactory as PSI
 			final Img< FloatType > tmp2, // a temporary image using the same ImgFactory as PSI
@@ -359,6 +513,7 @@ public class MVDeconvolution
 			final double lambda,
 			final float minValue,
 			final boolean collectStatistic,
+			final float osemFactor,
 			final int iteration )
 	{
 		IOFunctions.println( "iteration: " + iteration + " (" + new Date(System.currentTimeMillis()) + ")" );
@@ -371,9 +526,28 @@ public class MVDeconvolution
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( psi.size(), nPortions );
 		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
 
+		double sumRelativeChange = 0;
+		double maxChangeAllViews = -1;
+		int numRelativeChanges = 0;
+
+		// if all images are backed by float[] we loop over the arrays directly
+		final FloatChunks psiArray = FloatChunks.wrap( psi );
+		final FloatChunks tmp1Array = FloatChunks.wrap( tmp1 );
+		final FloatChunks tmp2Array = FloatChunks.wrap( tmp2 );
+
 		for ( int view = 0; view < numViews; ++view )
 		{
 			final MVDeconFFT processingData = data.get( view );
+			final FloatChunks imgArray = FloatChunks.wrap( processingData.getImage() );
+			final FloatChunks weightArray = FloatChunks.wrap( processingData.getWeight() );
+
+			// reduced-precision inputs and weights are decoded inside the loops
+			final FixedPointChunks imgFixed = imgArray == null ? FixedPointChunks.wrap( processingData.getImage() ) : null;
+			final FixedPointChunks weightFixed = weightArray == null ? FixedPointChunks.wrap( processingData.getWeight() ) : null;
+
+			final boolean arrays =
+					psiArray != null && tmp1Array != null && tmp2Array != null &&
+					( imgArray != null || imgFixed != null ) && ( weightArray != null || weightFixed != null );
 
 			//
 			// convolve psi (current guess of the image) with the PSF of the current view
@@ -397,13 +571,18 @@ public class MVDeconvolution
 					@Override
 					public Void call() throws Exception
 					{
-						computeQuotient( portion.getStartPosition(), portion.getLoopSize(), tmp1, processingData.getImage() );
+						if ( arrays && imgFixed != null )
+							computeQuotient( portion.getStartPosition(), portion.getLoopSize(), tmp1Array, imgFixed );
+						else if ( arrays )
+							computeQuotient( portion.getStartPosition(), portion.getLoopSize(), tmp1Array, imgArray );
+						else
+							computeQuotient( portion.getStartPosition(), portion.getLoopSize(), tmp1, processingData.getImage() );
 						return null;
 					}
 				});
 			}
 
-			execTasks( tasks, nThreads, "compute quotient" );
+			execTasks( tasks, "compute quotient" );
 
 			//new DisplayImage().exportImage( processingData.getImage(), "img" );
 			//new DisplayImage().exportImage( tmp1, "quotient" );
@@ -423,7 +602,7 @@ public class MVDeconvolution
 			// compute final values
 			// [psi, weights, tmp2 >> psi]
 			//
-			final double[][] sumMax = new double[ nPortions ][ 2 ];
+			final double[][] sumMax = new double[ nPortions ][ 3 ];
 			tasks.clear();
 
 			for ( int i = 0; i < portions.size(); ++i )
@@ -436,24 +615,42 @@ public class MVDeconvolution
 					@Override
 					public Void call() throws Exception
 					{
-						computeFinalValues( portion.getStartPosition(), portion.getLoopSize(), psi, tmp2, processingData.getWeight(), lambda, sumMax[ portionId ] );
+						if ( arrays && weightFixed != null )
+							computeFinalValues( portion.getStartPosition(), portion.getLoopSize(), psiArray, tmp2Array, weightFixed, lambda, osemFactor, sumMax[ portionId ] );
+						else if ( arrays )
+							computeFinalValues( portion.getStartPosition(), portion.getLoopSize(), psiArray, tmp2Array, weightArray, lambda, osemFactor, sumMax[ portionId ] );
+						else if ( psiArray != null && tmp2Array != null )
+							computeFinalValues( portion.getStartPosition(), portion.getLoopSize(), psiArray, tmp2Array, psi, processingData.getWeight(), lambda, osemFactor, sumMax[ portionId ] );
+						else
+							computeFinalValues( portion.getStartPosition(), portion.getLoopSize(), psi, tmp2, processingData.getWeight(), lambda, osemFactor, sumMax[ portionId ] );
 						return null;
 					}
 				});
 			}
 
-			execTasks( tasks, nThreads, "compute final values" );
+			execTasks( tasks, "compute final values" );
 
 			// accumulate the results from the individual threads
 			double sumChange = 0;
 			double maxChange = -1;
+			double sumPsi = 0;
 
 			for ( int i = 0; i < nPortions; ++i )
 			{
 				sumChange += sumMax[ i ][ 0 ];
 				maxChange = Math.max( maxChange, sumMax[ i ][ 1 ] );
+				sumPsi += sumMax[ i ][ 2 ];
 			}
 
+			// each view updates psi as it is after the previous view, so the change is relative to that psi
+			if ( sumPsi > 0 )
+			{
+				sumRelativeChange += sumChange / sumPsi;
+				++numRelativeChanges;
+			}
+
+			maxChangeAllViews = Math.max( maxChangeAllViews, maxChange );
+
 			IOFunctions.println( "iteration: " + iteration + ", view: " + view + " --- sum change: " + sumChange + " --- max change per pixel: " + maxChange );
 			
 			//new DisplayImage().exportImage( processingData.getWeight(), "weight" );
@@ -462,11 +659,13 @@ public class MVDeconvolution
 		}
 
 		//SimpleMultiThreading.threadHaltUnClean();
+
+		return new double[]{ numRelativeChanges > 0 ? sumRelativeChange / numRelativeChanges : Double.NaN, maxChangeAllViews };
 	}
 
-	private static final void execTasks( final ArrayList< Callable< Void > > tasks, final int nThreads, final String jobDescription )
+	private static final void execTasks( final ArrayList< Callable< Void > > tasks, final String jobDescription )
 	{
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( nThreads );
+		final ExecutorService taskExecutor = Threads.getExecutorService();
 
 		try
 		{
@@ -479,8 +678,6 @@ public class MVDeconvolution
 			e.printStackTrace();
 			return;
 		}
-
-		taskExecutor.shutdown();
 	}
 
 	/**
@@ -545,6 +742,101 @@ public class MVDeconvolution
 		}
 	}
 
+	/**
+	 * One thread of a method to compute the quotient between two images of the multiview deconvolution,
+	 * working directly on the float[] storage
+	 * 
+	 * @param start
+	 * @param loopSize
+	 * @param psiBlurred
+	 * @param observedImg
+	 */
+	private static final void computeQuotient(
+			final long start,
+			final long loopSize,
+			final FloatChunks psiBlurred,
+			final FloatChunks observedImg )
+	{
+		final long end = start + loopSize;
+		long index = start;
+
+		while ( index < end )
+		{
+			final int length = FloatChunks.segmentLength( index, end, psiBlurred, observedImg );
+
+			final float[] psiBlurredArray = psiBlurred.chunk( index );
+			final float[] imgArray = observedImg.chunk( index );
+			final int op = psiBlurred.offset( index );
+			final int oi = observedImg.offset( index );
+
+			for ( int j = 0; j < length; ++j )
+			{
+				final float imgValue = imgArray[ oi + j ];
+
+				// no image data, quotient=1
+				psiBlurredArray[ op + j ] = imgValue > 0 ? imgValue / psiBlurredArray[ op + j ] : 1;
+			}
+
+			index += length;
+		}
+	}
+
+	/**
+	 * One thread of a method to compute the quotient between two images of the multiview deconvolution,
+	 * decoding the fixed-point observed image on the fly
+	 * 
+	 * @param start
+	 * @param loopSize
+	 * @param psiBlurred
+	 * @param observedImg
+	 */
+	private static final void computeQuotient(
+			final long start,
+			final long loopSize,
+			final FloatChunks psiBlurred,
+			final FixedPointChunks observedImg )
+	{
+		final long end = start + loopSize;
+		final float scale = observedImg.scale();
+		long index = start;
+
+		while ( index < end )
+		{
+			final int length = Math.min( FloatChunks.segmentLength( index, end, psiBlurred ), observedImg.chunkSize() - observedImg.offset( index ) );
+
+			final float[] psiBlurredArray = psiBlurred.chunk( index );
+			final int op = psiBlurred.offset( index );
+			final int oi = observedImg.offset( index );
+
+			if ( observedImg.is16Bit() )
+			{
+				final short[] imgArray = observedImg.chunk16( index );
+
+				for ( int j = 0; j < length; ++j )
+				{
+					final float imgValue = ( imgArray[ oi + j ] & 0xffff ) * scale;
+
+					// no image data, quotient=1
+					psiBlurredArray[ op + j ] = imgValue > 0 ? imgValue / psiBlurredArray[ op + j ] : 1;
+				}
+			}
+			else
+			{
+				final byte[] imgArray = observedImg.chunk8( index );
+
+				for ( int j = 0; j < length; ++j )
+				{
+					final float imgValue = ( imgArray[ oi + j ] & 0xff ) * scale;
+
+					// no image data, quotient=1
+					psiBlurredArray[ op + j ] = imgValue > 0 ? imgValue / psiBlurredArray[ op + j ] : 1;
+				}
+			}
+
+			index += length;
+		}
+	}
+
 	/**
 	 * One thread of a method to compute the quotient between two images of the multiview deconvolution
 	 * 
@@ -607,9 +899,11 @@ public class MVDeconvolution
 			final RandomAccessibleInterval< FloatType > integral,
 			final RandomAccessibleInterval< FloatType > weight,
 			final double lambda,
+			final float osemFactor,
 			final double[] sumMax )
 	{
 		double sumChange = 0;
+		double sumPsi = 0;
 		double maxChange = -1;
 
 		final IterableInterval< FloatType > psiIterable = Views.iterable( psi );
@@ -636,7 +930,7 @@ public class MVDeconvolution
 	
 				// get the final value
 				final float lastPsiValue = cursorPsi.get().get();
-				final float nextPsiValue = computeNextValue( lastPsiValue, cursorIntegral.get().get(), cursorWeight.get().get(), lambda );
+				final float nextPsiValue = computeNextValue( lastPsiValue, cursorIntegral.get().get(), osem( cursorWeight.get().get(), osemFactor ), lambda );
 				
 				// store the new value
 				cursorPsi.get().set( (float)nextPsiValue );
@@ -645,6 +939,7 @@ public class MVDeconvolution
 				final float change = change( lastPsiValue, nextPsiValue );
 				sumChange += change;
 				maxChange = Math.max( maxChange, change );
+				sumPsi += nextPsiValue;
 			}
 		}
 		else
@@ -663,7 +958,7 @@ public class MVDeconvolution
 
 				// get the final value
 				final float lastPsiValue = cursorPsi.get().get();
-				float nextPsiValue = computeNextValue( lastPsiValue, raIntegral.get().get(), raWeight.get().get(), lambda );
+				float nextPsiValue = computeNextValue( lastPsiValue, raIntegral.get().get(), osem( raWeight.get().get(), osemFactor ), lambda );
 
 				// store the new value
 				cursorPsi.get().set( (float)nextPsiValue );
@@ -672,11 +967,223 @@ public class MVDeconvolution
 				final float change = change( lastPsiValue, nextPsiValue );
 				sumChange += change;
 				maxChange = Math.max( maxChange, change );
+				sumPsi += nextPsiValue;
+			}
+		}
+
+		sumMax[ 0 ] = sumChange;
+		sumMax[ 1 ] = maxChange;
+		sumMax[ 2 ] = sumPsi;
+	}
+
+	/**
+	 * One thread of a method to compute the final values of one iteration of the multiview deconvolution,
+	 * working directly on the float[] storage (one sweep that updates psi and collects the statistics)
+	 * 
+	 * @param start
+	 * @param loopSize
+	 * @param psi
+	 * @param integral
+	 * @param weight
+	 * @param lambda
+	 */
+	private static final void computeFinalValues(
+			final long start,
+			final long loopSize,
+			final FloatChunks psi,
+			final FloatChunks integral,
+			final FloatChunks weight,
+			final double lambda,
+			final float osemFactor,
+			final double[] sumMax )
+	{
+		double sumChange = 0;
+		double sumPsi = 0;
+		float maxChange = -1;
+
+		final long end = start + loopSize;
+		long index = start;
+
+		while ( index < end )
+		{
+			final int length = FloatChunks.segmentLength( index, end, psi, integral, weight );
+
+			final float[] psiArray = psi.chunk( index );
+			final float[] integralArray = integral.chunk( index );
+			final float[] weightArray = weight.chunk( index );
+			final int op = psi.offset( index );
+			final int oi = integral.offset( index );
+			final int ow = weight.offset( index );
+
+			for ( int j = 0; j < length; ++j )
+			{
+				final float lastPsiValue = psiArray[ op + j ];
+				final float nextPsiValue = computeNextValue( lastPsiValue, integralArray[ oi + j ], osem( weightArray[ ow + j ], osemFactor ), lambda );
+
+				psiArray[ op + j ] = nextPsiValue;
+
+				final float change = change( lastPsiValue, nextPsiValue );
+				sumChange += change;
+				maxChange = Math.max( maxChange, change );
+				sumPsi += nextPsiValue;
 			}
+
+			index += length;
 		}
 
 		sumMax[ 0 ] = sumChange;
 		sumMax[ 1 ] = maxChange;
+		sumMax[ 2 ] = sumPsi;
+	}
+
+	/**
+	 * One thread of a method to compute the final values of one iteration of the multiview deconvolution,
+	 * working directly on the float[] storage and decoding the fixed-point weights on the fly
+	 * 
+	 * @param start
+	 * @param loopSize
+	 * @param psi
+	 * @param integral
+	 * @param weight
+	 * @param lambda
+	 */
+	private static final void computeFinalValues(
+			final long start,
+			final long loopSize,
+			final FloatChunks psi,
+			final FloatChunks integral,
+			final FixedPointChunks weight,
+			final double lambda,
+			final float osemFactor,
+			final double[] sumMax )
+	{
+		double sumChange = 0;
+		double sumPsi = 0;
+		float maxChange = -1;
+
+		final long end = start + loopSize;
+		final float scale = weight.scale();
+		final boolean is16Bit = weight.is16Bit();
+		long index = start;
+
+		while ( index < end )
+		{
+			final int length = Math.min( FloatChunks.segmentLength( index, end, psi, integral ), weight.chunkSize() - weight.offset( index ) );
+
+			final float[] psiArray = psi.chunk( index );
+			final float[] integralArray = integral.chunk( index );
+			final short[] weightArray16 = is16Bit ? weight.chunk16( index ) : null;
+			final byte[] weightArray8 = is16Bit ? null : weight.chunk8( index );
+			final int op = psi.offset( index );
+			final int oi = integral.offset( index );
+			final int ow = weight.offset( index );
+
+			for ( int j = 0; j < length; ++j )
+			{
+				final float w = is16Bit ? ( weightArray16[ ow + j ] & 0xffff ) * scale : ( weightArray8[ ow + j ] & 0xff ) * scale;
+				final float lastPsiValue = psiArray[ op + j ];
+				final float nextPsiValue = computeNextValue( lastPsiValue, integralArray[ oi + j ], osem( w, osemFactor ), lambda );
+
+				psiArray[ op + j ] = nextPsiValue;
+
+				final float change = change( lastPsiValue, nextPsiValue );
+				sumChange += change;
+				maxChange = Math.max( maxChange, change );
+				sumPsi += nextPsiValue;
+			}
+
+			index += length;
+		}
+
+		sumMax[ 0 ] = sumChange;
+		sumMax[ 1 ] = maxChange;
+		sumMax[ 2 ] = sumPsi;
+	}
+
+	/**
+	 * One thread of a method to compute the final values of one iteration of the multiview deconvolution,
+	 * working directly on the float[] storage of psi and the integral while the weights are not backed by arrays
+	 * (e.g. virtual weights cached in blocks). The weights are read in the flat order of psi, positioning once
+	 * per line and moving along the first dimension, so a block of cached weights is reused for a whole line
+	 * instead of being looked up for every pixel.
+	 * 
+	 * @param start
+	 * @param loopSize
+	 * @param psi
+	 * @param integral
+	 * @param psiInterval - the interval of psi that defines the flat order
+	 * @param weight
+	 * @param lambda
+	 */
+	private static final void computeFinalValues(
+			final long start,
+			final long loopSize,
+			final FloatChunks psi,
+			final FloatChunks integral,
+			final RandomAccessibleInterval< FloatType > psiInterval,
+			final RandomAccessibleInterval< FloatType > weight,
+			final double lambda,
+			final float osemFactor,
+			final double[] sumMax )
+	{
+		double sumChange = 0;
+		double sumPsi = 0;
+		float maxChange = -1;
+
+		final int n = psiInterval.numDimensions();
+		final long[] dim = new long[ n ];
+		final long[] min = new long[ n ];
+		final long[] position = new long[ n ];
+		psiInterval.dimensions( dim );
+		weight.min( min );
+
+		final RandomAccess< FloatType > raWeight = weight.randomAccess();
+		final long end = start + loopSize;
+		long index = start;
+
+		while ( index < end )
+		{
+			// stay within one line of the image and one chunk of each array
+			IntervalIndexer.indexToPositionWithOffset( index, dim, min, position );
+			final int length = (int)Math.min( FloatChunks.segmentLength( index, end, psi, integral ), dim[ 0 ] - ( position[ 0 ] - min[ 0 ] ) );
+
+			final float[] psiArray = psi.chunk( index );
+			final float[] integralArray = integral.chunk( index );
+			final int op = psi.offset( index );
+			final int oi = integral.offset( index );
+
+			raWeight.setPosition( position );
+
+			for ( int j = 0; j < length; ++j )
+			{
+				final float lastPsiValue = psiArray[ op + j ];
+				final float nextPsiValue = computeNextValue( lastPsiValue, integralArray[ oi + j ], osem( raWeight.get().get(), osemFactor ), lambda );
+
+				psiArray[ op + j ] = nextPsiValue;
+				raWeight.fwd( 0 );
+
+				final float change = change( lastPsiValue, nextPsiValue );
+				sumChange += change;
+				maxChange = Math.max( maxChange, change );
+				sumPsi += nextPsiValue;
+			}
+
+			index += length;
+		}
+
+		sumMax[ 0 ] = sumChange;
+		sumMax[ 1 ] = maxChange;
+		sumMax[ 2 ] = sumPsi;
+	}
+
+	/**
+	 * @param weight - the weight of the view (already including the OSEM speedup of the weights)
+	 * @param osemFactor - additional acceleration
+	 * @return - the weight used for the update, individual contribution never higher than 1
+	 */
+	private static final float osem( final float weight, final float osemFactor )
+	{
+		return osemFactor == 1.0f ? weight : Math.min( 1.0f, weight * osemFactor );
 	}
 
 	private static final float change( final float lastPsiValue, final float nextPsiValue ) { return Math.abs( ( nextPsiValue - lastPsiValue ) ); }
@@ -33,6 +33,8 @@ import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import mpicbg.spim.data.sequence.Angle;
 import mpicbg.spim.data.sequence.Channel;
@@ -46,11 +48,17 @@ import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.cache.img.optional.CacheOptions.CacheType;
 import net.imglib2.img.Img;
 import net.imglib2.img.ImgFactory;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.realtransform.AffineTransform3D;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import spim.Threads;
 import net.imglib2.util.Pair;
@@ -64,7 +72,6 @@ import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.export.DisplayImage;
-import spim.process.fusion.weightedavg.ProcessFusion;
 import spim.process.fusion.weights.Blending;
 import spim.process.fusion.weights.NormalizingRandomAccessibleInterval;
 import spim.process.fusion.weights.TransformedRealRandomAccessibleInterval;
@@ -78,7 +85,7 @@ import bdv.util.ConstantRandomAccessible;
  */
 public class ProcessForDeconvolution
 {
-	public static enum WeightType { WEIGHTS_ONLY, NO_WEIGHTS, VIRTUAL_WEIGHTS, PRECOMPUTED_WEIGHTS, LOAD_WEIGHTS };
+	public static enum WeightType { WEIGHTS_ONLY, NO_WEIGHTS, VIRTUAL_WEIGHTS, CACHED_WEIGHTS, PRECOMPUTED_WEIGHTS, LOAD_WEIGHTS };
 
 	final protected SpimData2 spimData;
 	final protected List< ViewId > viewIdsToProcess;
@@ -95,6 +102,17 @@ public class ProcessForDeconvolution
 	public static String[] files;
 	public static boolean debugImport = false;
 
+	// bits used to store the transformed input images (32=float, 16=fixed-point) and the precomputed weights (32, 16 or 8)
+	public static int inputBits = 32;
+	public static int weightBits = 32;
+
+	// CACHED_WEIGHTS: the virtual weights are computed in blocks when first accessed and kept in a bounded cache
+	public static int cachedWeightsBlockSize = 64;
+	public static long cachedWeightsMaxBytes = 1024l * 1024l * 1024l;
+
+	// raw input views are loaded ahead of their transformation as long as they fit into this budget (at least one view)
+	public static long prefetchMaxBytes = 2048l * 1024l * 1024l;
+
 	public ProcessForDeconvolution(
 			final SpimData2 spimData,
 			final List< ViewId > viewIdsToProcess,
@@ -110,6 +128,9 @@ public class ProcessForDeconvolution
 	}
 	
 	public ExtractPSF< FloatType > getExtractPSF() { return ePSF; }
+	public BoundingBoxGUI getBoundingBox() { return bb; }
+	public int[] getBlendingBorder() { return blendingBorder; }
+	public int[] getBlendingRange() { return blendingRange; }
 	public HashMap< ViewId, RandomAccessibleInterval< FloatType > > getTransformedImgs() { return imgs; }
 	public HashMap< ViewId, RandomAccessibleInterval< FloatType > > getTransformedWeights() { return weights; }
 	public ArrayList< ViewDescription > getViewDescriptions() { return viewDescriptions; }
@@ -176,6 +197,24 @@ public class ProcessForDeconvolution
 		// remember the extracted or loaded PSFs
 		extractPSFLabels.get( channel ).setExtractPSFInstance( ePSF );
 
+		// load the input views in the background while the previous ones are transformed
+		final InputPrefetcher prefetcher;
+
+		if ( weightType == WeightType.WEIGHTS_ONLY && !extractPSFs )
+		{
+			prefetcher = null;
+		}
+		else
+		{
+			final int maxViewsInMemory = InputPrefetcher.maxViewsInMemory( spimData, viewDescriptions, prefetchMaxBytes );
+			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Keeping up to " + maxViewsInMemory + " input view(s) in memory.");
+			prefetcher = new InputPrefetcher( spimData, viewDescriptions, maxViewsInMemory );
+		}
+
+		// the PSFs are extracted from each input view while it is transformed, in the order of the views
+		final ExecutorService psfExecutor = extractPSFs ? Threads.newDaemonExecutor( "PSFExtraction" ) : null;
+		final ArrayList< Future< ? > > psfTasks = new ArrayList< Future< ? > >();
+
 		// we will need to run some batches until all is fused
 		for ( int i = 0; i < viewDescriptions.size(); ++i )
 		{
@@ -190,39 +229,66 @@ public class ProcessForDeconvolution
 
 			if ( weightType == WeightType.WEIGHTS_ONLY )
 				transformedImg = overlapImg;
-			else
+			else if ( inputBits == 32 )
 				transformedImg = imgFactory.create( bb.getDimensions(), new FloatType() );
+			else
+				transformedImg = null; // fixed-point, the range depends on the input image
 
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Transformed image factory: " + imgFactory.getClass().getSimpleName() );
 
 			// loading the input if necessary
 			final RandomAccessibleInterval< FloatType > img;
 
-			if ( weightType == WeightType.WEIGHTS_ONLY && !extractPSFs )
+			if ( prefetcher == null )
 			{
 				img = null;
 			}
 			else
 			{
 				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Loading image.");
-				img = ProcessFusion.getImage( new FloatType(), spimData, vd, true );
+
+				try
+				{
+					img = prefetcher.take( i );
+				}
+				catch ( final Exception e )
+				{
+					IOFunctions.println( "Failed to load view (viewsetup=" + vd.getViewSetupId() + ", tp=" + vd.getTimePointId() + "): " + e );
+					e.printStackTrace();
+					shutdown( prefetcher, psfExecutor );
+					return false;
+				}
 
 				if ( Img.class.isInstance( img ) )
 					IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Input image factory: " + ((Img< FloatType >)img).factory().getClass().getSimpleName() );
 			}
 
+			// the raw view is released once it is transformed and its PSF is extracted
+			final AtomicInteger usesOfImg = new AtomicInteger( extractPSFs ? 2 : 1 );
+
+			if ( transformedImg == null )
+			{
+				// interpolated values never exceed the maximal intensity of the input
+				final float maxIntensity = FusionHelper.minMax( img )[ 1 ];
+				transformedImg = FixedPointFloatArray.createImg( bb.getDimensions(), inputBits, maxIntensity );
+
+				IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Transformed image stored as " + inputBits + "-bit fixed-point, range [0, " + maxIntensity + "]" );
+			}
+
 			// initializing weights
 			IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Initializing transformation & weights: " + weightType.name() );
 
 			spimData.getViewRegistrations().getViewRegistration( vd ).updateModel();
-			final AffineTransform3D transform = spimData.getViewRegistrations().getViewRegistration( vd ).getModel();
+			final AffineTransform3D transform = spimData.getViewRegistrations().getViewRegistration( vd ).getModel().copy();
 			final long[] offset = new long[]{ bb.min( 0 ), bb.min( 1 ), bb.min( 2 ) };
 
-			if ( weightType == WeightType.PRECOMPUTED_WEIGHTS || weightType == WeightType.WEIGHTS_ONLY )
+			if ( weightType == WeightType.PRECOMPUTED_WEIGHTS && weightBits != 32 )
+				weightImg = FixedPointFloatArray.createImg( bb.getDimensions(), weightBits, 1 ); // weights are in [0,1]
+			else if ( weightType == WeightType.PRECOMPUTED_WEIGHTS || weightType == WeightType.WEIGHTS_ONLY )
 				weightImg = imgFactory.create( bb.getDimensions(), new FloatType() );
 			else if ( weightType == WeightType.NO_WEIGHTS )
 				weightImg = Views.interval( new ConstantRandomAccessible< FloatType >( new FloatType( 1 ), transformedImg.numDimensions() ), transformedImg );
-			else if ( weightType == WeightType.VIRTUAL_WEIGHTS )
+			else if ( weightType == WeightType.VIRTUAL_WEIGHTS || weightType == WeightType.CACHED_WEIGHTS )
 			{
 				final Blending blending = getBlending( img, blendingBorder, blendingRange, vd );
 
@@ -242,6 +308,33 @@ public class ProcessForDeconvolution
 				}
 			}
 
+			// extract PSFs if wanted, runs in parallel to the transformation
+			if ( extractPSFs )
+			{
+				psfTasks.add( psfExecutor.submit( new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							final ArrayList< double[] > llist = getLocationsOfCorrespondingBeads( timepoint, vd, extractPSFLabels.get( channel ).getLabel() );
+
+							IOFunctions.println(
+								"(" + new Date(System.currentTimeMillis()) + "): Extracting PSF for viewsetup " + vd.getViewSetupId() +
+								" using label '" + extractPSFLabels.get( channel ).getLabel() + "'" + " (" +llist.size() + " corresponding detections available)" );
+
+							ePSF.extractNextImg( img, vd, transform, llist, psfSize );
+						}
+						finally
+						{
+							if ( usesOfImg.decrementAndGet() == 0 )
+								prefetcher.release();
+						}
+					}
+				} ) );
+			}
+
 			// split up into many parts for multithreading
 			final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( Views.iterable( transformedImg ).size(), Threads.numThreads() * 4 );
 
@@ -266,7 +359,7 @@ public class ProcessForDeconvolution
 
 					tasks.add( new TransformInputAndWeights( portion, img, blending, transform, transformedImg, weightImg, offset ) );
 				}
-				else if ( weightType == WeightType.NO_WEIGHTS || weightType == WeightType.VIRTUAL_WEIGHTS || weightType == WeightType.LOAD_WEIGHTS )
+				else if ( weightType == WeightType.NO_WEIGHTS || weightType == WeightType.VIRTUAL_WEIGHTS || weightType == WeightType.CACHED_WEIGHTS || weightType == WeightType.LOAD_WEIGHTS )
 				{
 					tasks.add( new TransformInput( portion, img, transform, transformedImg, offset ) );
 				}
@@ -285,23 +378,16 @@ public class ProcessForDeconvolution
 			{
 				IOFunctions.println( "Failed to compute fusion: " + e );
 				e.printStackTrace();
+				taskExecutor.shutdown();
+				shutdown( prefetcher, psfExecutor );
 				return false;
 			}
 
 			taskExecutor.shutdown();
 
-			// extract PSFs if wanted
-			if ( extractPSFs )
-			{
-				final ArrayList< double[] > llist = getLocationsOfCorrespondingBeads( timepoint, vd, extractPSFLabels.get( channel ).getLabel() );
-
-				IOFunctions.println(
-					"(" + new Date(System.currentTimeMillis()) + "): Extracting PSF for viewsetup " + vd.getViewSetupId() +
-					" using label '" + extractPSFLabels.get( channel ).getLabel() + "'" + " (" +llist.size() + " corresponding detections available)" );
+			if ( prefetcher != null && usesOfImg.decrementAndGet() == 0 )
+				prefetcher.release();
 
-				ePSF.extractNextImg( img, vd, transform, llist, psfSize );
-			}
-			
 			if ( weightType != WeightType.WEIGHTS_ONLY )
 				imgs.put( vd, transformedImg );
 			weights.put( vd, weightImg );
@@ -310,7 +396,26 @@ public class ProcessForDeconvolution
 			tasks.clear();
 			System.gc();
 		}
-		
+
+		// wait until all PSFs are extracted
+		for ( final Future< ? > psfTask : psfTasks )
+		{
+			try
+			{
+				psfTask.get();
+			}
+			catch ( final Exception e )
+			{
+				IOFunctions.println( "Failed to extract PSF: " + e );
+				e.printStackTrace();
+				shutdown( prefetcher, psfExecutor );
+				return false;
+			}
+		}
+
+		if ( psfExecutor != null )
+			psfExecutor.shutdown();
+
 		// normalize the weights
 		final ArrayList< RandomAccessibleInterval< FloatType > > weightsSorted = new ArrayList< RandomAccessibleInterval< FloatType > >();
 
@@ -326,7 +431,7 @@ public class ProcessForDeconvolution
 
 		if ( weightType == WeightType.WEIGHTS_ONLY || weightType == WeightType.PRECOMPUTED_WEIGHTS || weightType == WeightType.LOAD_WEIGHTS )
 			wn = new WeightNormalizer( weightsSorted );
-		else if ( weightType == WeightType.VIRTUAL_WEIGHTS )
+		else if ( weightType == WeightType.VIRTUAL_WEIGHTS || weightType == WeightType.CACHED_WEIGHTS )
 			wn = new WeightNormalizer( weightsSorted, imgFactory );
 		else //if ( processType == ProcessType.NO_WEIGHTS )
 			wn = null;
@@ -362,6 +467,10 @@ public class ProcessForDeconvolution
 		else
 			adjustForOSEM( weights, weightType, osemspeedup );
 
+		// the normalized virtual weights (including OSEM) are final now, cache them in blocks
+		if ( weightType == WeightType.CACHED_WEIGHTS )
+			cacheWeights( weights, cachedWeightsBlockSize, cachedWeightsMaxBytes );
+
 		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Finished precomputations for deconvolution." );
 
 		//SimpleMultiThreading.threadHaltUnClean();
@@ -369,6 +478,68 @@ public class ProcessForDeconvolution
 		return true;
 	}
 
+	/**
+	 * Replaces the virtual weights by images that compute a block of weights when it is first accessed and keep it in a
+	 * bounded cache, so that repeated iterations do not evaluate the transformed blending and the normalization for
+	 * every access as long as the blocks fit into memory.
+	 * 
+	 * @param weights - the normalized virtual weights
+	 * @param blockSize - the size of the cached blocks
+	 * @param maxBytes - the memory available for the cache of all views
+	 */
+	protected static void cacheWeights( final HashMap< ViewId, RandomAccessibleInterval< FloatType > > weights, final int blockSize, final long maxBytes )
+	{
+		if ( weights.size() == 0 )
+			return;
+
+		final int[] cellSize = new int[ weights.values().iterator().next().numDimensions() ];
+		long bytesPerBlock = 4;
+
+		for ( int d = 0; d < cellSize.length; ++d )
+		{
+			cellSize[ d ] = blockSize;
+			bytesPerBlock *= blockSize;
+		}
+
+		// the views are processed one after the other, each one gets its share
+		final long maxCachedBlocks = Math.max( Threads.numThreads(), maxBytes / weights.size() / bytesPerBlock );
+
+		IOFunctions.println(
+				"(" + new Date(System.currentTimeMillis()) + "): Caching weights in blocks of " + Util.printCoordinates( cellSize ) +
+				" px, keeping at most " + maxCachedBlocks + " blocks per view in memory." );
+
+		for ( final ViewId viewId : new ArrayList< ViewId >( weights.keySet() ) )
+		{
+			final RandomAccessibleInterval< FloatType > virtual = weights.get( viewId );
+			final long[] dim = new long[ virtual.numDimensions() ];
+			virtual.dimensions( dim );
+
+			final CellLoader< FloatType > loader = new CellLoader< FloatType >()
+			{
+				@Override
+				public void load( final SingleCellArrayImg< FloatType, ? > cell ) throws Exception
+				{
+					final Cursor< FloatType > c = cell.localizingCursor();
+					final RandomAccess< FloatType > r = virtual.randomAccess();
+
+					while ( c.hasNext() )
+					{
+						c.fwd();
+						r.setPosition( c );
+						c.get().set( r.get() );
+					}
+				}
+			};
+
+			final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+					.cellDimensions( cellSize )
+					.cacheType( CacheType.BOUNDED )
+					.maxCacheSize( maxCachedBlocks );
+
+			weights.put( viewId, new ReadOnlyCachedCellImgFactory( options ).create( dim, new FloatType(), loader ) );
+		}
+	}
+
 	private static void adjustForOSEM( final HashMap< ViewId, RandomAccessibleInterval< FloatType > > weights, final WeightType weightType, final double osemspeedup )
 	{
 		if ( osemspeedup == 1.0 )
@@ -393,7 +564,7 @@ public class ProcessForDeconvolution
 				r.get().set( Math.min( 1, r.get().get() * (float)osemspeedup ) ); // individual contribution never higher than 1
 			}
 		}
-		else if ( weightType == WeightType.VIRTUAL_WEIGHTS )
+		else if ( weightType == WeightType.VIRTUAL_WEIGHTS || weightType == WeightType.CACHED_WEIGHTS )
 		{
 			for ( final RandomAccessibleInterval< FloatType > w : weights.values() )
 				((NormalizingRandomAccessibleInterval< FloatType >) w).setOSEMspeedup( osemspeedup );
@@ -462,6 +633,15 @@ public class ProcessForDeconvolution
 		return otherChannelPSF.getExtractPSFInstance();
 	}
 
+	protected static void shutdown( final InputPrefetcher prefetcher, final ExecutorService psfExecutor )
+	{
+		if ( prefetcher != null )
+			prefetcher.close();
+
+		if ( psfExecutor != null )
+			psfExecutor.shutdownNow();
+	}
+
 	protected ArrayList< double[] > getLocationsOfCorrespondingBeads( final TimePoint tp, final ViewDescription inputData, final String label )
 	{
 		final InterestPointList iplist = spimData.getViewInterestPoints().getViewInterestPointLists( inputData ).getInterestPointList( label );
@@ -26,7 +26,6 @@ import java.util.List;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 
 import ij.ImageJ;
@@ -76,7 +75,7 @@ public class WeightNormalizer
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( Views.iterable( weights.get( 0 ) ).size(), Threads.numThreads() * 2 );
 
 		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService taskExecutor = Threads.getExecutorService();
 		final ArrayList< Callable< double[] > > tasks = new ArrayList< Callable< double[] > >();
 
 		for ( final ImagePortion portion : portions )
@@ -113,8 +112,6 @@ public class WeightNormalizer
 			return false;
 		}
 
-		taskExecutor.shutdown();
-
 		// set the normalizing interval
 		if ( sumWeights != null )
 		{
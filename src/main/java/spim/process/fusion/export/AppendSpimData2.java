@@ -51,7 +51,7 @@ import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.export.ExportSpimData2TIFF.FileNamePattern;
 import bdv.img.hdf5.Hdf5ImageLoader;
 
-public class AppendSpimData2 implements ImgExport
+public class AppendSpimData2 implements ImgExportBlocked
 {
 	public static String defaultPath = null;
 
@@ -98,6 +98,18 @@ public class AppendSpimData2 implements ImgExport
 		return true;
 	}
 
+	/**
+	 * @return - the HDF5 chunk size if the project is appended to an HDF5 file, otherwise null (TIFF is not written in blocks)
+	 */
+	@Override
+	public int[] getBlockSize( final TimePoint tp, final ViewSetup vs )
+	{
+		if ( appendToHdf5 != null )
+			return appendToHdf5.getBlockSize( tp, vs );
+
+		return null;
+	}
+
 	@Override
 	public boolean finish()
 	{
@@ -58,7 +58,7 @@ import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.hdf5.Partition;
 import bdv.spimdata.tools.MergePartitionList;
 
-public class AppendSpimData2HDF5 implements ImgExport
+public class AppendSpimData2HDF5 implements ImgExportBlocked
 {
 	public static String defaultPath = null;
 
@@ -177,7 +177,7 @@ public class AppendSpimData2HDF5 implements ImgExport
 		// write the image
 		final RandomAccessibleInterval< UnsignedShortType > ushortimg;
 		if ( ! UnsignedShortType.class.isInstance( Util.getTypeFromInterval( img ) ) )
-			ushortimg = ExportSpimData2HDF5.convert( img, params );
+			ushortimg = ExportSpimData2HDF5.convert( img, params, min, max );
 		else
 			ushortimg = ( RandomAccessibleInterval ) img;
 
@@ -187,7 +187,7 @@ public class AppendSpimData2HDF5 implements ImgExport
 		final boolean deflate = params.getDeflate();
 		final ProgressWriter progressWriter = new SubTaskProgressWriter( this.progressWriter, 0.0, 1.0 ); // TODO
 		final int numThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() - 2 );
-		WriteSequenceToHdf5.writeViewToHdf5PartitionFile( ushortimg, partition, tp.getId(), vs.getId(), mipmapInfo, writeMipmapInfo, deflate, null, null, numThreads, progressWriter );
+		WriteSequenceToHdf5.writeViewToHdf5PartitionFile( ushortimg, partition, tp.getId(), vs.getId(), mipmapInfo, writeMipmapInfo, deflate, ExportSpimData2HDF5.getLoopbackHeuristic( img ), null, numThreads, progressWriter );
 
 		// update the registrations
 		final ViewRegistration vr = spimData.getViewRegistrations().getViewRegistration( new ViewId( tp.getId(), vs.getId() ) );
@@ -205,6 +205,12 @@ public class AppendSpimData2HDF5 implements ImgExport
 		return true;
 	}
 
+	@Override
+	public int[] getBlockSize( final TimePoint tp, final ViewSetup vs )
+	{
+		return perSetupExportMipmapInfo.get( vs.getId() ).getSubdivisions()[ 0 ].clone();
+	}
+
 	@Override
 	public void queryAdditionalParameters( final GenericDialog gd, final SpimData2 spimData )
 	{}
@@ -43,6 +43,7 @@ import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.cache.img.CachedCellImg;
 import net.imglib2.converter.RealUnsignedShortConverter;
 import net.imglib2.converter.read.ConvertedRandomAccessibleInterval;
 import net.imglib2.realtransform.AffineTransform3D;
@@ -65,13 +66,15 @@ import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import bdv.export.ExportMipmapInfo;
+import bdv.export.ExportScalePyramid.DefaultLoopbackHeuristic;
+import bdv.export.ExportScalePyramid.LoopbackHeuristic;
 import bdv.export.ProgressWriter;
 import bdv.export.SubTaskProgressWriter;
 import bdv.export.WriteSequenceToHdf5;
 import bdv.img.hdf5.Hdf5ImageLoader;
 import bdv.img.hdf5.Partition;
 
-public class ExportSpimData2HDF5 implements ImgExport
+public class ExportSpimData2HDF5 implements ImgExportBlocked
 {
 
 	private List< TimePoint > newTimepoints;
@@ -229,11 +232,9 @@ public class ExportSpimData2HDF5 implements ImgExport
 		if ( params == null || params.getConvertChoice() == 0 || Double.isNaN( params.getMin() ) || Double.isNaN( params.getMin() ) )
 		{
 			final float[] minmax = FusionHelper.minMax( img );
-			min = minmax[ 0 ];
-			max = minmax[ 1 ];
-
-			min = Math.max( 0, min - ((min+max)/2.0) * 0.1 );
-			max = max + ((min+max)/2.0) * 0.1;
+			final double[] padded = padMinMax( minmax[ 0 ], minmax[ 1 ] );
+			min = padded[ 0 ];
+			max = padded[ 1 ];
 
 			if ( params != null )
 			{
@@ -253,15 +254,77 @@ public class ExportSpimData2HDF5 implements ImgExport
 		return new double[]{ min, max };
 	}
 
+	/**
+	 * Extends the intensity range of an image by 10% of its mean intensity (but not below 0), so the 16 bit conversion
+	 * does not clip values that are slightly outside of the measured range
+	 * 
+	 * @param min - min intensity of the image
+	 * @param max - max intensity of the image
+	 * @return - the min and max intensity for the 16 bit conversion
+	 */
+	public static double[] padMinMax( final double min, final double max )
+	{
+		final double paddedMin = Math.max( 0, min - ((min+max)/2.0) * 0.1 );
+		final double paddedMax = max + ((paddedMin+max)/2.0) * 0.1;
+
+		return new double[]{ paddedMin, paddedMax };
+	}
+
 	public static < T extends RealType< T > > RandomAccessibleInterval< UnsignedShortType > convert( final RandomAccessibleInterval< T > img, final Parameters params )
 	{
 		final double[] minmax = updateAndGetMinMax( img, params );
 
-		final RealUnsignedShortConverter< T > converter = new RealUnsignedShortConverter< T >( minmax[ 0 ], minmax[ 1 ] );
+		return convert( img, minmax[ 0 ], minmax[ 1 ] );
+	}
+
+	/**
+	 * Converts to 16 bit using a predefined min/max (padded like a computed one, see {@link #padMinMax(double, double)}),
+	 * unless it is NaN or the user asked for a specific range
+	 * 
+	 * @param img - the image
+	 * @param params - the export parameters
+	 * @param min - predefined min intensity or NaN
+	 * @param max - predefined max intensity or NaN
+	 * @return - the converted image
+	 */
+	public static < T extends RealType< T > > RandomAccessibleInterval< UnsignedShortType > convert( final RandomAccessibleInterval< T > img, final Parameters params, final double min, final double max )
+	{
+		if ( ( params == null || params.getConvertChoice() == 0 ) && !Double.isNaN( min ) && !Double.isNaN( max ) )
+		{
+			final double[] padded = padMinMax( min, max );
+
+			IOFunctions.println( "Min intensity for 16bit conversion: " + padded[ 0 ] );
+			IOFunctions.println( "Max intensity for 16bit conversion: " + padded[ 1 ] );
+
+			return convert( img, padded[ 0 ], padded[ 1 ] );
+		}
+		else
+			return convert( img, params );
+	}
+
+	public static < T extends RealType< T > > RandomAccessibleInterval< UnsignedShortType > convert( final RandomAccessibleInterval< T > img, final double min, final double max )
+	{
+		final RealUnsignedShortConverter< T > converter = new RealUnsignedShortConverter< T >( min, max );
 
 		return new ConvertedRandomAccessibleInterval<T, UnsignedShortType>( img, converter, UnsignedShortType::new );
 	}
 
+	/**
+	 * A lazily computed image (e.g. fused block by block) must not be evaluated again for every resolution level,
+	 * in this case each downsampled level is computed from the previous level that was already written (the full
+	 * resolution level has none). Any other image uses the {@link DefaultLoopbackHeuristic}.
+	 * 
+	 * @param img - the image that is written
+	 * @return - the heuristic
+	 */
+	public static LoopbackHeuristic getLoopbackHeuristic( final RandomAccessibleInterval< ? > img )
+	{
+		if ( img instanceof CachedCellImg )
+			return ( originalImg, factorsToOriginalImg, previousLevel, factorsToPreviousLevel, chunkSize ) -> previousLevel >= 0;
+		else
+			return new DefaultLoopbackHeuristic();
+	}
+
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
 	public < T extends RealType< T > & NativeType< T > > boolean exportImage( RandomAccessibleInterval< T > img, BoundingBoxGUI bb, TimePoint tp, ViewSetup vs, double min, double max )
@@ -271,7 +334,7 @@ public class ExportSpimData2HDF5 implements ImgExport
 		// write the image
 		final RandomAccessibleInterval< UnsignedShortType > ushortimg;
 		if ( ! UnsignedShortType.class.isInstance( Util.getTypeFromInterval( img ) ) )
-			ushortimg = convert( img, params );
+			ushortimg = convert( img, params, min, max );
 		else
 			ushortimg = ( RandomAccessibleInterval ) img;
 		final Partition partition = viewIdToPartition.get( new ViewId( tp.getId(), vs.getId() ) );
@@ -280,7 +343,7 @@ public class ExportSpimData2HDF5 implements ImgExport
 		final boolean deflate = params.getDeflate();
 		final ProgressWriter progressWriter = new SubTaskProgressWriter( this.progressWriter, 0.0, 1.0 ); // TODO
 		final int numThreads = Math.max( 1, Runtime.getRuntime().availableProcessors() - 2 );
-		WriteSequenceToHdf5.writeViewToHdf5PartitionFile( ushortimg, partition, tp.getId(), vs.getId(), mipmapInfo, writeMipmapInfo, deflate, null, null, numThreads, progressWriter );
+		WriteSequenceToHdf5.writeViewToHdf5PartitionFile( ushortimg, partition, tp.getId(), vs.getId(), mipmapInfo, writeMipmapInfo, deflate, getLoopbackHeuristic( img ), null, numThreads, progressWriter );
 
 		// update the registrations
 		final ViewRegistration vr = spimData.getViewRegistrations().getViewRegistration( new ViewId( tp.getId(), vs.getId() ) );
@@ -298,6 +361,12 @@ public class ExportSpimData2HDF5 implements ImgExport
 		return true;
 	}
 
+	@Override
+	public int[] getBlockSize( final TimePoint tp, final ViewSetup vs )
+	{
+		return perSetupExportMipmapInfo.get( vs.getId() ).getSubdivisions()[ 0 ].clone();
+	}
+
 	@Override
 	public void queryAdditionalParameters( GenericDialog gd, SpimData2 spimData )
 	{
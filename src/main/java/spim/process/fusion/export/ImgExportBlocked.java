@@ -0,0 +1,42 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.export;
+
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewSetup;
+
+/**
+ * An {@link ImgExport} that writes the image in blocks (e.g. HDF5 chunks). The fusion can produce the
+ * output block by block in this layout and hand over a lazily computed image instead of a materialized one.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public interface ImgExportBlocked extends ImgExport
+{
+	/**
+	 * @param tp - the current (new) timepoint
+	 * @param vs - the current (new) viewsetup
+	 * @return - the size of the blocks at full resolution the image will be written in, or null if this export
+	 * does not write blocks (then the fused image is materialized as before)
+	 */
+	public int[] getBlockSize( final TimePoint tp, final ViewSetup vs );
+}
@@ -0,0 +1,303 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.weightedavg;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Util;
+import net.imglib2.view.Views;
+import spim.ComputeScheduler;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.weights.Blending;
+import spim.process.fusion.weights.BlendingProfile;
+
+/**
+ * Fuse one 3d block of a paralell fusion, supports any number of weight functions.
+ * 
+ * Views that do not overlap the block are skipped entirely, and instead of transforming
+ * every voxel the transformed coordinates are stepped incrementally along each scanline.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ *
+ * @param <T>
+ */
+public class ProcessParalellBlock< T extends RealType< T > > implements Callable< String >
+{
+	final Interval block;
+	final ArrayList< RandomAccessibleInterval< T > > imgs;
+	final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights;
+	final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory;
+	final AffineTransform3D[] transforms;
+	final RealInterval[] viewBounds;
+	final RandomAccessible< T > fusedImg;
+	final BoundingBoxGUI bb;
+
+	final int downSampling;
+
+	/**
+	 * @param block - the block of the fused image to compute (in pixel coordinates of the fused image)
+	 * @param imgs - the input images
+	 * @param weights - for each input image a list of weights (can be empty)
+	 * @param interpolatorFactory - the interpolator
+	 * @param transforms - the transformations of each view into the global coordinate system
+	 * @param viewBounds - the bounding box of each view in the global coordinate system
+	 * @param fusedImg - the output image (or the block of it, must be defined on the block in the coordinates of the fused image)
+	 * @param bb - the bounding box defining the fused image
+	 */
+	public ProcessParalellBlock(
+			final Interval block,
+			final ArrayList< RandomAccessibleInterval< T > > imgs,
+			final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final AffineTransform3D[] transforms,
+			final RealInterval[] viewBounds,
+			final RandomAccessible< T > fusedImg,
+			final BoundingBoxGUI bb )
+	{
+		this.block = block;
+		this.imgs = imgs;
+		this.weights = weights;
+		this.interpolatorFactory = interpolatorFactory;
+		this.transforms = transforms;
+		this.viewBounds = viewBounds;
+		this.fusedImg = fusedImg;
+		this.bb = bb;
+		this.downSampling = bb.getDownSampling();
+	}
+
+	@Override
+	public String call() throws Exception
+	{
+		// the extent of the block in global coordinates
+		final double[] min = new double[ 3 ];
+		final double[] max = new double[ 3 ];
+
+		for ( int d = 0; d < 3; ++d )
+		{
+			min[ d ] = block.min( d ) * downSampling + bb.min( d );
+			max[ d ] = block.max( d ) * downSampling + bb.min( d );
+		}
+
+		// only views that overlap the block are considered
+		final ArrayList< Integer > views = new ArrayList< Integer >();
+
+		for ( int i = 0; i < imgs.size(); ++i )
+			if ( overlaps( min, max, viewBounds[ i ], downSampling ) )
+				views.add( i );
+
+		if ( views.size() == 0 )
+			return Util.printInterval( block ) + " finished successfully (no overlapping views).";
+
+		final int numViews = views.size();
+
+		// make the interpolators, weights and the increments along x for each overlapping view
+		final ArrayList< RealRandomAccess< T > > interpolators = new ArrayList< RealRandomAccess< T > >( numViews );
+		final ArrayList< ArrayList< RealRandomAccess< FloatType > > > weightAccess = new ArrayList< ArrayList< RealRandomAccess< FloatType > > >( numViews );
+		final BlendingProfile[] profiles = new BlendingProfile[ numViews ];
+		final int[][] imgSizes = new int[ numViews ][ 3 ];
+		final double[][] steps = new double[ numViews ][ 3 ];
+
+		for ( int j = 0; j < numViews; ++j )
+		{
+			final int i = views.get( j );
+			final RandomAccessibleInterval< T > img = imgs.get( i );
+			imgSizes[ j ] = new int[]{ (int)img.dimension( 0 ), (int)img.dimension( 1 ), (int)img.dimension( 2 ) };
+
+			interpolators.add( Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess() );
+
+			final ArrayList< RealRandomAccess< FloatType > > list = new ArrayList< RealRandomAccess< FloatType > >();
+
+			// blending is evaluated from precomputed separable profiles, all other weights through their RealRandomAccess
+			for ( final RealRandomAccessible< FloatType > rra : weights.get( i ) )
+			{
+				if ( rra instanceof Blending && profiles[ j ] == null )
+					profiles[ j ] = ( (Blending)rra ).getProfile();
+				else
+					list.add( rra.realRandomAccess() );
+			}
+
+			weightAccess.add( list );
+
+			// moving one pixel along x in the fused image moves the local coordinate by the first column of the inverse
+			final AffineTransform3D inverse = transforms[ i ].inverse();
+
+			for ( int d = 0; d < 3; ++d )
+				steps[ j ][ d ] = inverse.get( d, 0 ) * downSampling;
+		}
+
+		final int width = (int)block.dimension( 0 );
+		final double[] sum = ComputeScheduler.getDoubleBuffer( 0, width );
+		final double[] sumW = ComputeScheduler.getDoubleBuffer( 1, width );
+
+		final double[] s = new double[ 3 ];
+		final double[] t = new double[ 3 ];
+		final double[] p = new double[ 3 ];
+		final int[] range = new int[ 2 ];
+
+		final RandomAccess< T > out = fusedImg.randomAccess();
+
+		for ( long z = block.min( 2 ); z <= block.max( 2 ); ++z )
+			for ( long y = block.min( 1 ); y <= block.max( 1 ); ++y )
+			{
+				for ( int k = 0; k < width; ++k )
+					sum[ k ] = sumW[ k ] = 0;
+
+				s[ 0 ] = min[ 0 ];
+				s[ 1 ] = y * downSampling + bb.min( 1 );
+				s[ 2 ] = z * downSampling + bb.min( 2 );
+
+				for ( int j = 0; j < numViews; ++j )
+				{
+					transforms[ views.get( j ) ].applyInverse( t, s );
+
+					final double[] step = steps[ j ];
+
+					if ( !intersectScanline( t, step, imgSizes[ j ], width, range ) )
+						continue;
+
+					final RealRandomAccess< T > r = interpolators.get( j );
+					final ArrayList< RealRandomAccess< FloatType > > wl = weightAccess.get( j );
+					final int numWeights = wl.size();
+					final BlendingProfile profile = profiles[ j ];
+
+					for ( int d = 0; d < 3; ++d )
+						p[ d ] = t[ d ] + range[ 0 ] * step[ d ];
+
+					for ( int k = range[ 0 ]; k < range[ 1 ]; ++k )
+					{
+						double w = 1;
+
+						if ( profile != null )
+							w = profile.getWeight( p[ 0 ], p[ 1 ], p[ 2 ] );
+
+						// a zero weight contributes nothing, no need to interpolate
+						if ( w > 0 )
+						{
+							for ( int l = 0; l < numWeights; ++l )
+							{
+								final RealRandomAccess< FloatType > weight = wl.get( l );
+								weight.setPosition( p );
+								w *= weight.get().get();
+							}
+
+							r.setPosition( p );
+
+							sum[ k ] += r.get().getRealDouble() * w;
+							sumW[ k ] += w;
+						}
+
+						p[ 0 ] += step[ 0 ];
+						p[ 1 ] += step[ 1 ];
+						p[ 2 ] += step[ 2 ];
+					}
+				}
+
+				out.setPosition( block.min( 0 ), 0 );
+				out.setPosition( y, 1 );
+				out.setPosition( z, 2 );
+
+				for ( int k = 0; k < width; ++k )
+				{
+					if ( sumW[ k ] > 0 )
+						out.get().setReal( sum[ k ] / sumW[ k ] );
+
+					out.fwd( 0 );
+				}
+			}
+
+		return Util.printInterval( block ) + " finished successfully (" + numViews + " of " + imgs.size() + " views overlapping).";
+	}
+
+	/**
+	 * Tests if a block in global coordinates overlaps the bounding box of a view
+	 * 
+	 * @param min - min of the block
+	 * @param max - max of the block
+	 * @param viewBounds - bounding box of the view
+	 * @param margin - tolerance
+	 * @return true if they overlap
+	 */
+	public static final boolean overlaps( final double[] min, final double[] max, final RealInterval viewBounds, final double margin )
+	{
+		for ( int d = 0; d < min.length; ++d )
+			if ( max[ d ] < viewBounds.realMin( d ) - margin || min[ d ] > viewBounds.realMax( d ) + margin )
+				return false;
+
+		return true;
+	}
+
+	/**
+	 * Computes the range of a scanline that lies inside an image, i.e. all k for which
+	 * 0 &lt;= t + k*step &lt; size in every dimension.
+	 * 
+	 * @param t - the local coordinate of the first pixel of the scanline
+	 * @param step - the increment of the local coordinate per pixel
+	 * @param size - the size of the image
+	 * @param width - the length of the scanline
+	 * @param range - will contain the first (inclusive) and last (exclusive) index
+	 * @return false if the scanline does not intersect the image at all
+	 */
+	public static final boolean intersectScanline( final double[] t, final double[] step, final int[] size, final int width, final int[] range )
+	{
+		double k0 = 0;
+		double k1 = width - 1;
+
+		for ( int d = 0; d < t.length; ++d )
+		{
+			if ( step[ d ] == 0 )
+			{
+				if ( t[ d ] < 0 || t[ d ] >= size[ d ] )
+					return false;
+			}
+			else if ( step[ d ] > 0 )
+			{
+				k0 = Math.max( k0, Math.ceil( -t[ d ] / step[ d ] ) );
+				k1 = Math.min( k1, Math.ceil( ( size[ d ] - t[ d ] ) / step[ d ] ) - 1 );
+			}
+			else
+			{
+				k0 = Math.max( k0, Math.floor( ( size[ d ] - t[ d ] ) / step[ d ] ) + 1 );
+				k1 = Math.min( k1, Math.floor( -t[ d ] / step[ d ] ) );
+			}
+		}
+
+		if ( k0 > k1 )
+			return false;
+
+		range[ 0 ] = (int)k0;
+		range[ 1 ] = (int)k1 + 1;
+
+		return true;
+	}
+}
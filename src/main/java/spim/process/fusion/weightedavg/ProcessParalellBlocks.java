@@ -0,0 +1,288 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.weightedavg;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+import mpicbg.spim.data.sequence.Channel;
+import mpicbg.spim.data.sequence.TimePoint;
+import mpicbg.spim.data.sequence.ViewDescription;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import net.imglib2.FinalInterval;
+import net.imglib2.FinalRealInterval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealInterval;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.cache.img.CellLoader;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgFactory;
+import net.imglib2.cache.img.ReadOnlyCachedCellImgOptions;
+import net.imglib2.cache.img.SingleCellArrayImg;
+import net.imglib2.cache.img.optional.CacheOptions.CacheType;
+import net.imglib2.img.Img;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import spim.Threads;
+import spim.fiji.spimdata.SpimData2;
+import spim.process.fusion.FusionHelper;
+import spim.process.fusion.boundingbox.BoundingBoxGUI;
+
+/**
+ * Fuses all views in paralell, processing the output image in 3d blocks (see {@link ProcessParalellBlock})
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ProcessParalellBlocks extends ProcessFusion
+{
+	/**
+	 * the size of the blocks in the fused image, cubic blocks keep the accessed
+	 * region of each input view small independent of its orientation
+	 */
+	public static int[] defaultBlockSize = new int[]{ 64, 64, 64 };
+
+	public ProcessParalellBlocks(
+			final SpimData2 spimData,
+			final List< ViewId > viewIdsToProcess,
+			final BoundingBoxGUI bb,
+			final boolean useBlending,
+			final boolean useContentBased )
+	{
+		super( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
+	}
+
+	/** 
+	 * Fuses one stack, i.e. all angles/illuminations for one timepoint and channel
+	 * 
+	 * @param type
+	 * @param interpolatorFactory
+	 * @param timepoint
+	 * @param channel
+	 * @return
+	 */
+	@Override
+	public < T extends RealType< T > & NativeType< T > > Img< T > fuseStack(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final TimePoint timepoint, 
+			final Channel channel )
+	{
+		IOFunctions.println("(" + new Date(System.currentTimeMillis()) + "): Reserving memory for fused image.");
+
+		// get all views that are fused
+		final ArrayList< ViewDescription > inputData =
+				FusionHelper.assembleInputData( spimData, timepoint, channel, viewIdsToProcess );
+
+		// it can be that for a certain comination of timepoint/channel there is nothing to do
+		// (e.g. fuse timepoint 1 channel 1 and timepoint 2 channel 2)
+		if ( inputData.size() == 0 )
+			return null;
+
+		// try creating the output (type needs to be there to define T)
+		final Img< T > fusedImg = bb.getImgFactory( type ).create( bb.getDimensions(), type );
+
+		if ( fusedImg == null )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): WeightedAverageFusion: Cannot create output image."  );
+			return null;
+		}
+
+		final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList< RandomAccessibleInterval< T > >();
+
+		for ( int i = 0; i < inputData.size(); ++i )
+		{
+			final ViewDescription vd = inputData.get( i );
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+			imgs.add( getImage( type, spimData, vd, false ) );
+		}
+
+		// get all weighting methods
+		final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
+
+		for ( int i = 0; i < inputData.size(); ++i )
+			weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
+
+		final AffineTransform3D[] transforms = getTransforms( inputData );
+		final RealInterval[] viewBounds = getViewBounds( imgs, transforms );
+
+		// split up into blocks for multithreading
+		final ArrayList< FinalInterval > blocks = FusionHelper.divideIntoBlocks( bb.getDimensions(), defaultBlockSize );
+
+		// set up executor service
+		final ExecutorService taskExecutor = Threads.getExecutorService();
+		final ArrayList< ProcessParalellBlock< T > > tasks = new ArrayList< ProcessParalellBlock< T > >();
+
+		for ( final FinalInterval block : blocks )
+			tasks.add( new ProcessParalellBlock< T >( block, imgs, weights, interpolatorFactory, transforms, viewBounds, fusedImg, bb ) );
+
+		IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Starting fusion process (" + blocks.size() + " blocks).");
+
+		try
+		{
+			// invokeAll() returns when all tasks are complete
+			taskExecutor.invokeAll( tasks );
+		}
+		catch ( final InterruptedException e )
+		{
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Failed to compute fusion: " + e );
+			e.printStackTrace();
+			return null;
+		}
+
+		return fusedImg;
+	}
+
+	/**
+	 * Fuses one stack lazily, i.e. all angles/illuminations for one timepoint and channel. The output is
+	 * not materialized, every block is fused when it is accessed for the first time (e.g. when the exporter
+	 * writes it) and only a bounded number of blocks is kept in memory. The blocks are aligned to the
+	 * chunks the image will be written in.
+	 * 
+	 * @param type
+	 * @param interpolatorFactory
+	 * @param timepoint
+	 * @param channel
+	 * @param chunkSize - the block size of the exporter at full resolution
+	 * @param minmax - if not null, will contain the min and max intensity of all input views (the fused
+	 * image is a weighted average, so it cannot exceed that range)
+	 * @return
+	 */
+	public < T extends RealType< T > & NativeType< T > > RandomAccessibleInterval< T > fuseStackBlocked(
+			final T type,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final TimePoint timepoint, 
+			final Channel channel,
+			final int[] chunkSize,
+			final double[] minmax )
+	{
+		// get all views that are fused
+		final ArrayList< ViewDescription > inputData =
+				FusionHelper.assembleInputData( spimData, timepoint, channel, viewIdsToProcess );
+
+		// it can be that for a certain comination of timepoint/channel there is nothing to do
+		// (e.g. fuse timepoint 1 channel 1 and timepoint 2 channel 2)
+		if ( inputData.size() == 0 )
+			return null;
+
+		final ArrayList< RandomAccessibleInterval< T > > imgs = new ArrayList< RandomAccessibleInterval< T > >();
+
+		for ( int i = 0; i < inputData.size(); ++i )
+		{
+			final ViewDescription vd = inputData.get( i );
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Requesting Img from ImgLoader (tp=" + vd.getTimePointId() + ", setup=" + vd.getViewSetupId() + ")" );
+			imgs.add( getImage( type, spimData, vd, false ) );
+		}
+
+		if ( minmax != null )
+		{
+			minmax[ 0 ] = Double.MAX_VALUE;
+			minmax[ 1 ] = -Double.MAX_VALUE;
+
+			for ( final RandomAccessibleInterval< T > img : imgs )
+			{
+				final float[] mm = FusionHelper.minMax( img );
+				minmax[ 0 ] = Math.min( minmax[ 0 ], mm[ 0 ] );
+				minmax[ 1 ] = Math.max( minmax[ 1 ], mm[ 1 ] );
+			}
+
+			IOFunctions.println( "(" + new Date(System.currentTimeMillis()) + "): Intensity range of input views: " + minmax[ 0 ] + " ... " + minmax[ 1 ] );
+		}
+
+		// get all weighting methods
+		final ArrayList< ArrayList< RealRandomAccessible< FloatType > > > weights = new ArrayList< ArrayList< RealRandomAccessible< FloatType > > >();
+
+		for ( int i = 0; i < inputData.size(); ++i )
+			weights.add( getAllWeights( imgs.get( i ), inputData.get( i ), spimData.getSequenceDescription().getImgLoader() ) );
+
+		final AffineTransform3D[] transforms = getTransforms( inputData );
+		final RealInterval[] viewBounds = getViewBounds( imgs, transforms );
+
+		final long[] dim = bb.getDimensions();
+		final int[] blockSize = alignBlockSize( chunkSize );
+
+		// the exporter writes chunk by chunk with x fastest, so one slab of blocks in z plus one block per thread is enough
+		final long blocksPerSlab = ( ( dim[ 0 ] + blockSize[ 0 ] - 1 ) / blockSize[ 0 ] ) * ( ( dim[ 1 ] + blockSize[ 1 ] - 1 ) / blockSize[ 1 ] );
+		final long maxCachedBlocks = blocksPerSlab + Threads.numThreads();
+
+		IOFunctions.println(
+				"(" + new Date(System.currentTimeMillis()) + "): Fusing in blocks of " + blockSize[ 0 ] + "x" + blockSize[ 1 ] + "x" + blockSize[ 2 ] +
+				" px, keeping at most " + maxCachedBlocks + " blocks in memory." );
+
+		final CellLoader< T > loader = new CellLoader< T >()
+		{
+			@Override
+			public void load( final SingleCellArrayImg< T, ? > cell ) throws Exception
+			{
+				new ProcessParalellBlock< T >( cell, imgs, weights, interpolatorFactory, transforms, viewBounds, cell, bb ).call();
+			}
+		};
+
+		final ReadOnlyCachedCellImgOptions options = ReadOnlyCachedCellImgOptions.options()
+				.cellDimensions( blockSize )
+				.cacheType( CacheType.BOUNDED )
+				.maxCacheSize( maxCachedBlocks );
+
+		return new ReadOnlyCachedCellImgFactory( options ).create( dim, type, loader );
+	}
+
+	/**
+	 * @param chunkSize - the chunk size of the exporter
+	 * @return a block size that is a multiple of the chunk size in x and y, and at least {@link #defaultBlockSize} if possible
+	 */
+	public static int[] alignBlockSize( final int[] chunkSize )
+	{
+		final int[] blockSize = chunkSize.clone();
+
+		// in z we stay with the chunk size, it determines how many blocks need to be kept in memory
+		for ( int d = 0; d < 2; ++d )
+			blockSize[ d ] = chunkSize[ d ] * Math.max( 1, defaultBlockSize[ d ] / chunkSize[ d ] );
+
+		return blockSize;
+	}
+
+	/**
+	 * @param imgs - the input images
+	 * @param transforms - their transformations
+	 * @return the bounding box of each transformed image in the global coordinate system
+	 */
+	public static < T > RealInterval[] getViewBounds( final List< ? extends RandomAccessibleInterval< T > > imgs, final AffineTransform3D[] transforms )
+	{
+		final RealInterval[] viewBounds = new RealInterval[ imgs.size() ];
+
+		for ( int i = 0; i < imgs.size(); ++i )
+		{
+			final RandomAccessibleInterval< T > img = imgs.get( i );
+			final double[] min = new double[]{ 0, 0, 0 };
+			final double[] max = new double[]{ img.dimension( 0 ) - 1, img.dimension( 1 ) - 1, img.dimension( 2 ) - 1 };
+
+			viewBounds[ i ] = transforms[ i ].estimateBounds( new FinalRealInterval( min, max ) );
+		}
+
+		return viewBounds;
+	}
+}
@@ -37,6 +37,8 @@ import net.imglib2.view.Views;
 import spim.process.fusion.FusionHelper;
 import spim.process.fusion.ImagePortion;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
+import spim.process.fusion.weights.Blending;
+import spim.process.fusion.weights.BlendingProfile;
 
 /**
  * Fuse one portion of a paralell fusion, supports one weight function
@@ -72,6 +74,9 @@ public class ProcessParalellPortionWeight< T extends RealType< T > > extends Pro
 		final ArrayList< RealRandomAccess< T > > interpolators = new ArrayList< RealRandomAccess< T > >( numViews );
 		final ArrayList< RealRandomAccess< FloatType > > weightAccess = new ArrayList< RealRandomAccess< FloatType > >();
 		final int[][] imgSizes = new int[ numViews ][ 3 ];
+
+		// blending is evaluated from precomputed separable profiles
+		final BlendingProfile[] profiles = new BlendingProfile[ numViews ];
 		
 		for ( int i = 0; i < numViews; ++i )
 		{
@@ -81,6 +86,9 @@ public class ProcessParalellPortionWeight< T extends RealType< T > > extends Pro
 			interpolators.add( Views.interpolate( Views.extendMirrorSingle( img ), interpolatorFactory ).realRandomAccess() );
 						
 			weightAccess.add( weights.get( i ).realRandomAccess() );
+
+			if ( weights.get( i ) instanceof Blending )
+				profiles[ i ] = ( (Blending)weights.get( i ) ).getProfile();
 		}
 
 		final Cursor< T > cursor = fusedImg.localizingCursor();
@@ -118,10 +126,18 @@ public class ProcessParalellPortionWeight< T extends RealType< T > > extends Pro
 					final RealRandomAccess< T > r = interpolators.get( i );
 					r.setPosition( t );
 					
-					final RealRandomAccess< FloatType > weight = weightAccess.get( i );
-					weight.setPosition( t );
-					
-					final double w = weight.get().get();
+					final double w;
+
+					if ( profiles[ i ] != null )
+					{
+						w = profiles[ i ].getWeight( t[ 0 ], t[ 1 ], t[ 2 ] );
+					}
+					else
+					{
+						final RealRandomAccess< FloatType > weight = weightAccess.get( i );
+						weight.setPosition( t );
+						w = weight.get().get();
+					}
 					
 					sum += r.get().getRealDouble() * w;
 					sumW += w;
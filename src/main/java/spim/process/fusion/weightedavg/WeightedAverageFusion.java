@@ -38,6 +38,7 @@ import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.data.sequence.ViewSetup;
 import net.imglib2.FinalDimensions;
 import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.interpolation.InterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
@@ -51,6 +52,7 @@ import spim.process.fusion.FusionHelper;
 import spim.process.fusion.boundingbox.BoundingBoxGUI;
 import spim.process.fusion.export.FixedNameImgTitler;
 import spim.process.fusion.export.ImgExport;
+import spim.process.fusion.export.ImgExportBlocked;
 import spim.process.fusion.export.ImgExportTitle;
 
 public class WeightedAverageFusion extends Fusion
@@ -63,6 +65,9 @@ public class WeightedAverageFusion extends Fusion
 	
 	protected Choice sequentialViews = null;
 
+	public static boolean defaultStreamToExport = false;
+	protected boolean streamToExport = false;
+
 	public WeightedAverageFusion(
 			final SpimData2 spimData,
 			final List< ViewId > viewIdsToProcess,
@@ -94,7 +99,7 @@ public class WeightedAverageFusion extends Fusion
 		final ProcessFusion process;
 		
 		if ( getFusionType() == WeightedAvgFusionType.FUSEDATA && numParalellViews == 0 )
-			process = new ProcessParalell( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
+			process = new ProcessParalellBlocks( spimData, viewIdsToProcess, bb, useBlending, useContentBased );
 		else if ( getFusionType() == WeightedAvgFusionType.FUSEDATA )
 			process = new ProcessSequential( spimData, viewIdsToProcess, bb, useBlending, useContentBased, numParalellViews );
 		else
@@ -108,13 +113,37 @@ public class WeightedAverageFusion extends Fusion
 				final List< Illumination > illumsToProcess = SpimData2.getAllIlluminationsForChannelTimepointSorted( spimData, viewIdsToProcess, c, t );
 
 				titler.setTitle( "TP" + t.getName() + "_Ch" + c.getName() + FusionHelper.getIllumName( illumsToProcess ) + FusionHelper.getAngleName( anglesToProcess ) );
-				if ( bb.getPixelType() == 0 )
+
+				final ViewSetup vs = newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) );
+
+				final int[] chunkSize =
+						streamToExport && process instanceof ProcessParalellBlocks && exporter instanceof ImgExportBlocked ?
+						( (ImgExportBlocked)exporter ).getBlockSize( t, vs ) : null;
+
+				if ( chunkSize != null )
+				{
+					// fused blocks are computed when the exporter writes them, the full image is never in memory
+					final ProcessParalellBlocks blocked = (ProcessParalellBlocks)process;
+					final double[] minmax = new double[ 2 ];
+
+					if ( bb.getPixelType() == 0 )
+					{
+						final RandomAccessibleInterval< FloatType > img = blocked.fuseStackBlocked( new FloatType(), getInterpolatorFactory( new FloatType() ), t, c, chunkSize, minmax );
+						exporter.exportImage( img, bb, t, vs, minmax[ 0 ], minmax[ 1 ] );
+					}
+					else
+					{
+						final RandomAccessibleInterval< UnsignedShortType > img = blocked.fuseStackBlocked( new UnsignedShortType(), getInterpolatorFactory( new UnsignedShortType() ), t, c, chunkSize, null );
+						exporter.exportImage( img, bb, t, vs );
+					}
+				}
+				else if ( bb.getPixelType() == 0 )
 				{
 					exporter.exportImage(
 							process.fuseStack( new FloatType(), getInterpolatorFactory( new FloatType() ), t , c ),
 							bb,
 							t,
-							newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ));
+							vs );
 				}
 				else
 				{
@@ -122,7 +151,7 @@ public class WeightedAverageFusion extends Fusion
 							process.fuseStack( new UnsignedShortType(), getInterpolatorFactory( new UnsignedShortType() ), t , c ),
 							bb,
 							t,
-							newViewsetups.get( SpimData2.getViewSetup( spimData.getSequenceDescription().getViewSetupsOrdered(), c, anglesToProcess.get( 0 ), illumsToProcess.get( 0 ) ) ));
+							vs );
 				}
 			}
 
@@ -192,6 +221,7 @@ public class WeightedAverageFusion extends Fusion
 		{
 			gd.addCheckbox( "Blend images smoothly", Fusion.defaultUseBlending );
 			gd.addCheckbox( "Content-based fusion", Fusion.defaultUseContentBased );
+			gd.addCheckbox( "Stream_fused_blocks_to_HDF5 (only if all views are processed in paralell)", defaultStreamToExport );
 		}
 		gd.addChoice( "Interpolation", Fusion.interpolationTypes, Fusion.interpolationTypes[ Fusion.defaultInterpolation ] );
 	}
@@ -205,10 +235,11 @@ public class WeightedAverageFusion extends Fusion
 			this.numParalellViews = defaultNumParalellViewsIndex;
 			this.useBlending = Fusion.defaultUseBlending = gd.getNextBoolean();
 			this.useContentBased = Fusion.defaultUseContentBased = gd.getNextBoolean();
+			this.streamToExport = defaultStreamToExport = gd.getNextBoolean();
 		}
 		else
 		{
-			this.useBlending = this.useContentBased = false;
+			this.useBlending = this.useContentBased = this.streamToExport = false;
 		}
 		this.interpolation = Fusion.defaultInterpolation = gd.getNextChoiceIndex();
 
@@ -40,6 +40,8 @@ public class Blending implements RealRandomAccessible< FloatType >
 	final Interval interval;
 	final float[] border, blending;
 
+	BlendingProfile profile = null;
+
 	/**
 	 * RealRandomAccess that computes a blending function for a certain {@link Interval}
 	 * 
@@ -69,4 +71,15 @@ public class Blending implements RealRandomAccessible< FloatType >
 	{
 		return realRandomAccess();
 	}
+
+	/**
+	 * @return the precomputed separable weights (computed once on first request), used by the fusion to avoid evaluating the {@link RealRandomAccess}
+	 */
+	public synchronized BlendingProfile getProfile()
+	{
+		if ( profile == null )
+			profile = new BlendingProfile( interval, border, blending );
+
+		return profile;
+	}
 }
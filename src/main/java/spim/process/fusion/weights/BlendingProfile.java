@@ -0,0 +1,132 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.fusion.weights;
+
+import net.imglib2.Interval;
+
+/**
+ * Precomputed, separable version of the {@link Blending} weights. The weight is the product of
+ * one 1d profile per dimension, each sampled at a sub-pixel resolution, so evaluating it
+ * costs one array lookup per dimension.
+ * 
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class BlendingProfile
+{
+	/**
+	 * how many samples per pixel are stored in the profiles
+	 */
+	public static int defaultSamplesPerPixel = 8;
+
+	final int n;
+	final float[][] profiles;
+	final double[] min;
+	final int[] length;
+	final int samplesPerPixel;
+
+	/**
+	 * @param interval - the interval it is defined on (return zero outside of it)
+	 * @param border - how many pixels to skip before starting blending (on each side of each dimension)
+	 * @param blending - how many pixels to compute the blending function on (on each side of each dimension)
+	 */
+	public BlendingProfile( final Interval interval, final float[] border, final float[] blending )
+	{
+		this( interval, border, blending, defaultSamplesPerPixel );
+	}
+
+	/**
+	 * @param interval - the interval it is defined on (return zero outside of it)
+	 * @param border - how many pixels to skip before starting blending (on each side of each dimension)
+	 * @param blending - how many pixels to compute the blending function on (on each side of each dimension)
+	 * @param samplesPerPixel - the sub-pixel resolution of the profiles
+	 */
+	public BlendingProfile( final Interval interval, final float[] border, final float[] blending, final int samplesPerPixel )
+	{
+		this.n = interval.numDimensions();
+		this.profiles = new float[ n ][];
+		this.min = new double[ n ];
+		this.length = new int[ n ];
+		this.samplesPerPixel = samplesPerPixel;
+
+		for ( int d = 0; d < n; ++d )
+		{
+			final int dimMinus1 = (int)( interval.max( d ) - interval.min( d ) );
+
+			this.min[ d ] = interval.min( d );
+			this.length[ d ] = dimMinus1 * samplesPerPixel + 1;
+			this.profiles[ d ] = new float[ length[ d ] ];
+
+			for ( int i = 0; i < length[ d ]; ++i )
+				profiles[ d ][ i ] = BlendingRealRandomAccess.computeWeight( (float)i / samplesPerPixel, dimMinus1, border[ d ], blending[ d ] );
+		}
+	}
+
+	/**
+	 * @param d - dimension
+	 * @param l - the position along this dimension
+	 * @return the weight along one dimension, zero outside of the interval
+	 */
+	final public float getWeight( final int d, final double l )
+	{
+		final int i = (int)Math.round( ( l - min[ d ] ) * samplesPerPixel );
+
+		if ( i < 0 || i >= length[ d ] )
+			return 0;
+		else
+			return profiles[ d ][ i ];
+	}
+
+	/**
+	 * @param x - position in dimension 0
+	 * @param y - position in dimension 1
+	 * @param z - position in dimension 2
+	 * @return the 3d weight
+	 */
+	final public float getWeight( final double x, final double y, final double z )
+	{
+		return getWeight( 0, x ) * getWeight( 1, y ) * getWeight( 2, z );
+	}
+
+	/**
+	 * @param location - the position
+	 * @return the weight
+	 */
+	final public float getWeight( final double[] location )
+	{
+		float w = 1;
+
+		for ( int d = 0; d < n; ++d )
+			w *= getWeight( d, location[ d ] );
+
+		return w;
+	}
+
+	/**
+	 * @param d - dimension
+	 * @return the profile along one dimension, sampled with {@link #getSamplesPerPixel()} starting at the min of the interval
+	 */
+	public float[] getProfile( final int d ) { return profiles[ d ]; }
+
+	public int getSamplesPerPixel() { return samplesPerPixel; }
+
+	public int numDimensions() { return n; }
+}
@@ -101,25 +101,47 @@ public class BlendingRealRandomAccess implements RealRandomAccess< FloatType >
 
 		for ( int d = 0; d < n; ++d )
 		{
-			// the position in the image relative to the boundaries and the border
-			final float l = ( location[ d ] - min[ d ] );
-
-			// the distance to the border that is closer
-			final float dist = Math.max( 0, Math.min( l - border[ d ], dimMinus1[ d ] - l - border[ d ] ) );
+			final float w = computeWeight( location[ d ] - min[ d ], dimMinus1[ d ], border[ d ], blending[ d ] );
 
 			// if this is 0, the total result will be 0, independent of the number of dimensions
-			if ( dist == 0 )
+			if ( w == 0 )
 				return 0;
 
-			final float relDist = dist / blending[ d ];
-
-			if ( relDist < 1 )
-				minDistance *= lookUp[ indexFor( relDist ) ]; //( Math.cos( ( 1 - relDist ) * Math.PI ) + 1 ) / 2;
+			minDistance *= w;
 		}
 
 		return minDistance;
 	}
 
+	/**
+	 * The blending function is separable, this computes the weight along one dimension
+	 * 
+	 * @param l - the position in the image relative to the min of the interval
+	 * @param dimMinus1 - the size of the interval in this dimension minus one
+	 * @param border - how many pixels to skip before starting blending
+	 * @param blending - how many pixels to compute the blending function on
+	 * @return the weight [0...1]
+	 */
+	final public static float computeWeight(
+			final float l,
+			final int dimMinus1,
+			final float border,
+			final float blending )
+	{
+		// the distance to the border that is closer
+		final float dist = Math.max( 0, Math.min( l - border, dimMinus1 - l - border ) );
+
+		if ( dist == 0 )
+			return 0;
+
+		final float relDist = dist / blending;
+
+		if ( relDist < 1 )
+			return (float)lookUp[ indexFor( relDist ) ]; //( Math.cos( ( 1 - relDist ) * Math.PI ) + 1 ) / 2;
+		else
+			return 1;
+	}
+
 	@Override
 	public void localize( final float[] position )
 	{
@@ -27,7 +27,6 @@ import java.util.ArrayList;
 import java.util.Vector;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import mpicbg.spim.io.IOFunctions;
 import net.imglib2.Cursor;
@@ -108,7 +107,7 @@ public class Downsample
 		final Vector< ImagePortion > portions = FusionHelper.divideIntoPortions( numLines, Threads.numThreads() * 2 );
 
 		// set up executor service
-		final ExecutorService taskExecutor = Executors.newFixedThreadPool( Threads.numThreads() );
+		final ExecutorService taskExecutor = Threads.getExecutorService();
 		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
 
 		for ( final ImagePortion portion : portions )
@@ -176,8 +175,6 @@ public class Downsample
 			e.printStackTrace();
 			return;
 		}
-
-		taskExecutor.shutdown();
 		
 		return;
 	}
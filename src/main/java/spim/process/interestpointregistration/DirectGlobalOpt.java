@@ -0,0 +1,748 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+
+import mpicbg.models.Affine3D;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.Model;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.models.TranslationModel3D;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+
+/**
+ * Global optimization for models that are linear in their parameters (AffineModel3D, TranslationModel3D).
+ * The squared distances of all corresponding points are minimized directly: the normal equations of all
+ * inliers of all pairs form a sparse, symmetric positive definite system (one block per pair of connected
+ * tiles, 4x4 for affine, 1x1 for translation), which is solved with block-Jacobi preconditioned conjugate
+ * gradients, separately for x, y and z (the rows of the models are independent). For affine models the
+ * coordinates are centered and scaled per tile, so that the linear part and the translation have comparable
+ * magnitudes and the system stays well conditioned for large images.
+ *
+ * This is the same minimum the iterative optimization of the {@link TileConfiguration} converges to, but
+ * without thousands of sweeps over the tiles. Fixed tiles keep their model; in a set of connected tiles
+ * without a fixed tile, the first one is kept.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class DirectGlobalOpt< M extends Model< M > >
+{
+	// relative residual of the conjugate gradients (in centered, scaled coordinates) at which the solution is accepted
+	public static double tolerance = 1e-10;
+
+	final TileConfiguration tc;
+	final List< PairwiseMatch > pairs;
+	final List< ViewId > views;
+	final HashMap< ViewId, Tile< M > > map;
+
+	// 4 parameters per row for affine (A|t), 1 for translation (t)
+	final boolean affine;
+	final int bs;
+
+	// statistics of the last solve
+	int numUnknowns = 0, numBlocks = 0;
+	final int[] iterations = new int[ 3 ];
+	final double[] residual = new double[ 3 ];
+	long assemblyTime = 0, solveTime = 0;
+	String failure = null;
+
+	public DirectGlobalOpt( final TileConfiguration tc, final List< PairwiseMatch > pairs, final List< ViewId > views, final HashMap< ViewId, Tile< M > > map )
+	{
+		this.tc = tc;
+		this.pairs = pairs;
+		this.views = views;
+		this.map = map;
+
+		final Model< ? > model = map.get( views.get( 0 ) ).getModel();
+		this.affine = model.getClass() == AffineModel3D.class;
+		this.bs = affine ? 4 : 1;
+	}
+
+	/**
+	 * @return true if the global optimization of this model can be solved directly (regularized, rigid, ... models cannot)
+	 */
+	public static boolean canSolve( final Model< ? > model )
+	{
+		return model.getClass() == AffineModel3D.class || model.getClass() == TranslationModel3D.class;
+	}
+
+	public int getNumUnknowns() { return numUnknowns; }
+	public int getNumBlocks() { return numBlocks; }
+	public int[] getIterations() { return iterations; }
+	public double[] getResidual() { return residual; }
+	public long getAssemblyTime() { return assemblyTime; }
+	public long getSolveTime() { return solveTime; }
+
+	/**
+	 * @return why the last solve failed, null if it succeeded
+	 */
+	public String getFailure() { return failure; }
+
+	/**
+	 * Computes and sets the models of all tiles that are not fixed, and updates the errors of the {@link TileConfiguration}.
+	 *
+	 * @return false if the system is singular (e.g. an affine tile with all correspondences in a plane) or did not converge, the models are not changed then
+	 */
+	public boolean solve()
+	{
+		final long t0 = System.currentTimeMillis();
+		this.failure = null;
+		this.assemblyTime = this.solveTime = 0;
+
+		//
+		// which tiles are unknown, the tiles of the subset in the order of the views
+		//
+		final Set< Tile< ? > > tiles = tc.getTiles();
+		final Set< Tile< ? > > fixedTiles = tc.getFixedTiles();
+
+		final ArrayList< Tile< M > > orderedTiles = new ArrayList< Tile< M > >();
+		final HashMap< Tile< M >, Integer > tileIndex = new HashMap< Tile< M >, Integer >();
+
+		for ( final ViewId viewId : views )
+		{
+			final Tile< M > tile = map.get( viewId );
+
+			if ( tiles.contains( tile ) && !tileIndex.containsKey( tile ) )
+			{
+				tileIndex.put( tile, orderedTiles.size() );
+				orderedTiles.add( tile );
+			}
+		}
+
+		final int numTiles = orderedTiles.size();
+
+		// connected sets of tiles (union-find), each needs one fixed tile
+		final int[] parent = new int[ numTiles ];
+		for ( int i = 0; i < numTiles; ++i )
+			parent[ i ] = i;
+
+		for ( final PairwiseMatch pair : pairs )
+		{
+			final Integer a = tileIndex.get( map.get( pair.getViewIdA() ) );
+			final Integer b = tileIndex.get( map.get( pair.getViewIdB() ) );
+
+			if ( a != null && b != null && pair.getInliers() != null && pair.getInliers().size() > 0 )
+				parent[ find( parent, a ) ] = find( parent, b );
+		}
+
+		final boolean[] fixed = new boolean[ numTiles ];
+		final boolean[] componentFixed = new boolean[ numTiles ];
+
+		for ( int i = 0; i < numTiles; ++i )
+			if ( fixedTiles.contains( orderedTiles.get( i ) ) )
+				fixed[ i ] = componentFixed[ find( parent, i ) ] = true;
+
+		for ( int i = 0; i < numTiles; ++i )
+			if ( !componentFixed[ find( parent, i ) ] )
+				fixed[ i ] = componentFixed[ find( parent, i ) ] = true;
+
+		// index of the unknowns of each tile, -1 if fixed
+		final int[] unknown = new int[ numTiles ];
+		int numFree = 0;
+
+		for ( int i = 0; i < numTiles; ++i )
+			unknown[ i ] = fixed[ i ] ? -1 : numFree++;
+
+		this.numUnknowns = numFree * bs * 3;
+
+		// the current parameters of all tiles, u[ tile ][ row ][ param ]
+		final double[][][] u = new double[ numTiles ][ 3 ][ bs ];
+		final double[][] m = new double[ 3 ][ 4 ];
+
+		for ( int i = 0; i < numTiles; ++i )
+		{
+			( (Affine3D< ? >)orderedTiles.get( i ).getModel() ).toMatrix( m );
+
+			for ( int r = 0; r < 3; ++r )
+				if ( affine )
+					for ( int k = 0; k < 4; ++k )
+						u[ i ][ r ][ k ] = m[ r ][ k ];
+				else
+					u[ i ][ r ][ 0 ] = m[ r ][ 3 ];
+		}
+
+		if ( numFree == 0 )
+			return true;
+
+		//
+		// affine: express each tile in coordinates centered at its points and scaled to unit rms, u' = u * T
+		// with T = [ s*I c ; 0 1 ], otherwise the linear part is weighted by the squared coordinates (~1e6)
+		// and the translation by 1, which the conjugate gradients cannot resolve to a small relative residual
+		//
+		final double[][] center = new double[ numTiles ][ 3 ];
+		final double[] scale = new double[ numTiles ];
+
+		if ( affine )
+		{
+			final double[] sumSq = new double[ numTiles ];
+			final long[] count = new long[ numTiles ];
+
+			for ( final PairwiseMatch pair : pairs )
+			{
+				final Integer ia = tileIndex.get( map.get( pair.getViewIdA() ) );
+				final Integer ib = tileIndex.get( map.get( pair.getViewIdB() ) );
+
+				if ( ia == null || ib == null || pair.getInliers() == null )
+					continue;
+
+				for ( final PointMatchGeneric< Detection > pm : pair.getInliers() )
+				{
+					final double[] pa = pm.getPoint1().getL();
+					final double[] pb = pm.getPoint2().getL();
+
+					for ( int d = 0; d < 3; ++d )
+					{
+						center[ ia ][ d ] += pa[ d ];
+						center[ ib ][ d ] += pb[ d ];
+						sumSq[ ia ] += pa[ d ] * pa[ d ];
+						sumSq[ ib ] += pb[ d ] * pb[ d ];
+					}
+
+					++count[ ia ];
+					++count[ ib ];
+				}
+			}
+
+			for ( int i = 0; i < numTiles; ++i )
+			{
+				double variance = 0;
+
+				if ( count[ i ] > 0 )
+				{
+					variance = sumSq[ i ] / count[ i ];
+
+					for ( int d = 0; d < 3; ++d )
+					{
+						center[ i ][ d ] /= count[ i ];
+						variance -= center[ i ][ d ] * center[ i ][ d ];
+					}
+				}
+
+				scale[ i ] = variance > 0 ? Math.sqrt( variance ) : 1;
+
+				for ( int r = 0; r < 3; ++r )
+				{
+					for ( int k = 0; k < 3; ++k )
+						u[ i ][ r ][ 3 ] += u[ i ][ r ][ k ] * center[ i ][ k ];
+
+					for ( int k = 0; k < 3; ++k )
+						u[ i ][ r ][ k ] *= scale[ i ];
+				}
+			}
+		}
+
+		//
+		// assemble the normal equations
+		//
+		final HashMap< Long, double[] > blocks = new HashMap< Long, double[] >();
+		final double[][] rhs = new double[ 3 ][ numFree * bs ];
+
+		final double[] a = new double[ bs ];
+		final double[] b = new double[ bs ];
+		final double[] c = new double[ 3 ];
+
+		for ( final PairwiseMatch pair : pairs )
+		{
+			final Integer ia = tileIndex.get( map.get( pair.getViewIdA() ) );
+			final Integer ib = tileIndex.get( map.get( pair.getViewIdB() ) );
+
+			if ( ia == null || ib == null || pair.getInliers() == null || pair.getInliers().size() == 0 )
+				continue;
+
+			final int i = ia, j = ib;
+
+			if ( fixed[ i ] && fixed[ j ] )
+				continue;
+
+			// sums over all correspondences of this pair: w*a*a^T, w*b*b^T, w*a*b^T, w*a*c_r, w*b*c_r
+			final double[] saa = new double[ bs * bs ];
+			final double[] sbb = new double[ bs * bs ];
+			final double[] sab = new double[ bs * bs ];
+			final double[][] sac = new double[ 3 ][ bs ];
+			final double[][] sbc = new double[ 3 ][ bs ];
+
+			for ( final PointMatchGeneric< Detection > pm : pair.getInliers() )
+			{
+				// the residual of row r is u_i,r * a - u_j,r * b + c_r
+				final double[] pa = pm.getPoint1().getL();
+				final double[] pb = pm.getPoint2().getL();
+				final double w = pm.getWeight();
+
+				if ( affine )
+				{
+					for ( int d = 0; d < 3; ++d )
+					{
+						a[ d ] = ( pa[ d ] - center[ i ][ d ] ) / scale[ i ];
+						b[ d ] = ( pb[ d ] - center[ j ][ d ] ) / scale[ j ];
+					}
+
+					a[ 3 ] = b[ 3 ] = 1;
+					c[ 0 ] = c[ 1 ] = c[ 2 ] = 0;
+				}
+				else
+				{
+					a[ 0 ] = b[ 0 ] = 1;
+					for ( int r = 0; r < 3; ++r )
+						c[ r ] = pa[ r ] - pb[ r ];
+				}
+
+				for ( int k = 0; k < bs; ++k )
+				{
+					for ( int l = 0; l < bs; ++l )
+					{
+						saa[ k * bs + l ] += w * a[ k ] * a[ l ];
+						sbb[ k * bs + l ] += w * b[ k ] * b[ l ];
+						sab[ k * bs + l ] += w * a[ k ] * b[ l ];
+					}
+
+					for ( int r = 0; r < 3; ++r )
+					{
+						sac[ r ][ k ] += w * a[ k ] * c[ r ];
+						sbc[ r ][ k ] += w * b[ k ] * c[ r ];
+					}
+				}
+			}
+
+			final int ui = unknown[ i ], uj = unknown[ j ];
+
+			if ( i == j )
+			{
+				// both views are part of the same tile
+				final double[] h = block( blocks, ui, ui, numFree );
+
+				for ( int k = 0; k < bs; ++k )
+				{
+					for ( int l = 0; l < bs; ++l )
+						h[ k * bs + l ] += saa[ k * bs + l ] + sbb[ k * bs + l ] - sab[ k * bs + l ] - sab[ l * bs + k ];
+
+					for ( int r = 0; r < 3; ++r )
+						rhs[ r ][ ui * bs + k ] -= sac[ r ][ k ] - sbc[ r ][ k ];
+				}
+			}
+			else if ( !fixed[ i ] && !fixed[ j ] )
+			{
+				add( block( blocks, ui, ui, numFree ), saa, 1, false );
+				add( block( blocks, uj, uj, numFree ), sbb, 1, false );
+				add( block( blocks, ui, uj, numFree ), sab, -1, false );
+				add( block( blocks, uj, ui, numFree ), sab, -1, true );
+
+				for ( int k = 0; k < bs; ++k )
+					for ( int r = 0; r < 3; ++r )
+					{
+						rhs[ r ][ ui * bs + k ] -= sac[ r ][ k ];
+						rhs[ r ][ uj * bs + k ] += sbc[ r ][ k ];
+					}
+			}
+			else if ( !fixed[ i ] )
+			{
+				// j is fixed: saa * u_i = sab * u_j - sac
+				add( block( blocks, ui, ui, numFree ), saa, 1, false );
+
+				for ( int k = 0; k < bs; ++k )
+					for ( int r = 0; r < 3; ++r )
+					{
+						double sum = 0;
+						for ( int l = 0; l < bs; ++l )
+							sum += sab[ k * bs + l ] * u[ j ][ r ][ l ];
+
+						rhs[ r ][ ui * bs + k ] += sum - sac[ r ][ k ];
+					}
+			}
+			else
+			{
+				// i is fixed: sbb * u_j = sab^T * u_i + sbc
+				add( block( blocks, uj, uj, numFree ), sbb, 1, false );
+
+				for ( int k = 0; k < bs; ++k )
+					for ( int r = 0; r < 3; ++r )
+					{
+						double sum = 0;
+						for ( int l = 0; l < bs; ++l )
+							sum += sab[ l * bs + k ] * u[ i ][ r ][ l ];
+
+						rhs[ r ][ uj * bs + k ] += sum + sbc[ r ][ k ];
+					}
+			}
+		}
+
+		final BlockMatrix h = new BlockMatrix( blocks, numFree, bs );
+		this.numBlocks = blocks.size();
+		this.assemblyTime = System.currentTimeMillis() - t0;
+
+		//
+		// solve, starting from the current models
+		//
+		final long t1 = System.currentTimeMillis();
+
+		if ( !h.invertDiagonal() )
+		{
+			this.failure = "singular";
+			this.solveTime = System.currentTimeMillis() - t1;
+			return false;
+		}
+
+		final double[][] x = new double[ 3 ][ numFree * bs ];
+
+		for ( int i = 0; i < numTiles; ++i )
+			if ( !fixed[ i ] )
+				for ( int r = 0; r < 3; ++r )
+					for ( int k = 0; k < bs; ++k )
+						x[ r ][ unknown[ i ] * bs + k ] = u[ i ][ r ][ k ];
+
+		final int maxIterations = Math.max( 1000, 10 * numFree * bs );
+
+		for ( int r = 0; r < 3; ++r )
+		{
+			iterations[ r ] = h.solve( rhs[ r ], x[ r ], tolerance, maxIterations, residual, r );
+
+			if ( iterations[ r ] < 0 )
+			{
+				this.failure = "not converged after " + maxIterations + " iterations, residual " + residual[ r ];
+				this.solveTime = System.currentTimeMillis() - t1;
+				return false;
+			}
+		}
+
+		this.solveTime = System.currentTimeMillis() - t1;
+
+		//
+		// set the models and compute the errors
+		//
+		for ( int i = 0; i < numTiles; ++i )
+		{
+			if ( fixed[ i ] )
+				continue;
+
+			final int o = unknown[ i ] * bs;
+			final Model< ? > model = orderedTiles.get( i ).getModel();
+
+			if ( affine )
+			{
+				// back to image coordinates, u = u' * T^-1
+				for ( int r = 0; r < 3; ++r )
+				{
+					for ( int k = 0; k < 3; ++k )
+						x[ r ][ o + k ] /= scale[ i ];
+
+					for ( int k = 0; k < 3; ++k )
+						x[ r ][ o + 3 ] -= x[ r ][ o + k ] * center[ i ][ k ];
+				}
+
+				( (AffineModel3D)model ).set(
+						x[ 0 ][ o ], x[ 0 ][ o + 1 ], x[ 0 ][ o + 2 ], x[ 0 ][ o + 3 ],
+						x[ 1 ][ o ], x[ 1 ][ o + 1 ], x[ 1 ][ o + 2 ], x[ 1 ][ o + 3 ],
+						x[ 2 ][ o ], x[ 2 ][ o + 1 ], x[ 2 ][ o + 2 ], x[ 2 ][ o + 3 ] );
+			}
+			else
+				( (TranslationModel3D)model ).set( x[ 0 ][ o ], x[ 1 ][ o ], x[ 2 ][ o ] );
+		}
+
+		for ( final Tile< ? > tile : tiles )
+			tile.apply();
+
+		tc.computeError();
+
+		return true;
+	}
+
+	protected static int find( final int[] parent, int i )
+	{
+		while ( parent[ i ] != i )
+			i = parent[ i ] = parent[ parent[ i ] ];
+
+		return i;
+	}
+
+	protected double[] block( final HashMap< Long, double[] > blocks, final int row, final int col, final int numFree )
+	{
+		final long key = (long)row * numFree + col;
+		double[] block = blocks.get( key );
+
+		if ( block == null )
+		{
+			block = new double[ bs * bs ];
+			blocks.put( key, block );
+		}
+
+		return block;
+	}
+
+	protected void add( final double[] block, final double[] s, final double factor, final boolean transpose )
+	{
+		for ( int k = 0; k < bs; ++k )
+			for ( int l = 0; l < bs; ++l )
+				block[ k * bs + l ] += factor * ( transpose ? s[ l * bs + k ] : s[ k * bs + l ] );
+	}
+
+	/**
+	 * Symmetric sparse matrix of bs x bs blocks in compressed row storage
+	 */
+	protected static class BlockMatrix
+	{
+		final int n, bs;
+		final int[] rowStart, col;
+		final double[] values;
+
+		// inverse of the diagonal blocks (preconditioner)
+		final double[] invDiagonal;
+
+		public BlockMatrix( final HashMap< Long, double[] > blocks, final int n, final int bs )
+		{
+			this.n = n;
+			this.bs = bs;
+			this.rowStart = new int[ n + 1 ];
+			this.col = new int[ blocks.size() ];
+			this.values = new double[ blocks.size() * bs * bs ];
+			this.invDiagonal = new double[ n * bs * bs ];
+
+			final ArrayList< Long > keys = new ArrayList< Long >( blocks.keySet() );
+			java.util.Collections.sort( keys );
+
+			int i = 0;
+
+			for ( final long key : keys )
+			{
+				final int row = (int)( key / n );
+				col[ i ] = (int)( key % n );
+				System.arraycopy( blocks.get( key ), 0, values, i * bs * bs, bs * bs );
+				++rowStart[ row + 1 ];
+				++i;
+			}
+
+			for ( int row = 0; row < n; ++row )
+				rowStart[ row + 1 ] += rowStart[ row ];
+		}
+
+		/**
+		 * @return false if a diagonal block is singular
+		 */
+		public boolean invertDiagonal()
+		{
+			final double[] tmp = new double[ bs * bs ];
+
+			for ( int row = 0; row < n; ++row )
+			{
+				boolean found = false;
+
+				for ( int i = rowStart[ row ]; i < rowStart[ row + 1 ]; ++i )
+					if ( col[ i ] == row )
+					{
+						System.arraycopy( values, i * bs * bs, tmp, 0, bs * bs );
+						found = true;
+					}
+
+				if ( !found || !invert( tmp, invDiagonal, row * bs * bs, bs ) )
+					return false;
+			}
+
+			return true;
+		}
+
+		public void multiply( final double[] x, final double[] y )
+		{
+			for ( int row = 0; row < n; ++row )
+			{
+				final int o = row * bs;
+
+				for ( int k = 0; k < bs; ++k )
+					y[ o + k ] = 0;
+
+				for ( int i = rowStart[ row ]; i < rowStart[ row + 1 ]; ++i )
+				{
+					final int v = i * bs * bs;
+					final int c = col[ i ] * bs;
+
+					for ( int k = 0; k < bs; ++k )
+					{
+						double sum = 0;
+						for ( int l = 0; l < bs; ++l )
+							sum += values[ v + k * bs + l ] * x[ c + l ];
+						y[ o + k ] += sum;
+					}
+				}
+			}
+		}
+
+		public void precondition( final double[] r, final double[] z )
+		{
+			for ( int row = 0; row < n; ++row )
+			{
+				final int o = row * bs;
+				final int v = row * bs * bs;
+
+				for ( int k = 0; k < bs; ++k )
+				{
+					double sum = 0;
+					for ( int l = 0; l < bs; ++l )
+						sum += invDiagonal[ v + k * bs + l ] * r[ o + l ];
+					z[ o + k ] = sum;
+				}
+			}
+		}
+
+		/**
+		 * Preconditioned conjugate gradients
+		 *
+		 * @param b - right hand side
+		 * @param x - initial guess and solution
+		 * @return the number of iterations, -1 if it did not converge
+		 */
+		public int solve( final double[] b, final double[] x, final double tolerance, final int maxIterations, final double[] residual, final int index )
+		{
+			final int size = n * bs;
+			final double[] r = new double[ size ];
+			final double[] z = new double[ size ];
+			final double[] p = new double[ size ];
+			final double[] ap = new double[ size ];
+
+			multiply( x, ap );
+
+			for ( int i = 0; i < size; ++i )
+				r[ i ] = b[ i ] - ap[ i ];
+
+			final double normB = Math.max( norm( b ), Double.MIN_NORMAL );
+
+			residual[ index ] = norm( r ) / normB;
+
+			if ( residual[ index ] <= tolerance )
+				return 0;
+
+			precondition( r, z );
+			System.arraycopy( z, 0, p, 0, size );
+
+			double rz = dot( r, z );
+
+			for ( int it = 1; it <= maxIterations; ++it )
+			{
+				multiply( p, ap );
+
+				final double pap = dot( p, ap );
+
+				if ( !( pap > 0 ) )
+					return -1; // not positive definite
+
+				final double alpha = rz / pap;
+
+				for ( int i = 0; i < size; ++i )
+				{
+					x[ i ] += alpha * p[ i ];
+					r[ i ] -= alpha * ap[ i ];
+				}
+
+				residual[ index ] = norm( r ) / normB;
+
+				if ( residual[ index ] <= tolerance )
+					return it;
+
+				precondition( r, z );
+
+				final double rzNew = dot( r, z );
+				final double beta = rzNew / rz;
+				rz = rzNew;
+
+				for ( int i = 0; i < size; ++i )
+					p[ i ] = z[ i ] + beta * p[ i ];
+			}
+
+			return -1;
+		}
+
+		protected static double dot( final double[] a, final double[] b )
+		{
+			double sum = 0;
+			for ( int i = 0; i < a.length; ++i )
+				sum += a[ i ] * b[ i ];
+			return sum;
+		}
+
+		protected static double norm( final double[] a ) { return Math.sqrt( dot( a, a ) ); }
+
+		/**
+		 * Gauss-Jordan elimination with partial pivoting
+		 *
+		 * @return false if the matrix is singular
+		 */
+		protected static boolean invert( final double[] a, final double[] inv, final int offset, final int n )
+		{
+			final double[] m = a.clone();
+			final double[] r = new double[ n * n ];
+
+			double scale = 0;
+			for ( int i = 0; i < n; ++i )
+			{
+				r[ i * n + i ] = 1;
+				scale = Math.max( scale, Math.abs( m[ i * n + i ] ) );
+			}
+
+			for ( int c = 0; c < n; ++c )
+			{
+				int pivot = c;
+				for ( int i = c + 1; i < n; ++i )
+					if ( Math.abs( m[ i * n + c ] ) > Math.abs( m[ pivot * n + c ] ) )
+						pivot = i;
+
+				if ( !( Math.abs( m[ pivot * n + c ] ) > 1e-14 * scale ) )
+					return false;
+
+				if ( pivot != c )
+					for ( int k = 0; k < n; ++k )
+					{
+						double tmp = m[ c * n + k ]; m[ c * n + k ] = m[ pivot * n + k ]; m[ pivot * n + k ] = tmp;
+						tmp = r[ c * n + k ]; r[ c * n + k ] = r[ pivot * n + k ]; r[ pivot * n + k ] = tmp;
+					}
+
+				final double d = m[ c * n + c ];
+
+				for ( int k = 0; k < n; ++k )
+				{
+					m[ c * n + k ] /= d;
+					r[ c * n + k ] /= d;
+				}
+
+				for ( int i = 0; i < n; ++i )
+				{
+					if ( i == c )
+						continue;
+
+					final double f = m[ i * n + c ];
+
+					if ( f != 0 )
+						for ( int k = 0; k < n; ++k )
+						{
+							m[ i * n + k ] -= f * m[ c * n + k ];
+							r[ i * n + k ] -= f * r[ c * n + k ];
+						}
+				}
+			}
+
+			System.arraycopy( r, 0, inv, offset, n * n );
+
+			return true;
+		}
+	}
+}
@@ -40,6 +40,8 @@ import mpicbg.models.TileConfiguration;
 import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
+import net.imglib2.util.Util;
+import spim.Threads;
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationSubset;
 import spim.process.interestpointregistration.optimizationtypes.GlobalOptimizationType;
 import spim.vecmath.Matrix4f;
@@ -55,6 +57,13 @@ import spim.vecmath.Vector3f;
  */
 public class GlobalOpt
 {
+	// solve affine and translation models directly from the normal equations instead of iteratively, see DirectGlobalOpt
+	public static boolean useDirectSolver = true;
+
+	// update independent tiles concurrently in the iterative optimization, see ParallelGlobalOpt
+	public static boolean useParallelOptimizer = true;
+	public static int minTilesParallelOptimizer = 100;
+
 	/**
 	 * Computes a global optimization based on the corresponding points
 	 * 
@@ -91,14 +100,57 @@ public class GlobalOpt
 		// now perform the global optimization
 		try 
 		{
-			int unaligned = tc.preAlign().size();
-			if ( unaligned > 0 )
-				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): pre-aligned all tiles but " + unaligned );
-			else
-				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): prealigned all tiles" );
-			
-			tc.optimize( 10, 10000, 200 );
-			
+			boolean solved = false;
+
+			if ( useDirectSolver && DirectGlobalOpt.canSolve( model ) )
+			{
+				final DirectGlobalOpt< M > direct = new DirectGlobalOpt< M >( tc, pairs, views, map );
+				solved = direct.solve();
+
+				if ( solved )
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Solved directly for " + direct.getNumUnknowns() +
+						" parameters (" + direct.getNumBlocks() + " blocks), CG iterations x/y/z=" + Util.printCoordinates( direct.getIterations() ) +
+						", residual x/y/z=" + Util.printCoordinates( direct.getResidual() ) +
+						" (assembly " + direct.getAssemblyTime() + " ms, solve " + direct.getSolveTime() + " ms)" );
+				else
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Direct solve failed (" + direct.getFailure() + ", " +
+						( direct.getAssemblyTime() + direct.getSolveTime() ) + " ms), using the iterative optimization." );
+			}
+
+			if ( !solved )
+			{
+				final long t = System.currentTimeMillis();
+
+				int unaligned = tc.preAlign().size();
+				if ( unaligned > 0 )
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): pre-aligned all tiles but " + unaligned );
+				else
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): prealigned all tiles" );
+
+				if ( useParallelOptimizer && Threads.numThreads() > 1 && tc.getTiles().size() >= minTilesParallelOptimizer )
+				{
+					// the tiles in the order of the views, so the coloring does not depend on the order of the HashSet
+					final ArrayList< Tile< ? > > orderedTiles = new ArrayList< Tile< ? > >();
+					final HashSet< Tile< ? > > added = new HashSet< Tile< ? > >();
+
+					for ( final ViewId viewId : views )
+					{
+						final Tile< M > tile = map.get( viewId );
+
+						if ( tc.getTiles().contains( tile ) && added.add( tile ) )
+							orderedTiles.add( tile );
+					}
+
+					new ParallelGlobalOpt( tc, orderedTiles ).optimize( 10, 10000, 200 );
+				}
+				else
+				{
+					tc.optimize( 10, 10000, 200 );
+				}
+
+				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Iterative optimization took " + ( System.currentTimeMillis() - t ) + " ms" );
+			}
+
 			if ( considerTimePointsAsUnit )
 				IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Global optimization of " + 
 					tc.getTiles().size() +  " timepoint-tiles (Model=" + model.getClass().getSimpleName()  + "):" );
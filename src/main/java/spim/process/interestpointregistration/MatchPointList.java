@@ -21,9 +21,11 @@
  */
 package spim.process.interestpointregistration;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointStore;
 
 /**
  * The interestpoint list from a certain channel;
@@ -33,15 +35,35 @@ import spim.fiji.spimdata.interestpoints.InterestPoint;
  */
 public class MatchPointList
 {
-	final List< InterestPoint > interestpointList;
+	final InterestPointStore interestpoints;
 	final ChannelProcess channel;
-	
-	public MatchPointList( final List< InterestPoint > interestpointList, final ChannelProcess channel )
+
+	public MatchPointList( final InterestPointStore interestpoints, final ChannelProcess channel )
 	{
-		this.interestpointList = interestpointList;
+		this.interestpoints = interestpoints;
 		this.channel = channel;
 	}
-	
-	public List< InterestPoint > getInterestpointList() { return interestpointList; }
+
+	public MatchPointList( final List< InterestPoint > interestpointList, final ChannelProcess channel )
+	{
+		this( InterestPointStore.fromList( interestpointList ), channel );
+	}
+
+	public InterestPointStore getInterestPointStore() { return interestpoints; }
+	public List< InterestPoint > getInterestpointList() { return interestpoints.asList(); }
 	public ChannelProcess getChannelProcessed() { return channel; }
+	public int size() { return interestpoints.size(); }
+
+	/**
+	 * @return a new list of {@link Detection}s (using the local coordinates) for matching
+	 */
+	public ArrayList< Detection > createDetections()
+	{
+		final ArrayList< Detection > detections = new ArrayList< Detection >( interestpoints.size() );
+
+		for ( int i = 0; i < interestpoints.size(); ++i )
+			detections.add( new Detection( interestpoints.getId( i ), interestpoints.getL( i ) ) );
+
+		return detections;
+	}
 }
@@ -35,6 +35,14 @@ public class PairwiseMatch
 	
 	double error = -1;
 	ArrayList< PointMatchGeneric< Detection > > candidates, inliers;
+
+	// timing of the pairwise matching in ms, -1 if not computed (e.g. reused)
+	volatile long startTime = -1;
+	long computeTime = -1;
+	boolean cancelled = false;
+
+	// per-view detections, trees and descriptors shared with the other pairs of the subset, may be null
+	ViewIndexCache viewCache = null;
 	
 	public PairwiseMatch( final ViewId viewIdA, final ViewId viewIdB, final MatchPointList listA, final MatchPointList listB )
 	{
@@ -58,6 +66,20 @@ public class PairwiseMatch
 	public ArrayList< PointMatchGeneric< Detection > > getCandidates() { return candidates; }
 	public ArrayList< PointMatchGeneric< Detection > > getInliers() { return inliers; }
 
+	/**
+	 * @return - the estimated cost of matching this pair, |A|*|B|
+	 */
+	public long getCost() { return (long)listA.size() * (long)listB.size(); }
+
+	public long getStartTime() { return startTime; }
+	public long getComputeTime() { return computeTime; }
+	public boolean isCancelled() { return cancelled; }
+	public void setStartTime( final long startTime ) { this.startTime = startTime; }
+	public void setComputeTime( final long computeTime ) { this.computeTime = computeTime; }
+	public void setCancelled( final boolean cancelled ) { this.cancelled = cancelled; }
+	public ViewIndexCache getViewCache() { return viewCache; }
+	public void setViewCache( final ViewIndexCache viewCache ) { this.viewCache = viewCache; }
+
 	public ArrayList< ViewId > getBothViewIds()
 	{
 		final ArrayList< ViewId > l = new ArrayList< ViewId >();
@@ -66,6 +88,24 @@ public class PairwiseMatch
 		return l;
 	}
 
+	/**
+	 * @return - a new pair of the same views (sharing point lists and view cache) without results. The matching runs on
+	 * such a private copy, its result is only published to this pair with {@link #setResult(PairwiseMatch)} if it succeeded
+	 * in time, so a pair that timed out and keeps running cannot modify this pair anymore.
+	 */
+	public PairwiseMatch createResult()
+	{
+		final PairwiseMatch result = new PairwiseMatch( viewIdA, viewIdB, listA, listB );
+		result.viewCache = viewCache;
+		return result;
+	}
+
+	public void setResult( final PairwiseMatch result )
+	{
+		setCandidates( result.getCandidates() );
+		setInliers( result.getInliers(), result.getAvgError() );
+	}
+
 	public void setCandidates( final ArrayList< PointMatchGeneric< Detection > > candidates ) { this.candidates = candidates; }
 	public void setInliers( final ArrayList< PointMatchGeneric< Detection > > inliers, final double error )
 	{
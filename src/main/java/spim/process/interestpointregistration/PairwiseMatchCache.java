@@ -0,0 +1,519 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import mpicbg.spim.data.registration.ViewRegistration;
+import mpicbg.spim.data.registration.ViewRegistrations;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+import net.imglib2.realtransform.AffineTransform3D;
+import spim.fiji.spimdata.SpimData2;
+import spim.fiji.spimdata.interestpoints.InterestPointList;
+import spim.fiji.spimdata.interestpoints.InterestPointStore;
+
+/**
+ * Persists the result (candidates, inliers, error) of each {@link PairwiseMatch} so that a repeated
+ * registration only needs to match pairs that changed. A result is identified by the pair of views,
+ * their labels, a checksum of their detections, their transformations and the parameters of the
+ * matching, i.e. it becomes stale if any of those change.
+ *
+ * Correspondences are stored as pairs of detection ids. After a global optimization the result is
+ * also stored for the updated transformations ({@link #update(SpimData2, PairwiseMatch, String, Invariance, Map)}),
+ * but only if the descriptors and the RANSAC model of the matching are invariant to how the views moved
+ * (e.g. translation-invariant descriptors after a translation); results of ICP or of matching that
+ * depends on the old transformations in another way are never carried over.
+ *
+ * Each pair (views, labels and parameters) is stored in its own file, a new result of the same pair
+ * overwrites the old one. The full key is stored in the file to validate it, {@link #evict(int)} limits
+ * the number of files left behind by different parameters.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class PairwiseMatchCache
+{
+	public static String defaultDirectory = "interestpoints/matches";
+	public static String ext = ".match";
+	public static int defaultMaxFiles = 10000;
+
+	/**
+	 * Which changes of the transformations of the views a matching result survives
+	 */
+	public static enum Invariance { NONE, TRANSLATION, RIGID };
+
+	// separates the identity of the pair (file name) from the state of its views
+	final static char separator = '|';
+
+	final static Charset utf8 = Charset.forName( "UTF-8" );
+
+	final File dir;
+
+	// checksums of the detections by "timepointId,viewSetupId,label"
+	final HashMap< String, String > checksums = new HashMap< String, String >();
+
+	public PairwiseMatchCache( final File dir )
+	{
+		this.dir = dir;
+	}
+
+	public PairwiseMatchCache( final SpimData2 spimData )
+	{
+		this( new File( spimData.getBasePath(), defaultDirectory ) );
+	}
+
+	public File getDirectory() { return dir; }
+
+	/**
+	 * Forget the checksums of the detections, necessary if they might have changed since the last call of
+	 * {@link #key(SpimData2, PairwiseMatch, String)}
+	 */
+	public void clearChecksums() { checksums.clear(); }
+
+	/**
+	 * @param spimData - the current registrations of the views
+	 * @param pair - the pair to be matched
+	 * @param parameters - all parameters of the matching
+	 * @return the key identifying the result of matching this pair with the current transformations
+	 */
+	public String key( final SpimData2 spimData, final PairwiseMatch pair, final String parameters )
+	{
+		final String labelA = pair.getChannelProcessedA().getLabel();
+		final String labelB = pair.getChannelProcessedB().getLabel();
+
+		return
+				"A=" + viewId( pair.getViewIdA(), labelA ) + ";" +
+				"B=" + viewId( pair.getViewIdB(), labelB ) + ";" +
+				"P=" + parameters + separator +
+				"A=" + viewState( spimData, pair.getViewIdA(), labelA ) + ";" +
+				"B=" + viewState( spimData, pair.getViewIdB(), labelB );
+	}
+
+	protected static String viewId( final ViewId viewId, final String label )
+	{
+		return viewId.getTimePointId() + "," + viewId.getViewSetupId() + "," + label;
+	}
+
+	protected String viewState( final SpimData2 spimData, final ViewId viewId, final String label )
+	{
+		final String id = viewId( viewId, label );
+
+		String checksum = checksums.get( id );
+
+		if ( checksum == null )
+		{
+			final InterestPointList list = spimData.getViewInterestPoints().getViewInterestPointLists( viewId ).getInterestPointList( label );
+
+			if ( list.getInterestPoints() == null )
+				list.loadInterestPoints();
+
+			checksum = checksum( list.getInterestPointStore() );
+			checksums.put( id, checksum );
+		}
+
+		final ViewRegistration vr = spimData.getViewRegistrations().getViewRegistration( viewId );
+		vr.updateModel();
+
+		return checksum + "," + Arrays.toString( vr.getModel().getRowPackedCopy() );
+	}
+
+	/**
+	 * Sets candidates, inliers and error of the pair if a result for this key exists.
+	 *
+	 * @param pair - the pair
+	 * @param key - from {@link #key(SpimData2, PairwiseMatch, String)}
+	 * @return true if the result was restored, false if the pair has to be matched
+	 */
+	public boolean load( final PairwiseMatch pair, final String key )
+	{
+		final File file = getFile( key );
+
+		if ( !file.exists() )
+			return false;
+
+		try
+		{
+			final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+
+			try
+			{
+				// hash collision or different version
+				if ( !key.equals( in.readUTF() ) )
+					return false;
+
+				final double error = in.readDouble();
+
+				final DetectionLookup detectionsA = new DetectionLookup( pair.getMatchPointListA().getInterestPointStore() );
+				final DetectionLookup detectionsB = new DetectionLookup( pair.getMatchPointListB().getInterestPointStore() );
+
+				final ArrayList< PointMatchGeneric< Detection > > candidates = readMatches( in, detectionsA, detectionsB );
+				final ArrayList< PointMatchGeneric< Detection > > inliers = readMatches( in, detectionsA, detectionsB );
+
+				if ( candidates == null || inliers == null )
+					return false;
+
+				pair.setCandidates( candidates );
+				pair.setInliers( inliers, error );
+
+				return true;
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "PairwiseMatchCache.load(): Cannot read '" + file + "': " + e );
+			return false;
+		}
+	}
+
+	/**
+	 * @param pair - the pair after matching
+	 * @param key - from {@link #key(SpimData2, PairwiseMatch, String)}
+	 */
+	public void save( final PairwiseMatch pair, final String key )
+	{
+		final File file = getFile( key );
+
+		try
+		{
+			if ( !dir.exists() )
+				dir.mkdirs();
+
+			final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ) ) );
+
+			try
+			{
+				out.writeUTF( key );
+				out.writeDouble( pair.getAvgError() );
+				writeMatches( out, pair.getCandidates() );
+				writeMatches( out, pair.getInliers() );
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch ( final IOException e )
+		{
+			IOFunctions.println( "PairwiseMatchCache.save(): Cannot write '" + file + "': " + e );
+			file.delete();
+		}
+	}
+
+	/**
+	 * Store the result of a pair again for the current transformations (e.g. after a global optimization) if
+	 * matching it again would find the same correspondences, i.e. if each view only moved in a way the matching
+	 * is invariant to. Otherwise the stored result stays keyed to the old transformations and the pair is matched
+	 * again next time.
+	 *
+	 * @param spimData - the updated registrations
+	 * @param pair - the pair after matching
+	 * @param parameters - all parameters of the matching
+	 * @param invariance - which changes of the transformations the matching is invariant to
+	 * @param before - the transformations of the views when the pair was matched, see {@link #getTransforms(ViewRegistrations, Iterable)}
+	 * @return true if the result was stored for the current transformations
+	 */
+	public boolean update(
+			final SpimData2 spimData,
+			final PairwiseMatch pair,
+			final String parameters,
+			final Invariance invariance,
+			final Map< ViewId, AffineTransform3D > before )
+	{
+		final ViewRegistrations vrs = spimData.getViewRegistrations();
+
+		if ( !isInvariant( invariance, before.get( pair.getViewIdA() ), getTransform( vrs, pair.getViewIdA() ) ) ||
+			 !isInvariant( invariance, before.get( pair.getViewIdB() ), getTransform( vrs, pair.getViewIdB() ) ) )
+			return false;
+
+		save( pair, key( spimData, pair, parameters ) );
+
+		return true;
+	}
+
+	/**
+	 * @return a copy of the current transformations of the views, to decide after a global optimization which results
+	 * can be updated
+	 */
+	public static HashMap< ViewId, AffineTransform3D > getTransforms( final ViewRegistrations vrs, final Iterable< ? extends ViewId > viewIds )
+	{
+		final HashMap< ViewId, AffineTransform3D > transforms = new HashMap< ViewId, AffineTransform3D >();
+
+		for ( final ViewId viewId : viewIds )
+			transforms.put( viewId, getTransform( vrs, viewId ) );
+
+		return transforms;
+	}
+
+	protected static AffineTransform3D getTransform( final ViewRegistrations vrs, final ViewId viewId )
+	{
+		final ViewRegistration vr = vrs.getViewRegistration( viewId );
+		vr.updateModel();
+
+		return vr.getModel().copy();
+	}
+
+	/**
+	 * @param invariance - which changes of the transformation are allowed
+	 * @param before - transformation when the pair was matched
+	 * @param after - current transformation
+	 * @return true if after = change * before and the change is of the allowed type
+	 */
+	public static boolean isInvariant( final Invariance invariance, final AffineTransform3D before, final AffineTransform3D after )
+	{
+		if ( before == null || after == null || invariance == Invariance.NONE )
+			return false;
+
+		final AffineTransform3D change = before.inverse().copy();
+		change.preConcatenate( after );
+
+		final double eps = 1e-9;
+
+		for ( int r = 0; r < 3; ++r )
+			for ( int c = 0; c < 3; ++c )
+			{
+				final double expected = r == c ? 1 : 0;
+
+				if ( invariance == Invariance.TRANSLATION )
+				{
+					if ( Math.abs( change.get( r, c ) - expected ) > eps )
+						return false;
+				}
+				else
+				{
+					// orthonormal columns
+					double dot = 0;
+
+					for ( int k = 0; k < 3; ++k )
+						dot += change.get( k, r ) * change.get( k, c );
+
+					if ( Math.abs( dot - expected ) > eps )
+						return false;
+				}
+			}
+
+		// no reflection
+		final double det =
+				change.get( 0, 0 ) * ( change.get( 1, 1 ) * change.get( 2, 2 ) - change.get( 1, 2 ) * change.get( 2, 1 ) ) -
+				change.get( 0, 1 ) * ( change.get( 1, 0 ) * change.get( 2, 2 ) - change.get( 1, 2 ) * change.get( 2, 0 ) ) +
+				change.get( 0, 2 ) * ( change.get( 1, 0 ) * change.get( 2, 1 ) - change.get( 1, 1 ) * change.get( 2, 0 ) );
+
+		return det > 0;
+	}
+
+	/**
+	 * Deletes the least recently written results if there are more than maxFiles in the cache directory
+	 *
+	 * @param maxFiles - the number of results to keep
+	 * @return the number of deleted files
+	 */
+	public int evict( final int maxFiles )
+	{
+		final File[] files = dir.listFiles();
+
+		if ( files == null )
+			return 0;
+
+		final ArrayList< File > results = new ArrayList< File >();
+
+		for ( final File file : files )
+			if ( file.isFile() && file.getName().endsWith( ext ) )
+				results.add( file );
+
+		if ( results.size() <= maxFiles )
+			return 0;
+
+		final long[] lastModified = new long[ results.size() ];
+		final Integer[] order = new Integer[ results.size() ];
+
+		for ( int i = 0; i < results.size(); ++i )
+		{
+			lastModified[ i ] = results.get( i ).lastModified();
+			order[ i ] = i;
+		}
+
+		Arrays.sort( order, new Comparator< Integer >()
+		{
+			@Override
+			public int compare( final Integer o1, final Integer o2 )
+			{
+				return Long.compare( lastModified[ o1 ], lastModified[ o2 ] );
+			}
+		} );
+
+		int deleted = 0;
+
+		for ( int i = 0; i < results.size() - maxFiles; ++i )
+			if ( results.get( order[ i ] ).delete() )
+				++deleted;
+
+		return deleted;
+	}
+
+	/**
+	 * @return the file for the pair identified by the key, i.e. a new result for the same pair overwrites the old one
+	 */
+	protected File getFile( final String key )
+	{
+		final int i = key.lastIndexOf( separator );
+
+		return new File( dir, sha1( ( i < 0 ? key : key.substring( 0, i ) ).getBytes( utf8 ) ) + ext );
+	}
+
+	protected static void writeMatches( final DataOutputStream out, final ArrayList< PointMatchGeneric< Detection > > matches ) throws IOException
+	{
+		out.writeInt( matches.size() );
+
+		for ( final PointMatchGeneric< Detection > pm : matches )
+		{
+			out.writeInt( pm.getPoint1().getId() );
+			out.writeInt( pm.getPoint2().getId() );
+		}
+	}
+
+	protected static ArrayList< PointMatchGeneric< Detection > > readMatches(
+			final DataInputStream in,
+			final DetectionLookup detectionsA,
+			final DetectionLookup detectionsB ) throws IOException
+	{
+		final int n = in.readInt();
+		final ArrayList< PointMatchGeneric< Detection > > matches = new ArrayList< PointMatchGeneric< Detection > >( n );
+
+		for ( int i = 0; i < n; ++i )
+		{
+			final Detection a = detectionsA.get( in.readInt() );
+			final Detection b = detectionsB.get( in.readInt() );
+
+			if ( a == null || b == null )
+				return null;
+
+			matches.add( new PointMatchGeneric< Detection >( a, b ) );
+		}
+
+		return matches;
+	}
+
+	/**
+	 * Creates the {@link Detection}s by id, the same instance is shared between candidates and inliers (as after matching)
+	 */
+	protected static class DetectionLookup
+	{
+		final InterestPointStore store;
+		final HashMap< Integer, Integer > index = new HashMap< Integer, Integer >();
+		final HashMap< Integer, Detection > detections = new HashMap< Integer, Detection >();
+
+		public DetectionLookup( final InterestPointStore store )
+		{
+			this.store = store;
+
+			for ( int i = 0; i < store.size(); ++i )
+				index.put( store.getId( i ), i );
+		}
+
+		/**
+		 * @return the detection or null if the id does not exist (anymore)
+		 */
+		public Detection get( final int id )
+		{
+			Detection d = detections.get( id );
+
+			if ( d == null )
+			{
+				final Integer i = index.get( id );
+
+				if ( i == null )
+					return null;
+
+				d = new Detection( id, store.getL( i ) );
+				detections.put( id, d );
+			}
+
+			return d;
+		}
+	}
+
+	public static String checksum( final InterestPointStore store )
+	{
+		final MessageDigest md = sha1();
+		final byte[] bytes = new byte[ 8 ];
+
+		for ( int i = 0; i < store.size(); ++i )
+			md.update( toBytes( store.getId( i ), bytes ), 4, 4 );
+
+		for ( int i = 0; i < store.size(); ++i )
+			for ( int d = 0; d < store.numDimensions(); ++d )
+				md.update( toBytes( Double.doubleToLongBits( store.getL( i, d ) ), bytes ), 0, 8 );
+
+		return hex( md.digest() );
+	}
+
+	protected static byte[] toBytes( final long v, final byte[] bytes )
+	{
+		for ( int i = 7, s = 0; i >= 0; --i, s += 8 )
+			bytes[ i ] = (byte)( v >>> s );
+
+		return bytes;
+	}
+
+	protected static String sha1( final byte[] data ) { return hex( sha1().digest( data ) ); }
+
+	protected static MessageDigest sha1()
+	{
+		try
+		{
+			return MessageDigest.getInstance( "SHA-1" );
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+
+	protected static String hex( final byte[] digest )
+	{
+		final StringBuilder s = new StringBuilder();
+
+		for ( final byte b : digest )
+			s.append( String.format( "%02x", b & 0xff ) );
+
+		return s.toString();
+	}
+}
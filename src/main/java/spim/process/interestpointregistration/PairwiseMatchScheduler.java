@@ -0,0 +1,326 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import mpicbg.spim.io.IOFunctions;
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+
+/**
+ * Runs the pairwise matching of a set of {@link PairwiseMatch}es. The most expensive pairs
+ * (estimated as |A|*|B| interest points) are started first so that a single slow pair does not
+ * start last and hold back the whole subset. Finished pairs are handed to a {@link Listener} as
+ * soon as they complete, pairs can time out individually and all remaining pairs can be cancelled.
+ *
+ * The tasks should match into a private result (see {@link PairwiseMatch#createResult()}), which is published
+ * to the pair only if the task finished in time. Cancelling interrupts the thread running the task (the
+ * matchers and the RANSAC check for it, see {@link #abortIfInterrupted()}); a cancelled pair is reported as
+ * failed (no candidates and inliers) and marked as cancelled.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class PairwiseMatchScheduler
+{
+	public interface Listener
+	{
+		/**
+		 * Called from the thread that runs {@link PairwiseMatchScheduler#run(List, List, Listener)} in the order the pairs finish
+		 *
+		 * @param pair - the pair, if it timed out, failed or was cancelled it has no candidates and no inliers and is marked as cancelled
+		 */
+		public void finished( final PairwiseMatch pair );
+	}
+
+	final ExecutorService service;
+	final long timeout;
+
+	volatile boolean cancelled = false;
+
+	// polled while waiting for the pairs, cancels all pairs if it returns true
+	BooleanSupplier cancelCondition = null;
+
+	/**
+	 * @param service - where to run the matching
+	 * @param timeout - maximal time in ms per pair, &lt;= 0 means no timeout
+	 */
+	public PairwiseMatchScheduler( final ExecutorService service, final long timeout )
+	{
+		this.service = service;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Cancels all pairs that did not finish yet, {@link #run(List, List, Listener)} returns once the
+	 * remaining pairs were reported as cancelled
+	 */
+	public void cancel() { cancelled = true; }
+	public boolean isCancelled() { return cancelled; }
+
+	/**
+	 * @param cancelCondition - polled regularly while the pairs are matched (e.g. if Escape was pressed), all pairs are cancelled once it returns true
+	 */
+	public void setCancelCondition( final BooleanSupplier cancelCondition ) { this.cancelCondition = cancelCondition; }
+
+	/**
+	 * To be called by the matching between expensive steps
+	 *
+	 * @throws InterruptedException if the pair was cancelled or timed out
+	 */
+	public static void abortIfInterrupted() throws InterruptedException
+	{
+		if ( Thread.interrupted() )
+			throw new InterruptedException( "Pairwise matching cancelled" );
+	}
+
+	/**
+	 * The thread running a task while it runs, so it can be interrupted (ForkJoinTask.cancel() does not interrupt)
+	 */
+	protected static class Running
+	{
+		Thread thread = null;
+		boolean done = false;
+
+		public synchronized boolean start()
+		{
+			if ( done )
+				return false;
+
+			thread = Thread.currentThread();
+			return true;
+		}
+
+		public synchronized void finish()
+		{
+			thread = null;
+			done = true;
+
+			// an interrupt that arrived after the task finished must not hit the next task of this worker
+			Thread.interrupted();
+		}
+
+		public synchronized void interrupt()
+		{
+			done = true;
+
+			if ( thread != null )
+				thread.interrupt();
+		}
+	}
+
+	/**
+	 * @param pairs - the pairs to match
+	 * @param tasks - the matching for each pair (same order)
+	 * @param listener - receives each pair when it finished, can be null
+	 * @return the number of pairs that timed out or were cancelled
+	 */
+	public int run( final List< PairwiseMatch > pairs, final List< Callable< PairwiseMatch > > tasks, final Listener listener )
+	{
+		final ArrayList< Integer > order = new ArrayList< Integer >();
+
+		for ( int i = 0; i < pairs.size(); ++i )
+			order.add( i );
+
+		// longest first
+		Collections.sort( order, new Comparator< Integer >()
+		{
+			@Override
+			public int compare( final Integer o1, final Integer o2 )
+			{
+				final long c1 = pairs.get( o1 ).getCost();
+				final long c2 = pairs.get( o2 ).getCost();
+
+				return c1 < c2 ? 1 : c1 == c2 ? 0 : -1;
+			}
+		} );
+
+		final CompletionService< PairwiseMatch > completion = new ExecutorCompletionService< PairwiseMatch >( service );
+		final HashMap< Future< PairwiseMatch >, PairwiseMatch > running = new HashMap< Future< PairwiseMatch >, PairwiseMatch >();
+		final HashMap< Future< PairwiseMatch >, Running > threads = new HashMap< Future< PairwiseMatch >, Running >();
+
+		for ( final int i : order )
+		{
+			final PairwiseMatch pair = pairs.get( i );
+			final Callable< PairwiseMatch > task = tasks.get( i );
+			final Running thread = new Running();
+
+			final Future< PairwiseMatch > future = completion.submit( new Callable< PairwiseMatch >()
+			{
+				@Override
+				public PairwiseMatch call() throws Exception
+				{
+					if ( !thread.start() )
+						return null;
+
+					try
+					{
+						pair.setStartTime( System.currentTimeMillis() );
+						final PairwiseMatch result = task.call();
+						pair.setComputeTime( System.currentTimeMillis() - pair.getStartTime() );
+						return result;
+					}
+					finally
+					{
+						thread.finish();
+					}
+				}
+			} );
+
+			running.put( future, pair );
+			threads.put( future, thread );
+		}
+
+		int numFailed = 0;
+
+		while ( !running.isEmpty() )
+		{
+			Future< PairwiseMatch > future = null;
+
+			try
+			{
+				future = completion.poll( pollInterval( running ), TimeUnit.MILLISECONDS );
+			}
+			catch ( final InterruptedException e )
+			{
+				cancel();
+			}
+
+			if ( future != null )
+			{
+				final PairwiseMatch pair = running.remove( future );
+				threads.remove( future );
+
+				// cancelled before, already reported
+				if ( pair == null )
+					continue;
+
+				PairwiseMatch result = null;
+
+				try
+				{
+					result = future.get();
+				}
+				catch ( final InterruptedException e )
+				{
+					cancel();
+				}
+				catch ( final ExecutionException e )
+				{
+					IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Matching failed: " + e.getCause() );
+					e.printStackTrace();
+
+					// it did not finish, just like a cancelled pair
+					pair.setCancelled( true );
+				}
+				catch ( final CancellationException e ) {}
+
+				if ( !future.isCancelled() )
+				{
+					// publish the result of the matching
+					if ( result == null || result.getCandidates() == null || result.getInliers() == null )
+						setFailed( pair );
+					else if ( result != pair )
+						pair.setResult( result );
+
+					if ( listener != null )
+						listener.finished( pair );
+				}
+			}
+
+			if ( cancelCondition != null && !cancelled && cancelCondition.getAsBoolean() )
+				cancel();
+
+			// cancel timed out pairs or everything if requested
+			final long time = System.currentTimeMillis();
+
+			for ( final Future< PairwiseMatch > f : new ArrayList< Future< PairwiseMatch > >( running.keySet() ) )
+			{
+				final PairwiseMatch pair = running.get( f );
+				final boolean timedOut = timeout > 0 && pair.getStartTime() > 0 && time - pair.getStartTime() > timeout;
+
+				if ( cancelled || timedOut )
+				{
+					// interrupt only while the task is running (the matching checks for it), an interrupt from
+					// cancel( true ) could arrive after the task finished and hit the next task of the worker
+					threads.remove( f ).interrupt();
+					f.cancel( false );
+					running.remove( f );
+					++numFailed;
+
+					if ( timedOut )
+					{
+						pair.setComputeTime( time - pair.getStartTime() );
+						IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Pair [TP=" + pair.getViewIdA().getTimePointId() + ", setup=" + pair.getViewIdA().getViewSetupId() +
+								" >>> TP=" + pair.getViewIdB().getTimePointId() + ", setup=" + pair.getViewIdB().getViewSetupId() + "] timed out after " + timeout + " ms." );
+					}
+
+					setFailed( pair );
+					pair.setCancelled( true );
+
+					if ( listener != null )
+						listener.finished( pair );
+				}
+			}
+		}
+
+		return numFailed;
+	}
+
+	protected long pollInterval( final HashMap< Future< PairwiseMatch >, PairwiseMatch > running )
+	{
+		if ( cancelled )
+			return 0;
+
+		if ( timeout <= 0 )
+			return 250;
+
+		// wake up when the first running pair would time out
+		long next = 250;
+		final long time = System.currentTimeMillis();
+
+		for ( final PairwiseMatch pair : running.values() )
+			if ( pair.getStartTime() > 0 )
+				next = Math.min( next, pair.getStartTime() + timeout - time + 1 );
+
+		return Math.max( 1, next );
+	}
+
+	protected static void setFailed( final PairwiseMatch pair )
+	{
+		pair.setCandidates( new ArrayList< PointMatchGeneric< Detection > >() );
+		pair.setInliers( new ArrayList< PointMatchGeneric< Detection > >(), Double.NaN );
+	}
+}
@@ -0,0 +1,291 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import mpicbg.models.ErrorStatistic;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.spim.io.IOFunctions;
+import spim.Threads;
+
+/**
+ * Iterative global optimization like {@link TileConfiguration#optimize(double, int, int)}, but the tiles are
+ * updated concurrently. The graph of connected tiles is colored so that no two connected tiles have the same
+ * color; all tiles of one color only depend on tiles of other colors and are fit and applied in parallel,
+ * one color after the other (Gauss-Seidel by color). Fixed tiles are never updated, the termination criteria
+ * are the same as the ones of the {@link TileConfiguration}.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ParallelGlobalOpt
+{
+	// print the errors every n iterations
+	public static int printEvery = 1000;
+
+	final TileConfiguration tc;
+	final ArrayList< ArrayList< Tile< ? > > > colors;
+	final ArrayList< Tile< ? > > tiles;
+
+	double error, minError, maxError;
+	int iterations = 0;
+
+	/**
+	 * @param tc - the tiles and fixed tiles
+	 * @param orderedTiles - the tiles of the {@link TileConfiguration} in a fixed order, so that the coloring is reproducible
+	 */
+	public ParallelGlobalOpt( final TileConfiguration tc, final List< ? extends Tile< ? > > orderedTiles )
+	{
+		this.tc = tc;
+		this.tiles = new ArrayList< Tile< ? > >( orderedTiles );
+		this.colors = colorTiles( tiles, tc.getFixedTiles() );
+	}
+
+	public int numColors() { return colors.size(); }
+	public int getIterations() { return iterations; }
+	public double getError() { return error; }
+	public double getMinError() { return minError; }
+	public double getMaxError() { return maxError; }
+
+	/**
+	 * Greedy coloring (largest degree first) of all tiles that are not fixed, connections to fixed tiles are irrelevant
+	 * as those are never updated.
+	 */
+	public static ArrayList< ArrayList< Tile< ? > > > colorTiles( final List< Tile< ? > > tiles, final Set< Tile< ? > > fixedTiles )
+	{
+		final ArrayList< Tile< ? > > free = new ArrayList< Tile< ? > >();
+
+		for ( final Tile< ? > tile : tiles )
+			if ( !fixedTiles.contains( tile ) )
+				free.add( tile );
+
+		// stable sort keeps the given order for equal degree
+		Collections.sort( free, new Comparator< Tile< ? > >()
+		{
+			@Override
+			public int compare( final Tile< ? > o1, final Tile< ? > o2 )
+			{
+				return o2.getConnectedTiles().size() - o1.getConnectedTiles().size();
+			}
+		} );
+
+		final HashMap< Tile< ? >, Integer > colorOf = new HashMap< Tile< ? >, Integer >();
+		final ArrayList< ArrayList< Tile< ? > > > colors = new ArrayList< ArrayList< Tile< ? > > >();
+
+		for ( final Tile< ? > tile : free )
+		{
+			final boolean[] used = new boolean[ colors.size() ];
+
+			for ( final Tile< ? > connected : tile.getConnectedTiles() )
+			{
+				final Integer c = colorOf.get( connected );
+
+				if ( c != null )
+					used[ c ] = true;
+			}
+
+			int color = 0;
+			while ( color < used.length && used[ color ] )
+				++color;
+
+			if ( color == colors.size() )
+				colors.add( new ArrayList< Tile< ? > >() );
+
+			colors.get( color ).add( tile );
+			colorOf.put( tile, color );
+		}
+
+		return colors;
+	}
+
+	/**
+	 * Same parameters and termination as {@link TileConfiguration#optimize(double, int, int)}. Afterwards the errors of the
+	 * {@link TileConfiguration} are up to date.
+	 */
+	public void optimize( final double maxAllowedError, final int maxIterations, final int maxPlateauwidth )
+			throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		final long time = System.currentTimeMillis();
+		final int numThreads = Threads.numThreads();
+
+		// fit and apply the tiles of each color, and update the costs of all tiles
+		final ArrayList< ArrayList< Callable< Void > > > fitTasks = new ArrayList< ArrayList< Callable< Void > > >();
+
+		for ( final ArrayList< Tile< ? > > color : colors )
+			fitTasks.add( tasks( color, numThreads, true ) );
+
+		final ArrayList< Callable< Void > > costTasks = tasks( tiles, numThreads, false );
+
+		final ErrorStatistic observer = new ErrorStatistic( maxPlateauwidth + 1 );
+
+		int i = 0;
+		boolean proceed = i < maxIterations;
+
+		while ( proceed )
+		{
+			for ( final ArrayList< Callable< Void > > color : fitTasks )
+				run( color );
+
+			run( costTasks );
+			computeError();
+
+			observer.add( error );
+
+			if ( i > maxPlateauwidth )
+			{
+				proceed = error > maxAllowedError;
+
+				int d = maxPlateauwidth;
+				while ( !proceed && d >= 1 )
+				{
+					proceed |= Math.abs( observer.getWideSlope( d ) ) > 0.0001;
+					d /= 2;
+				}
+			}
+
+			proceed &= ++i < maxIterations;
+
+			if ( printEvery > 0 && i % printEvery == 0 && proceed )
+				printErrors( "iteration " + i );
+		}
+
+		this.iterations = i;
+
+		// so that getError(), getMinError(), getMaxError() of the TileConfiguration are correct
+		tc.computeError();
+
+		printErrors( "optimized " + tiles.size() + " tiles (" + colors.size() + " colors) after " + i + " iterations in " +
+				( System.currentTimeMillis() - time ) + " ms" );
+	}
+
+	protected void printErrors( final String prefix )
+	{
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): Parallel optimization, " + prefix + ":" );
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Avg Error: " + error + "px" );
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Min Error: " + minError + "px" );
+		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "):    Max Error: " + maxError + "px" );
+	}
+
+	protected void computeError()
+	{
+		double sum = 0;
+		minError = Double.MAX_VALUE;
+		maxError = 0;
+
+		for ( final Tile< ? > tile : tiles )
+		{
+			final double d = tile.getDistance();
+
+			sum += d;
+			minError = Math.min( minError, d );
+			maxError = Math.max( maxError, d );
+		}
+
+		error = tiles.size() > 0 ? sum / tiles.size() : 0;
+	}
+
+	protected static ArrayList< Callable< Void > > tasks( final List< Tile< ? > > tiles, final int numThreads, final boolean fit )
+	{
+		final ArrayList< Callable< Void > > tasks = new ArrayList< Callable< Void > >();
+		final int numTasks = Math.max( 1, Math.min( numThreads, tiles.size() ) );
+
+		for ( int t = 0; t < numTasks; ++t )
+		{
+			final int from = (int)( (long)tiles.size() * t / numTasks );
+			final int to = (int)( (long)tiles.size() * ( t + 1 ) / numTasks );
+
+			tasks.add( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					for ( int i = from; i < to; ++i )
+					{
+						final Tile< ? > tile = tiles.get( i );
+
+						if ( fit )
+						{
+							tile.fitModel();
+							tile.apply();
+						}
+						else
+						{
+							tile.updateCost();
+						}
+					}
+
+					return null;
+				}
+			} );
+		}
+
+		return tasks;
+	}
+
+	protected static void run( final List< Callable< Void > > tasks ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		try
+		{
+			// a single task is not worth the scheduling
+			if ( tasks.size() == 1 )
+			{
+				tasks.get( 0 ).call();
+				return;
+			}
+
+			for ( final Future< Void > future : Threads.getExecutorService().invokeAll( tasks ) )
+				future.get();
+		}
+		catch ( final ExecutionException e )
+		{
+			rethrow( e.getCause() );
+		}
+		catch ( final Exception e )
+		{
+			rethrow( e );
+		}
+	}
+
+	protected static void rethrow( final Throwable t ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+	{
+		if ( t instanceof NotEnoughDataPointsException )
+			throw (NotEnoughDataPointsException)t;
+		else if ( t instanceof IllDefinedDataPointsException )
+			throw (IllDefinedDataPointsException)t;
+		else if ( t instanceof RuntimeException )
+			throw (RuntimeException)t;
+		else
+			throw new RuntimeException( t );
+	}
+}
@@ -23,22 +23,45 @@ package spim.process.interestpointregistration;
 
 import java.text.NumberFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.imglib2.util.Pair;
 import net.imglib2.util.ValuePair;
 import mpicbg.models.Model;
-import mpicbg.models.NotEnoughDataPointsException;
-import mpicbg.models.PointMatch;
-import mpicbg.pointdescriptor.LinkedPoint;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
+import spim.Threads;
 
 /**
- * 
+ * RANSAC followed by a robust filter of the inliers, equivalent to {@link Model}.filterRansac(), but
+ * working on the coordinates directly, running the hypotheses multithreaded (each thread with its own
+ * copy of the model) and stopping as soon as enough hypotheses were tested to find the best model with
+ * the required confidence (given the best inlier ratio found so far).
+ *
+ * Hypothesis i is always drawn from a random generator seeded with seed + i, and the best hypothesis is chosen
+ * afterwards exactly as a single thread testing them in order would choose it, so the result does not
+ * depend on the number of threads or their timing.
+ *
  * @author Stephan Preibisch (stephan.preibisch@gmx.de)
  *
  */
 public class RANSAC
 {
+	// hypotheses per thread, fewer are not worth distributing
+	public static int minIterationsPerThread = 256;
+
+	// seed of the first hypothesis (as in mpicbg)
+	final static long seed = 69997;
+
+	// correspondences with a residual larger than maxTrust * median are removed after the RANSAC
+	final static double maxTrust = 4.0;
+
 	public static Pair< String, Double > computeRANSAC( 
 			final ArrayList< PointMatchGeneric < Detection > > correspondenceCandidates, 
 			final ArrayList< PointMatchGeneric < Detection > > inlierList, 
@@ -47,6 +70,22 @@ public class RANSAC
 			final double minInlierRatio, 
 			final double minNumberInlierFactor, 
 			final int numIterations )
+	{
+		return computeRANSAC( correspondenceCandidates, inlierList, model, maxEpsilon, minInlierRatio, minNumberInlierFactor, numIterations, RANSACParameters.confidence );
+	}
+
+	/**
+	 * @param confidence - stop once the probability of having missed a better model is below 1 - confidence (&gt;= 1 means always run numIterations)
+	 */
+	public static Pair< String, Double > computeRANSAC( 
+			final ArrayList< PointMatchGeneric < Detection > > correspondenceCandidates, 
+			final ArrayList< PointMatchGeneric < Detection > > inlierList, 
+			final Model<?> model, 
+			final double maxEpsilon, 
+			final double minInlierRatio, 
+			final double minNumberInlierFactor, 
+			final int numIterations,
+			final double confidence )
 	{
 		final int numCorrespondences = correspondenceCandidates.size();
 		final int minNumCorrespondences = Math.max( model.getMinNumMatches(), (int)Math.round( model.getMinNumMatches() * minNumberInlierFactor ) );
@@ -61,72 +100,434 @@ public class RANSAC
 		if ( numCorrespondences < minNumCorrespondences )
 			return new ValuePair< String, Double >( "Not enough correspondences found " + numCorrespondences + ", should be at least " + minNumCorrespondences, Double.NaN );
 
-		/**
-		 * The ArrayList that stores the inliers after RANSAC, contains PointMatches of LinkedPoints
-		 * so that MultiThreading is possible
-		 */
-		//final ArrayList< PointMatchGeneric<LinkedPoint<T>> > candidates = new ArrayList<PointMatchGeneric<LinkedPoint<T>>>();		
-		final ArrayList< PointMatch > candidates = new ArrayList< PointMatch >();
-		final ArrayList< PointMatch > inliers = new ArrayList< PointMatch >();
-		
-		// clone the beads for the RANSAC as we are working multithreaded and they will be modified
-		for ( final PointMatchGeneric< Detection > correspondence : correspondenceCandidates )
+		final long time = System.currentTimeMillis();
+
+		// the coordinates of the candidates, the detections are not modified as we are working multithreaded
+		final Correspondences c = new Correspondences( correspondenceCandidates );
+		final Hypotheses h = new Hypotheses( c, model, maxEpsilon, minInlierRatio, numIterations, confidence );
+
+		// test the hypotheses
+		final int numTasks = Math.max( 1, Math.min( Threads.numThreads(), numIterations / Math.max( 1, minIterationsPerThread ) ) );
+		final ArrayList< Callable< ArrayList< long[] > > > tasks = new ArrayList< Callable< ArrayList< long[] > > >();
+
+		for ( int t = 0; t < numTasks; ++t )
+			tasks.add( new Callable< ArrayList< long[] > >()
+			{
+				@Override
+				public ArrayList< long[] > call() { return h.search( model.copy() ); }
+			} );
+
+		final ArrayList< long[] > good = new ArrayList< long[] >();
+
+		try
 		{
-			final Detection detectionA = correspondence.getPoint1();
-			final Detection detectionB = correspondence.getPoint2();
-			
-			final LinkedPoint< Detection > pA = new LinkedPoint< Detection >( detectionA.getL(), detectionA.getW(), detectionA );
-			final LinkedPoint< Detection > pB = new LinkedPoint< Detection >( detectionB.getL(), detectionB.getW(), detectionB );
-			final double weight = correspondence.getWeight(); 
-
-			candidates.add( new PointMatchGeneric< LinkedPoint< Detection > >( pA, pB, weight ) );
+			for ( final Future< ArrayList< long[] > > future : Threads.getExecutorService().invokeAll( tasks ) )
+				good.addAll( future.get() );
 		}
-		
-		boolean modelFound = false;
-		
-		try
+		catch ( final InterruptedException e )
 		{
-			/*modelFound = m.ransac(
-  					candidates,
-					inliers,
-					numIterations,
-					maxEpsilon, minInlierRatio );*/
-		
-			modelFound = model.filterRansac(
-					candidates,
-					inliers,
-					numIterations,
-					maxEpsilon, minInlierRatio ); 
+			// keep the flag for the caller
+			Thread.currentThread().interrupt();
 		}
-		catch ( NotEnoughDataPointsException e )
+		catch ( final Exception e )
 		{
-			return new ValuePair< String, Double >( e.toString(), Double.NaN );
+			return new ValuePair< String, Double >( "RANSAC failed: " + e, Double.NaN );
 		}
-			
+
+		if ( Thread.currentThread().isInterrupted() )
+			return new ValuePair< String, Double >( "RANSAC cancelled", Double.NaN );
+
+		final long bestIteration = h.best( good );
+
+		final String stats = " (" + h.getNumTested() + " of " + numIterations + " iterations, " + ( System.currentTimeMillis() - time ) + " ms)";
+
+		if ( bestIteration < 0 )
+			return new ValuePair< String, Double >( "NO Model found after RANSAC of " + numCorrespondences + stats, Double.NaN );
+
+		// compute the best hypothesis again, now with the model that is returned
+		final int[] inliers = new int[ numCorrespondences ];
+		final int numRansacInliers = h.hypothesis( bestIteration, model, new Random(), new int[ model.getMinNumMatches() ], inliers, new double[ 3 ], new FitBuffer(), new FitBuffer() );
+
+		// remove the correspondences that are far off after refitting to all inliers
+		final double[] cost = new double[ 1 ];
+		final int numInliers = numRansacInliers < model.getMinNumMatches() ? -1 : filter( c, model, inliers, numRansacInliers, model.getMinNumMatches(), cost );
+
+		if ( numInliers < 0 )
+			return new ValuePair< String, Double >( "NO Model found after RANSAC of " + numCorrespondences + stats, Double.NaN );
+
 		final NumberFormat nf = NumberFormat.getPercentInstance();
-		final double ratio = ( (double)inliers.size() / (double)candidates.size() );
-		
-		if ( modelFound && inliers.size() >= minNumCorrespondences )
-		{			
-			for ( final PointMatch pointMatch : inliers )
+		final double ratio = ( (double)numInliers / (double)numCorrespondences );
+
+		if ( numInliers >= minNumCorrespondences )
+		{
+			for ( int i = 0; i < numInliers; ++i )
 			{
-				@SuppressWarnings("unchecked")
-				final PointMatchGeneric<LinkedPoint< Detection > > pm = (PointMatchGeneric< LinkedPoint< Detection > >) pointMatch;
-				
-				final Detection detectionA = pm.getPoint1().getLinkedObject();
-				final Detection detectionB = pm.getPoint2().getLinkedObject();
-				
-				inlierList.add( new PointMatchGeneric< Detection >( detectionA, detectionB ) );
+				final PointMatchGeneric< Detection > pm = correspondenceCandidates.get( inliers[ i ] );
+				inlierList.add( new PointMatchGeneric< Detection >( pm.getPoint1(), pm.getPoint2() ) );
 			}
 
-			return new ValuePair< String, Double >( "Remaining inliers after RANSAC: " + inliers.size() + " of " + candidates.size() + " (" + nf.format(ratio) + ") with average error " + model.getCost(), model.getCost() );
+			return new ValuePair< String, Double >( "Remaining inliers after RANSAC: " + numInliers + " of " + numCorrespondences + " (" + nf.format(ratio) + ") with average error " + cost[ 0 ] + stats, cost[ 0 ] );
 		}
 		else
 		{
-			if ( modelFound )
-				return new ValuePair< String, Double >( "Model found but not enough remaining inliers (" + inliers.size() + "/" + minNumCorrespondences + ") after RANSAC of " + candidates.size(), Double.NaN );
-			else
-				return new ValuePair< String, Double >( "NO Model found after RANSAC of " + candidates.size(), Double.NaN );
+			return new ValuePair< String, Double >( "Model found but not enough remaining inliers (" + numInliers + "/" + minNumCorrespondences + ") after RANSAC of " + numCorrespondences + stats, Double.NaN );
+		}
+	}
+
+	/**
+	 * @param inlierRatio - the ratio of inliers of the best hypothesis so far
+	 * @param sampleSize - number of correspondences per hypothesis
+	 * @param confidence - required probability that at least one hypothesis consisted only of inliers
+	 * @return how many hypotheses need to be tested
+	 */
+	public static long requiredIterations( final double inlierRatio, final int sampleSize, final double confidence )
+	{
+		if ( confidence >= 1 || confidence <= 0 )
+			return Long.MAX_VALUE;
+
+		final double allInliers = Math.pow( inlierRatio, sampleSize );
+
+		if ( allInliers >= 1 )
+			return 1;
+		else if ( allInliers <= 0 )
+			return Long.MAX_VALUE;
+
+		final double n = Math.ceil( Math.log( 1 - confidence ) / Math.log( 1 - allInliers ) );
+
+		return n >= Long.MAX_VALUE ? Long.MAX_VALUE : Math.max( 1, (long)n );
+	}
+
+	/**
+	 * Robust refit to the RANSAC inliers: fits the model, removes the correspondences with a residual
+	 * &gt; maxTrust * median residual and repeats until none are removed (as mpicbg's filter()).
+	 *
+	 * @return the number of remaining inliers (the first entries of inliers), -1 if it failed
+	 */
+	protected static int filter( final Correspondences c, final Model<?> model, final int[] inliers, int count, final int minNumInliers, final double[] cost )
+	{
+		final double[] residuals = new double[ count ];
+		final double[] sorted = new double[ count ];
+		final double[] tmp = new double[ 3 ];
+		final FitBuffer buffer = new FitBuffer();
+		int numInliers;
+
+		do
+		{
+			numInliers = count;
+
+			if ( !c.fit( model, inliers, count, buffer ) )
+				return -1;
+
+			double sum = 0;
+
+			for ( int j = 0; j < count; ++j )
+			{
+				residuals[ j ] = Math.sqrt( c.squareDistance( model, inliers[ j ], tmp ) );
+				sorted[ j ] = residuals[ j ];
+				sum += residuals[ j ];
+			}
+
+			Arrays.sort( sorted, 0, count );
+
+			final double median = count % 2 == 0 ? 0.5 * ( sorted[ count / 2 - 1 ] + sorted[ count / 2 ] ) : sorted[ count / 2 ];
+			final double t = median * maxTrust;
+
+			cost[ 0 ] = sum / count;
+
+			int newCount = 0;
+
+			for ( int j = 0; j < count; ++j )
+				if ( residuals[ j ] <= t )
+					inliers[ newCount++ ] = inliers[ j ];
+
+			count = newCount;
+		}
+		while ( numInliers > count );
+
+		if ( numInliers < minNumInliers )
+			return -1;
+
+		return numInliers;
+	}
+
+	/**
+	 * The arrays passed to Model.fit(), which uses their length as the number of correspondences. They are only
+	 * reallocated if the number changes, so fitting the samples (always the same size) does not allocate.
+	 */
+	protected static class FitBuffer
+	{
+		double[][] p, q;
+		double[] w;
+
+		public void ensureSize( final int count )
+		{
+			if ( w == null || w.length != count )
+			{
+				p = new double[ 3 ][ count ];
+				q = new double[ 3 ][ count ];
+				w = new double[ count ];
+			}
+		}
+	}
+
+	/**
+	 * The candidates as arrays, p (from view A, local coordinates) is transformed onto q (view B)
+	 */
+	protected static class Correspondences
+	{
+		final int n;
+		final double[][] p, q;
+		final double[] w;
+
+		public Correspondences( final List< PointMatchGeneric< Detection > > candidates )
+		{
+			this.n = candidates.size();
+			this.p = new double[ 3 ][ n ];
+			this.q = new double[ 3 ][ n ];
+			this.w = new double[ n ];
+
+			for ( int i = 0; i < n; ++i )
+			{
+				final PointMatchGeneric< Detection > pm = candidates.get( i );
+				final double[] l = pm.getPoint1().getL();
+				final double[] t = pm.getPoint2().getW();
+
+				for ( int d = 0; d < 3; ++d )
+				{
+					p[ d ][ i ] = l[ d ];
+					q[ d ][ i ] = t[ d ];
+				}
+
+				w[ i ] = pm.getWeight();
+			}
+		}
+
+		public double squareDistance( final Model<?> model, final int i, final double[] tmp )
+		{
+			tmp[ 0 ] = p[ 0 ][ i ];
+			tmp[ 1 ] = p[ 1 ][ i ];
+			tmp[ 2 ] = p[ 2 ][ i ];
+
+			model.applyInPlace( tmp );
+
+			final double dx = tmp[ 0 ] - q[ 0 ][ i ];
+			final double dy = tmp[ 1 ] - q[ 1 ][ i ];
+			final double dz = tmp[ 2 ] - q[ 2 ][ i ];
+
+			return dx * dx + dy * dy + dz * dz;
+		}
+
+		/**
+		 * @return false if the correspondences do not define a model
+		 */
+		public boolean fit( final Model<?> model, final int[] indices, final int count, final FitBuffer buffer )
+		{
+			buffer.ensureSize( count );
+
+			final double[][] ps = buffer.p;
+			final double[][] qs = buffer.q;
+			final double[] ws = buffer.w;
+
+			for ( int j = 0; j < count; ++j )
+			{
+				final int i = indices[ j ];
+
+				for ( int d = 0; d < 3; ++d )
+				{
+					ps[ d ][ j ] = p[ d ][ i ];
+					qs[ d ][ j ] = q[ d ][ i ];
+				}
+
+				ws[ j ] = w[ i ];
+			}
+
+			try
+			{
+				model.fit( ps, qs, ws );
+				return true;
+			}
+			catch ( final Exception e )
+			{
+				// NotEnoughDataPointsException, IllDefinedDataPointsException
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * The hypotheses of one RANSAC, shared by the threads testing them
+	 */
+	protected static class Hypotheses
+	{
+		final Correspondences c;
+		final int sampleSize, minNumInliers, minCount;
+		final double epsilonSq, confidence;
+		final long numIterations;
+
+		// the next hypothesis to test, and how many need to be tested (decreases as better hypotheses are found)
+		final AtomicLong next = new AtomicLong( 0 );
+		final AtomicLong required;
+		final AtomicLong tested = new AtomicLong( 0 );
+
+		// the thread that runs the RANSAC, if it is interrupted all threads stop testing
+		final Thread caller = Thread.currentThread();
+
+		public Hypotheses( final Correspondences c, final Model<?> model, final double maxEpsilon, final double minInlierRatio, final int numIterations, final double confidence )
+		{
+			this.c = c;
+			this.sampleSize = model.getMinNumMatches();
+			this.minNumInliers = model.getMinNumMatches();
+			this.epsilonSq = maxEpsilon * maxEpsilon;
+			this.confidence = confidence;
+			this.numIterations = numIterations;
+			this.required = new AtomicLong( numIterations );
+
+			// a hypothesis is good if it has at least minNumInliers and an inlier ratio > minInlierRatio
+			this.minCount = Math.max( minNumInliers, (int)Math.floor( minInlierRatio * c.n ) + 1 );
+		}
+
+		public long getNumTested() { return tested.get(); }
+
+		/**
+		 * Tests hypotheses until enough are tested.
+		 *
+		 * A single thread testing in order stops at some R (numIterations, lowered by every better hypothesis). While
+		 * testing in parallel, a hypothesis i only lowers the limit to max( i + 1, requiredIterations ), which is never
+		 * below R, so every hypothesis a single thread would test is tested here as well, see {@link #best(List)}.
+		 *
+		 * @param model - the model instance of this thread
+		 * @return index and number of inliers of all good hypotheses tested by this thread
+		 */
+		public ArrayList< long[] > search( final Model<?> model )
+		{
+			final Random rnd = new Random();
+			final int[] sample = new int[ sampleSize ];
+			final int[] inliers = new int[ c.n ];
+			final double[] tmp = new double[ 3 ];
+			final FitBuffer sampleBuffer = new FitBuffer();
+			final FitBuffer refitBuffer = new FitBuffer();
+
+			final ArrayList< long[] > good = new ArrayList< long[] >();
+			int bestCount = 0;
+
+			for ( long i = next.getAndIncrement(); i < required.get() && !caller.isInterrupted(); i = next.getAndIncrement() )
+			{
+				final int count = hypothesis( i, model, rnd, sample, inliers, tmp, sampleBuffer, refitBuffer );
+				tested.incrementAndGet();
+
+				if ( count > 0 )
+					good.add( new long[]{ i, count } );
+
+				if ( count > bestCount )
+				{
+					bestCount = count;
+
+					// fewer hypotheses need to be tested now
+					final long n = Math.max( i + 1, requiredIterations( (double)count / (double)c.n, sampleSize, confidence ) );
+
+					for ( long r = required.get(); n < r && !required.compareAndSet( r, n ); r = required.get() );
+				}
+			}
+
+			return good;
+		}
+
+		/**
+		 * Replays the good hypotheses in order, as a single thread would have tested them
+		 *
+		 * @param good - index and number of inliers of all good hypotheses tested by all threads
+		 * @return the index of the best hypothesis, -1 if there is none
+		 */
+		public long best( final List< long[] > good )
+		{
+			Collections.sort( good, new Comparator< long[] >()
+			{
+				@Override
+				public int compare( final long[] o1, final long[] o2 ) { return Long.compare( o1[ 0 ], o2[ 0 ] ); }
+			} );
+
+			long limit = numIterations;
+			long bestIteration = -1;
+			long bestCount = 0;
+
+			for ( final long[] hypothesis : good )
+			{
+				if ( hypothesis[ 0 ] >= limit )
+					break;
+
+				if ( hypothesis[ 1 ] > bestCount )
+				{
+					bestCount = hypothesis[ 1 ];
+					bestIteration = hypothesis[ 0 ];
+					limit = Math.min( limit, requiredIterations( (double)bestCount / (double)c.n, sampleSize, confidence ) );
+				}
+			}
+
+			return bestIteration;
+		}
+
+		/**
+		 * Fits the model to the random sample of hypothesis i and refits it to its inliers as long as they increase.
+		 *
+		 * @return the number of inliers (stored in inliers), 0 if the hypothesis is not good
+		 */
+		public int hypothesis( final long i, final Model<?> model, final Random rnd, final int[] sample, final int[] inliers, final double[] tmp,
+				final FitBuffer sampleBuffer, final FitBuffer refitBuffer )
+		{
+			rnd.setSeed( seed + i );
+
+			// choose disjunctive correspondences randomly
+			for ( int j = 0; j < sampleSize; ++j )
+			{
+				boolean contained;
+
+				do
+				{
+					sample[ j ] = (int)( rnd.nextDouble() * c.n );
+
+					contained = false;
+					for ( int k = 0; k < j; ++k )
+						if ( sample[ k ] == sample[ j ] )
+							contained = true;
+				}
+				while ( contained );
+			}
+
+			if ( !c.fit( model, sample, sampleSize, sampleBuffer ) )
+				return 0;
+
+			int numInliers = 0;
+			int count = test( model, inliers, tmp );
+
+			while ( count >= minCount && numInliers < count )
+			{
+				numInliers = count;
+
+				if ( !c.fit( model, inliers, count, refitBuffer ) )
+					return 0;
+
+				count = test( model, inliers, tmp );
+			}
+
+			return count >= minCount ? count : 0;
+		}
+
+		/**
+		 * @return the number of inliers, the test stops early (returning a number &lt; minCount) once the hypothesis cannot be good anymore
+		 */
+		protected int test( final Model<?> model, final int[] inliers, final double[] tmp )
+		{
+			int count = 0;
+
+			for ( int i = 0; i < c.n; ++i )
+			{
+				if ( c.squareDistance( model, i, tmp ) < epsilonSq )
+					inliers[ count++ ] = i;
+				else if ( count + ( c.n - i - 1 ) < minCount )
+					return count;
+			}
+
+			return count;
 		}
 	}
 }
@@ -33,8 +33,12 @@ public class RANSACParameters
     public static int num_iterations = 1000;
     public static float min_inlier_factor = 3f;
 
+    // stop the RANSAC once the best model is found with this probability (given the best inlier ratio so far), 1 = run all iterations
+    public static double confidence = 0.999;
+
     final protected float maxEpsilon, minInlierRatio, minInlierFactor;
     final protected int numIterations;
+    final protected double conf;
     
     public RANSACParameters( final float maxEpsilon, final float minInlierRatio, final float minInlierFactor, final int numIterations )
     {
@@ -42,6 +46,7 @@ public class RANSACParameters
     	this.minInlierRatio = minInlierRatio;
     	this.minInlierFactor = minInlierFactor;
     	this.numIterations = numIterations;
+    	this.conf = confidence;
     }
     
     public RANSACParameters()
@@ -50,10 +55,18 @@ public class RANSACParameters
     	this.numIterations = num_iterations;
     	this.minInlierRatio = min_inlier_ratio;
     	this.minInlierFactor = min_inlier_factor;
+    	this.conf = confidence;
     }
     
     public float getMaxEpsilon() { return maxEpsilon; }
     public float getMinInlierRatio() { return minInlierRatio; }
     public float getMinInlierFactor() { return minInlierFactor; }
     public int getNumIterations() { return numIterations; }
+    public double getConfidence() { return conf; }
+
+    @Override
+    public String toString()
+    {
+    	return "RANSAC maxEpsilon=" + maxEpsilon + ", minInlierRatio=" + minInlierRatio + ", minInlierFactor=" + minInlierFactor + ", numIterations=" + numIterations + ", confidence=" + conf;
+    }
 }
@@ -103,6 +103,15 @@ public class TransformationModel
 		return true;
 	}
 
+	/**
+	 * @return - true if fitting this model finds the same inliers after one of the views was rotated, false if
+	 * the model (or the model it is regularized with) cannot compensate a rotation
+	 */
+	public boolean isRotationInvariant()
+	{
+		return modelIndex > 0 && ( !regularize || regularizedModelIndex >= 2 );
+	}
+
 	public String getDescription()
 	{
 		String d;
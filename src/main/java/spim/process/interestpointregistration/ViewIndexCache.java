@@ -0,0 +1,118 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import mpicbg.spim.data.sequence.ViewId;
+import spim.ComputeScheduler;
+
+/**
+ * Keeps what the pairwise matching computes for a single view (detections, kd-trees, descriptors), so
+ * that it is computed once per view instead of once for every pair the view is part of. An entry is
+ * identified by the view, the label of the interest points and the parameters it was computed with.
+ *
+ * Entries are created by the first pair task asking for them, concurrent tasks asking for the same
+ * entry wait until it is computed. Entries must not be modified by the pair tasks, they are shared.
+ * One instance belongs to a GlobalOptimizationSubset, it is released once its pairs are matched
+ * (the points of the views are transformed differently in every subset).
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ViewIndexCache
+{
+	final ConcurrentHashMap< String, FutureTask< Object > > entries = new ConcurrentHashMap< String, FutureTask< Object > >();
+	final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+	/**
+	 * @param viewId - the view
+	 * @param label - the label of the interest points
+	 * @param parameters - everything else the entry depends on (type of entry and its parameters)
+	 * @param create - computes the entry if it does not exist yet
+	 * @return the shared entry
+	 */
+	@SuppressWarnings("unchecked")
+	public < T > T get( final ViewId viewId, final String label, final String parameters, final Callable< T > create )
+	{
+		final String key = viewId.getTimePointId() + "," + viewId.getViewSetupId() + "," + label + ";" + parameters;
+
+		FutureTask< Object > entry = entries.get( key );
+
+		if ( entry == null )
+		{
+			final FutureTask< Object > newEntry = new FutureTask< Object >( (Callable< Object >)(Callable< ? >)create );
+			entry = entries.putIfAbsent( key, newEntry );
+
+			if ( entry == null )
+			{
+				entry = newEntry;
+				misses.incrementAndGet();
+
+				// computed by the thread that asked first
+				newEntry.run();
+			}
+			else
+			{
+				hits.incrementAndGet();
+			}
+		}
+		else
+		{
+			hits.incrementAndGet();
+		}
+
+		try
+		{
+			// do not block a worker of the shared pool while another task computes the entry
+			return (T)ComputeScheduler.get( entry );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( "Interrupted while waiting for " + key, e );
+		}
+		catch ( final ExecutionException e )
+		{
+			// do not keep the failure, the next task may try again
+			entries.remove( key, entry );
+			throw new RuntimeException( "Could not compute " + key + ": " + e.getCause(), e.getCause() );
+		}
+	}
+
+	public int size() { return entries.size(); }
+	public long getHits() { return hits.get(); }
+	public long getMisses() { return misses.get(); }
+
+	/**
+	 * Releases all entries
+	 */
+	public void clear()
+	{
+		entries.clear();
+		hits.set( 0 );
+		misses.set( 0 );
+	}
+}
@@ -23,14 +23,13 @@ package spim.process.interestpointregistration.centerofmass;
 
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.List;
 import java.util.concurrent.Callable;
 
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 import net.imglib2.util.RealSum;
 import net.imglib2.util.Util;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
+import spim.fiji.spimdata.interestpoints.InterestPointStore;
 import spim.process.interestpointregistration.Detection;
 import spim.process.interestpointregistration.PairwiseMatch;
 
@@ -50,11 +49,11 @@ public class CenterOfMassPairwise implements Callable< PairwiseMatch >
 	@Override
 	public PairwiseMatch call()
 	{
-		if ( pair.getListA().size() < 1 || pair.getListB().size() < 1 )
+		if ( pair.getMatchPointListA().size() < 1 || pair.getMatchPointListB().size() < 1 )
 		{
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + description + ": "
 					+ "Not enough detections to match (1  required per list, |listA|= " +
-					pair.getListA().size() + ", |listB|= " + pair.getListB().size() + ")" );
+					pair.getMatchPointListA().size() + ", |listB|= " + pair.getMatchPointListB().size() + ")" );
 			pair.setCandidates( new ArrayList< PointMatchGeneric< Detection > >() );
 			pair.setInliers( new ArrayList< PointMatchGeneric< Detection > >(), Double.NaN );
 			return pair;
@@ -64,13 +63,13 @@ public class CenterOfMassPairwise implements Callable< PairwiseMatch >
 
 		if ( centerType == 0 )
 		{
-			centerA = average( pair.getListA() );
-			centerB = average( pair.getListB() );
+			centerA = average( pair.getMatchPointListA().getInterestPointStore() );
+			centerB = average( pair.getMatchPointListB().getInterestPointStore() );
 		}
 		else
 		{
-			centerA = median( pair.getListA() );
-			centerB = median( pair.getListB() );
+			centerA = median( pair.getMatchPointListA().getInterestPointStore() );
+			centerB = median( pair.getMatchPointListB().getInterestPointStore() );
 		}
 
 		final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
@@ -86,21 +85,17 @@ public class CenterOfMassPairwise implements Callable< PairwiseMatch >
 		return pair;
 	}
 
-	private static final double[] average( final List< InterestPoint > list )
+	private static final double[] average( final InterestPointStore list )
 	{
-		final int n = list.get( 0 ).getL().length;
+		final int n = list.numDimensions();
 		final RealSum[] sum = new RealSum[ n ];
 
 		for ( int d = 0; d < n; ++d )
 			sum[ d ] = new RealSum();
 
-		for ( final InterestPoint i : list )
-		{
-			final double[] l = i.getL();
-
+		for ( int j = 0; j < list.size(); ++j )
 			for ( int d = 0; d < n; ++d )
-				sum[ d ].add( l[ d ] );
-		}
+				sum[ d ].add( list.getL( j, d ) );
 
 		final double[] center = new double[ n ];
 
@@ -110,18 +105,14 @@ public class CenterOfMassPairwise implements Callable< PairwiseMatch >
 		return center;
 	}
 
-	private static final double[] median( final List< InterestPoint > list )
+	private static final double[] median( final InterestPointStore list )
 	{
-		final int n = list.get( 0 ).getL().length;
+		final int n = list.numDimensions();
 		final double[][] values = new double[ n ][ list.size() ];
 
 		for ( int j = 0; j < list.size(); ++j )
-		{
-			final double[] l = list.get( j ).getL();
-
 			for ( int d = 0; d < n; ++d )
-				values[ d ][ j ] = l[ d ];
-		}
+				values[ d ][ j ] = list.getL( j, d );
 
 		final double[] center = new double[ n ];
 
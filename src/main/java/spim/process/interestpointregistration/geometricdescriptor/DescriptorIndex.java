@@ -0,0 +1,348 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration.geometricdescriptor;
+
+import java.util.List;
+
+import mpicbg.models.Point;
+import mpicbg.pointdescriptor.AbstractPointDescriptor;
+import mpicbg.pointdescriptor.similarity.SquareDistance;
+
+/**
+ * A kd-tree in descriptor space over the {@link AbstractPointDescriptor}s of one view, answers the
+ * best/second-best queries of the descriptor matching in O(log n) instead of comparing to every descriptor.
+ *
+ * A descriptor that is matched with a subset matcher has one vector for each subset of its neighbors
+ * (the relative coordinates of the subset's neighbors, concatenated). With the {@link SquareDistance}
+ * the distance of two descriptors is the smallest square distance of any of their vectors divided by
+ * the number of dimensions, so all vectors of all descriptors are put into one tree and the distance
+ * of a descriptor to its two closest descriptors is found by querying with each of its own vectors.
+ *
+ * Only valid for descriptors that do not fit a model during matching (e.g. SimplePointDescriptor).
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class DescriptorIndex< P extends Point, D extends AbstractPointDescriptor< P, D > >
+{
+	/**
+	 * The result of a query, the best and second best matching descriptor (distinct from each other)
+	 */
+	public static class Match< D >
+	{
+		D best, secondBest;
+		double bestDifference = Double.MAX_VALUE;
+		double secondBestDifference = Double.MAX_VALUE;
+
+		int bestIndex = -1, secondBestIndex = -1;
+		double bestSq, secondBestSq;
+
+		public D getBest() { return best; }
+		public D getSecondBest() { return secondBest; }
+		public double getBestDifference() { return bestDifference; }
+		public double getSecondBestDifference() { return secondBestDifference; }
+
+		protected void add( final int index, final double sq )
+		{
+			if ( index == bestIndex )
+			{
+				bestSq = Math.min( bestSq, sq );
+			}
+			else if ( index == secondBestIndex )
+			{
+				if ( sq < secondBestSq )
+				{
+					secondBestSq = sq;
+
+					if ( secondBestSq < bestSq )
+						swap();
+				}
+			}
+			else if ( sq < secondBestSq )
+			{
+				secondBestIndex = index;
+				secondBestSq = sq;
+
+				if ( secondBestSq < bestSq )
+					swap();
+			}
+		}
+
+		protected void swap()
+		{
+			final int tmpIndex = bestIndex;
+			final double tmpSq = bestSq;
+
+			bestIndex = secondBestIndex;
+			bestSq = secondBestSq;
+
+			secondBestIndex = tmpIndex;
+			secondBestSq = tmpSq;
+		}
+	}
+
+	// points per leaf of the tree
+	final static int leafSize = 8;
+
+	final List< D > descriptors;
+	final int[][] subsets;
+	final int numDimensions, subsetSize, vectorSize, numVectors;
+
+	// all vectors, and the descriptor each vector belongs to
+	final double[] vectors;
+	final int[] descriptorIndex;
+
+	// the tree, nodes in depth-first order; a leaf has splitDim -1 and covers order[ from ... to-1 ]
+	final int[] order;
+	int[] nodeSplitDim, nodeFrom, nodeTo, nodeRight;
+	double[] nodeSplitValue;
+	int numNodes = 0;
+
+	/**
+	 * @param descriptors - all descriptors of one view, must have the same number of neighbors
+	 * @param subsets - the neighbors of each subset that is matched, e.g. SubsetMatcher.getNeighbors(), or one subset containing all neighbors
+	 */
+	public DescriptorIndex( final List< D > descriptors, final int[][] subsets )
+	{
+		this.descriptors = descriptors;
+		this.subsets = subsets;
+		this.subsetSize = subsets[ 0 ].length;
+		this.numDimensions = descriptors.size() == 0 ? 0 : descriptors.get( 0 ).numDimensions();
+		this.vectorSize = subsetSize * numDimensions;
+		this.numVectors = descriptors.size() * subsets.length;
+
+		this.vectors = new double[ numVectors * vectorSize ];
+		this.descriptorIndex = new int[ numVectors ];
+		this.order = new int[ numVectors ];
+
+		int v = 0;
+
+		for ( int i = 0; i < descriptors.size(); ++i )
+			for ( final int[] subset : subsets )
+			{
+				vector( descriptors.get( i ), subset, vectors, v * vectorSize );
+				descriptorIndex[ v ] = i;
+				order[ v ] = v;
+				++v;
+			}
+
+		final int maxNodes = 2 * Math.max( 1, numVectors / ( leafSize / 2 ) ) + 1;
+		this.nodeSplitDim = new int[ maxNodes ];
+		this.nodeFrom = new int[ maxNodes ];
+		this.nodeTo = new int[ maxNodes ];
+		this.nodeRight = new int[ maxNodes ];
+		this.nodeSplitValue = new double[ maxNodes ];
+
+		if ( numVectors > 0 )
+			build( 0, numVectors );
+	}
+
+	public List< D > getDescriptors() { return descriptors; }
+	public int[][] getSubsets() { return subsets; }
+	public int size() { return descriptors.size(); }
+
+	/**
+	 * Finds the two descriptors of this index that are closest to the query descriptor.
+	 *
+	 * @param query - the descriptor (from another view) to match
+	 * @param maxDifference - differences larger than this value do not need to be found exactly (faster), Double.MAX_VALUE finds all
+	 * @param epsilon - approximation, the reported differences are at most (1+epsilon)^2 times the correct ones (0 = exact)
+	 * @return the best and second best match, null and Double.MAX_VALUE if not found
+	 */
+	public Match< D > findBestMatches( final D query, final double maxDifference, final double epsilon )
+	{
+		final Match< D > match = new Match< D >();
+		match.bestSq = match.secondBestSq = maxDifference >= Double.MAX_VALUE / numDimensions ? Double.MAX_VALUE : maxDifference * numDimensions;
+
+		if ( numVectors == 0 )
+			return match;
+
+		final double[] q = new double[ vectorSize ];
+		final double pruneFactor = ( 1 + epsilon ) * ( 1 + epsilon );
+
+		for ( final int[] subset : subsets )
+		{
+			vector( query, subset, q, 0 );
+			search( 0, q, match, pruneFactor );
+		}
+
+		if ( match.bestIndex >= 0 )
+		{
+			match.best = descriptors.get( match.bestIndex );
+			match.bestDifference = match.bestSq / numDimensions;
+		}
+
+		if ( match.secondBestIndex >= 0 )
+		{
+			match.secondBest = descriptors.get( match.secondBestIndex );
+			match.secondBestDifference = match.secondBestSq / numDimensions;
+		}
+
+		return match;
+	}
+
+	protected void search( final int node, final double[] q, final Match< D > match, final double pruneFactor )
+	{
+		final int dim = nodeSplitDim[ node ];
+
+		if ( dim < 0 )
+		{
+			for ( int i = nodeFrom[ node ]; i < nodeTo[ node ]; ++i )
+			{
+				final int v = order[ i ];
+				final int o = v * vectorSize;
+				final double bound = match.secondBestSq;
+
+				double sq = 0;
+
+				for ( int d = 0; d < vectorSize && sq < bound; ++d )
+				{
+					final double diff = q[ d ] - vectors[ o + d ];
+					sq += diff * diff;
+				}
+
+				if ( sq < bound )
+					match.add( descriptorIndex[ v ], sq );
+			}
+
+			return;
+		}
+
+		final double diff = q[ dim ] - nodeSplitValue[ node ];
+		final int near, far;
+
+		if ( diff < 0 )
+		{
+			near = node + 1;
+			far = nodeRight[ node ];
+		}
+		else
+		{
+			near = nodeRight[ node ];
+			far = node + 1;
+		}
+
+		search( near, q, match, pruneFactor );
+
+		if ( diff * diff * pruneFactor < match.secondBestSq )
+			search( far, q, match, pruneFactor );
+	}
+
+	protected int build( final int from, final int to )
+	{
+		final int node = numNodes++;
+
+		nodeFrom[ node ] = from;
+		nodeTo[ node ] = to;
+
+		if ( to - from <= leafSize )
+		{
+			nodeSplitDim[ node ] = -1;
+			return node;
+		}
+
+		// split the dimension with the largest spread at the median
+		int dim = 0;
+		double maxSpread = -1;
+
+		for ( int d = 0; d < vectorSize; ++d )
+		{
+			double min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+
+			for ( int i = from; i < to; ++i )
+			{
+				final double value = vectors[ order[ i ] * vectorSize + d ];
+				min = Math.min( min, value );
+				max = Math.max( max, value );
+			}
+
+			if ( max - min > maxSpread )
+			{
+				maxSpread = max - min;
+				dim = d;
+			}
+		}
+
+		final int median = ( from + to ) / 2;
+		select( from, to - 1, median, dim );
+
+		nodeSplitDim[ node ] = dim;
+		nodeSplitValue[ node ] = vectors[ order[ median ] * vectorSize + dim ];
+
+		build( from, median );
+		nodeRight[ node ] = build( median, to );
+
+		return node;
+	}
+
+	/**
+	 * Partially sorts order[ left ... right ] so that the k-th element is in place (quickselect)
+	 */
+	protected void select( int left, int right, final int k, final int dim )
+	{
+		while ( right > left )
+		{
+			final double pivot = vectors[ order[ ( left + right ) / 2 ] * vectorSize + dim ];
+
+			int i = left;
+			int j = right;
+
+			while ( i <= j )
+			{
+				while ( vectors[ order[ i ] * vectorSize + dim ] < pivot )
+					++i;
+				while ( vectors[ order[ j ] * vectorSize + dim ] > pivot )
+					--j;
+
+				if ( i <= j )
+				{
+					final int tmp = order[ i ];
+					order[ i ] = order[ j ];
+					order[ j ] = tmp;
+					++i;
+					--j;
+				}
+			}
+
+			if ( k <= j )
+				right = j;
+			else if ( k >= i )
+				left = i;
+			else
+				return;
+		}
+	}
+
+	protected static void vector( final AbstractPointDescriptor< ?, ? > descriptor, final int[] subset, final double[] vector, final int offset )
+	{
+		int o = offset;
+
+		for ( final int n : subset )
+		{
+			final Point p = descriptor.getDescriptorPoint( n );
+			final double[] w = p.getW();
+
+			for ( int d = 0; d < w.length; ++d )
+				vector[ o++ ] = w[ d ];
+		}
+	}
+}
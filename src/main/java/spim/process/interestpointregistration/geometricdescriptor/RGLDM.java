@@ -31,6 +31,7 @@ import spim.fiji.plugin.interestpointregistration.InterestPointRegistration;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.interestpointregistration.ChannelProcess;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.PairwiseMatchCache.Invariance;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
 
@@ -66,6 +67,19 @@ public class RGLDM extends InterestPointRegistration
 	@Override
 	protected TransformationModel getTransformationModel() { return model; }
 
+	// the descriptors are built from the vectors to the nearest neighbors, which only a translation leaves unchanged
+	@Override
+	protected Invariance getMatchingInvariance() { return Invariance.TRANSLATION; }
+
+	@Override
+	protected String getMatchingParameters()
+	{
+		return getClass().getName() + ", " + model.getDescription() +
+				", dt=" + parameters.getDifferenceThreshold() + ", rod=" + parameters.getRatioOfDistance() +
+				", nn=" + parameters.getNumNeighbors() + ", re=" + parameters.getRedundancy() +
+				( parameters.getApproximation() > 0 ? ", ae=" + parameters.getApproximation() : "" ) + ", " + ransacParams;
+	}
+
 	@Override
 	public RGLDM newInstance(
 			final SpimData2 spimData,
@@ -87,6 +101,7 @@ public class RGLDM extends InterestPointRegistration
 		gd.addSlider( "Number_of_neighbors for the descriptors", 3, 10, RGLDMParameters.numNeighbors );
 		gd.addSlider( "Redundancy for descriptor matching", 0, 10, RGLDMParameters.redundancy );		
 		gd.addSlider( "Significance required for a descriptor match", 1.0, 10.0, RGLDMParameters.ratioOfDistance );
+		gd.addNumericField( "Approximate_descriptor_matching (0 = exact)", RGLDMParameters.approximation, 2 );
 		gd.addSlider( "Allowed_error_for_RANSAC (px)", 0.5, 20.0, RANSACParameters.max_epsilon );
 	}
 
@@ -104,9 +119,10 @@ public class RGLDM extends InterestPointRegistration
 		final int numNeighbors = RGLDMParameters.numNeighbors = (int)Math.round( gd.getNextNumber() );
 		final int redundancy = RGLDMParameters.redundancy = (int)Math.round( gd.getNextNumber() );
 		final float significance = RGLDMParameters.ratioOfDistance = (float)gd.getNextNumber();
+		final float approximation = RGLDMParameters.approximation = (float)Math.max( 0, gd.getNextNumber() );
 		final float maxEpsilon = RANSACParameters.max_epsilon = (float)gd.getNextNumber();
 		
-		this.parameters = new RGLDMParameters( RGLDMParameters.differenceThreshold, significance, numNeighbors, redundancy );
+		this.parameters = new RGLDMParameters( RGLDMParameters.differenceThreshold, significance, numNeighbors, redundancy, approximation );
 		this.ransacParams = new RANSACParameters( maxEpsilon, RANSACParameters.min_inlier_ratio, RANSACParameters.min_inlier_factor, RANSACParameters.num_iterations );
 		
 		return true;
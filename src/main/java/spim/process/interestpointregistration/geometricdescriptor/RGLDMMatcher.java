@@ -46,20 +46,123 @@ public class RGLDMMatcher
 			final double ratioOfDistance,
 			final double differenceThreshold ) 
 	{
-		/* create KDTrees */	
-		final KDTree< Detection > treeA = new KDTree< Detection >( nodeListA );
-		final KDTree< Detection > treeB = new KDTree< Detection >( nodeListB );
+		return extractCorrespondenceCandidates( nodeListA, nodeListB, numNeighbors, redundancy, ratioOfDistance, differenceThreshold, 0 );
+	}
+
+	/**
+	 * @param approximation - 0 finds the best and second best descriptor exactly, otherwise their differences are within a factor of (1+approximation)^2
+	 */
+	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
+			final ArrayList< Detection > nodeListA, 
+			final ArrayList< Detection > nodeListB, 
+			final int numNeighbors,
+			final int redundancy,
+			final double ratioOfDistance,
+			final double differenceThreshold,
+			final double approximation ) 
+	{
+		final ViewDescriptors viewA = createViewDescriptors( nodeListA, numNeighbors, redundancy );
+		final ViewDescriptors viewB = createViewDescriptors( nodeListB, numNeighbors, redundancy );
+
+		return extractCorrespondenceCandidates( viewA, viewB, ratioOfDistance, differenceThreshold, approximation );
+	}
+
+	/**
+	 * Matches the descriptors of two views, they can be reused for other pairs (they are not modified)
+	 */
+	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
+			final ViewDescriptors viewA, 
+			final ViewDescriptors viewB, 
+			final double ratioOfDistance,
+			final double differenceThreshold,
+			final double approximation ) 
+	{
+		return findCorrespondingDescriptors( viewA.getDescriptors(), viewB.getIndex(), ratioOfDistance, differenceThreshold, approximation );
+	}
+
+	/**
+	 * The descriptors of all detections of one view and their index in descriptor space
+	 */
+	public static class ViewDescriptors
+	{
+		final ArrayList< Detection > detections;
+		final ArrayList< SimplePointDescriptor<Detection> > descriptors;
+		final DescriptorIndex< Detection, SimplePointDescriptor<Detection> > index;
+
+		public ViewDescriptors(
+				final ArrayList< Detection > detections,
+				final ArrayList< SimplePointDescriptor<Detection> > descriptors,
+				final DescriptorIndex< Detection, SimplePointDescriptor<Detection> > index )
+		{
+			this.detections = detections;
+			this.descriptors = descriptors;
+			this.index = index;
+		}
+
+		public ArrayList< Detection > getDetections() { return detections; }
+		public ArrayList< SimplePointDescriptor<Detection> > getDescriptors() { return descriptors; }
+		public DescriptorIndex< Detection, SimplePointDescriptor<Detection> > getIndex() { return index; }
+	}
+
+	public static ViewDescriptors createViewDescriptors( final ArrayList< Detection > nodeList, final int numNeighbors, final int redundancy )
+	{
+		/* create KDTree */	
+		final KDTree< Detection > tree = new KDTree< Detection >( nodeList );
 		
 		/* extract point descriptors */
-		final Matcher matcher = new SubsetMatcher( numNeighbors, numNeighbors + redundancy );
+		final SubsetMatcher matcher = new SubsetMatcher( numNeighbors, numNeighbors + redundancy );
 		final int numRequiredNeighbors = matcher.getRequiredNumNeighbors();
 		
 		final SimilarityMeasure similarityMeasure = new SquareDistance();
 		
-		final ArrayList< SimplePointDescriptor<Detection> > descriptorsA = createSimplePointDescriptors( treeA, nodeListA, numRequiredNeighbors, matcher, similarityMeasure );
-		final ArrayList< SimplePointDescriptor<Detection> > descriptorsB = createSimplePointDescriptors( treeB, nodeListB, numRequiredNeighbors, matcher, similarityMeasure );
+		final ArrayList< SimplePointDescriptor<Detection> > descriptors = createSimplePointDescriptors( tree, nodeList, numRequiredNeighbors, matcher, similarityMeasure );
+
+		/* index the descriptors, every subset of neighbors is one vector in descriptor space */
+		final DescriptorIndex< Detection, SimplePointDescriptor<Detection> > index =
+				new DescriptorIndex< Detection, SimplePointDescriptor<Detection> >( descriptors, matcher.getNeighbors() );
 
-		return findCorrespondingDescriptors( descriptorsA, descriptorsB, ratioOfDistance, differenceThreshold );
+		return new ViewDescriptors( nodeList, descriptors, index );
+	}
+
+	/**
+	 * Same result as {@link #findCorrespondingDescriptors(ArrayList, ArrayList, double, double)} (for approximation == 0), but
+	 * only looks at descriptors that can still change the outcome of the ratio test, i.e. O(log n) per descriptor instead of O(n).
+	 */
+	protected static final <D extends AbstractPointDescriptor<Detection, D>> ArrayList<PointMatchGeneric< Detection >> findCorrespondingDescriptors(
+			final ArrayList<D> descriptorsA,
+			final DescriptorIndex<Detection, D> indexB,
+			final double nTimesBetter,
+			final double differenceThreshold,
+			final double approximation )
+	{
+		final ArrayList<PointMatchGeneric< Detection >> correspondenceCandidates = new ArrayList<PointMatchGeneric< Detection >>();
+
+		// a second best match further away than this cannot make the ratio test fail if the best one is below the threshold
+		final double maxDifference = differenceThreshold * Math.max( 1, nTimesBetter );
+
+		for ( final D descriptorA : descriptorsA )
+		{
+			// the pair was cancelled or timed out, the caller discards the result
+			if ( Thread.currentThread().isInterrupted() )
+				break;
+
+			final DescriptorIndex.Match< D > match = indexB.findBestMatches( descriptorA, maxDifference, approximation );
+
+			final double bestDifference = match.getBestDifference();
+			final double secondBestDifference = match.getSecondBestDifference();
+
+			if ( bestDifference < differenceThreshold && bestDifference * nTimesBetter < secondBestDifference )
+			{
+				// add correspondence for the two basis points of the descriptor
+				Detection detectionA = descriptorA.getBasisPoint();
+				Detection detectionB = match.getBest().getBasisPoint();
+
+				// for RANSAC
+				correspondenceCandidates.add( new PointMatchGeneric<Detection>( detectionA, detectionB ) );
+			}
+		}
+
+		return correspondenceCandidates;
 	}
 	
 	protected static final <D extends AbstractPointDescriptor<Detection, D>> ArrayList<PointMatchGeneric< Detection >> findCorrespondingDescriptors(
@@ -72,6 +175,10 @@ public class RGLDMMatcher
 		
 		for ( final D descriptorA : descriptorsA )
 		{
+			// the pair was cancelled or timed out, the caller discards the result
+			if ( Thread.currentThread().isInterrupted() )
+				break;
+
 			double bestDifference = Double.MAX_VALUE;			
 			double secondBestDifference = Double.MAX_VALUE;
 			
@@ -25,15 +25,18 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.concurrent.Callable;
 
+import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 import net.imglib2.util.Pair;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.MatchPointList;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.PairwiseMatchScheduler;
 import spim.process.interestpointregistration.RANSAC;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
+import spim.process.interestpointregistration.ViewIndexCache;
 
 public class RGLDMPairwise implements Callable< PairwiseMatch >
 {	
@@ -53,43 +56,43 @@ public class RGLDMPairwise implements Callable< PairwiseMatch >
 	}
 	
 	@Override
-	public PairwiseMatch call()
+	public PairwiseMatch call() throws InterruptedException
 	{
-		final ArrayList< Detection > listA = new ArrayList< Detection >();
-		final ArrayList< Detection > listB = new ArrayList< Detection >();
-		
-		for ( final InterestPoint i : pair.getListA() )
-			listA.add( new Detection( i.getId(), i.getL() ) );
-
-		for ( final InterestPoint i : pair.getListB() )
-			listB.add( new Detection( i.getId(), i.getL() ) );
+		final int sizeA = pair.getMatchPointListA().size();
+		final int sizeB = pair.getMatchPointListB().size();
 
-		if ( listA.size() < dp.getNumNeighbors() + dp.getRedundancy() + 1 || listB.size() < dp.getNumNeighbors() + dp.getRedundancy() + 1 )
+		if ( sizeA < dp.getNumNeighbors() + dp.getRedundancy() + 1 || sizeB < dp.getNumNeighbors() + dp.getRedundancy() + 1 )
 		{
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + comparison + ": "
 					+ "Not enough detections to match (" + (dp.getNumNeighbors() + dp.getRedundancy() + 1) +
-					" required per list, |listA|= " + listA.size() + ", |listB|= " + listB.size() + ")" );
+					" required per list, |listA|= " + sizeA + ", |listB|= " + sizeB + ")" );
 			pair.setCandidates( new ArrayList< PointMatchGeneric< Detection > >() );
 			pair.setInliers( new ArrayList< PointMatchGeneric< Detection > >(), Double.NaN );
 			return pair;
 		}
 
+		final RGLDMMatcher.ViewDescriptors viewA = getViewDescriptors( pair.getViewCache(), pair.getViewIdA(), pair.getMatchPointListA() );
+		final RGLDMMatcher.ViewDescriptors viewB = getViewDescriptors( pair.getViewCache(), pair.getViewIdB(), pair.getMatchPointListB() );
+
 		final RGLDMMatcher matcher = new RGLDMMatcher();
 		final ArrayList< PointMatchGeneric< Detection > > candidates = matcher.extractCorrespondenceCandidates( 
-				listA, 
-				listB,
-				dp.getNumNeighbors(),
-				dp.getRedundancy(),
+				viewA, 
+				viewB,
 				dp.getRatioOfDistance(),
-				dp.getDifferenceThreshold() );
+				dp.getDifferenceThreshold(),
+				dp.getApproximation() );
+
+		PairwiseMatchScheduler.abortIfInterrupted();
 
 		pair.setCandidates( candidates );
 
 		// compute ransac and remove inconsistent candidates
 		final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
 	
-		final Pair< String, Double > result = RANSAC.computeRANSAC( candidates, inliers, this.model.getModel(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), rp.getNumIterations() );
+		final Pair< String, Double > result = RANSAC.computeRANSAC( candidates, inliers, this.model.getModel(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), rp.getNumIterations(), rp.getConfidence() );
 	
+		PairwiseMatchScheduler.abortIfInterrupted();
+
 		pair.setInliers( inliers, result.getB() );
 	
 		IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + comparison + ": " + result.getA() );
@@ -97,4 +100,19 @@ public class RGLDMPairwise implements Callable< PairwiseMatch >
 		return pair;
 	}
 
+	protected RGLDMMatcher.ViewDescriptors getViewDescriptors( final ViewIndexCache cache, final ViewId viewId, final MatchPointList list )
+	{
+		if ( cache == null )
+			return RGLDMMatcher.createViewDescriptors( list.createDetections(), dp.getNumNeighbors(), dp.getRedundancy() );
+
+		return cache.get( viewId, list.getChannelProcessed().getLabel(), "rgldm,nn=" + dp.getNumNeighbors() + ",re=" + dp.getRedundancy(),
+				new Callable< RGLDMMatcher.ViewDescriptors >()
+				{
+					@Override
+					public RGLDMMatcher.ViewDescriptors call()
+					{
+						return RGLDMMatcher.createViewDescriptors( list.createDetections(), dp.getNumNeighbors(), dp.getRedundancy() );
+					}
+				} );
+	}
 }
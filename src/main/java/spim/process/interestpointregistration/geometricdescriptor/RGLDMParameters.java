@@ -28,8 +28,11 @@ public class RGLDMParameters
 
 	public static int numNeighbors = 3;
 	public static int redundancy = 1;
+
+	// 0 = exact descriptor matching, otherwise the descriptor differences are within (1+approximation)^2
+	public static float approximation = 0;
 	
-	protected final float dt, rod;
+	protected final float dt, rod, ae;
 	protected final int nn, re;
 	
 	public RGLDMParameters()
@@ -38,18 +41,26 @@ public class RGLDMParameters
 		this.rod = ratioOfDistance;
 		this.nn = numNeighbors;
 		this.re = redundancy;
+		this.ae = approximation;
 	}
 	
 	public RGLDMParameters( final float differenceThreshold, final float ratioOfDistance, final int numNeighbors, final int redundancy )
+	{
+		this( differenceThreshold, ratioOfDistance, numNeighbors, redundancy, 0 );
+	}
+
+	public RGLDMParameters( final float differenceThreshold, final float ratioOfDistance, final int numNeighbors, final int redundancy, final float approximation )
 	{
 		this.dt = differenceThreshold;
 		this.rod = ratioOfDistance;
 		this.nn = numNeighbors;
 		this.re = redundancy;
+		this.ae = approximation;
 	}
 	
 	public float getDifferenceThreshold() { return dt; }
 	public float getRatioOfDistance() { return rod; }
 	public int getNumNeighbors() { return nn; }
 	public int getRedundancy() { return re; }
+	public float getApproximation() { return ae; }
 }
@@ -48,29 +48,68 @@ public class GeometricHasher
 			double ratioOfDistance, 
 			final boolean useAssociatedBeads ) 
 	{
-		final int numNeighbors = 3;
-		
-		final KDTree< Detection > tree1 = new KDTree< Detection >( nodeListA );
-		final KDTree< Detection > tree2 = new KDTree< Detection >( nodeListB );
+		return extractCorrespondenceCandidates( createViewDescriptors( nodeListA ), createViewDescriptors( nodeListB ), differenceThreshold, ratioOfDistance );
+	}
 
-		final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors1 = 
-			createLocalCoordinateSystemPointDescriptors( tree1, nodeListA, numNeighbors, false );
-		
-		final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors2 = 
-			createLocalCoordinateSystemPointDescriptors( tree2, nodeListB, numNeighbors, false );
-		
-		// create lookup tree for descriptors2		
-		final KDTree< LocalCoordinateSystemPointDescriptor< Detection > > lookUpTree2 = new KDTree< LocalCoordinateSystemPointDescriptor< Detection > >( descriptors2 );
-		final NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > > nnsearch = new NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > >( lookUpTree2 );
+	/**
+	 * Matches the descriptors of two views, they can be reused for other pairs (they are not modified)
+	 */
+	public ArrayList< PointMatchGeneric< Detection > > extractCorrespondenceCandidates( 
+			final ViewDescriptors viewA, 
+			final ViewDescriptors viewB, 
+			double differenceThreshold, 
+			double ratioOfDistance ) 
+	{
+		// search the lookup tree of descriptors2
+		final NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > > nnsearch = new NNearestNeighborSearch< LocalCoordinateSystemPointDescriptor< Detection > >( viewB.getLookUpTree() );
 	
 		// store the candidates for corresponding beads
 		final ArrayList<PointMatchGeneric< Detection >> correspondences = new ArrayList<PointMatchGeneric<Detection>>();
 		
 		/* compute matching */
-		computeMatching( descriptors1, nnsearch, correspondences, differenceThreshold, ratioOfDistance );
+		computeMatching( viewA.getDescriptors(), nnsearch, correspondences, differenceThreshold, ratioOfDistance );
 		
 		return correspondences;
 	}
+
+	/**
+	 * The descriptors of all detections of one view and the kd-tree to look them up
+	 */
+	public static class ViewDescriptors
+	{
+		final ArrayList< Detection > detections;
+		final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors;
+		final KDTree< LocalCoordinateSystemPointDescriptor< Detection > > lookUpTree;
+
+		public ViewDescriptors(
+				final ArrayList< Detection > detections,
+				final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors,
+				final KDTree< LocalCoordinateSystemPointDescriptor< Detection > > lookUpTree )
+		{
+			this.detections = detections;
+			this.descriptors = descriptors;
+			this.lookUpTree = lookUpTree;
+		}
+
+		public ArrayList< Detection > getDetections() { return detections; }
+		public ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > getDescriptors() { return descriptors; }
+		public KDTree< LocalCoordinateSystemPointDescriptor< Detection > > getLookUpTree() { return lookUpTree; }
+	}
+
+	public static ViewDescriptors createViewDescriptors( final ArrayList< Detection > nodeList )
+	{
+		final int numNeighbors = 3;
+		
+		final KDTree< Detection > tree = new KDTree< Detection >( nodeList );
+
+		final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors = 
+			createLocalCoordinateSystemPointDescriptors( tree, nodeList, numNeighbors, false );
+		
+		// create lookup tree for the descriptors
+		final KDTree< LocalCoordinateSystemPointDescriptor< Detection > > lookUpTree = new KDTree< LocalCoordinateSystemPointDescriptor< Detection > >( descriptors );
+
+		return new ViewDescriptors( nodeList, descriptors, lookUpTree );
+	}
 	
 	protected void computeMatching( 
 			final ArrayList< LocalCoordinateSystemPointDescriptor< Detection > > descriptors1, 
@@ -83,6 +122,10 @@ public class GeometricHasher
 
 		for ( final LocalCoordinateSystemPointDescriptor< Detection > descriptorA : descriptors1 )
 		{
+			// the pair was cancelled or timed out, the caller discards the result
+			if ( Thread.currentThread().isInterrupted() )
+				break;
+
 			final LocalCoordinateSystemPointDescriptor< Detection > matches[] = nnsearch2.findNNearestNeighbors( descriptorA, 2 );
 
 			double best = descriptorA.descriptorDistance( matches[ 0 ] );
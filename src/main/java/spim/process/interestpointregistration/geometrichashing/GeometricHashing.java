@@ -31,6 +31,7 @@ import spim.fiji.plugin.interestpointregistration.InterestPointRegistration;
 import spim.fiji.spimdata.SpimData2;
 import spim.process.interestpointregistration.ChannelProcess;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.PairwiseMatchCache.Invariance;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
 
@@ -60,6 +61,18 @@ public class GeometricHashing extends InterestPointRegistration
 	@Override
 	protected TransformationModel getTransformationModel() { return model; }
 
+	// the descriptors use a local coordinate system, the RANSAC model has to be able to compensate a rotation as well
+	@Override
+	protected Invariance getMatchingInvariance() { return model.isRotationInvariant() ? Invariance.RIGID : Invariance.TRANSLATION; }
+
+	@Override
+	protected String getMatchingParameters()
+	{
+		return getClass().getName() + ", " + model.getDescription() +
+				", dt=" + ghParams.getDifferenceThreshold() + ", rod=" + ghParams.getRatioOfDistance() +
+				", ub=" + ghParams.getUseAssociatedBeads() + ", " + ransacParams;
+	}
+
 	@Override
 	public GeometricHashing newInstance(
 			final SpimData2 spimData,
@@ -25,15 +25,18 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.concurrent.Callable;
 
+import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
 import net.imglib2.util.Pair;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.MatchPointList;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.PairwiseMatchScheduler;
 import spim.process.interestpointregistration.RANSAC;
 import spim.process.interestpointregistration.RANSACParameters;
 import spim.process.interestpointregistration.TransformationModel;
+import spim.process.interestpointregistration.ViewIndexCache;
 
 public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 {
@@ -63,41 +66,41 @@ public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 	}
 	
 	@Override
-	public PairwiseMatch call()
+	public PairwiseMatch call() throws InterruptedException
 	{
 		final GeometricHasher hasher = new GeometricHasher();
 		
-		final ArrayList< Detection > listA = new ArrayList< Detection >();
-		final ArrayList< Detection > listB = new ArrayList< Detection >();
-		
-		for ( final InterestPoint i : pair.getListA() )
-			listA.add( new Detection( i.getId(), i.getL() ) );
-
-		for ( final InterestPoint i : pair.getListB() )
-			listB.add( new Detection( i.getId(), i.getL() ) );
+		final int sizeA = pair.getMatchPointListA().size();
+		final int sizeB = pair.getMatchPointListB().size();
 
-		if ( listA.size() < 4 || listB.size() < 4 )
+		if ( sizeA < 4 || sizeB < 4 )
 		{
 			IOFunctions.println( "(" + new Date( System.currentTimeMillis() ) + "): " + comparison + ": "
-					+ "Not enough detections to match (4 required per list, |listA|= " + listA.size() + ", |listB|= " + listB.size() + ")" );
+					+ "Not enough detections to match (4 required per list, |listA|= " + sizeA + ", |listB|= " + sizeB + ")" );
 			pair.setCandidates( new ArrayList< PointMatchGeneric< Detection > >() );
 			pair.setInliers( new ArrayList<PointMatchGeneric< Detection > >(), Double.NaN );
 			return pair;
 		}
 
+		final GeometricHasher.ViewDescriptors viewA = getViewDescriptors( pair.getViewCache(), pair.getViewIdA(), pair.getMatchPointListA() );
+		final GeometricHasher.ViewDescriptors viewB = getViewDescriptors( pair.getViewCache(), pair.getViewIdB(), pair.getMatchPointListB() );
+
 		final ArrayList< PointMatchGeneric< Detection > > candidates = hasher.extractCorrespondenceCandidates( 
-				listA,
-				listB,
+				viewA,
+				viewB,
 				gp.getDifferenceThreshold(), 
-				gp.getRatioOfDistance(), 
-				gp.getUseAssociatedBeads() );
+				gp.getRatioOfDistance() );
+
+		PairwiseMatchScheduler.abortIfInterrupted();
 
 		pair.setCandidates( candidates );
 
 		// compute ransac and remove inconsistent candidates
 		final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
 
-		final Pair< String, Double > result = RANSAC.computeRANSAC( candidates, inliers, this.model.getModel(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), rp.getNumIterations() );
+		final Pair< String, Double > result = RANSAC.computeRANSAC( candidates, inliers, this.model.getModel(), rp.getMaxEpsilon(), rp.getMinInlierRatio(), rp.getMinInlierFactor(), rp.getNumIterations(), rp.getConfidence() );
+
+		PairwiseMatchScheduler.abortIfInterrupted();
 
 		pair.setInliers( inliers, result.getB() );
 
@@ -105,4 +108,20 @@ public class GeometricHashingPairwise implements Callable< PairwiseMatch >
 
 		return pair;
 	}
+
+	protected static GeometricHasher.ViewDescriptors getViewDescriptors( final ViewIndexCache cache, final ViewId viewId, final MatchPointList list )
+	{
+		if ( cache == null )
+			return GeometricHasher.createViewDescriptors( list.createDetections() );
+
+		return cache.get( viewId, list.getChannelProcessed().getLabel(), "geometrichashing",
+				new Callable< GeometricHasher.ViewDescriptors >()
+				{
+					@Override
+					public GeometricHasher.ViewDescriptors call()
+					{
+						return GeometricHasher.createViewDescriptors( list.createDetections() );
+					}
+				} );
+	}
 }
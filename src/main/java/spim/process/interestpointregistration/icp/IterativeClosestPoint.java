@@ -64,6 +64,13 @@ public class IterativeClosestPoint extends InterestPointRegistration
 	@Override
 	protected TransformationModel getTransformationModel() { return model; }
 
+	@Override
+	protected String getMatchingParameters()
+	{
+		return getClass().getName() + ", " + model.getDescription() +
+				", maxDistance=" + parameters.getMaxDistance() + ", maxIterations=" + parameters.getMaxNumIterations();
+	}
+
 	@Override
 	public void addQuery( final GenericDialog gd, final RegistrationType registrationType )
 	{
@@ -35,12 +35,15 @@ import mpicbg.models.Point;
 import mpicbg.models.PointMatch;
 import mpicbg.models.TranslationModel3D;
 import mpicbg.pointdescriptor.exception.NoSuitablePointsException;
+import mpicbg.spim.data.sequence.ViewId;
 import mpicbg.spim.io.IOFunctions;
 import mpicbg.spim.mpicbg.PointMatchGeneric;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.process.interestpointregistration.Detection;
+import spim.process.interestpointregistration.MatchPointList;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.PairwiseMatchScheduler;
 import spim.process.interestpointregistration.TransformationModel;
+import spim.process.interestpointregistration.ViewIndexCache;
 
 public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 {
@@ -58,16 +61,11 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 	}
 
 	@Override
-	public PairwiseMatch call()
+	public PairwiseMatch call() throws InterruptedException
 	{
-		final ArrayList< Detection > listA = new ArrayList< Detection >();
-		final ArrayList< Detection > listB = new ArrayList< Detection >();
-		
-		for ( final InterestPoint i : pair.getListA() )
-			listA.add( new Detection( i.getId(), i.getL() ) );
-
-		for ( final InterestPoint i : pair.getListB() )
-			listB.add( new Detection( i.getId(), i.getL() ) );
+		// A is transformed by the ICP, B (the reference) is not modified and shared with the other pairs
+		final ArrayList< Detection > listA = pair.getMatchPointListA().createDetections();
+		final ArrayList< Detection > listB = getReferenceDetections( pair.getViewCache(), pair.getViewIdB(), pair.getMatchPointListB() );
 
 		// identity transform
 		Model<?> model = this.model.getModel();
@@ -86,8 +84,6 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 		for ( final Detection d : listA )
 			d.setUseW( true );
 
-		for ( final Detection d : listB )
-			d.setUseW( true );
 
 		final ICP< Detection > icp = new ICP< Detection >( listA, listB, (float)ip.getMaxDistance() );
 
@@ -99,6 +95,8 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 
 		do
 		{
+			PairwiseMatchScheduler.abortIfInterrupted();
+
 			try
 			{
 				icp.runICPIteration( model, model );
@@ -142,6 +140,33 @@ public class IterativeClosestPointPairwise implements Callable< PairwiseMatch >
 		return pair;
 	}
 
+	protected static ArrayList< Detection > getReferenceDetections( final ViewIndexCache cache, final ViewId viewId, final MatchPointList list )
+	{
+		if ( cache == null )
+			return createReferenceDetections( list );
+
+		return cache.get( viewId, list.getChannelProcessed().getLabel(), "icp-reference",
+				new Callable< ArrayList< Detection > >()
+				{
+					@Override
+					public ArrayList< Detection > call()
+					{
+						return createReferenceDetections( list );
+					}
+				} );
+	}
+
+	protected static ArrayList< Detection > createReferenceDetections( final MatchPointList list )
+	{
+		final ArrayList< Detection > detections = list.createDetections();
+
+		// use the world and not the local coordinates
+		for ( final Detection d : detections )
+			d.setUseW( true );
+
+		return detections;
+	}
+
 	public static void failWith( final String algo, final String exType, final PairwiseMatch pair, final Exception e )
 	{
 		IOFunctions.println(
@@ -47,6 +47,7 @@ import spim.fiji.spimdata.ViewSetupUtils;
 import spim.process.interestpointregistration.ChannelProcess;
 import spim.process.interestpointregistration.GlobalOpt;
 import spim.process.interestpointregistration.PairwiseMatch;
+import spim.process.interestpointregistration.ViewIndexCache;
 
 /**
  * Defines a subset of views that need to be matched and then a global optimization
@@ -64,6 +65,9 @@ public class GlobalOptimizationSubset
 	
 	// will be populated once getViews() is called
 	ArrayList< ViewId > viewList;
+
+	// what the pairwise matching computes per view, shared by all pairs of this subset
+	final ViewIndexCache viewCache = new ViewIndexCache();
 	
 	public GlobalOptimizationSubset( final ArrayList< PairwiseMatch > viewPairs, final String description )
 	{
@@ -71,6 +75,16 @@ public class GlobalOptimizationSubset
 		this.description = description;
 	}
 
+	/**
+	 * @return the per-view data of the pairwise matching of this subset
+	 */
+	public ViewIndexCache getViewCache() { return viewCache; }
+
+	/**
+	 * Releases the per-view data of the pairwise matching, call once all pairs are matched
+	 */
+	public void releaseViewCache() { viewCache.clear(); }
+
 	/**
 	 * @param model
 	 * @param type
@@ -42,8 +42,8 @@ import mpicbg.spim.mpicbg.PointMatchGeneric;
 import net.imglib2.realtransform.AffineTransform3D;
 import spim.fiji.spimdata.SpimData2;
 import spim.fiji.spimdata.interestpoints.CorrespondingInterestPoints;
-import spim.fiji.spimdata.interestpoints.InterestPoint;
 import spim.fiji.spimdata.interestpoints.InterestPointList;
+import spim.fiji.spimdata.interestpoints.InterestPointStore;
 import spim.fiji.spimdata.interestpoints.ViewInterestPointLists;
 import spim.fiji.spimdata.interestpoints.ViewInterestPoints;
 import spim.process.interestpointregistration.ChannelProcess;
@@ -173,7 +173,7 @@ public abstract class GlobalOptimizationType
 	/**
 	 * Creates lists of input points for the registration, based on the current transformation of the views
 	 * 
-	 * Note: this always duplicates the location array from the input List&gt; InterestPoint &lt; !!!
+	 * Note: this always duplicates the location array from the input {@link InterestPointStore} !!!
 	 * 
 	 * @param timepoint
 	 */
@@ -197,9 +197,6 @@ public abstract class GlobalOptimizationType
 			final Angle a = vd.getViewSetup().getAngle();
 			final Illumination i = vd.getViewSetup().getIllumination();
 
-			// assemble a new list
-			final ArrayList< InterestPoint > list = new ArrayList< InterestPoint >();
-
 			// check the existing lists of points
 			final ViewInterestPointLists lists = interestpoints.getViewInterestPointLists( vd );
 
@@ -222,21 +219,14 @@ public abstract class GlobalOptimizationType
 				}
 			}
 			
-			final List< InterestPoint > ptList = lists.getInterestPointList( c.getLabel() ).getInterestPoints();
+			final InterestPointStore ptStore = lists.getInterestPointList( c.getLabel() ).getInterestPointStore();
 			
 			final ViewRegistration r = registrations.getViewRegistration( vd );
 			r.updateModel();
 			final AffineTransform3D m = r.getModel();
-			
-			for ( final InterestPoint p : ptList )
-			{
-				final double[] l = new double[ 3 ];
-				m.apply( p.getL(), l );
-				
-				list.add( new InterestPoint( p.getId(), l ) );
-			}
-			
-			interestPoints.put( vd, new MatchPointList( list, c ) );
+
+			// the points in world coordinates
+			interestPoints.put( vd, new MatchPointList( ptStore.transformL( m ), c ) );
 		}
 
 		return interestPoints;
@@ -27,8 +27,10 @@ import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
 
+import javax.swing.AbstractAction;
 import javax.swing.JFrame;
 import javax.swing.JMenuItem;
 import javax.swing.JPanel;
@@ -107,6 +109,25 @@ public class GraphFrame extends JFrame implements ActionListener
 				menu.add( new JMenuItem( m ) );
 			}
 
+		// the pairwise matching of all timepoints, pairs spanning two timepoints are listed once
+		final LinkedHashSet< PairwiseMatchStatistics > pairs = new LinkedHashSet< PairwiseMatchStatistics >();
+
+		if ( data != null )
+			for ( final RegistrationStatistics rs : data )
+				pairs.addAll( rs.getPairStatistics() );
+
+		if ( pairs.size() > 0 )
+			menu.add( new JMenuItem( new AbstractAction( "Show pairwise matching statistics" )
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				public void actionPerformed( final ActionEvent e )
+				{
+					PairwiseMatchStatistics.show( new ArrayList< PairwiseMatchStatistics >( pairs ), "Pairwise matching statistics" );
+				}
+			} ) );
+
 		validate();
 	}
 	
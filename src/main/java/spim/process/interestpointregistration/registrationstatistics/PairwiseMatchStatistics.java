@@ -0,0 +1,101 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration.registrationstatistics;
+
+import ij.measure.ResultsTable;
+
+import java.util.List;
+
+import mpicbg.spim.data.sequence.ViewId;
+import spim.process.interestpointregistration.PairwiseMatch;
+
+/**
+ * Record of the pairwise matching of one pair of views
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class PairwiseMatchStatistics
+{
+	final ViewId viewIdA, viewIdB;
+	final long cost, computeTime;
+	final int numCandidates, numInliers;
+	final double error;
+	final boolean reused, cancelled;
+
+	public PairwiseMatchStatistics( final PairwiseMatch pair, final boolean reused )
+	{
+		this.viewIdA = pair.getViewIdA();
+		this.viewIdB = pair.getViewIdB();
+		this.cost = pair.getCost();
+		this.computeTime = pair.getComputeTime();
+		this.numCandidates = pair.getCandidates() == null ? 0 : pair.getNumCandidates();
+		this.numInliers = pair.getInliers() == null ? 0 : pair.getNumInliers();
+		this.error = pair.getAvgError();
+		this.reused = reused;
+		this.cancelled = pair.isCancelled();
+	}
+
+	public ViewId getViewIdA() { return viewIdA; }
+	public ViewId getViewIdB() { return viewIdB; }
+
+	/**
+	 * @return the estimated cost, |A|*|B| interest points
+	 */
+	public long getCost() { return cost; }
+
+	/**
+	 * @return time in ms, -1 if the result was reused
+	 */
+	public long getComputeTime() { return computeTime; }
+	public int getNumCandidates() { return numCandidates; }
+	public int getNumInliers() { return numInliers; }
+	public double getError() { return error; }
+	public boolean isReused() { return reused; }
+
+	/**
+	 * @return if it timed out, failed or was cancelled
+	 */
+	public boolean isCancelled() { return cancelled; }
+
+	public static void show( final List< PairwiseMatchStatistics > statistics, final String title )
+	{
+		final ResultsTable rt = new ResultsTable();
+
+		for ( final PairwiseMatchStatistics s : statistics )
+		{
+			rt.incrementCounter();
+			rt.addValue( "TP A", s.getViewIdA().getTimePointId() );
+			rt.addValue( "Setup A", s.getViewIdA().getViewSetupId() );
+			rt.addValue( "TP B", s.getViewIdB().getTimePointId() );
+			rt.addValue( "Setup B", s.getViewIdB().getViewSetupId() );
+			rt.addValue( "|A|*|B|", s.getCost() );
+			rt.addValue( "Time [ms]", s.getComputeTime() );
+			rt.addValue( "Candidates", s.getNumCandidates() );
+			rt.addValue( "Inliers", s.getNumInliers() );
+			rt.addValue( "Error [px]", s.getError() );
+			rt.addValue( "Reused", s.isReused() ? "yes" : "no" );
+			rt.addValue( "Cancelled", s.isCancelled() ? "yes" : "no" );
+		}
+
+		rt.show( title );
+	}
+}
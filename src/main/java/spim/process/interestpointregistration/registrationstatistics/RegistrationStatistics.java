@@ -21,6 +21,7 @@
  */
 package spim.process.interestpointregistration.registrationstatistics;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import mpicbg.spim.registration.ViewStructure;
@@ -40,6 +41,12 @@ public class RegistrationStatistics implements Comparable< RegistrationStatistic
 	int numInvalidPairs = 0;
 	final int timePoint;
 
+	// the pairwise matching of all pairs that involve this timepoint
+	final ArrayList< PairwiseMatchStatistics > pairStatistics = new ArrayList< PairwiseMatchStatistics >();
+	long matchingTime = 0;
+	int numCandidates = 0;
+	int numInliers = 0;
+
 	/**
 	 * Call this class after a registration is performed and it will collect the
 	 * information it wants
@@ -52,6 +59,18 @@ public class RegistrationStatistics implements Comparable< RegistrationStatistic
 		collect( timepoint, matches );
 	}
 
+	/**
+	 * Call this class after a registration is performed and it will collect the
+	 * information it wants, including the per-pair matching statistics
+	 *
+	 */
+	public RegistrationStatistics( final int timepoint, final List< List< PairwiseMatch > > matches, final List< PairwiseMatchStatistics > pairStatistics )
+	{
+		this( timepoint, matches );
+
+		collectPairs( timepoint, pairStatistics );
+	}
+
 	public RegistrationStatistics( final int timePoint, final double minError, final double avgError, final double maxError, final double minRatio, final double avgRatio, final double maxRatio, final int numValidPairs, final int numInvalidPairs )
 	{
 		this.timePoint = timePoint;
@@ -75,6 +94,33 @@ public class RegistrationStatistics implements Comparable< RegistrationStatistic
 	int getNumValidPairs() { return numValidPairs; }
 	int getNumInvalidPairs() { return numInvalidPairs; }
 
+	/**
+	 * @return the matching statistics of all pairs that involve this timepoint
+	 */
+	public List< PairwiseMatchStatistics > getPairStatistics() { return pairStatistics; }
+
+	/**
+	 * @return the summed wall time in ms of all pairs matched for this timepoint (reused pairs excluded)
+	 */
+	public long getMatchingTime() { return matchingTime; }
+	public int getNumCandidates() { return numCandidates; }
+	public int getNumInliers() { return numInliers; }
+
+	protected void collectPairs( final int timepoint, final List< PairwiseMatchStatistics > statistics )
+	{
+		for ( final PairwiseMatchStatistics s : statistics )
+			if ( s.getViewIdA().getTimePointId() == timepoint || s.getViewIdB().getTimePointId() == timepoint )
+			{
+				pairStatistics.add( s );
+
+				if ( !s.isReused() )
+					matchingTime += s.getComputeTime();
+
+				numCandidates += s.getNumCandidates();
+				numInliers += s.getNumInliers();
+			}
+	}
+
 	protected void collect( final int timepoint, final List< List< PairwiseMatch > > matches )
 	{
 		minError = Double.MAX_VALUE;
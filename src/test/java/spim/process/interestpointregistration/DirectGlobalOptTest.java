@@ -0,0 +1,233 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.models.AbstractAffineModel3D;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.Model;
+import mpicbg.models.Tile;
+import mpicbg.models.TileConfiguration;
+import mpicbg.models.TranslationModel3D;
+import mpicbg.spim.data.sequence.ViewId;
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+
+import org.junit.Test;
+
+/**
+ * Compares the direct solve of {@link DirectGlobalOpt} to the iterative optimization of the
+ * {@link TileConfiguration} on a small synthetic graph of views with one fixed tile.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class DirectGlobalOptTest
+{
+	// pixels, the iterative optimization stops on a plateau, not at the exact minimum
+	final static double iterativeTolerance = 0.05;
+
+	@Test
+	public void testAffine() throws Exception
+	{
+		final AffineModel3D t1 = new AffineModel3D();
+		t1.set( 0.98, -0.17, 0.02, 512.3, 0.17, 0.97, -0.05, -40.7, -0.01, 0.05, 1.03, 21.5 );
+
+		final AffineModel3D t2 = new AffineModel3D();
+		t2.set( 1.02, 0.05, -0.12, 1010.8, -0.04, 0.99, 0.01, 3.2, 0.12, -0.02, 0.97, -64.1 );
+
+		final AffineModel3D t3 = new AffineModel3D();
+		t3.set( 0.95, 0.0, 0.09, 490.0, 0.02, 1.05, 0.0, 988.6, -0.09, 0.01, 1.0, 12.9 );
+
+		compare( new AffineModel3D(), new AffineModel3D[]{ new AffineModel3D(), t1, t2, t3 }, 0.0, iterativeTolerance );
+		compare( new AffineModel3D(), new AffineModel3D[]{ new AffineModel3D(), t1, t2, t3 }, 0.5, iterativeTolerance );
+	}
+
+	@Test
+	public void testTranslation() throws Exception
+	{
+		final AffineModel3D[] truth = new AffineModel3D[ 4 ];
+
+		for ( int i = 0; i < truth.length; ++i )
+		{
+			truth[ i ] = new AffineModel3D();
+			truth[ i ].set( 1, 0, 0, i * 480.5, 0, 1, 0, ( i % 2 ) * 950.25, 0, 0, 1, -i * 7.75 );
+		}
+
+		compare( new TranslationModel3D(), truth, 0.0, iterativeTolerance );
+		compare( new TranslationModel3D(), truth, 0.5, iterativeTolerance );
+	}
+
+	@Test
+	public void testSingular()
+	{
+		// all correspondences of view 1 in one plane, the affine model of its tile is not defined
+		final Random rnd = new Random( 42 );
+		final List< ViewId > views = views( 2 );
+		final HashMap< ViewId, Tile< AffineModel3D > > map = tiles( new AffineModel3D(), views );
+		final ArrayList< PairwiseMatch > pairs = new ArrayList< PairwiseMatch >();
+		final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
+
+		for ( int k = 0; k < 50; ++k )
+		{
+			final double[] p = new double[]{ rnd.nextDouble() * 1000, rnd.nextDouble() * 1000, 100 };
+			inliers.add( new PointMatchGeneric< Detection >( new Detection( k, p.clone() ), new Detection( k, p.clone() ) ) );
+		}
+
+		pairs.add( pair( views.get( 0 ), views.get( 1 ), inliers ) );
+
+		final DirectGlobalOpt< AffineModel3D > direct = new DirectGlobalOpt< AffineModel3D >( configuration( views, map, pairs ), pairs, views, map );
+
+		assertTrue( !direct.solve() );
+		assertTrue( direct.getFailure() != null );
+	}
+
+	/**
+	 * Creates correspondences between all pairs of views from the true transformations (view 0 is fixed and
+	 * has the identity), solves directly and iteratively and compares the transformed points of all views.
+	 */
+	protected static < M extends Model< M > > void compare( final M model, final AffineModel3D[] truth, final double noise, final double tolerance ) throws Exception
+	{
+		final List< ViewId > views = views( truth.length );
+		final ArrayList< PairwiseMatch > pairs = correspondences( views, truth, noise, new Random( 7 ) );
+
+		final HashMap< ViewId, Tile< M > > directMap = tiles( model, views );
+		final HashMap< ViewId, Tile< M > > iterativeMap = tiles( model, views );
+
+		final DirectGlobalOpt< M > direct = new DirectGlobalOpt< M >( configuration( views, directMap, pairs ), pairs, views, directMap );
+		assertTrue( "direct solve failed: " + direct.getFailure(), direct.solve() );
+
+		final TileConfiguration tc = configuration( views, iterativeMap, pairs );
+		tc.preAlign();
+		tc.optimize( 10, 100000, 1000 );
+
+		final double[] p = new double[ 3 ];
+		final double[] q = new double[ 3 ];
+
+		for ( final ViewId viewId : views )
+		{
+			for ( final double[] corner : new double[][]{ { 0, 0, 0 }, { 1000, 0, 0 }, { 0, 1000, 0 }, { 0, 0, 200 }, { 1000, 1000, 200 } } )
+			{
+				System.arraycopy( corner, 0, p, 0, 3 );
+				System.arraycopy( corner, 0, q, 0, 3 );
+
+				( (AbstractAffineModel3D< ? >)directMap.get( viewId ).getModel() ).applyInPlace( p );
+				( (AbstractAffineModel3D< ? >)iterativeMap.get( viewId ).getModel() ).applyInPlace( q );
+
+				for ( int d = 0; d < 3; ++d )
+					assertEquals( "view " + viewId.getViewSetupId() + ", dimension " + d, q[ d ], p[ d ], tolerance );
+
+				// without noise, the exact solution is the true transformation
+				if ( noise == 0 )
+				{
+					System.arraycopy( corner, 0, q, 0, 3 );
+					truth[ viewId.getViewSetupId() ].applyInPlace( q );
+
+					for ( int d = 0; d < 3; ++d )
+						assertEquals( q[ d ], p[ d ], 1e-6 );
+				}
+			}
+		}
+	}
+
+	protected static List< ViewId > views( final int numViews )
+	{
+		final ArrayList< ViewId > views = new ArrayList< ViewId >();
+
+		for ( int i = 0; i < numViews; ++i )
+			views.add( new ViewId( 0, i ) );
+
+		return views;
+	}
+
+	protected static < M extends Model< M > > HashMap< ViewId, Tile< M > > tiles( final M model, final List< ViewId > views )
+	{
+		final HashMap< ViewId, Tile< M > > map = new HashMap< ViewId, Tile< M > >();
+
+		for ( final ViewId viewId : views )
+			map.put( viewId, new Tile< M >( model.copy() ) );
+
+		return map;
+	}
+
+	protected static < M extends Model< M > > TileConfiguration configuration( final List< ViewId > views, final HashMap< ViewId, Tile< M > > map, final List< PairwiseMatch > pairs )
+	{
+		for ( final PairwiseMatch pair : pairs )
+			GlobalOpt.addPointMatches( pair.getInliers(), map.get( pair.getViewIdA() ), map.get( pair.getViewIdB() ) );
+
+		final TileConfiguration tc = new TileConfiguration();
+
+		for ( final ViewId viewId : views )
+			tc.addTile( map.get( viewId ) );
+
+		tc.fixTile( map.get( views.get( 0 ) ) );
+
+		return tc;
+	}
+
+	protected static PairwiseMatch pair( final ViewId viewIdA, final ViewId viewIdB, final ArrayList< PointMatchGeneric< Detection > > inliers )
+	{
+		final PairwiseMatch pair = new PairwiseMatch( viewIdA, viewIdB, null, null );
+		pair.setInliers( inliers, 0 );
+		return pair;
+	}
+
+	/**
+	 * @return corresponding points of all pairs of views, in the local coordinates of each view
+	 */
+	protected static ArrayList< PairwiseMatch > correspondences( final List< ViewId > views, final AffineModel3D[] truth, final double noise, final Random rnd ) throws Exception
+	{
+		final ArrayList< PairwiseMatch > pairs = new ArrayList< PairwiseMatch >();
+		int id = 0;
+
+		for ( int a = 0; a < views.size() - 1; ++a )
+			for ( int b = a + 1; b < views.size(); ++b )
+			{
+				final ArrayList< PointMatchGeneric< Detection > > inliers = new ArrayList< PointMatchGeneric< Detection > >();
+
+				for ( int k = 0; k < 40; ++k )
+				{
+					final double[] world = new double[]{ rnd.nextDouble() * 1500, rnd.nextDouble() * 1500, rnd.nextDouble() * 200 };
+					final double[] pa = truth[ a ].applyInverse( world );
+					final double[] pb = truth[ b ].applyInverse( world );
+
+					for ( int d = 0; d < 3; ++d )
+					{
+						pa[ d ] += noise * rnd.nextGaussian();
+						pb[ d ] += noise * rnd.nextGaussian();
+					}
+
+					inliers.add( new PointMatchGeneric< Detection >( new Detection( id, pa ), new Detection( id, pb ) ) );
+					++id;
+				}
+
+				pairs.add( pair( views.get( a ), views.get( b ), inliers ) );
+			}
+
+		return pairs;
+	}
+}
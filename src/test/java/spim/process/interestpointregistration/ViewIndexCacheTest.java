@@ -0,0 +1,211 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.spim.data.sequence.ViewId;
+
+import org.junit.Test;
+
+import spim.ComputeScheduler;
+
+/**
+ * Checks that concurrent requests for the same entry of the {@link ViewIndexCache} compute it exactly
+ * once, on plain threads and on the shared scheduler with fewer workers than waiting tasks.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class ViewIndexCacheTest
+{
+	final static int numRequests = 16;
+
+	@Test( timeout = 10000 )
+	public void testComputeOnceThreads() throws Exception
+	{
+		final ViewIndexCache cache = new ViewIndexCache();
+		final AtomicInteger computed = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch( 1 );
+		final CountDownLatch requested = new CountDownLatch( numRequests );
+		final Object[] results = new Object[ numRequests ];
+		final Throwable[] failures = new Throwable[ numRequests ];
+		final Thread[] threads = new Thread[ numRequests ];
+
+		for ( int i = 0; i < numRequests; ++i )
+		{
+			final int index = i;
+
+			threads[ i ] = new Thread( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+						requested.countDown();
+						results[ index ] = cache.get( new ViewId( 0, 1 ), "beads", "tree", create( computed, requested ) );
+					}
+					catch ( final Throwable e )
+					{
+						failures[ index ] = e;
+					}
+				}
+			} );
+
+			threads[ i ].start();
+		}
+
+		start.countDown();
+
+		for ( final Thread thread : threads )
+			thread.join();
+
+		for ( int i = 0; i < numRequests; ++i )
+		{
+			if ( failures[ i ] != null )
+				throw new AssertionError( failures[ i ] );
+
+			assertSame( results[ 0 ], results[ i ] );
+		}
+
+		assertEquals( 1, computed.get() );
+		assertEquals( 1, cache.size() );
+		assertEquals( 1, cache.getMisses() );
+		assertEquals( numRequests - 1, cache.getHits() );
+	}
+
+	@Test( timeout = 10000 )
+	public void testComputeOnceScheduler() throws Exception
+	{
+		final ViewIndexCache cache = new ViewIndexCache();
+		final AtomicInteger computed = new AtomicInteger();
+		final CountDownLatch requested = new CountDownLatch( numRequests );
+		final ComputeScheduler scheduler = new ComputeScheduler( 2 );
+		final ArrayList< Callable< Object > > tasks = new ArrayList< Callable< Object > >();
+
+		// two views, requested alternately by more tasks than the scheduler has workers
+		for ( int i = 0; i < numRequests; ++i )
+		{
+			final ViewId viewId = new ViewId( 0, i % 2 );
+
+			tasks.add( new Callable< Object >()
+			{
+				@Override
+				public Object call() throws Exception
+				{
+					requested.countDown();
+					return cache.get( viewId, "beads", "tree", create( computed, requested ) );
+				}
+			} );
+		}
+
+		try
+		{
+			final List< Future< Object > > futures = scheduler.invokeAll( tasks );
+
+			for ( int i = 0; i < numRequests; ++i )
+				assertSame( futures.get( i % 2 ).get(), futures.get( i ).get() );
+		}
+		finally
+		{
+			scheduler.close();
+		}
+
+		assertEquals( 2, computed.get() );
+		assertEquals( 2, cache.size() );
+		assertEquals( 2, cache.getMisses() );
+		assertEquals( numRequests - 2, cache.getHits() );
+	}
+
+	@Test
+	public void testFailureIsNotKept() throws Exception
+	{
+		final ViewIndexCache cache = new ViewIndexCache();
+		final ViewId viewId = new ViewId( 0, 0 );
+
+		try
+		{
+			cache.get( viewId, "beads", "tree", new Callable< Object >()
+			{
+				@Override
+				public Object call() throws Exception
+				{
+					throw new IllegalStateException( "no points" );
+				}
+			} );
+
+			fail( "the failure of the computation must be passed on" );
+		}
+		catch ( final RuntimeException e )
+		{
+			assertEquals( IllegalStateException.class, e.getCause().getClass() );
+		}
+
+		assertEquals( 0, cache.size() );
+
+		final AtomicInteger computed = new AtomicInteger();
+		cache.get( viewId, "beads", "tree", create( computed, new CountDownLatch( 0 ) ) );
+
+		assertEquals( 1, computed.get() );
+		assertEquals( 1, cache.size() );
+	}
+
+	/**
+	 * @param computed - counts how often the computation is called
+	 * @param requested - the computation only finishes once all requests were made, so they overlap with it
+	 * @return a computation that waits for all requests
+	 */
+	protected static Callable< Object > create( final AtomicInteger computed, final CountDownLatch requested )
+	{
+		return new Callable< Object >()
+		{
+			@Override
+			public Object call() throws Exception
+			{
+				computed.incrementAndGet();
+
+				// a managed wait, so the scheduler can run the remaining requests while its workers wait
+				ComputeScheduler.block( new Callable< Void >()
+				{
+					@Override
+					public Void call() throws Exception
+					{
+						requested.await();
+						return null;
+					}
+				} );
+
+				return new Object();
+			}
+		};
+	}
+}
@@ -0,0 +1,160 @@
+/*-
+ * #%L
+ * Fiji distribution of ImageJ for the life sciences.
+ * %%
+ * Copyright (C) 2007 - 2023 Fiji developers.
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+package spim.process.interestpointregistration.geometricdescriptor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import mpicbg.pointdescriptor.SimplePointDescriptor;
+import mpicbg.spim.mpicbg.PointMatchGeneric;
+
+import org.junit.Test;
+
+import spim.process.interestpointregistration.Detection;
+
+/**
+ * Compares the {@link DescriptorIndex} to comparing every pair of descriptors, both for the best and
+ * second best match of each descriptor and for the correspondences that pass the ratio test.
+ *
+ * @author Stephan Preibisch (stephan.preibisch@gmx.de)
+ */
+public class DescriptorIndexTest
+{
+	@Test
+	public void testBestMatches()
+	{
+		for ( final int redundancy : new int[]{ 0, 1, 2 } )
+		{
+			final Random rnd = new Random( 17 + redundancy );
+			final ArrayList< Detection > pointsA = points( 400, rnd );
+			final ArrayList< Detection > pointsB = transformed( pointsA, 0.5, 100, rnd );
+
+			final RGLDMMatcher.ViewDescriptors viewA = RGLDMMatcher.createViewDescriptors( pointsA, 3, redundancy );
+			final RGLDMMatcher.ViewDescriptors viewB = RGLDMMatcher.createViewDescriptors( pointsB, 3, redundancy );
+
+			for ( final SimplePointDescriptor< Detection > descriptorA : viewA.getDescriptors() )
+			{
+				final DescriptorIndex.Match< SimplePointDescriptor< Detection > > match =
+						viewB.getIndex().findBestMatches( descriptorA, Double.MAX_VALUE, 0 );
+
+				double bestDifference = Double.MAX_VALUE;
+				double secondBestDifference = Double.MAX_VALUE;
+				SimplePointDescriptor< Detection > best = null;
+
+				for ( final SimplePointDescriptor< Detection > descriptorB : viewB.getDescriptors() )
+				{
+					final double difference = descriptorA.descriptorDistance( descriptorB );
+
+					if ( difference < bestDifference )
+					{
+						secondBestDifference = bestDifference;
+						bestDifference = difference;
+						best = descriptorB;
+					}
+					else if ( difference < secondBestDifference )
+					{
+						secondBestDifference = difference;
+					}
+				}
+
+				assertSame( best, match.getBest() );
+				assertEquals( bestDifference, match.getBestDifference(), 1e-9 * Math.max( 1, bestDifference ) );
+				assertEquals( secondBestDifference, match.getSecondBestDifference(), 1e-9 * Math.max( 1, secondBestDifference ) );
+			}
+		}
+	}
+
+	@Test
+	public void testRatioTest()
+	{
+		final Random rnd = new Random( 3 );
+		final ArrayList< Detection > pointsA = points( 1000, rnd );
+		final ArrayList< Detection > pointsB = transformed( pointsA, 0.3, 300, rnd );
+
+		final RGLDMMatcher.ViewDescriptors viewA = RGLDMMatcher.createViewDescriptors( pointsA, 3, 1 );
+		final RGLDMMatcher.ViewDescriptors viewB = RGLDMMatcher.createViewDescriptors( pointsB, 3, 1 );
+
+		for ( final double nTimesBetter : new double[]{ 1.5, 3, 10 } )
+			for ( final double differenceThreshold : new double[]{ 1, RGLDMParameters.differenceThreshold, Double.MAX_VALUE } )
+			{
+				final ArrayList< PointMatchGeneric< Detection > > bruteForce =
+						RGLDMMatcher.findCorrespondingDescriptors( viewA.getDescriptors(), viewB.getDescriptors(), nTimesBetter, differenceThreshold );
+
+				final ArrayList< PointMatchGeneric< Detection > > indexed =
+						RGLDMMatcher.findCorrespondingDescriptors( viewA.getDescriptors(), viewB.getIndex(), nTimesBetter, differenceThreshold, 0 );
+
+				assertEquals( bruteForce.size(), indexed.size() );
+
+				for ( int i = 0; i < bruteForce.size(); ++i )
+				{
+					assertSame( bruteForce.get( i ).getPoint1(), indexed.get( i ).getPoint1() );
+					assertSame( bruteForce.get( i ).getPoint2(), indexed.get( i ).getPoint2() );
+				}
+			}
+
+		// most of the shifted points are found again
+		final ArrayList< PointMatchGeneric< Detection > > indexed =
+				RGLDMMatcher.findCorrespondingDescriptors( viewA.getDescriptors(), viewB.getIndex(), 3, RGLDMParameters.differenceThreshold, 0 );
+
+		assertTrue( indexed.size() > pointsA.size() / 2 );
+	}
+
+	/**
+	 * @return random points in a volume of 1000x1000x200
+	 */
+	protected static ArrayList< Detection > points( final int numPoints, final Random rnd )
+	{
+		final ArrayList< Detection > points = new ArrayList< Detection >();
+
+		for ( int i = 0; i < numPoints; ++i )
+			points.add( new Detection( i, new double[]{ rnd.nextDouble() * 1000, rnd.nextDouble() * 1000, rnd.nextDouble() * 200 } ) );
+
+		return points;
+	}
+
+	/**
+	 * @return the points shifted, with noise, and additional random points
+	 */
+	protected static ArrayList< Detection > transformed( final ArrayList< Detection > points, final double noise, final int numAdditional, final Random rnd )
+	{
+		final ArrayList< Detection > transformed = new ArrayList< Detection >();
+
+		for ( final Detection p : points )
+		{
+			final double[] l = p.getL();
+
+			transformed.add( new Detection( transformed.size(), new double[]{
+					l[ 0 ] + 250 + noise * rnd.nextGaussian(),
+					l[ 1 ] - 40 + noise * rnd.nextGaussian(),
+					l[ 2 ] + 12 + noise * rnd.nextGaussian() } ) );
+		}
+
+		for ( final Detection p : points( numAdditional, rnd ) )
+			transformed.add( new Detection( transformed.size(), p.getL() ) );
+
+		return transformed;
+	}
+}